@@ -0,0 +1,52 @@
+package com.worldheatmap;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of stepping on tiles of a heatmap that already has numTiles tiles, i.e. of what the tile event consumer does for every tile
+ * the player steps on. The steps mostly land on tiles that are already in the heatmap, with the odd new tile, as in a real game.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeatmapIncrementBenchmark
+{
+	private static final int NUM_STEPS = 1 << 20;
+
+	@Param({"10000", "250000", "2000000"})
+	public int numTiles;
+
+	private HeatmapNew heatmap;
+	private int[] steps;
+	private int nextStep;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		heatmap = SyntheticHeatmaps.generate(HeatmapNew.HeatmapType.TYPE_A, numTiles);
+		steps = SyntheticHeatmaps.generateSteps(heatmap, NUM_STEPS);
+	}
+
+	@Benchmark
+	public void increment()
+	{
+		int tile = steps[nextStep];
+		nextStep = (nextStep + 1) & (NUM_STEPS - 1);
+		heatmap.increment(HeatmapNew.unpackX(tile), HeatmapNew.unpackY(tile));
+	}
+}
@@ -0,0 +1,81 @@
+package com.worldheatmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of fully saving a heatmap to a .heatmaps file and of loading it back, as done on logout/autosave and on login.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeatmapPersistenceBenchmark
+{
+	@Param({"10000", "250000", "2000000"})
+	public int numTiles;
+
+	private File directory;
+	private HeatmapNew snapshot;
+	private File savedFile;
+	private File saveFile;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		directory = Files.createTempDirectory("heatmap-benchmark").toFile();
+		snapshot = SyntheticHeatmaps.generate(HeatmapNew.HeatmapType.TYPE_A, numTiles).snapshot();
+		savedFile = new File(directory, "saved.heatmaps");
+		if (!HeatmapNew.writeHeatmapsToFile(Collections.singletonList(snapshot), savedFile, null))
+		{
+			throw new IOException("Couldn't write " + savedFile);
+		}
+		saveFile = new File(directory, "save.heatmaps");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown()
+	{
+		File[] files = directory.listFiles();
+		if (files != null)
+		{
+			for (File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	@Benchmark
+	public boolean save()
+	{
+		// Each save replaces the last one's file, as autosaves do
+		return HeatmapNew.writeHeatmapsToFile(Collections.singletonList(snapshot), saveFile, null);
+	}
+
+	@Benchmark
+	public HashMap<HeatmapNew.HeatmapType, HeatmapNew> load() throws IOException
+	{
+		return HeatmapNew.readHeatmapsFromFile(savedFile, Collections.singletonList(HeatmapNew.HeatmapType.TYPE_A));
+	}
+}
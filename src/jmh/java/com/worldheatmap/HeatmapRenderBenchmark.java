@@ -0,0 +1,122 @@
+package com.worldheatmap;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Costs of writing a heatmap image over a generated overworld map: preparing the heatmap's tiles for drawing, and rendering (and compressing)
+ * the full-width strips that the image is written in. Each invocation does the next strip down the image, so the strips average over
+ * busy and empty parts of the map.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class HeatmapRenderBenchmark
+{
+	private static final float TRANSPARENCY = 0.5f;
+	private static final int SENSITIVITY = 4;
+
+	@Param({"10000", "250000", "2000000"})
+	public int numTiles;
+
+	// The strip height for the default speed-memory tradeoff (see HeatmapImage.calculateTileHeight())
+	@Param({"300"})
+	public int stripHeight;
+
+	private WorldMapImage worldMap;
+	private HeatmapNew snapshot;
+	private HeatmapImage heatmapImage;
+	private BufferedImage[] mapStrips;
+	private int nextStrip;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		worldMap = SyntheticHeatmaps.generateWorldMap();
+		snapshot = SyntheticHeatmaps.generate(HeatmapNew.HeatmapType.TYPE_A, numTiles).snapshot();
+		heatmapImage = newHeatmapImage();
+		mapStrips = new BufferedImage[(worldMap.getHeight() + stripHeight - 1) / stripHeight];
+		for (int i = 0; i < mapStrips.length; i++)
+		{
+			mapStrips[i] = worldMap.read(stripRect(i));
+		}
+	}
+
+	/**
+	 * Sorting and colouring the heatmap's tiles, which is done once per image before any of it is drawn
+	 */
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public HeatmapImage prepareImage()
+	{
+		return newHeatmapImage();
+	}
+
+	/**
+	 * Drawing the heatmap's tiles onto a strip of the map that's already been read. The strip is drawn on again by later invocations,
+	 * which costs the same since the tiles are blended the same way whatever is under them.
+	 */
+	@Benchmark
+	public BufferedImage drawStrip()
+	{
+		int strip = nextStrip();
+		heatmapImage.processImageRegion(mapStrips[strip], stripRect(strip));
+		return mapStrips[strip];
+	}
+
+	/**
+	 * Reading a strip of the map and drawing the heatmap's tiles onto it
+	 */
+	@Benchmark
+	public BufferedImage renderStrip()
+	{
+		return heatmapImage.renderRegion(stripRect(nextStrip()));
+	}
+
+	/**
+	 * Rendering a strip and compressing it for the TIFF, which is all that's done for each strip of an image
+	 */
+	@Benchmark
+	public byte[] renderAndCompressStrip()
+	{
+		Raster strip = heatmapImage.renderRegion(stripRect(nextStrip())).getRaster();
+		return DeflateTiffWriter.compress(ByteBuffer.wrap(((DataBufferByte) strip.getDataBuffer()).getData()));
+	}
+
+	private HeatmapImage newHeatmapImage()
+	{
+		return new HeatmapImage(snapshot, worldMap, TRANSPARENCY, SENSITIVITY, SyntheticHeatmaps.MAP_OFFSETS.x, SyntheticHeatmaps.MAP_OFFSETS.y);
+	}
+
+	private int nextStrip()
+	{
+		int strip = nextStrip;
+		nextStrip = (nextStrip + 1) % mapStrips.length;
+		return strip;
+	}
+
+	private Rectangle stripRect(int strip)
+	{
+		int y = strip * stripHeight;
+		return new Rectangle(0, y, worldMap.getWidth(), Math.min(stripHeight, worldMap.getHeight() - y));
+	}
+}
@@ -0,0 +1,247 @@
+package com.worldheatmap;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+import net.runelite.api.Skill;
+
+/**
+ * Replays a generated session (see {@link WorkloadGenerator}) through the plugin's tracking logic without a client: each tick's events
+ * go through {@link HeatmapTracker} as the plugin's event handlers would send them, and a {@link TileEventConsumer} applies them to the heatmaps.
+ * The ticks are replayed as fast as the consumer can keep up with, rather than every 0.6 seconds.
+ * <p>
+ * Every so many simulated hours, it reports the ticks per second replayed, percentiles of how long the client thread spent on each
+ * tick (i.e. in the tracker and handing the tick to the consumer), and the heap used after a full GC, so that memory growth over
+ * a long session shows up.
+ * <p>
+ * Usage: HeatmapReplay [hours (1000)] [hours between reports (100)] [seed (0)]. Run it with ./gradlew replay -PreplayArgs="..."
+ */
+public class HeatmapReplay
+{
+	private static final int TILE_EVENT_BUFFER_CAPACITY = 1 << 16;
+
+	public static void main(String[] args)
+	{
+		int numHours = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		int reportHours = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+		// Every type is tracked, all of them loaded up front as they would be after logging in
+		Map<HeatmapNew.HeatmapType, HeatmapNew> heatmaps = new ConcurrentHashMap<>();
+		for (HeatmapNew.HeatmapType type : HeatmapNew.HeatmapType.values())
+		{
+			if (type != HeatmapNew.HeatmapType.UNKNOWN)
+			{
+				heatmaps.put(type, new HeatmapNew(type, 0));
+			}
+		}
+		HeatmapResidency residency = new HeatmapResidency(heatmaps);
+		TileEventBuffer tileEvents = new TileEventBuffer(TILE_EVENT_BUFFER_CAPACITY);
+		// The heatmaps that go unused are paged out, as the plugin does each tick
+		TileEventConsumer consumer = new TileEventConsumer(tileEvents, residency, () -> null, residency::pageOutColdHeatmaps);
+		HeatmapTracker tracker = new HeatmapTracker(new AllHeatmapsConfig(), residency, tileEvents);
+		WorkloadGenerator generator = new WorkloadGenerator(seed);
+		WorkloadGenerator.Tick tick = new WorkloadGenerator.Tick();
+		for (int skill = 0; skill < Skill.values().length; skill++)
+		{
+			tracker.resetExperience(skill, generator.getExperience(skill));
+		}
+		consumer.start();
+
+		long baselineHeap = usedHeapAfterGC();
+		System.out.printf("Replaying %d hours (%d ticks), seed %d. Heap used before: %.1f MB%n", numHours, (long) numHours * WorkloadGenerator.TICKS_PER_HOUR, seed, baselineHeap / 1e6);
+		System.out.println("   hours   ticks/s   p50 (us)   p99 (us)  p99.9 (us)   max (us)   tiles   heatmaps (MB)   paged out (MB)   heap (MB)");
+
+		Instant gameTime = Instant.EPOCH;
+		MetricsRegistry.Histogram latencies = MetricsRegistry.get().histogram("replay.tick", MetricsRegistry.Unit.NANOSECONDS);
+		long heap = baselineHeap;
+		for (int hour = 0; hour < numHours; hour += reportHours)
+		{
+			int hoursThisReport = Math.min(reportHours, numHours - hour);
+			long startTime = System.nanoTime();
+			latencies.reset();
+			for (long i = 0; i < (long) hoursThisReport * WorkloadGenerator.TICKS_PER_HOUR; i++)
+			{
+				generator.next(tick);
+				gameTime = gameTime.plus(Duration.ofMillis(600));
+				// Don't let the consumer fall so far behind that events are dropped, which a real client's 0.6 second ticks wouldn't either
+				while (tileEvents.getPublishedCount() - tileEvents.getConsumedCount() > TILE_EVENT_BUFFER_CAPACITY / 2)
+				{
+					consumer.wakeUp();
+					LockSupport.parkNanos(10_000);
+				}
+
+				long tickStart = System.nanoTime();
+				replay(tick, tracker, gameTime);
+				consumer.wakeUp();
+				latencies.record(System.nanoTime() - tickStart);
+			}
+			if (!consumer.flush(60_000))
+			{
+				throw new IllegalStateException("The consumer didn't catch up");
+			}
+			double seconds = (System.nanoTime() - startTime) / 1e9;
+
+			long numTiles = 0;
+			long heatmapsSize = 0;
+			for (HeatmapNew heatmap : heatmaps.values())
+			{
+				synchronized (heatmap)
+				{
+					numTiles += heatmap.getNumTilesVisited();
+					heatmapsSize += HeatmapNew.estimateSize(heatmap);
+				}
+			}
+			heap = usedHeapAfterGC();
+			// The tiles of paged-out heatmaps aren't counted
+			System.out.printf("%8d %9.0f %10.2f %10.2f %11.2f %10.2f %7d %15.1f %16.2f %11.1f%n", hour + hoursThisReport, hoursThisReport * WorkloadGenerator.TICKS_PER_HOUR / seconds,
+				latencies.getPercentile(0.5) / 1e3, latencies.getPercentile(0.99) / 1e3, latencies.getPercentile(0.999) / 1e3, latencies.getMax() / 1e3,
+				numTiles, heatmapsSize / 1e6, residency.getPagedOutSize() / 1e6, heap / 1e6);
+		}
+		consumer.shutdown(10_000);
+		System.out.print(MetricsRegistry.get().toText());
+		System.out.printf("Heap grew by %.1f MB, %.2f MB per 100 hours. %d events were dropped%n", (heap - baselineHeap) / 1e6, (heap - baselineHeap) / 1e6 * 100 / numHours, tileEvents.getNumDropped());
+	}
+
+	/**
+	 * Hands the tick's events to the tracker the way the plugin's event handlers do, and then the player's location the way onGameTick() does
+	 */
+	private static void replay(WorkloadGenerator.Tick tick, HeatmapTracker tracker, Instant gameTime)
+	{
+		for (int i = 0; i < tick.numEvents; i++)
+		{
+			int x = tick.xs[i];
+			int y = tick.ys[i];
+			switch (tick.kinds[i])
+			{
+				case WorkloadGenerator.DAMAGE_GIVEN:
+					tracker.onDamageGiven(x, y, tick.values[i]);
+					break;
+				case WorkloadGenerator.DAMAGE_TAKEN:
+					tracker.onDamageTaken(x, y, tick.values[i]);
+					break;
+				case WorkloadGenerator.STAT_CHANGED:
+					tracker.onStatChanged(tick.skills[i], tick.values[i], x, y);
+					break;
+				case WorkloadGenerator.LOOT:
+					tracker.onLootReceived(x, y, tick.values[i]);
+					break;
+				case WorkloadGenerator.NPC_SPAWNED:
+					tracker.onNpcSpawned(tick.values[i], x, y, 301, gameTime);
+					break;
+				case WorkloadGenerator.NPC_DEATH:
+					tracker.onNpcDeath(x, y);
+					break;
+				case WorkloadGenerator.PLAYER_DEATH:
+					tracker.onPlayerDeath(x, y);
+					break;
+				case WorkloadGenerator.SPOKE:
+					tracker.onSpokeAt(x, y);
+					break;
+			}
+		}
+		tracker.onTick(tick.playerX, tick.playerY);
+	}
+
+	private static long usedHeapAfterGC()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+		{
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * The config with every heatmap type enabled, and everything else left at its default
+	 */
+	private static class AllHeatmapsConfig implements WorldHeatmapConfig
+	{
+		@Override
+		public boolean isHeatmapTypeAEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapTypeBEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapXPGainedEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapTeleportPathsEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapTeleportedToEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapTeleportedFromEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapLootValueEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapPlacesSpokenAtEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapRandomEventSpawnsEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapDeathsEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapNPCDeathsEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapBobTheCatSightingEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapDamageTakenEnabled()
+		{
+			return true;
+		}
+
+		@Override
+		public boolean isHeatmapDamageGivenEnabled()
+		{
+			return true;
+		}
+	}
+}
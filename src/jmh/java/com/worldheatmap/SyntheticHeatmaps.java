@@ -0,0 +1,214 @@
+package com.worldheatmap;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Generates heatmaps and a world map for the benchmarks, seeded so that every run benchmarks the same data.
+ * <p>
+ * Real heatmaps aren't spread evenly over the map: most of their tiles are in clusters around banks, skilling spots and the paths between them.
+ * So the generated ones are mostly Gaussian clusters of varying sizes over a sparse background, with a few hot tiles holding very large values.
+ */
+final class SyntheticHeatmaps
+{
+	// The overworld part of the heatmap, which is where nearly every real heatmap's tiles are
+	static final int MIN_X = 1152, MIN_Y = 2496, WIDTH = 2752, HEIGHT = 1664;
+
+	// An overworld map image covers the overworld at 4 pixels per game tile
+	static final int MAP_WIDTH = WIDTH * 4, MAP_HEIGHT = HEIGHT * 4;
+	static final Point MAP_OFFSETS = new Point(-MIN_X * 4, (MIN_Y + HEIGHT) * 4 - MAP_HEIGHT - 4);
+
+	private static final long SEED = 0x5EED_4EA7L;
+
+	private SyntheticHeatmaps()
+	{
+	}
+
+	/**
+	 * @param numTiles Number of distinct tiles the heatmap should have, at most half of the overworld
+	 */
+	static HeatmapNew generate(HeatmapNew.HeatmapType type, int numTiles)
+	{
+		if (numTiles > WIDTH * HEIGHT / 2)
+		{
+			throw new IllegalArgumentException("Too many tiles for a realistic heatmap: " + numTiles);
+		}
+		Random random = new Random(SEED ^ numTiles);
+		HeatmapNew heatmap = new HeatmapNew(type, 0);
+		// Roughly one cluster per 500 tiles, so bigger heatmaps also cover more of the map
+		int numClusters = Math.max(8, numTiles / 500);
+		int[] clusterX = new int[numClusters];
+		int[] clusterY = new int[numClusters];
+		double[] clusterSpread = new double[numClusters];
+		for (int i = 0; i < numClusters; i++)
+		{
+			clusterX[i] = MIN_X + random.nextInt(WIDTH);
+			clusterY[i] = MIN_Y + random.nextInt(HEIGHT);
+			clusterSpread[i] = 3 + 40 * Math.pow(random.nextDouble(), 3);
+		}
+		while (heatmap.getNumTilesVisited() < numTiles)
+		{
+			int x, y;
+			if (random.nextInt(10) == 0)
+			{
+				// Background
+				x = MIN_X + random.nextInt(WIDTH);
+				y = MIN_Y + random.nextInt(HEIGHT);
+			}
+			else
+			{
+				int cluster = random.nextInt(numClusters);
+				x = clamp(clusterX[cluster] + (int) Math.round(random.nextGaussian() * clusterSpread[cluster]), MIN_X, MIN_X + WIDTH - 1);
+				y = clamp(clusterY[cluster] + (int) Math.round(random.nextGaussian() * clusterSpread[cluster]), MIN_Y, MIN_Y + HEIGHT - 1);
+			}
+			heatmap.increment(x, y, heavyTailedValue(random));
+		}
+		return heatmap;
+	}
+
+	/**
+	 * @return Coordinates of tiles as a player would step on them: mostly ones already in the heatmap, packed as in HeatmapNew.packTile()
+	 */
+	static int[] generateSteps(HeatmapNew heatmap, int numSteps)
+	{
+		int[] visited = new int[heatmap.getNumTilesVisited()];
+		int[] numVisited = {0};
+		heatmap.forEachTile((x, y, value) -> visited[numVisited[0]++] = HeatmapNew.packTile(x, y));
+		// Sorted by x then y, so neighbouring indices are mostly neighbouring tiles
+		Arrays.sort(visited);
+		Random random = new Random(SEED);
+		int[] steps = new int[numSteps];
+		int tile = visited[random.nextInt(visited.length)];
+		for (int step = 0; step < numSteps; step++)
+		{
+			int roll = random.nextInt(100);
+			if (roll == 0)
+			{
+				// Teleport somewhere visited before
+				tile = visited[random.nextInt(visited.length)];
+			}
+			else if (roll < 5)
+			{
+				// Step off the beaten path
+				tile = HeatmapNew.packTile(
+					clamp(HeatmapNew.unpackX(tile) + random.nextInt(3) - 1, MIN_X, MIN_X + WIDTH - 1),
+					clamp(HeatmapNew.unpackY(tile) + random.nextInt(3) - 1, MIN_Y, MIN_Y + HEIGHT - 1));
+			}
+			else
+			{
+				// Walk or run along tiles that have been visited
+				int i = Arrays.binarySearch(visited, tile);
+				tile = visited[Math.floorMod((i >= 0 ? i : -i - 1) + random.nextInt(5) - 2, visited.length)];
+			}
+			steps[step] = tile;
+		}
+		return steps;
+	}
+
+	/**
+	 * @return An overworld sized map image, generated rather than downloaded. Its pixels don't look like the real map's, but they're
+	 * just as varied, so rendering and compressing over it cost the same.
+	 */
+	static WorldMapImage generateWorldMap()
+	{
+		return new GeneratedWorldMapImage(MAP_WIDTH, MAP_HEIGHT);
+	}
+
+	private static int heavyTailedValue(Random random)
+	{
+		// Pareto-like: most tiles are stepped on a few times, a handful thousands of times
+		return 1 + (int) Math.min(100_000, Math.pow(1 / (1 - random.nextDouble()), 1.5));
+	}
+
+	private static int clamp(int value, int min, int max)
+	{
+		return Math.max(min, Math.min(max, value));
+	}
+
+	private static class GeneratedWorldMapImage implements WorldMapImage
+	{
+		private static final ComponentColorModel RGB_COLOR_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+		private static final int TEXTURE_SIZE = 512;
+
+		private final int width;
+		private final int height;
+		// A texture that's repeated over the map, so the map doesn't take up 200MB of the heap being benchmarked
+		private final byte[] texture = new byte[TEXTURE_SIZE * TEXTURE_SIZE * 3];
+
+		GeneratedWorldMapImage(int width, int height)
+		{
+			this.width = width;
+			this.height = height;
+			Random random = new Random(SEED);
+			for (int y = 0; y < TEXTURE_SIZE; y++)
+			{
+				for (int x = 0; x < TEXTURE_SIZE; x++)
+				{
+					// Smoothly varying terrain with some noise, like the map's grass, water and paths
+					double terrain = Math.sin(x / 37.0) + Math.cos(y / 23.0) + Math.sin((x + y) / 71.0);
+					int i = (y * TEXTURE_SIZE + x) * 3;
+					texture[i] = (byte) (60 + 20 * terrain + random.nextInt(16));
+					texture[i + 1] = (byte) (90 + 30 * terrain + random.nextInt(16));
+					texture[i + 2] = (byte) (50 + 15 * terrain + random.nextInt(16));
+				}
+			}
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+
+		@Override
+		public String getVersion()
+		{
+			return "generated-" + SEED;
+		}
+
+		@Override
+		public BufferedImage read(Rectangle region)
+		{
+			byte[] data = new byte[region.width * region.height * 3];
+			read(region, ByteBuffer.wrap(data));
+			WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(data, data.length), region.width, region.height, region.width * 3, 3, new int[]{0, 1, 2}, null);
+			return new BufferedImage(RGB_COLOR_MODEL, raster, false, null);
+		}
+
+		@Override
+		public void read(Rectangle region, ByteBuffer destination)
+		{
+			ByteBuffer target = destination.duplicate();
+			target.position(0);
+			for (int y = region.y; y < region.y + region.height; y++)
+			{
+				int textureRow = (y % TEXTURE_SIZE) * TEXTURE_SIZE * 3;
+				int x = region.x;
+				while (x < region.x + region.width)
+				{
+					int textureX = x % TEXTURE_SIZE;
+					int length = Math.min(TEXTURE_SIZE - textureX, region.x + region.width - x);
+					target.put(texture, textureRow + textureX * 3, length * 3);
+					x += length;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package com.worldheatmap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import net.runelite.api.NpcID;
+import net.runelite.api.Skill;
+
+/**
+ * Generates what a player does in the game, tick by tick, for replaying through the plugin's tracking logic (see {@link HeatmapReplay}).
+ * Seeded, so the same seed always gives the same session.
+ * <p>
+ * The player moves between towns scattered over the overworld, which are joined by winding roads. At each town they walk or run along
+ * a road to a neighbouring town, teleport to a faraway one, stand at its bank for a while, or fight the NPCs nearby. Fighting brings
+ * hitsplats, XP drops, NPC deaths and loot, and NPCs (now and then a random event or Bob the Cat) spawn around the player wherever they are.
+ */
+final class WorkloadGenerator
+{
+	static final int TICKS_PER_HOUR = 6000;
+
+	// Kinds of event in a Tick
+	static final int DAMAGE_GIVEN = 0, DAMAGE_TAKEN = 1, STAT_CHANGED = 2, LOOT = 3, NPC_SPAWNED = 4, NPC_DEATH = 5, PLAYER_DEATH = 6, SPOKE = 7;
+
+	/**
+	 * What happened on a tick. Reused for every tick, so generating one doesn't allocate.
+	 */
+	static final class Tick
+	{
+		private static final int MAX_EVENTS = 32;
+
+		int playerX;
+		int playerY;
+		int numEvents;
+		final int[] kinds = new int[MAX_EVENTS];
+		final int[] xs = new int[MAX_EVENTS];
+		final int[] ys = new int[MAX_EVENTS];
+		// The damage, experience, loot value or NPC ID, depending on the kind of event
+		final int[] values = new int[MAX_EVENTS];
+		// The skill's index for STAT_CHANGED
+		final int[] skills = new int[MAX_EVENTS];
+
+		private void add(int kind, int x, int y, int value, int skill)
+		{
+			if (numEvents == MAX_EVENTS)
+			{
+				return;
+			}
+			kinds[numEvents] = kind;
+			xs[numEvents] = x;
+			ys[numEvents] = y;
+			values[numEvents] = value;
+			skills[numEvents] = skill;
+			numEvents++;
+		}
+	}
+
+	private enum Activity
+	{
+		TRAVELLING, BANKING, FIGHTING
+	}
+
+	// Within HeatmapTracker.isInOverworld(), so teleports between towns are tracked
+	private static final int MIN_X = 1152, MAX_X = 3900, MIN_Y = 2510, MAX_Y = 4150;
+	private static final int NUM_TOWNS = 64;
+	private static final int NUM_ROADS_PER_TOWN = 3;
+	private static final int[] RANDOM_EVENT_NPC_IDS = {NpcID.GENIE, NpcID.SANDWICH_LADY, NpcID.DRUNKEN_DWARF, NpcID.FROG_5429, NpcID.QUIZ_MASTER_6755};
+	private static final int[] COMBAT_SKILLS = {Skill.ATTACK.ordinal(), Skill.STRENGTH.ordinal(), Skill.DEFENCE.ordinal(), Skill.RANGED.ordinal(), Skill.MAGIC.ordinal()};
+	private static final int MAX_EXPERIENCE = 200_000_000;
+
+	private final Random random;
+	private final int[] townX = new int[NUM_TOWNS];
+	private final int[] townY = new int[NUM_TOWNS];
+	private final int[][] roads = new int[NUM_TOWNS][NUM_ROADS_PER_TOWN];
+	private final int[] experience = new int[Skill.values().length];
+
+	private int x;
+	private int y;
+	private int town;
+	private Activity activity = Activity.BANKING;
+	private int ticksLeft;
+	// The road being travelled, as the tiles to head for in turn
+	private final List<int[]> waypoints = new ArrayList<>();
+	private int nextWaypoint;
+	private boolean isRunning;
+	private int fightX;
+	private int fightY;
+
+	WorkloadGenerator(long seed)
+	{
+		random = new Random(seed);
+		for (int i = 0; i < NUM_TOWNS; i++)
+		{
+			townX[i] = MIN_X + 50 + random.nextInt(MAX_X - MIN_X - 100);
+			townY[i] = MIN_Y + 50 + random.nextInt(MAX_Y - MIN_Y - 100);
+		}
+		// Each town's roads lead to its nearest towns
+		for (int i = 0; i < NUM_TOWNS; i++)
+		{
+			Integer[] byDistance = new Integer[NUM_TOWNS];
+			for (int j = 0; j < NUM_TOWNS; j++)
+			{
+				byDistance[j] = j;
+			}
+			final int from = i;
+			Arrays.sort(byDistance, (a, b) -> Long.compare(distanceSquared(from, a), distanceSquared(from, b)));
+			for (int r = 0; r < NUM_ROADS_PER_TOWN; r++)
+			{
+				roads[i][r] = byDistance[r + 1];
+			}
+		}
+		for (int i = 0; i < experience.length; i++)
+		{
+			experience[i] = 1_000_000;
+		}
+		town = random.nextInt(NUM_TOWNS);
+		x = townX[town];
+		y = townY[town];
+		ticksLeft = 50;
+	}
+
+	/**
+	 * @return The player's experience in the skill so far
+	 */
+	int getExperience(int skillIndex)
+	{
+		return experience[skillIndex];
+	}
+
+	/**
+	 * Generates the next tick into the given one
+	 */
+	void next(Tick tick)
+	{
+		tick.numEvents = 0;
+		if (ticksLeft-- <= 0)
+		{
+			startNextActivity();
+		}
+		switch (activity)
+		{
+			case TRAVELLING:
+				travel();
+				break;
+			case BANKING:
+				// Stands still at the bank
+				break;
+			case FIGHTING:
+				fight(tick);
+				break;
+		}
+		tick.playerX = x;
+		tick.playerY = y;
+
+		// NPCs spawn around the player wherever they are
+		if (random.nextInt(4) == 0)
+		{
+			int npcId;
+			int roll = random.nextInt(20_000);
+			if (roll < 3)
+			{
+				npcId = RANDOM_EVENT_NPC_IDS[random.nextInt(RANDOM_EVENT_NPC_IDS.length)];
+			}
+			else if (roll < 4)
+			{
+				npcId = NpcID.BOB_8034;
+			}
+			else
+			{
+				npcId = 1 + random.nextInt(10_000);
+			}
+			tick.add(NPC_SPAWNED, x + random.nextInt(31) - 15, y + random.nextInt(31) - 15, npcId, 0);
+		}
+		if (random.nextInt(500) == 0)
+		{
+			tick.add(SPOKE, x, y, 0, 0);
+		}
+	}
+
+	private void startNextActivity()
+	{
+		int roll = random.nextInt(100);
+		if (roll < 50)
+		{
+			startTravelling(roads[town][random.nextInt(NUM_ROADS_PER_TOWN)]);
+		}
+		else if (roll < 65)
+		{
+			teleport();
+			activity = Activity.BANKING;
+			ticksLeft = 1;
+		}
+		else if (roll < 85)
+		{
+			activity = Activity.FIGHTING;
+			ticksLeft = 100 + random.nextInt(900);
+			fightX = townX[town] + random.nextInt(41) - 20;
+			fightY = townY[town] + random.nextInt(41) - 20;
+		}
+		else
+		{
+			// Bank standing: the bank is in the middle of the town
+			activity = Activity.BANKING;
+			ticksLeft = 20 + random.nextInt(300);
+			x = townX[town];
+			y = townY[town];
+		}
+	}
+
+	private void startTravelling(int destination)
+	{
+		activity = Activity.TRAVELLING;
+		waypoints.clear();
+		nextWaypoint = 0;
+		isRunning = random.nextBoolean();
+		// A winding road: a few waypoints jittered off the straight line between the towns
+		int numBends = 2 + random.nextInt(4);
+		for (int i = 1; i <= numBends; i++)
+		{
+			int wx = townX[town] + (townX[destination] - townX[town]) * i / (numBends + 1) + random.nextInt(21) - 10;
+			int wy = townY[town] + (townY[destination] - townY[town]) * i / (numBends + 1) + random.nextInt(21) - 10;
+			waypoints.add(new int[]{wx, wy});
+		}
+		waypoints.add(new int[]{townX[destination], townY[destination]});
+		town = destination;
+		// Until the end of the road
+		ticksLeft = Integer.MAX_VALUE;
+	}
+
+	private void travel()
+	{
+		int steps = isRunning ? 2 : 1;
+		for (int i = 0; i < steps && nextWaypoint < waypoints.size(); i++)
+		{
+			int[] waypoint = waypoints.get(nextWaypoint);
+			x += Integer.signum(waypoint[0] - x);
+			y += Integer.signum(waypoint[1] - y);
+			// Now and then, step aside onto the verge
+			if (random.nextInt(20) == 0)
+			{
+				x += random.nextInt(3) - 1;
+			}
+			if (x == waypoint[0] && y == waypoint[1])
+			{
+				nextWaypoint++;
+			}
+		}
+		if (nextWaypoint == waypoints.size())
+		{
+			ticksLeft = 0;
+		}
+	}
+
+	private void teleport()
+	{
+		int destination;
+		do
+		{
+			destination = random.nextInt(NUM_TOWNS);
+		}
+		while (Math.max(Math.abs(townX[destination] - x), Math.abs(townY[destination] - y)) <= HeatmapTracker.MIN_TELEPORT_DISTANCE);
+		town = destination;
+		x = townX[town];
+		y = townY[town];
+	}
+
+	private void fight(Tick tick)
+	{
+		// Moves around the NPCs being fought
+		if (random.nextInt(3) == 0)
+		{
+			x = fightX + random.nextInt(7) - 3;
+			y = fightY + random.nextInt(7) - 3;
+		}
+		int npcX = x + random.nextInt(3) - 1;
+		int npcY = y + random.nextInt(3) - 1;
+		if (random.nextInt(4) == 0)
+		{
+			int damage = 1 + random.nextInt(40);
+			tick.add(DAMAGE_GIVEN, npcX, npcY, damage, 0);
+			int skill = COMBAT_SKILLS[random.nextInt(COMBAT_SKILLS.length)];
+			gainExperience(tick, skill, damage * 4);
+			gainExperience(tick, Skill.HITPOINTS.ordinal(), damage * 4 / 3);
+		}
+		if (random.nextInt(6) == 0)
+		{
+			tick.add(DAMAGE_TAKEN, x, y, 1 + random.nextInt(20), 0);
+		}
+		if (random.nextInt(30) == 0)
+		{
+			tick.add(NPC_DEATH, npcX, npcY, 0, 0);
+			int numStacks = 1 + random.nextInt(4);
+			for (int i = 0; i < numStacks; i++)
+			{
+				// Mostly junk, now and then a valuable drop
+				int value = (int) Math.min(Integer.MAX_VALUE, Math.pow(1 / (1 - random.nextDouble()), 3) * 50);
+				tick.add(LOOT, npcX, npcY, value, 0);
+			}
+		}
+		if (random.nextInt(50_000) == 0)
+		{
+			tick.add(PLAYER_DEATH, x, y, 0, 0);
+		}
+	}
+
+	private void gainExperience(Tick tick, int skill, int xp)
+	{
+		if (experience[skill] >= MAX_EXPERIENCE)
+		{
+			return;
+		}
+		experience[skill] = Math.min(MAX_EXPERIENCE, experience[skill] + xp);
+		tick.add(STAT_CHANGED, x, y, experience[skill], skill);
+	}
+
+	private long distanceSquared(int a, int b)
+	{
+		long dx = townX[a] - townX[b];
+		long dy = townY[a] - townY[b];
+		return dx * dx + dy * dy;
+	}
+}
@@ -0,0 +1,294 @@
+package com.worldheatmap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Writes an 8 bit RGB TIFF made of deflate compressed tiles, or strips. They're handed over already compressed (see compress()),
+ * so that they can be compressed on other threads, or copied as they are out of an earlier TIFF.
+ * <p>
+ * Tiles have to be written in the order the TIFF lists them, i.e. row by row, and the file is only valid once finish() has been called.
+ * Tiles as wide as the image are written as strips, which (unlike tiles) can be any height, and the last of which stops at the image's bottom edge.
+ */
+public class DeflateTiffWriter implements Closeable
+{
+	private static final short TYPE_SHORT = 3;
+	private static final short TYPE_LONG = 4;
+	private static final int HEADER_SIZE = 8;
+	// How much of the pixels are fed to the deflater, and how much of its output is taken, at a time
+	private static final int COMPRESS_CHUNK_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private final int width;
+	private final int height;
+	private final int tileWidth;
+	private final int tileHeight;
+	private final long[] tileOffsets;
+	private final int[] tileByteCounts;
+	private int numTilesWritten = 0;
+	private long position = HEADER_SIZE;
+
+	/**
+	 * @param tileWidth  Must be a multiple of 16, or the image's width to write strips
+	 * @param tileHeight Must be a multiple of 16, or anything when writing strips
+	 */
+	public DeflateTiffWriter(File file, int width, int height, int tileWidth, int tileHeight) throws IOException
+	{
+		if (tileWidth != width && (tileWidth % 16 != 0 || tileHeight % 16 != 0))
+		{
+			throw new IllegalArgumentException("TIFF tile sizes must be multiples of 16");
+		}
+		this.width = width;
+		this.height = height;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		int numTiles = getNumTilesX() * getNumTilesY();
+		this.tileOffsets = new long[numTiles];
+		this.tileByteCounts = new int[numTiles];
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+	}
+
+	public int getNumTilesX()
+	{
+		return (width + tileWidth - 1) / tileWidth;
+	}
+
+	public int getNumTilesY()
+	{
+		return (height + tileHeight - 1) / tileHeight;
+	}
+
+	private boolean isStriped()
+	{
+		return tileWidth == width;
+	}
+
+	/**
+	 * Compresses a tile's pixels, given as RGB bytes row by row from the buffer's position to its limit. Tiles reaching past the image's
+	 * edges are still whole tiles, padded with anything, but the last strip only has the rows within the image.
+	 * <p>
+	 * Deflates into a small buffer a chunk at a time, rather than into an array sized from the pixels, so that the heap only ever
+	 * holds about as much as the pixels compress to. Strips rendered off the heap are as tall as the image allows, so guessing their
+	 * compressed size up front (and doubling the guess when it's short) would put a good part of each of them back on the heap.
+	 */
+	public static byte[] compress(ByteBuffer rgbPixels)
+	{
+		// The same compression level as ImageIO's TIFF writer uses for Deflate at quality 0
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		try
+		{
+			// Fed a chunk at a time, since the pixels may be in a memory mapped file rather than an array
+			byte[] chunk = rgbPixels.hasArray() ? null : new byte[Math.min(rgbPixels.remaining(), COMPRESS_CHUNK_SIZE)];
+			ByteBuffer input = rgbPixels.duplicate();
+			byte[] output = new byte[COMPRESS_CHUNK_SIZE];
+			List<byte[]> compressedChunks = new ArrayList<>();
+			int length = 0;
+			while (!deflater.finished())
+			{
+				if (deflater.needsInput())
+				{
+					if (!input.hasRemaining())
+					{
+						deflater.finish();
+					}
+					else if (chunk == null)
+					{
+						deflater.setInput(input.array(), input.arrayOffset() + input.position(), input.remaining());
+						input.position(input.limit());
+					}
+					else
+					{
+						int n = Math.min(chunk.length, input.remaining());
+						input.get(chunk, 0, n);
+						deflater.setInput(chunk, 0, n);
+					}
+				}
+				int n = deflater.deflate(output);
+				if (n > 0)
+				{
+					compressedChunks.add(Arrays.copyOf(output, n));
+					length += n;
+				}
+			}
+
+			byte[] compressed = new byte[length];
+			int position = 0;
+			for (byte[] compressedChunk : compressedChunks)
+			{
+				System.arraycopy(compressedChunk, 0, compressed, position, compressedChunk.length);
+				position += compressedChunk.length;
+			}
+			return compressed;
+		}
+		finally
+		{
+			deflater.end();
+		}
+	}
+
+	/**
+	 * Appends the next tile, as returned by compress()
+	 */
+	public void writeTile(byte[] compressedTile) throws IOException
+	{
+		ByteBuffer buffer = ByteBuffer.wrap(compressedTile);
+		long tilePosition = position;
+		while (buffer.hasRemaining())
+		{
+			position += channel.write(buffer, position);
+		}
+		recordTile(tilePosition, compressedTile.length);
+	}
+
+	/**
+	 * Appends the next tile by copying its compressed bytes from another TIFF with the same tile size
+	 */
+	public void copyTile(FileChannel source, long sourcePosition, int byteCount) throws IOException
+	{
+		long tilePosition = position;
+		long copied = 0;
+		while (copied < byteCount)
+		{
+			long n = source.transferTo(sourcePosition + copied, byteCount - copied, channel.position(position));
+			if (n <= 0)
+			{
+				throw new IOException("Tile to be copied is past the end of the source file");
+			}
+			copied += n;
+			position += n;
+		}
+		recordTile(tilePosition, byteCount);
+	}
+
+	private void recordTile(long tilePosition, int byteCount) throws IOException
+	{
+		if (numTilesWritten == tileOffsets.length)
+		{
+			throw new IOException("All of the image's tiles have already been written");
+		}
+		tileOffsets[numTilesWritten] = tilePosition;
+		tileByteCounts[numTilesWritten] = byteCount;
+		numTilesWritten++;
+	}
+
+	/**
+	 * @return Where the tile's compressed bytes were written in the file
+	 */
+	public long getTileOffset(int tileIndex)
+	{
+		return tileOffsets[tileIndex];
+	}
+
+	public int getTileByteCount(int tileIndex)
+	{
+		return tileByteCounts[tileIndex];
+	}
+
+	/**
+	 * Writes the header and the image file directory, once all the tiles have been written
+	 */
+	public void finish() throws IOException
+	{
+		if (numTilesWritten != tileOffsets.length)
+		{
+			throw new IOException("Only " + numTilesWritten + " of the image's " + tileOffsets.length + " tiles were written");
+		}
+		if (position + 12L * tileOffsets.length + 1024 > 0xFFFFFFFFL)
+		{
+			throw new IOException("Image is too big for a TIFF file");
+		}
+
+		// The directory has to start on a word boundary, and is followed by the values too big to fit in its entries
+		long directoryOffset = position + (position & 1);
+		int numEntries = isStriped() ? 10 : 11;
+		long valuesOffset = directoryOffset + 2 + 12L * numEntries + 4;
+		long bitsPerSampleOffset = valuesOffset;
+		long tileOffsetsOffset = bitsPerSampleOffset + 6;
+		long tileByteCountsOffset = tileOffsetsOffset + 4L * tileOffsets.length;
+		int numTiles = tileOffsets.length;
+
+		ByteBuffer directory = ByteBuffer.allocate((int) (tileByteCountsOffset + 4L * numTiles - directoryOffset)).order(ByteOrder.LITTLE_ENDIAN);
+		directory.putShort((short) numEntries);
+		// Entries have to be sorted by tag
+		putEntry(directory, 256, TYPE_LONG, 1, width); // ImageWidth
+		putEntry(directory, 257, TYPE_LONG, 1, height); // ImageLength
+		putEntry(directory, 258, TYPE_SHORT, 3, bitsPerSampleOffset); // BitsPerSample
+		putEntry(directory, 259, TYPE_SHORT, 1, 8); // Compression: Deflate (zlib)
+		putEntry(directory, 262, TYPE_SHORT, 1, 2); // PhotometricInterpretation: RGB
+		long offsetsValue = numTiles == 1 ? tileOffsets[0] : tileOffsetsOffset;
+		long byteCountsValue = numTiles == 1 ? tileByteCounts[0] : tileByteCountsOffset;
+		if (isStriped())
+		{
+			putEntry(directory, 273, TYPE_LONG, numTiles, offsetsValue); // StripOffsets
+			putEntry(directory, 277, TYPE_SHORT, 1, 3); // SamplesPerPixel
+			putEntry(directory, 278, TYPE_LONG, 1, tileHeight); // RowsPerStrip
+			putEntry(directory, 279, TYPE_LONG, numTiles, byteCountsValue); // StripByteCounts
+			putEntry(directory, 284, TYPE_SHORT, 1, 1); // PlanarConfiguration: chunky
+		}
+		else
+		{
+			putEntry(directory, 277, TYPE_SHORT, 1, 3); // SamplesPerPixel
+			putEntry(directory, 284, TYPE_SHORT, 1, 1); // PlanarConfiguration: chunky
+			putEntry(directory, 322, TYPE_LONG, 1, tileWidth); // TileWidth
+			putEntry(directory, 323, TYPE_LONG, 1, tileHeight); // TileLength
+			putEntry(directory, 324, TYPE_LONG, numTiles, offsetsValue); // TileOffsets
+			putEntry(directory, 325, TYPE_LONG, numTiles, byteCountsValue); // TileByteCounts
+		}
+		directory.putInt(0); // No more directories
+		directory.putShort((short) 8).putShort((short) 8).putShort((short) 8);
+		for (long tileOffset : tileOffsets)
+		{
+			directory.putInt((int) tileOffset);
+		}
+		for (int tileByteCount : tileByteCounts)
+		{
+			directory.putInt(tileByteCount);
+		}
+		directory.flip();
+		writeFully(directory, directoryOffset);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt((int) directoryOffset);
+		header.flip();
+		writeFully(header, 0);
+	}
+
+	private static void putEntry(ByteBuffer directory, int tag, short type, int count, long value)
+	{
+		directory.putShort((short) tag);
+		directory.putShort(type);
+		directory.putInt(count);
+		if (type == TYPE_SHORT && count == 1)
+		{
+			// Values are left-justified within the entry
+			directory.putShort((short) value).putShort((short) 0);
+		}
+		else
+		{
+			directory.putInt((int) value);
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer, long filePosition) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			filePosition += channel.write(buffer, filePosition);
+		}
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+}
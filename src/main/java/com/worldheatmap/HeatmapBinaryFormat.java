@@ -0,0 +1,161 @@
+package com.worldheatmap;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Binary encoding of a single heatmap, stored as a "TYPE_HEATMAP.bin" entry in a .heatmaps file next to (or instead of) the legacy CSV entries.
+ * <p>
+ * Layout:
+ * <pre>
+ * int     magic ("WHMB")
+ * short   format version
+ * header  userID, heatmapVersion, heatmapType, totalValue, numTilesVisited, maxVal, maxValX, maxValY,
+ *         minVal, minValX, minValY, gameTimeTicks (the same fields as the CSV header row)
+ * varint  number of tiles
+ * tiles   for each tile, sorted by packed coordinate: varint delta from the previous packed coordinate, then varint value
+ * </pre>
+ * Since the tiles are sorted, neighbouring tiles usually differ by a few units of y, so most deltas (and most values) fit in one byte.
+ */
+@Slf4j
+public class HeatmapBinaryFormat
+{
+	static final String ENTRY_SUFFIX = "_HEATMAP.bin";
+	private static final int MAGIC = 0x57484D42; // "WHMB"
+	private static final short FORMAT_VERSION = 1;
+
+	static String entryName(HeatmapNew.HeatmapType type)
+	{
+		return type.toString() + ENTRY_SUFFIX;
+	}
+
+	/**
+	 * Writes the heatmap to the stream. Doesn't close the stream.
+	 */
+	static void write(HeatmapNew heatmap, OutputStream outputStream) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(outputStream);
+		int[] maxVal = heatmap.getMaxVal();
+		int[] minVal = heatmap.getMinVal();
+		out.writeInt(MAGIC);
+		out.writeShort(FORMAT_VERSION);
+		out.writeLong(heatmap.getUserID());
+		out.writeInt(HeatmapNew.getHeatmapVersion());
+		out.writeUTF(heatmap.getHeatmapType().toString());
+		out.writeLong(heatmap.getTotalValue());
+		out.writeInt(heatmap.getNumTilesVisited());
+		out.writeInt(maxVal[0]);
+		out.writeInt(maxVal[1]);
+		out.writeInt(maxVal[2]);
+		out.writeInt(minVal[0]);
+		out.writeInt(minVal[1]);
+		out.writeInt(minVal[2]);
+		out.writeInt(heatmap.getGameTimeTicks());
+
+		// Sort the tiles by packed coordinate. Packing the value into the low bits lets a single primitive sort do it
+		long[] sortedTiles = new long[heatmap.getNumTilesVisited()];
+		int[] numTiles = {0};
+		heatmap.forEachTile((x, y, value) -> sortedTiles[numTiles[0]++] = ((long) HeatmapNew.packTile(x, y) << 32) | (value & 0xFFFFFFFFL));
+		Arrays.sort(sortedTiles, 0, numTiles[0]);
+
+		writeVarLong(out, numTiles[0]);
+		long previousCoords = Integer.MIN_VALUE;
+		for (int i = 0; i < numTiles[0]; i++)
+		{
+			long coords = sortedTiles[i] >> 32;
+			writeVarLong(out, coords - previousCoords);
+			writeVarLong(out, (int) sortedTiles[i]);
+			previousCoords = coords;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Reads a heatmap from the stream. Doesn't close the stream.
+	 *
+	 * @return The heatmap, or null if its type isn't recognized by this version of the plugin
+	 * @throws IOException If the stream isn't a binary heatmap entry, or is of a newer format version than this plugin understands
+	 */
+	static HeatmapNew read(InputStream inputStream) throws IOException
+	{
+		DataInputStream in = new DataInputStream(inputStream);
+		if (in.readInt() != MAGIC)
+		{
+			throw new IOException("Not a binary heatmap entry");
+		}
+		short formatVersion = in.readShort();
+		if (formatVersion > FORMAT_VERSION)
+		{
+			throw new IOException("Binary heatmap entry is of format version " + formatVersion + " which is newer than this plugin's (" + FORMAT_VERSION + ")");
+		}
+		long userID = in.readLong();
+		in.readInt(); // heatmapVersion
+		String heatmapTypeString = in.readUTF();
+		in.readLong(); // totalValue
+		in.readInt(); // numTilesVisited
+		for (int i = 0; i < 6; i++)
+		{
+			in.readInt(); // maxVal, maxValX, maxValY, minVal, minValX, minValY
+		}
+		int gameTimeTicks = in.readInt();
+
+		// Get HeatmapType from field value if legit
+		if (Arrays.stream(HeatmapNew.HeatmapType.values()).noneMatch(type -> type.toString().equals(heatmapTypeString)))
+		{
+			log.debug("Heatmap type '{}' of binary heatmap entry is not a valid Heatmap type (at least in this program version). Ignoring...", heatmapTypeString);
+			return null;
+		}
+		HeatmapNew heatmap = new HeatmapNew(HeatmapNew.HeatmapType.valueOf(heatmapTypeString), userID);
+		heatmap.setGameTimeTicks(gameTimeTicks);
+
+		// Min/max/totals etc. are recalculated as the tiles are set, so the header values are only informational
+		long numTiles = readVarLong(in);
+		long coords = Integer.MIN_VALUE;
+		for (long i = 0; i < numTiles; i++)
+		{
+			coords += readVarLong(in);
+			int value = (int) readVarLong(in);
+			heatmap.set(HeatmapNew.unpackX((int) coords), HeatmapNew.unpackY((int) coords), value);
+		}
+		return heatmap;
+	}
+
+	/**
+	 * Writes a non-negative long in 7-bit groups, least significant first, with the high bit of each byte flagging that more bytes follow
+	 */
+	private static void writeVarLong(DataOutputStream out, long value) throws IOException
+	{
+		while ((value & ~0x7FL) != 0)
+		{
+			out.writeByte((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.writeByte((int) value);
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException
+	{
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7)
+		{
+			int b = in.read();
+			if (b == -1)
+			{
+				throw new EOFException("Binary heatmap entry ended in the middle of a tile");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in binary heatmap entry");
+	}
+}
@@ -0,0 +1,282 @@
+package com.worldheatmap;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.WritableRaster;
+import java.nio.ByteBuffer;
+
+/**
+ * Colours heatmap tiles onto the world map image without any per-pixel colour space math.
+ * <p>
+ * A tile's colour is a hue picked from its value, at full saturation, with the brightness of the map pixel underneath blended towards 1
+ * by the heatmap's transparency. Everything but the final multiply is precomputed:
+ * <ul>
+ * <li>A hue table over the range of normalized (log-scaled) values between the image's min and max value, for the heatmap sensitivity,
+ * holding each hue's red/green/blue fractions as Color.HSBtoRGB would compute them at full saturation and brightness</li>
+ * <li>A brightness table indexed by the luminance (HSB brightness) of the map pixel, holding the blended brightness</li>
+ * </ul>
+ * So colouring a pixel costs a table lookup and three multiplies, written straight into the image's byte array where possible.
+ */
+public class HeatmapColourEngine
+{
+	private static final int NUM_HUES = 4096;
+	private static final double MIN_HUE = 1 / 3.0;
+	private static final double MAX_HUE = 0.0;
+
+	private final float[] hueRed = new float[NUM_HUES];
+	private final float[] hueGreen = new float[NUM_HUES];
+	private final float[] hueBlue = new float[NUM_HUES];
+	private final float[] brightnessByLuminance = new float[256];
+	// Maps ln(value) to an index of the hue table
+	private final double logValueScale;
+	private final double logValueOffset;
+
+	/**
+	 * @param sensitivity  The heatmap curve sensitivity
+	 * @param minVal       The lowest value that'll be coloured
+	 * @param maxVal       The highest value that'll be coloured
+	 * @param transparency How much the map's brightness is washed out towards full brightness, in [0, 1]
+	 */
+	public HeatmapColourEngine(int sensitivity, int minVal, int maxVal, float transparency)
+	{
+		double nthRoot = 1 + (sensitivity - 1.0) / 2;
+		// The normalized value of a tile is ln(value) / ln(maxVal + 1 - minVal), which ranges from minT to maxT over the coloured values
+		double logRange = Math.log(Math.max(1, (double) maxVal + 1 - minVal));
+		double minT;
+		double maxT;
+		if (logRange == 0 || maxVal < minVal)
+		{
+			// Every value is the same, so they all get the hottest colour
+			minT = 1;
+			maxT = 1;
+			logValueScale = 0;
+		}
+		else
+		{
+			minT = Math.log(Math.max(1, minVal)) / logRange;
+			maxT = Math.log(Math.max(1, maxVal)) / logRange;
+			logValueScale = maxT > minT ? (NUM_HUES - 1) / ((maxT - minT) * logRange) : 0;
+		}
+		logValueOffset = Math.log(Math.max(1, minVal)) * logValueScale;
+
+		for (int i = 0; i < NUM_HUES; i++)
+		{
+			double t = minT + (maxT - minT) * i / (NUM_HUES - 1);
+			double hue = MIN_HUE + Math.pow(t, 1.0 / nthRoot) * (MAX_HUE - MIN_HUE);
+			setHue(i, (float) hue);
+		}
+		for (int luminance = 0; luminance < 256; luminance++)
+		{
+			brightnessByLuminance[luminance] = luminance / 255.0f * (1 - transparency) + transparency;
+		}
+	}
+
+	/**
+	 * Stores the red, green and blue fractions of the hue at full saturation, the same way Color.HSBtoRGB works them out
+	 */
+	private void setHue(int index, float hue)
+	{
+		float h = (hue - (float) Math.floor(hue)) * 6.0f;
+		float f = h - (float) Math.floor(h);
+		float q = 1.0f - f;
+		float t = 1.0f - (1.0f - f);
+		float r, g, b;
+		switch ((int) h)
+		{
+			case 0:
+				r = 1; g = t; b = 0;
+				break;
+			case 1:
+				r = q; g = 1; b = 0;
+				break;
+			case 2:
+				r = 0; g = 1; b = t;
+				break;
+			case 3:
+				r = 0; g = q; b = 1;
+				break;
+			case 4:
+				r = t; g = 0; b = 1;
+				break;
+			default:
+				r = 1; g = 0; b = q;
+				break;
+		}
+		hueRed[index] = r;
+		hueGreen[index] = g;
+		hueBlue[index] = b;
+	}
+
+	/**
+	 * @return The index of the value's hue. Costs a logarithm, so it's worked out once per tile rather than per pixel
+	 */
+	int hueIndex(int value)
+	{
+		int index = (int) (Math.log(Math.max(1, value)) * logValueScale - logValueOffset + 0.5);
+		return Math.max(0, Math.min(NUM_HUES - 1, index));
+	}
+
+	/**
+	 * @return The hue at hueIndex at full brightness, as packed 0xRRGGBB, for colouring tiles that aren't drawn over the map
+	 */
+	int hueRGB(int hueIndex)
+	{
+		return (int) (hueRed[hueIndex] * 255.0f + 0.5f) << 16 | (int) (hueGreen[hueIndex] * 255.0f + 0.5f) << 8 | (int) (hueBlue[hueIndex] * 255.0f + 0.5f);
+	}
+
+	/**
+	 * Returns something to colour the pixels of the image with. Its pixels are written directly if it's stored as bytes of (at least) RGB.
+	 */
+	Canvas canvas(BufferedImage image)
+	{
+		WritableRaster raster = image.getRaster();
+		if (raster.getDataBuffer() instanceof DataBufferByte
+			&& raster.getSampleModel() instanceof ComponentSampleModel
+			&& image.getColorModel() instanceof ComponentColorModel
+			&& image.getColorModel().getColorSpace().isCS_sRGB()
+			&& raster.getNumBands() >= 3)
+		{
+			ComponentSampleModel sampleModel = (ComponentSampleModel) raster.getSampleModel();
+			int[] bankIndices = sampleModel.getBankIndices();
+			if (bankIndices[0] == bankIndices[1] && bankIndices[1] == bankIndices[2])
+			{
+				return new ByteCanvas(raster, sampleModel);
+			}
+		}
+		return new RGBCanvas(image);
+	}
+
+	/**
+	 * Returns something to colour RGB pixels stored row by row in the buffer with, e.g. a strip of the image rendered off the heap
+	 *
+	 * @param width The width of the rows, in pixels
+	 */
+	Canvas canvas(ByteBuffer rgbPixels, int width)
+	{
+		return new BufferCanvas(rgbPixels, width);
+	}
+
+	/**
+	 * Pixels of an image to colour in
+	 */
+	abstract class Canvas
+	{
+		/**
+		 * Colours the pixels in the rectangle [x0, x1) x [y0, y1) with the hue at hueIndex, keeping their shading
+		 */
+		abstract void fill(int x0, int y0, int x1, int y1, int hueIndex);
+	}
+
+	private class ByteCanvas extends Canvas
+	{
+		private final byte[] data;
+		private final int redOffset;
+		private final int greenOffset;
+		private final int blueOffset;
+		private final int pixelStride;
+		private final int scanlineStride;
+
+		ByteCanvas(WritableRaster raster, ComponentSampleModel sampleModel)
+		{
+			DataBufferByte dataBuffer = (DataBufferByte) raster.getDataBuffer();
+			int bank = sampleModel.getBankIndices()[0];
+			this.data = dataBuffer.getData(bank);
+			int[] bandOffsets = sampleModel.getBandOffsets();
+			this.pixelStride = sampleModel.getPixelStride();
+			this.scanlineStride = sampleModel.getScanlineStride();
+			// Where the raster's (0, 0) pixel starts
+			int origin = dataBuffer.getOffsets()[bank]
+				+ (raster.getMinY() - raster.getSampleModelTranslateY()) * scanlineStride
+				+ (raster.getMinX() - raster.getSampleModelTranslateX()) * pixelStride;
+			this.redOffset = origin + bandOffsets[0];
+			this.greenOffset = origin + bandOffsets[1];
+			this.blueOffset = origin + bandOffsets[2];
+		}
+
+		@Override
+		void fill(int x0, int y0, int x1, int y1, int hueIndex)
+		{
+			float red = hueRed[hueIndex] * 255.0f;
+			float green = hueGreen[hueIndex] * 255.0f;
+			float blue = hueBlue[hueIndex] * 255.0f;
+			for (int y = y0; y < y1; y++)
+			{
+				int pixel = y * scanlineStride + x0 * pixelStride;
+				for (int x = x0; x < x1; x++, pixel += pixelStride)
+				{
+					int luminance = Math.max(data[redOffset + pixel] & 0xFF, Math.max(data[greenOffset + pixel] & 0xFF, data[blueOffset + pixel] & 0xFF));
+					float brightness = brightnessByLuminance[luminance];
+					data[redOffset + pixel] = (byte) (brightness * red + 0.5f);
+					data[greenOffset + pixel] = (byte) (brightness * green + 0.5f);
+					data[blueOffset + pixel] = (byte) (brightness * blue + 0.5f);
+				}
+			}
+		}
+	}
+
+	private class BufferCanvas extends Canvas
+	{
+		private final ByteBuffer data;
+		private final int scanlineStride;
+
+		BufferCanvas(ByteBuffer data, int width)
+		{
+			this.data = data;
+			this.scanlineStride = width * 3;
+		}
+
+		@Override
+		void fill(int x0, int y0, int x1, int y1, int hueIndex)
+		{
+			float red = hueRed[hueIndex] * 255.0f;
+			float green = hueGreen[hueIndex] * 255.0f;
+			float blue = hueBlue[hueIndex] * 255.0f;
+			for (int y = y0; y < y1; y++)
+			{
+				int pixel = y * scanlineStride + x0 * 3;
+				for (int x = x0; x < x1; x++, pixel += 3)
+				{
+					int luminance = Math.max(data.get(pixel) & 0xFF, Math.max(data.get(pixel + 1) & 0xFF, data.get(pixel + 2) & 0xFF));
+					float brightness = brightnessByLuminance[luminance];
+					data.put(pixel, (byte) (brightness * red + 0.5f));
+					data.put(pixel + 1, (byte) (brightness * green + 0.5f));
+					data.put(pixel + 2, (byte) (brightness * blue + 0.5f));
+				}
+			}
+		}
+	}
+
+	/**
+	 * For images that aren't stored as RGB bytes, e.g. ones with a palette
+	 */
+	private class RGBCanvas extends Canvas
+	{
+		private final BufferedImage image;
+
+		RGBCanvas(BufferedImage image)
+		{
+			this.image = image;
+		}
+
+		@Override
+		void fill(int x0, int y0, int x1, int y1, int hueIndex)
+		{
+			float red = hueRed[hueIndex] * 255.0f;
+			float green = hueGreen[hueIndex] * 255.0f;
+			float blue = hueBlue[hueIndex] * 255.0f;
+			for (int y = y0; y < y1; y++)
+			{
+				for (int x = x0; x < x1; x++)
+				{
+					int srcRGB = image.getRGB(x, y);
+					int luminance = Math.max((srcRGB >> 16) & 0xFF, Math.max((srcRGB >> 8) & 0xFF, srcRGB & 0xFF));
+					float brightness = brightnessByLuminance[luminance];
+					int rgb = ((int) (brightness * red + 0.5f) << 16) | ((int) (brightness * green + 0.5f) << 8) | (int) (brightness * blue + 0.5f);
+					image.setRGB(x, y, 0xFF000000 | rgb);
+				}
+			}
+		}
+	}
+}
@@ -20,6 +20,9 @@ public class HeatmapFile {
     protected final static File WORLD_HEATMAP_DIR = new File(RUNELITE_DIR.toString(), "worldheatmap");
     protected final static File HEATMAP_FILES_DIR = Paths.get(WORLD_HEATMAP_DIR.toString(), "Heatmap Files").toFile();
     protected final static File HEATMAP_IMAGE_DIR = Paths.get(WORLD_HEATMAP_DIR.toString(), "Heatmap Images").toFile();
+    protected final static File HEATMAP_TILES_DIR = Paths.get(WORLD_HEATMAP_DIR.toString(), "Heatmap Tiles").toFile();
+    protected final static File WORLD_MAP_CACHE_DIR = Paths.get(WORLD_HEATMAP_DIR.toString(), "World Map Cache").toFile();
+    protected final static File DIAGNOSTICS_DIR = Paths.get(WORLD_HEATMAP_DIR.toString(), "Diagnostics").toFile();
     protected final static SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_hh-mm");
     
     /**
@@ -33,6 +36,17 @@ public class HeatmapFile {
         return new File(userIdDir, name + HEATMAP_EXTENSION);
     }
 
+    /**
+     * Returns the directory holding the user's heatmap journal segments (see HeatmapJournal).
+     * It's a subdirectory so that the segments are never mistaken for .heatmaps files.
+     * @return The directory
+     */
+    public static File getJournalDir(long userId) {
+        File userIdDir = new File(HEATMAP_FILES_DIR, Long.toString(userId));
+
+        return new File(userIdDir, "Journal");
+    }
+
     public static File getCurrentImageFile(long userId, HeatmapNew.HeatmapType type) {
         String name = formatDate(new Date());
         File userIdDir = new File(HEATMAP_IMAGE_DIR, Long.toString(userId));
@@ -40,6 +54,37 @@ public class HeatmapFile {
         return new File(userIdDir, name + "_" + type + ".tif");
     }
 
+    /**
+     * Returns the file recording the tiles of the heatmap type's last autosaved image (see ImageTileCache), which the next autosave
+     * copies the unchanged tiles from.
+     * @return The file
+     */
+    public static File getImageTileCacheFile(long userId, HeatmapNew.HeatmapType type) {
+        File userIdDir = new File(HEATMAP_IMAGE_DIR, Long.toString(userId));
+
+        return new File(new File(userIdDir, "Autosave Cache"), type + ".tiles");
+    }
+
+    /**
+     * Returns a new file to export the plugin's metrics (see MetricsRegistry) to, named by the time
+     * @param extension The file's extension, e.g. "json"
+     * @return The file
+     */
+    public static File getMetricsExportFile(String extension) {
+        return new File(DIAGNOSTICS_DIR, "metrics_" + formatDate(new Date()) + "." + extension);
+    }
+
+    /**
+     * Returns the directory of the heatmap type's tile pyramid (see HeatmapTilePyramid). It isn't named by date,
+     * so that each export only has to redraw the tiles that changed since the last one.
+     * @return The directory
+     */
+    public static File getTilePyramidDir(long userId, HeatmapNew.HeatmapType type, boolean isFullMap) {
+        File userIdDir = new File(HEATMAP_TILES_DIR, Long.toString(userId));
+
+        return new File(userIdDir, type + (isFullMap ? "_FULL" : ""));
+    }
+
     /**
      * Get the File that contains the latest heatmaps based on the filename being a date.
      * Returns null if no such file exists.
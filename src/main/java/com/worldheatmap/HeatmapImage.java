@@ -1,27 +1,20 @@
 package com.worldheatmap;
 
-import java.awt.Color;
 import java.awt.Point;
 import java.awt.Rectangle;
-import java.awt.Transparency;
-import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
-import java.awt.image.ColorModel;
-import java.awt.image.ComponentColorModel;
-import java.awt.image.ComponentSampleModel;
-import java.awt.image.DataBuffer;
-import java.awt.image.Raster;
-import java.awt.image.RenderedImage;
-import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
 import java.io.*;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import javax.annotation.Nullable;
-import javax.imageio.*;
 import javax.imageio.event.IIOWriteProgressListener;
-import javax.imageio.stream.ImageInputStream;
-import javax.imageio.stream.ImageOutputStream;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -29,47 +22,46 @@ import lombok.extern.slf4j.Slf4j;
  * Class which calculates osrs heatmap image data on demand
  */
 @Slf4j
-public class HeatmapImage implements RenderedImage
+public class HeatmapImage
 {
-	private final ImageReader worldMapImageReader;
-	private final ColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
-
-	// A queue that holds the heatmap coordinates along
-	// with their values, to be sorted by coordinate left-to-right top-to-bottom
-	private static LinkedList<Map.Entry<Point, Integer>> sortedHeatmapTiles;
+	// How long the phases of writing an image take
+	private static final MetricsRegistry.Histogram PREPARE_TIME = MetricsRegistry.get().histogram("image.prepare", MetricsRegistry.Unit.NANOSECONDS);
+	private static final MetricsRegistry.Histogram STRIP_RENDER_TIME = MetricsRegistry.get().histogram("image.strip.render", MetricsRegistry.Unit.NANOSECONDS);
+	private static final MetricsRegistry.Histogram STRIP_COMPRESS_TIME = MetricsRegistry.get().histogram("image.strip.compress", MetricsRegistry.Unit.NANOSECONDS);
+	private static final MetricsRegistry.Histogram TILE_DRAW_TIME = MetricsRegistry.get().histogram("image.tile.draw", MetricsRegistry.Unit.NANOSECONDS);
+
+	private final WorldMapImage worldMap;
+	private final int width;
+	private final int height;
+
+	// The heatmap tiles within the image, each packed as (pixelY << 48 | pixelX << 32 | value) where (pixelX, pixelY) is the
+	// upper-left of the 4x4 pixel square it covers (the images are well within 16 bit dimensions).
+	// Sorted, so in reading order of their squares, and so any region's tiles can be binary searched
+	private long[] sortedTiles;
 	private final float heatmapTransparency;
 	private final int heatmapSensitivity;
-	private final int numXTiles = 1;
-	private final int numYTiles;
 	private int heatmapMinVal;
 	private int heatmapMaxVal;
+	private HeatmapColourEngine colourEngine;
 	int PIXEL_OFFSET_X;
 	int PIXEL_OFFSET_Y;
+	// Game tiles which get drawn at Prifddinas's overworld location. See remapGameTiles()
+	private static final Rectangle PRIFDDINAS = new Rectangle(3391, 5952, 255, 255);
 
 	/**
-	 * @param worldMapImageReader osrs_world_map.png
-	 * @param numYTiles           Image width must be evenly divisible by numYTiles
+	 * @param worldMap  osrs_world_map.png
 	 */
-	public HeatmapImage(HeatmapNew heatmap, ImageReader worldMapImageReader, int numYTiles, float transparency, int sensitivity, int pixelOffsetX, int pixelOffsetY)
+	public HeatmapImage(HeatmapNew heatmap, WorldMapImage worldMap, float transparency, int sensitivity, int pixelOffsetX, int pixelOffsetY)
 	{
-		this.worldMapImageReader = worldMapImageReader;
-		this.numYTiles = numYTiles;
+		this.worldMap = worldMap;
 		this.heatmapTransparency = transparency;
 		this.heatmapSensitivity = sensitivity;
 		this.PIXEL_OFFSET_X = pixelOffsetX;
 		this.PIXEL_OFFSET_Y = pixelOffsetY;
-		initializeProcessingVariables(heatmap);
-		try
-		{
-			if (worldMapImageReader.getHeight(0) % numYTiles != 0)
-			{
-                log.warn("WARNING: Image height {} is not evenly divisible by the number of Y tiles, {}.", worldMapImageReader.getHeight(0), numYTiles);
-			}
-		}
-		catch (IOException e)
-		{
-			throw new RuntimeException(e);
-		}
+		this.width = worldMap.getWidth();
+		this.height = worldMap.getHeight();
+		// The heatmap mustn't change while it's being read, so read a snapshot of it if it isn't one already
+		initializeProcessingVariables(heatmap.isSnapshot() ? heatmap : heatmap.snapshot());
 	}
 
 	/**
@@ -80,9 +72,7 @@ public class HeatmapImage implements RenderedImage
 	 */
 	static int calculateTileHeight(int configSetting, boolean isFullMap) {
 		// NOTE: these should be adjusted if the world map image's size is ever changed
-		// They should evenly divide the image height or else the image will be cut off
-		// Also I think they have to be multiples of 16 or something for the TIF format?
-		// I forgor. it seems to be working fine though
+		// They're TIFF strip heights, so they can be anything, but the last strip is cut short if they don't evenly divide the image height
 		if (isFullMap){
 			return new int[]{32, 64, 89, 178, 356, 712, 1424, 2848, 5696}[configSetting];
 		}
@@ -91,7 +81,15 @@ public class HeatmapImage implements RenderedImage
 		}
 	}
 
-	protected static void writeHeatmapImage(HeatmapNew heatmap, File imageFileOut, boolean isFullMapImage, double heatmapTransparency, int heatmapSensitivity, int speedMemoryTradeoff, @Nullable IIOWriteProgressListener progressListener) {
+	/**
+	 * Writes the heatmap image as a TIFF of deflated strips, each one rendered, compressed and then written as soon as the ones before it have been.
+	 *
+	 * @param isParallel Whether to render and compress several strips of the image at once, leaving one core for the client. The strips are made
+	 *                   smaller to make up for it, so that roughly as much memory is used as speedMemoryTradeoff would use otherwise.
+	 * @param isOffHeap  Whether to render the strips of the image into a memory mapped temporary file, rather than onto the heap
+	 * @param worldMapCache Where the world map image and its offsets are read from
+	 */
+	protected static void writeHeatmapImage(HeatmapNew heatmap, File imageFileOut, boolean isFullMapImage, double heatmapTransparency, int heatmapSensitivity, int speedMemoryTradeoff, boolean isParallel, boolean isOffHeap, WorldMapCache worldMapCache, @Nullable IIOWriteProgressListener progressListener) {
         log.debug("Saving {} image to disk...", imageFileOut);
 		long startTime = System.nanoTime();
 		if (!imageFileOut.getName().endsWith(".tif")) {
@@ -108,65 +106,35 @@ public class HeatmapImage implements RenderedImage
 			heatmapTransparency = 1;
 		}
 
-		String worldMapImageURL;
-		if (isFullMapImage) {
-			worldMapImageURL = "https://raw.githubusercontent.com/GrandTheftWalrus/gtw-runelite-stuff/main/osrs_world_map_full.png";
-		} else {
-			worldMapImageURL = "https://raw.githubusercontent.com/GrandTheftWalrus/gtw-runelite-stuff/main/osrs_world_map.png";
-		}
-
-		// Prepare the image reader
-		try (InputStream inputStream = new URL(worldMapImageURL).openStream();
-			 ImageInputStream worldMapImageInputStream = ImageIO.createImageInputStream(Objects.requireNonNull(inputStream, "Resource didn't exist: '" + worldMapImageURL + "'"))) {
-			ImageReader reader = ImageIO.getImageReadersByFormatName("PNG").next();
-			reader.setInput(worldMapImageInputStream, true);
-
-			// Prepare the image writer
-			try (FileOutputStream fos = new FileOutputStream(imageFileOut);
-				 BufferedOutputStream bos = new BufferedOutputStream(fos);
-				 ImageOutputStream ios = ImageIO.createImageOutputStream(bos)) {
-				ImageWriter writer = ImageIO.getImageWritersByFormatName("tif").next();
-				writer.setOutput(ios);
-				final int tileWidth = reader.getWidth(0);
-				final int tileHeight = calculateTileHeight(speedMemoryTradeoff, isFullMapImage);
-				final int N = reader.getHeight(0) / tileHeight;
-
-				// Make progress listener majigger
-				if (progressListener != null){
-					writer.addIIOWriteProgressListener(progressListener);
-				}
+		ForkJoinPool renderPool = null;
+		MappedStripFile stripFile = null;
+		try {
+			// Get the world map and the latest offset values, downloading them only if they've changed since last time
+			WorldMapImage worldMap = worldMapCache.getWorldMapImage(isFullMapImage);
+			Point offsets = worldMapCache.getOffsets(isFullMapImage);
+
+			// Each strip being rendered and compressed has to fit in the memory one strip would otherwise use.
+			// The strip heights (about) halve with each step down the speed-memory tradeoff. Strips rendered off the heap don't use its memory
+			final int numStripsRendering = isParallel ? Math.max(1, Runtime.getRuntime().availableProcessors() - 1) : 0;
+			final int tradeoffReduction = numStripsRendering == 0 || isOffHeap ? 0 : 32 - Integer.numberOfLeadingZeros(numStripsRendering);
+			final int stripHeight = calculateTileHeight(Math.max(0, speedMemoryTradeoff - tradeoffReduction), isFullMapImage);
+			if (numStripsRendering > 0) {
+				renderPool = new ForkJoinPool(numStripsRendering);
+			}
+			if (isOffHeap) {
+				stripFile = MappedStripFile.create(Math.max(1, numStripsRendering), (long) worldMap.getWidth() * stripHeight * 3);
+			}
 
-				// Prepare writing parameters
-				ImageWriteParam writeParam = writer.getDefaultWriteParam();
-				writeParam.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
-				writeParam.setTiling(tileWidth, tileHeight, 0, 0);
-				writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-				writeParam.setCompressionType("Deflate");
-				writeParam.setCompressionQuality(0);
-
-				// Write heatmap image
-				RenderedImage heatmapImage;
-				// Get latest offset values from git repo
-				URL offsetsURL = new URL("https://raw.githubusercontent.com/GrandTheftWalrus/gtw-runelite-stuff/main/offsets.csv");
-				Scanner scanner = new Scanner(offsetsURL.openStream());
-				scanner.next(); // Skip the headers
-				scanner.useDelimiter(",");
-				int fullMapOffsetX = Integer.parseInt(scanner.next().trim());
-				int fullMapOffsetY = Integer.parseInt(scanner.next().trim());
-				int overworldMapOffsetX = Integer.parseInt(scanner.next().trim());
-				int overworldMapOffsetY = Integer.parseInt(scanner.next().trim());
-				scanner.close();
-
-				if (isFullMapImage) {
-					heatmapImage = new HeatmapImage(heatmap, reader, N, (float) heatmapTransparency, heatmapSensitivity, fullMapOffsetX, fullMapOffsetY);
-				} else {
-					heatmapImage = new HeatmapImage(heatmap, reader, N, (float) heatmapTransparency, heatmapSensitivity, overworldMapOffsetX, overworldMapOffsetY);
-				}
-				writer.write(null, new IIOImage(heatmapImage, null, null), writeParam);
-				reader.dispose();
-				writer.dispose();
+			// Write heatmap image
+			long prepareStartTime = System.nanoTime();
+			HeatmapImage heatmapImage = new HeatmapImage(heatmap, worldMap, (float) heatmapTransparency, heatmapSensitivity, offsets.x, offsets.y);
+			PREPARE_TIME.recordSince(prepareStartTime);
+			try (DeflateTiffWriter writer = new DeflateTiffWriter(imageFileOut, heatmapImage.getWidth(), heatmapImage.getHeight(), heatmapImage.getWidth(), stripHeight)) {
+				heatmapImage.writeStrips(writer, stripHeight, renderPool, Math.max(1, numStripsRendering), stripFile, progressListener);
+				writer.finish();
 			}
             log.debug("Finished writing {} image to disk after {} ms", imageFileOut, (System.nanoTime() - startTime) / 1_000_000);
+			MetricsRegistry.get().histogram("image.write", MetricsRegistry.Unit.NANOSECONDS).recordSince(startTime);
 		} catch (OutOfMemoryError e) {
 			log.error("OutOfMemoryError thrown whilst creating and/or writing image file. " +
 					"If you're not able to fix the issue by lowering the memory usage settings " +
@@ -175,321 +143,475 @@ public class HeatmapImage implements RenderedImage
 		} catch (Exception e) {
 			e.printStackTrace();
 			log.error("Exception thrown whilst creating and/or writing image file");
-		}
-	}
-
-	@Override
-	public Vector<RenderedImage> getSources()
-	{
-		return null;
-	}
-
-	@Override
-	public Object getProperty(String name)
-	{
-		return null;
-	}
-
-	@Override
-	public String[] getPropertyNames()
-	{
-		return new String[0];
-	}
-
-	@Override
-	public ColorModel getColorModel()
-	{
-		return colorModel;
-	}
-
-	@Override
-	public SampleModel getSampleModel()
-	{
-		return new ComponentSampleModel(DataBuffer.TYPE_BYTE, getWidth(), getHeight(), 1, 1, new int[]{0, 0, 0});
-	}
-
-	@Override
-	public int getWidth()
-	{
-		try
-		{
-			return worldMapImageReader.getWidth(0);
-		}
-		catch (IOException e)
-		{
-			throw new RuntimeException(e);
+		} finally {
+			if (renderPool != null) {
+				renderPool.shutdownNow();
+			}
+			if (stripFile != null) {
+				stripFile.close();
+			}
 		}
 	}
 
 	/**
-	 * Calculates the min and max values of the heatmap within the overworld
+	 * Writes the image a strip at a time, top to bottom. With a render pool, up to maxStripsAhead strips are rendered and compressed on it
+	 * while the ones before them are being written, so that this thread only writes. Otherwise they're all rendered on this thread.
 	 *
-	 * @param heatmap The heatmap
-	 * @return An array of length 2, where the first element is the max value and the second element is the min value
+	 * @param stripFile If not null, the strips are rendered into its slots rather than onto the heap, strip i into slot i % numSlots.
+	 *                  It needs a slot for each strip rendered ahead
 	 */
-	private int[] calculateMaxMinValues(HeatmapNew heatmap)
+	void writeStrips(DeflateTiffWriter writer, int stripHeight, @Nullable ForkJoinPool renderPool, int maxStripsAhead, @Nullable MappedStripFile stripFile, @Nullable IIOWriteProgressListener progressListener) throws IOException
 	{
-		int maxVal = 0;
-		int minVal = Integer.MAX_VALUE;
-		if (heatmap.getEntrySet().isEmpty())
+		int numStrips = writer.getNumTilesY();
+		if (stripFile != null)
 		{
-			return new int[]{0, 0};
+			maxStripsAhead = Math.min(maxStripsAhead, stripFile.getNumSlots());
 		}
-		for (Map.Entry<Point, Integer> tile : heatmap.getEntrySet())
+		if (progressListener != null)
 		{
-			if (isGameTileInImageBounds(tile.getKey()))
+			progressListener.imageStarted(null, 0);
+		}
+		// The strips being rendered and compressed, in the order they're to be written. A strip's slot isn't rendered into again
+		// until the strip has been written, since only maxStripsAhead strips are ever in here
+		Deque<ForkJoinTask<byte[]>> stripsAhead = new ArrayDeque<>();
+		int nextStripToRender = 0;
+		for (int strip = 0; strip < numStrips; strip++)
+		{
+			byte[] compressedStrip;
+			if (renderPool == null)
 			{
-				if (tile.getValue() > maxVal)
-				{
-					maxVal = tile.getValue();
-				}
-				if (tile.getValue() < minVal)
+				compressedStrip = renderCompressedStrip(strip, stripHeight, stripFile);
+			}
+			else
+			{
+				for (; nextStripToRender < numStrips && nextStripToRender < strip + maxStripsAhead; nextStripToRender++)
 				{
-					minVal = tile.getValue();
+					int s = nextStripToRender;
+					stripsAhead.add(renderPool.submit(() -> renderCompressedStrip(s, stripHeight, stripFile)));
 				}
+				compressedStrip = stripsAhead.remove().join();
+			}
+			writer.writeTile(compressedStrip);
+			if (progressListener != null)
+			{
+				progressListener.imageProgress(null, 100f * (strip + 1) / numStrips);
 			}
 		}
-		return new int[]{maxVal, minVal};
+		if (progressListener != null)
+		{
+			progressListener.imageComplete(null);
+		}
 	}
 
-	public boolean isGameTileInImageBounds(Point point)
+	/**
+	 * Renders a strip of the image and compresses it for a DeflateTiffWriter. The last strip stops at the image's bottom edge
+	 */
+	private byte[] renderCompressedStrip(int strip, int stripHeight, @Nullable MappedStripFile stripFile)
 	{
-		Point pixelLocation = gameCoordsToImageCoords(point);
-		return pixelLocation.x >= 0 && pixelLocation.x < getWidth() && pixelLocation.y >= 0 && pixelLocation.y < getHeight();
+		Rectangle stripRect = new Rectangle(0, strip * stripHeight, width, Math.min(stripHeight, height - strip * stripHeight));
+		ByteBuffer pixels = stripFile == null ? ByteBuffer.allocate(stripRect.width * stripRect.height * 3) : stripFile.getSlot(strip % stripFile.getNumSlots());
+		pixels.limit(stripRect.width * stripRect.height * 3);
+		long renderStartTime = System.nanoTime();
+		renderRegion(stripRect, pixels);
+		long compressStartTime = System.nanoTime();
+		STRIP_RENDER_TIME.record(compressStartTime - renderStartTime);
+		byte[] compressed = DeflateTiffWriter.compress(pixels);
+		STRIP_COMPRESS_TIME.recordSince(compressStartTime);
+		return compressed;
 	}
 
-	@Override
-	public int getHeight()
-	{
-		try
-		{
-			return worldMapImageReader.getHeight(0);
-		}
-		catch (IOException e)
-		{
-			throw new RuntimeException(e);
+	/**
+	 * Writes the heatmap image as a TIFF of 256x256 tiles, copying the tiles that haven't changed since the last image written with the
+	 * same tile cache rather than drawing them again. So rewriting an image costs about as much as the area the heatmap changed in.
+	 * All of the tiles are drawn if anything colouring every tile has changed, e.g. the heatmap's min/max value.
+	 *
+	 * @param heatmap       Should be a snapshot, see HeatmapNew.snapshot(). One is taken if it isn't
+	 * @param tileCacheFile Records what the last image's tiles were drawn from and where they are. See ImageTileCache
+	 * @param isParallel    Whether to draw the changed tiles on all but one of the CPU cores, rather than on one
+	 */
+	protected static void writeHeatmapImageIncrementally(HeatmapNew heatmap, File imageFileOut, File tileCacheFile, double heatmapTransparency, int heatmapSensitivity, boolean isParallel, WorldMapCache worldMapCache, @Nullable IIOWriteProgressListener progressListener) {
+		log.debug("Saving {} image to disk incrementally...", imageFileOut);
+		long startTime = System.nanoTime();
+		heatmapTransparency = Math.max(0, Math.min(1, heatmapTransparency));
+		if (imageFileOut.getParentFile().mkdirs()) {
+			log.debug("Created directory for image file: {}", imageFileOut.getParentFile());
 		}
-	}
 
-	@Override
-	public int getMinX()
-	{
-		return 0;
+		ForkJoinPool drawPool = null;
+		File tempFile = new File(imageFileOut.getParentFile(), imageFileOut.getName() + ".tmp");
+		try {
+			WorldMapImage worldMap = worldMapCache.getWorldMapImage(false);
+			Point offsets = worldMapCache.getOffsets(false);
+			long prepareStartTime = System.nanoTime();
+			HeatmapImage heatmapImage = new HeatmapImage(heatmap, worldMap, (float) heatmapTransparency, heatmapSensitivity, offsets.x, offsets.y);
+			PREPARE_TIME.recordSince(prepareStartTime);
+			final int tileSize = 256;
+			long hashStartTime = System.nanoTime();
+			long[] tileHashes = heatmapImage.hashImageTiles(tileSize);
+			MetricsRegistry.get().histogram("image.incremental.hash", MetricsRegistry.Unit.NANOSECONDS).recordSince(hashStartTime);
+			String renderSettings = String.join(",", "size=" + heatmapImage.getWidth() + "x" + heatmapImage.getHeight(), "tileSize=" + tileSize,
+				"offsets=" + offsets.x + "x" + offsets.y, "map=" + worldMap.getVersion(), "min=" + heatmapImage.heatmapMinVal, "max=" + heatmapImage.heatmapMaxVal,
+				"sensitivity=" + heatmapSensitivity, "transparency=" + heatmapTransparency);
+			ImageTileCache previous = ImageTileCache.read(tileCacheFile);
+			if (previous != null && !previous.isReusableFor(renderSettings, tileHashes.length)) {
+				previous = null;
+			}
+
+			int numTiles = tileHashes.length;
+			int numDirtyTiles = 0;
+			boolean[] isDirty = new boolean[numTiles];
+			for (int i = 0; i < numTiles; i++) {
+				isDirty[i] = previous == null || previous.tileHashes[i] != tileHashes[i];
+				numDirtyTiles += isDirty[i] ? 1 : 0;
+			}
+
+			int parallelism = isParallel ? Math.max(1, Runtime.getRuntime().availableProcessors() - 1) : 1;
+			drawPool = new ForkJoinPool(parallelism);
+			if (progressListener != null) {
+				progressListener.imageStarted(null, 0);
+			}
+			long[] tileOffsets = new long[numTiles];
+			int[] tileByteCounts = new int[numTiles];
+			try (DeflateTiffWriter writer = new DeflateTiffWriter(tempFile, heatmapImage.getWidth(), heatmapImage.getHeight(), tileSize, tileSize);
+				 FileChannel previousImage = previous == null ? null : FileChannel.open(previous.imageFile.toPath(), StandardOpenOption.READ)) {
+				// Changed tiles are drawn ahead of the writer, a couple per thread so none of them sit idle, and written in order
+				Map<Integer, ForkJoinTask<byte[]>> drawingTiles = new HashMap<>();
+				int nextTileToDraw = 0;
+				for (int i = 0; i < numTiles; i++) {
+					while (nextTileToDraw < numTiles && drawingTiles.size() < 2 * parallelism) {
+						if (isDirty[nextTileToDraw]) {
+							int tileX = nextTileToDraw % writer.getNumTilesX();
+							int tileY = nextTileToDraw / writer.getNumTilesX();
+							drawingTiles.put(nextTileToDraw, drawPool.submit(() -> heatmapImage.drawCompressedTile(tileX, tileY, tileSize)));
+						}
+						nextTileToDraw++;
+					}
+					if (isDirty[i]) {
+						writer.writeTile(drawingTiles.remove(i).join());
+					} else {
+						writer.copyTile(previousImage, previous.tileOffsets[i], previous.tileByteCounts[i]);
+					}
+					tileOffsets[i] = writer.getTileOffset(i);
+					tileByteCounts[i] = writer.getTileByteCount(i);
+					if (progressListener != null && (i + 1) % writer.getNumTilesX() == 0) {
+						progressListener.imageProgress(null, 100f * (i + 1) / numTiles);
+					}
+				}
+				writer.finish();
+			}
+			Files.move(tempFile.toPath(), imageFileOut.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			new ImageTileCache(renderSettings, imageFileOut, imageFileOut.length(), tileHashes, tileOffsets, tileByteCounts).write(tileCacheFile);
+			if (progressListener != null) {
+				progressListener.imageComplete(null);
+			}
+			log.debug("Finished writing {} image to disk after {} ms, redrawing {} of its {} tiles", imageFileOut, (System.nanoTime() - startTime) / 1_000_000, numDirtyTiles, numTiles);
+			MetricsRegistry.get().histogram("image.incremental.write", MetricsRegistry.Unit.NANOSECONDS).recordSince(startTime);
+			MetricsRegistry.get().counter("image.incremental.tiles_redrawn").add(numDirtyTiles);
+			MetricsRegistry.get().counter("image.incremental.tiles_copied").add(numTiles - numDirtyTiles);
+		} catch (OutOfMemoryError e) {
+			log.error("OutOfMemoryError thrown whilst creating and/or writing image file");
+		} catch (Exception e) {
+			log.error("Exception thrown whilst creating and/or writing image file", e);
+		} finally {
+			if (drawPool != null) {
+				drawPool.shutdownNow();
+			}
+			if (!tempFile.delete() && tempFile.exists()) {
+				log.debug("Couldn't delete temporary image file '{}'", tempFile);
+			}
+		}
 	}
 
-	@Override
-	public int getMinY()
+	/**
+	 * Draws a square tile of the image and compresses it for a DeflateTiffWriter. Any part of it past the image's edges is left black
+	 */
+	private byte[] drawCompressedTile(int tileX, int tileY, int tileSize)
 	{
-		return 0;
+		long startTime = System.nanoTime();
+		Rectangle tileRect = new Rectangle(tileX * tileSize, tileY * tileSize, tileSize, tileSize).intersection(new Rectangle(getWidth(), getHeight()));
+		BufferedImage bi = worldMap.read(tileRect);
+		processImageRegion(bi, tileRect);
+		byte[] pixels = new byte[tileSize * tileSize * 3];
+		WritableRaster raster = bi.getRaster();
+		byte[] row = new byte[tileRect.width * 3];
+		for (int y = 0; y < tileRect.height; y++) {
+			raster.getDataElements(0, y, tileRect.width, 1, row);
+			System.arraycopy(row, 0, pixels, y * tileSize * 3, row.length);
+		}
+		byte[] compressed = DeflateTiffWriter.compress(ByteBuffer.wrap(pixels));
+		TILE_DRAW_TIME.recordSince(startTime);
+		return compressed;
 	}
 
-	@Override
-	public int getNumXTiles()
+	public int getWidth()
 	{
-		return numXTiles;
+		return width;
 	}
 
-	@Override
-	public int getNumYTiles()
+	/**
+	 * @return The rectangles of game tiles which are drawn within the image, which don't overlap. Prifddinas's tiles are drawn elsewhere
+	 * (see remapGameTiles()), so the part of the image's bounds it covers is left out, and the part of it drawn within the image is added
+	 */
+	private List<Rectangle> getDrawnGameRects()
 	{
-		return numYTiles;
+		Rectangle imageGameBounds = getImageGameBounds();
+		List<Rectangle> rects = new ArrayList<>();
+		Rectangle overlap = imageGameBounds.intersection(PRIFDDINAS);
+		if (overlap.isEmpty())
+		{
+			rects.add(imageGameBounds);
+		}
+		else
+		{
+			// The parts of the bounds below and above Prifddinas, then left and right of it
+			Rectangle b = imageGameBounds;
+			rects.add(new Rectangle(b.x, b.y, b.width, overlap.y - b.y));
+			rects.add(new Rectangle(b.x, overlap.y + overlap.height, b.width, b.y + b.height - overlap.y - overlap.height));
+			rects.add(new Rectangle(b.x, overlap.y, overlap.x - b.x, overlap.height));
+			rects.add(new Rectangle(overlap.x + overlap.width, overlap.y, b.x + b.width - overlap.x - overlap.width, overlap.height));
+		}
+		Point remappedCorner = remapGameTiles(PRIFDDINAS.getLocation());
+		Rectangle remappedImageBounds = new Rectangle(imageGameBounds);
+		remappedImageBounds.translate(PRIFDDINAS.x - remappedCorner.x, PRIFDDINAS.y - remappedCorner.y);
+		rects.add(PRIFDDINAS.intersection(remappedImageBounds));
+		rects.removeIf(Rectangle::isEmpty);
+		return rects;
 	}
 
-	@Override
-	public int getMinTileX()
+	private Rectangle getImageGameBounds()
 	{
-		return 0;
+		int minX = Math.floorDiv(-PIXEL_OFFSET_X + 3, 4);
+		int maxX = Math.floorDiv(getWidth() - 1 - PIXEL_OFFSET_X, 4);
+		int minY = Math.floorDiv(PIXEL_OFFSET_Y, 4) + 1;
+		int maxY = Math.floorDiv(getHeight() + PIXEL_OFFSET_Y, 4);
+		return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
 	}
 
-	@Override
-	public int getMinTileY()
+	public int getHeight()
 	{
-		return 0;
+		return height;
 	}
 
-	@Override
-	public int getTileWidth()
+	/**
+	 * Renders the region into the buffer as RGB bytes, row by row
+	 */
+	private void renderRegion(Rectangle rect, ByteBuffer pixels)
 	{
-		return getWidth() / numXTiles;
+		worldMap.read(rect, pixels);
+		drawTiles(colourEngine.canvas(pixels, rect.width), rect);
 	}
 
-	@Override
-	public int getTileHeight()
+	/**
+	 * Renders the given region of the image, onto a copy of the world map's pixels there. Regions can be rendered by several threads at once
+	 */
+	BufferedImage renderRegion(Rectangle rect)
 	{
-		return getHeight() / numYTiles;
+		// Copies only the specified rect of osrs_world_map.png, which can be done by several threads at once
+		BufferedImage bi = worldMap.read(rect);
+		processImageRegion(bi, rect);
+		return bi;
 	}
 
-	@Override
-	public int getTileGridXOffset()
+	/**
+	 * Draws the heatmap tiles overlapping the region onto it. Regions can be processed in any order, and each one only
+	 * costs a binary search per pixel row of tiles plus the tiles that overlap it.
+	 * Make sure that initializeProcessingVariables() has been run before running this
+	 *
+	 * @param imageRegion The image region to be drawn on
+	 * @param region      The x,y,width,height coordinates of where the imageRegion came from in the whole image
+	 */
+	public void processImageRegion(BufferedImage imageRegion, Rectangle region)
 	{
-		return 0;
+		drawTiles(colourEngine.canvas(imageRegion), region);
 	}
 
-	@Override
-	public int getTileGridYOffset()
+	/**
+	 * Draws the heatmap tiles overlapping the region onto the canvas, which holds the pixels of the region
+	 */
+	private void drawTiles(HeatmapColourEngine.Canvas canvas, Rectangle region)
 	{
-		return 0;
+		// Tiles cover 4x4 pixels to the lower-right of their pixel, so tiles up to 3 pixels above/left of the region overlap it too
+		int firstPixelX = Math.max(0, region.x - 3);
+		int endPixelX = region.x + region.width;
+		int endPixelY = region.y + region.height;
+		int i = findFirstTile(firstPixelX, Math.max(0, region.y - 3));
+		while (i < sortedTiles.length)
+		{
+			long tile = sortedTiles[i];
+			int pixelX = (int) (tile >>> 32) & 0xFFFF;
+			int pixelY = (int) (tile >>> 48);
+			if (pixelY >= endPixelY)
+			{
+				break;
+			}
+			if (pixelX >= endPixelX)
+			{
+				// Skip to the region's part of the next row
+				i = findFirstTile(firstPixelX, pixelY + 1);
+				continue;
+			}
+			if (pixelX < firstPixelX)
+			{
+				// Skip to the region's part of this row
+				i = findFirstTile(firstPixelX, pixelY);
+				continue;
+			}
+			drawTile(canvas, region.width, region.height, pixelX - region.x, pixelY - region.y, (int) tile);
+			i++;
+		}
 	}
 
-	@Override
-	public Raster getTile(int tileX, int tileY)
+	/**
+	 * @return The index of the first tile in sortedTiles at or after the given pixel in reading order
+	 */
+	private int findFirstTile(int pixelX, int pixelY)
 	{
-		int x = tileX * getTileWidth();
-		int y = tileY * getTileHeight();
-		return getData(new Rectangle(x, y, getTileWidth(), getTileHeight()));
+		long key = ((long) pixelY << 48) | ((long) pixelX << 32);
+		int low = 0;
+		int high = sortedTiles.length;
+		while (low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if (sortedTiles[mid] < key)
+			{
+				low = mid + 1;
+			}
+			else
+			{
+				high = mid;
+			}
+		}
+		return low;
 	}
 
-	@Override
-	public Raster getData()
+	/**
+	 * Colours the 4x4 pixel square of the tile whose upper-left pixel is at (regionX, regionY) within the image region, clipped to the region
+	 */
+	private void drawTile(HeatmapColourEngine.Canvas canvas, int regionWidth, int regionHeight, int regionX, int regionY, int tileValue)
 	{
-		return getData(new Rectangle(0, 0, getWidth(), getHeight()));
+		int x0 = Math.max(0, regionX);
+		int y0 = Math.max(0, regionY);
+		int x1 = Math.min(regionWidth, regionX + 4);
+		int y1 = Math.min(regionHeight, regionY + 4);
+		if (x0 < x1 && y0 < y1)
+		{
+			canvas.fill(x0, y0, x1, y1, colourEngine.hueIndex(tileValue));
+		}
 	}
 
-	@Override
-	public Raster getData(Rectangle rect)
+	private void initializeProcessingVariables(HeatmapNew heatmap)
 	{
-		ImageReadParam readParam = worldMapImageReader.getDefaultReadParam();
-		readParam.setSourceRegion(rect);
-		try
+		// Only the tiles drawn within the image are looked at. Whole regions within it are summarized without looking at their tiles
+		List<Rectangle> drawnGameRects = getDrawnGameRects();
+		RegionGrid.RectSummary drawnTiles = null;
+		for (Rectangle rect : drawnGameRects)
 		{
-			// Reads only the specified rect from osrs_world_map.png into memory
-			BufferedImage bi = worldMapImageReader.read(0, readParam);
-			processImageRegion(bi, rect);
-			return bi.getData();
+			RegionGrid.RectSummary summary = heatmap.summarizeRect(rect);
+			drawnTiles = drawnTiles == null ? summary : drawnTiles.combine(summary);
 		}
-		catch (IOException e)
+
+		// Get min/max values within writeable region to be written
+		heatmapMaxVal = drawnTiles == null ? 0 : drawnTiles.max;
+		heatmapMinVal = drawnTiles == null ? 0 : drawnTiles.min;
+		colourEngine = new HeatmapColourEngine(heatmapSensitivity, heatmapMinVal, heatmapMaxVal, heatmapTransparency);
+
+		// Create sorted heatmap tiles array (sorted left-to-right top-to-bottom by pixel location)
+		final int imageHeight = getHeight();
+		long[] tiles = new long[drawnTiles == null ? 0 : drawnTiles.numTiles];
+		int[] numTiles = {0};
+		for (Rectangle rect : drawnGameRects)
 		{
-			throw new RuntimeException(e);
+			heatmap.forEachTileInRect(rect, (x, y, value) -> {
+				if (PRIFDDINAS.contains(x, y))
+				{
+					x -= 1024;
+					y -= 2752;
+				}
+				int pixelX = 4 * x + PIXEL_OFFSET_X;
+				int pixelY = imageHeight - (4 * y) + PIXEL_OFFSET_Y;
+				tiles[numTiles[0]++] = ((long) pixelY << 48) | ((long) pixelX << 32) | value;
+			});
 		}
-	}
-
-	@Override
-	public WritableRaster copyData(WritableRaster raster)
-	{
-		return null;
+		sortedTiles = tiles;
+		Arrays.sort(sortedTiles);
 	}
 
 	/**
-	 * Assumes that the image will be processed in natural reading order pixel-wise (left-to-right, top-to-bottom) otherwise it won't work.
-	 * Make sure that initializeProcessingParameters() has been run before running this
-	 *
-	 * @param imageRegion The image region to be drawn on
-	 * @param region      The x,y,width,height coordinates of where the imageRegion came from in the whole image
+	 * @return A hash of the heatmap tiles drawn within each imageTileSize square of the image, row by row, which changes if any of their values do
 	 */
-	public void processImageRegion(BufferedImage imageRegion, Rectangle region)
+	long[] hashImageTiles(int imageTileSize)
 	{
-		// Run them heatmap tiles through the ol' rigamarole
-		// For each pixel in current image region
-		while (!sortedHeatmapTiles.isEmpty())
+		int numImageTilesX = (getWidth() + imageTileSize - 1) / imageTileSize;
+		int numImageTilesY = (getHeight() + imageTileSize - 1) / imageTileSize;
+		long[] hashes = new long[numImageTilesX * numImageTilesY];
+		for (long tile : sortedTiles)
 		{
-			Map.Entry<Point, Integer> gameTile = sortedHeatmapTiles.poll();
-			Point tilePixel = gameTile.getKey(); // tilePixel is the upper-left coordinate of the 4x4 pixel square that this tile covers
-			tilePixel = gameCoordsToImageCoords(tilePixel);
-			boolean isInImageBounds = (tilePixel.x >= 0 && tilePixel.y >= 0 && tilePixel.x < getWidth() && tilePixel.y < getHeight());
-			int tileValue = gameTile.getValue();
-
-			boolean pixelIsBeforeRegion = (compareNaturalReadingOrder(tilePixel.x, tilePixel.y, region.x, region.y) < 0);
-			boolean pixelIsAfterRegion = (compareNaturalReadingOrder(tilePixel.x, tilePixel.y, region.x + region.width, region.y + region.height) > 0);
-			// If current tile is after bottom right edge of current image region in reading order
-			if (pixelIsAfterRegion)
-			{
-				// put it back in the front of the queue and return
-				sortedHeatmapTiles.addFirst(gameTile);
-				return;
-			}
-			// If current tile is before upper left edge of current image region, or is out of bounds, or hasn't been stepped on, skip this tile
-			if (pixelIsBeforeRegion || !isInImageBounds || tileValue == 0)
-			{
-				continue;
-			}
-			// Else continue
-
-			// Calculate color
-			double currHue = calculateHue(tileValue, heatmapSensitivity, heatmapMinVal, heatmapMaxVal);
-			// Reassign the new RGB values to the corresponding 9 pixels (each tile covers 3x3 image pixels)
-			for (int x_offset = 0; x_offset < 4; x_offset++)
+			int pixelX = (int) (tile >>> 32) & 0xFFFF;
+			int pixelY = (int) (tile >>> 48);
+			long hash = mix(tile);
+			// The tile's 4x4 pixel square may straddle image tiles
+			for (int y = pixelY / imageTileSize; y <= Math.min(numImageTilesY - 1, (pixelY + 3) / imageTileSize); y++)
 			{
-				for (int y_offset = 0; y_offset < 4; y_offset++)
+				for (int x = pixelX / imageTileSize; x <= Math.min(numImageTilesX - 1, (pixelX + 3) / imageTileSize); x++)
 				{
-					int curX = tilePixel.x - region.x + x_offset;
-					int curY = tilePixel.y - region.y + y_offset;
-					if (curY >= imageRegion.getHeight())
-					{
-						// put it back in the front of the queue and return
-						sortedHeatmapTiles.addFirst(gameTile);
-						return;
-					}
-					else if (curX >= imageRegion.getWidth()){
-						// Skip this pixel
-						continue;
-					}
-					int srcRGB = imageRegion.getRGB(curX, curY);
-					int r = (srcRGB >> 16) & 0xFF;
-					int g = (srcRGB >> 8) & 0xFF;
-					int b = (srcRGB) & 0xFF;
-					float brightness = Color.RGBtoHSB(r, g, b, null)[2] * (1 - heatmapTransparency) + heatmapTransparency;
-					// convert HSB to RGB with the calculated Hue, with Saturation=1
-					int currRGB = Color.HSBtoRGB((float) currHue, 1, brightness);
-					imageRegion.setRGB(curX, curY, currRGB);
+					hashes[y * numImageTilesX + x] += hash;
 				}
 			}
 		}
+		return hashes;
 	}
 
-	private double calculateHue(int tileValue, int heatmapSensitivity, int minVal, int maxVal)
+	/**
+	 * The SplitMix64 finalizer, which scrambles the bits of its input. Summing the scrambled values of a set of things hashes it regardless of order
+	 */
+	static long mix(long z)
 	{
-		double nthRoot = 1 + (heatmapSensitivity - 1.0) / 2;
-		int logBase = 4;
-		double minHue = 1 / 3.0;
-		double maxHue = 0.0;
-		double currHue = (float) ((Math.log(tileValue) / Math.log(logBase)) / (Math.log(maxVal + 1 - minVal) / Math.log(logBase)));
-		currHue = Math.pow(currHue, 1.0 / nthRoot);
-		currHue = (float) (minHue + (currHue * (maxHue - minHue))); // Assign a hue based on normalized step value (values [0, 1] are mapped linearly to hues of [0, 0.333] aka green then yellow, then red)
-		return currHue;
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
 	}
 
-	private int compareNaturalReadingOrder(int x1, int y1, int x2, int y2)
+	/**
+	 * @return The lowest value of the heatmap tiles within the image, which get the coolest colour
+	 */
+	int getHeatmapMinVal()
 	{
-		// This should return the difference in the row-major order of the two points
-		int rowMajor1 = y1 * getWidth() + x1;
-		int rowMajor2 = y2 * getWidth() + x2;
-		return rowMajor1 - rowMajor2;
+		return heatmapMinVal;
 	}
 
-	private void initializeProcessingVariables(HeatmapNew heatmap)
+	/**
+	 * @return The highest value of the heatmap tiles within the image, which get the hottest colour
+	 */
+	int getHeatmapMaxVal()
 	{
-		// Get min/max values within writeable region to be written
-		int[] maxMin = calculateMaxMinValues(heatmap);
-		heatmapMaxVal = maxMin[0];
-		heatmapMinVal = maxMin[1];
-
-		// Create sorted heatmap tiles array (sorted left-to-right top-to-bottom)
-		sortedHeatmapTiles = new LinkedList<>(heatmap.getEntrySet());
-		sortedHeatmapTiles.sort((tile1, tile2) -> {
-			Point coords1 = tile1.getKey();
-			Point coords2 = tile2.getKey();
-			return compareNaturalReadingOrder(coords1.x, -coords1.y, coords2.x, -coords2.y);
-		});
+		return heatmapMaxVal;
 	}
 
 	/**
-	 * @param gameCoord True gameworld coordinate
-	 * @return The upper-left of the 9-pixel square location on the image osrs_world_map.png that this game coordinate responds to (1 game coordinate = 3x3 pixels). If it is out of bounds, then (-1, -1) is returned
+	 * @return The rectangles of pixels (which may reach outside the image) that the tiles of the 64x64 map region are drawn within.
+	 * Regions overlapping Prifddinas have tiles drawn in two places, see remapGameTiles()
 	 */
-	public Point gameCoordsToImageCoords(Point gameCoord)
+	List<Rectangle> getRegionPixelBounds(int regionX, int regionY)
 	{
-		final int IMAGE_WIDTH = getWidth();
-		final int IMAGE_HEIGHT = getHeight();
-		gameCoord = remapGameTiles(gameCoord);
-		Point pixelLocation = new Point(4 * gameCoord.x + PIXEL_OFFSET_X, IMAGE_HEIGHT - (4 * gameCoord.y) + PIXEL_OFFSET_Y);
-		if (pixelLocation.x < 0 || pixelLocation.y < 0 || pixelLocation.x > IMAGE_WIDTH || pixelLocation.y > IMAGE_HEIGHT)
-		{
-			return new Point(-1, -1);
-		}
-		else
+		List<Rectangle> pixelBounds = new ArrayList<>(2);
+		Rectangle region = new Rectangle(regionX * RegionGrid.REGION_SIZE, regionY * RegionGrid.REGION_SIZE, RegionGrid.REGION_SIZE, RegionGrid.REGION_SIZE);
+		pixelBounds.add(gameRectToPixelRect(region));
+		if (region.intersects(PRIFDDINAS))
 		{
-			return pixelLocation;
+			Point remappedCorner = remapGameTiles(PRIFDDINAS.getLocation());
+			region.translate(remappedCorner.x - PRIFDDINAS.x, remappedCorner.y - PRIFDDINAS.y);
+			pixelBounds.add(gameRectToPixelRect(region));
 		}
+		return pixelBounds;
+	}
+
+	/**
+	 * @return The rectangle of pixels covered by the 4x4 pixel squares of the game tiles. Game y coordinates increase upwards, unlike image ones
+	 */
+	private Rectangle gameRectToPixelRect(Rectangle gameRect)
+	{
+		int topGameY = gameRect.y + gameRect.height - 1;
+		return new Rectangle(4 * gameRect.x + PIXEL_OFFSET_X, getHeight() - 4 * topGameY + PIXEL_OFFSET_Y, 4 * gameRect.width, 4 * gameRect.height);
 	}
 
 	/**
@@ -500,9 +622,7 @@ public class HeatmapImage implements RenderedImage
 	 */
 	private static Point remapGameTiles(Point point)
 	{
-		// Prifdinnas
-		Rectangle prifdinnas = new Rectangle(3391, 5952, 255, 255);
-		if (prifdinnas.contains(point))
+		if (PRIFDDINAS.contains(point))
 		{
 			return new Point(point.x - 1024, point.y - 2752);
 		}
@@ -0,0 +1,513 @@
+package com.worldheatmap;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Append-only write-ahead log of heatmap increments, so that the .heatmaps file only has to be rewritten once in a while.
+ * <p>
+ * The increments of each game tick are appended to the current segment file as one batch, written straight to the file by the thread
+ * that ends the tick (the tile event consumer), so a batch is never left waiting in memory behind other work.
+ * Every so often the heatmaps are saved to the .heatmaps file (compaction), which records the sequence number of the last segment
+ * it contains the increments of, after which those segments are deleted. When loading, the segments newer than the one recorded in the
+ * .heatmaps file are replayed on top of it (see {@link #readPending}), so at most the increments of the tick that was being written during a crash are lost.
+ * <p>
+ * Each batch is framed as:
+ * <pre>
+ * varint  payload length
+ * bytes   payload: records, each being a byte tag (the heatmap type's ordinal, TICK or GAME_TIME) followed by
+ *         zigzag varint x, y and amount for increments, a varint bitmask of the types (by ordinal) whose game time the tick counts towards for TICK,
+ *         or a varint type ordinal and its game time for GAME_TIME
+ * int     CRC32 of the payload
+ * </pre>
+ * A torn or corrupt batch (from a crash mid-write) ends the replay of its segment.
+ */
+@Slf4j
+public class HeatmapJournal
+{
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".wal";
+	private static final Pattern SEGMENT_NAME = Pattern.compile(Pattern.quote(SEGMENT_PREFIX) + "(\\d+)" + Pattern.quote(SEGMENT_SUFFIX));
+	// Marks the end of a game tick, on which the game time of the heatmaps that were loaded is incremented
+	private static final int TICK = 0xFF;
+	// Sets the game time of a heatmap type outright, for the types whose game time isn't saved when the segments before it are folded
+	private static final int GAME_TIME = 0xFE;
+	// Every record fits in this many bytes (tag + 3 varints of at most 5 bytes)
+	private static final int MAX_RECORD_LENGTH = 16;
+	// The batch's length prefix fits in this many bytes, which are kept free at the start of the batch buffer so the frame can be written from it as is
+	private static final int MAX_LENGTH_PREFIX = 5;
+	private static final int CRC_LENGTH = 4;
+	// Anything longer must be a corrupt length prefix
+	private static final int MAX_BATCH_LENGTH = 1 << 24;
+
+	private final File journalDir;
+
+	// The frame being put together: room for the length prefix, then the records of the current tick, then room for the CRC. Guarded by this
+	private byte[] batch = new byte[256];
+	private int batchLength = MAX_LENGTH_PREFIX;
+	private final CRC32 crc = new CRC32();
+	// The segment that batches are currently appended to. Guarded by this
+	private long currentSequence;
+	// Bytes appended since the last compaction. Guarded by this
+	private long uncompactedSize = 0;
+	// Once closed, nothing more is appended. Guarded by this
+	private boolean isClosed = false;
+
+	// The open segment file. Guarded by this
+	private OutputStream segmentStream = null;
+
+	/**
+	 * @param journalDir    The directory holding the user's journal segments
+	 * @param firstSequence The sequence number of the segment to start appending to. Must be higher than those of the existing segments.
+	 */
+	public HeatmapJournal(File journalDir, long firstSequence)
+	{
+		this.journalDir = journalDir;
+		this.currentSequence = firstSequence;
+	}
+
+	/**
+	 * Records an increment to be appended with the current tick's batch
+	 */
+	public synchronized void append(HeatmapNew.HeatmapType type, int x, int y, int amount)
+	{
+		ensureBatchCapacity();
+		batch[batchLength++] = (byte) type.ordinal();
+		writeZigZagVarInt(x);
+		writeZigZagVarInt(y);
+		writeZigZagVarInt(amount);
+	}
+
+	/**
+	 * Records the end of a game tick, and appends the tick's batch to the current segment
+	 *
+	 * @param typeMask The heatmap types whose game time the tick was counted towards (those that were loaded), as a bit per type ordinal
+	 */
+	public synchronized void appendTick(int typeMask)
+	{
+		ensureBatchCapacity();
+		batch[batchLength++] = (byte) TICK;
+		writeZigZagVarInt(typeMask);
+		commitBatch();
+	}
+
+	/**
+	 * Records the game time of a heatmap type, replacing that of the ticks before it when replayed, and appends it to the current segment straight away.
+	 * Called right after {@link #rotate()} for the loaded types that the .heatmaps file isn't about to be rewritten with, since the ticks counted
+	 * towards them are in the segments that are deleted once the file has been written.
+	 */
+	public synchronized void appendGameTime(HeatmapNew.HeatmapType type, int gameTimeTicks)
+	{
+		ensureBatchCapacity();
+		batch[batchLength++] = (byte) GAME_TIME;
+		writeZigZagVarInt(type.ordinal());
+		writeZigZagVarInt(gameTimeTicks);
+		commitBatch();
+	}
+
+	/**
+	 * Starts a new segment, so that the returned segment (and those before it) can be folded into a .heatmaps file
+	 * and deleted with {@link #deleteSegmentsThrough(long)} once it's been written.
+	 *
+	 * @return The sequence number of the last segment whose increments are now all applied to the in-memory heatmaps
+	 */
+	public synchronized long rotate()
+	{
+		commitBatch();
+		closeSegmentStream();
+		uncompactedSize = 0;
+		return currentSequence++;
+	}
+
+	/**
+	 * @return The number of bytes appended since the last rotation, as a measure of how much there is to replay
+	 */
+	public synchronized long getUncompactedSize()
+	{
+		return uncompactedSize;
+	}
+
+	/**
+	 * Frames the current tick's records and writes them to the current segment
+	 */
+	private void commitBatch()
+	{
+		int payloadLength = batchLength - MAX_LENGTH_PREFIX;
+		if (payloadLength == 0 || isClosed)
+		{
+			batchLength = MAX_LENGTH_PREFIX;
+			return;
+		}
+		crc.reset();
+		crc.update(batch, MAX_LENGTH_PREFIX, payloadLength);
+		int crcValue = (int) crc.getValue();
+		batch[batchLength++] = (byte) (crcValue >>> 24);
+		batch[batchLength++] = (byte) (crcValue >>> 16);
+		batch[batchLength++] = (byte) (crcValue >>> 8);
+		batch[batchLength++] = (byte) crcValue;
+
+		// The varint length prefix goes right before the payload
+		int prefixLength = 1;
+		for (int length = payloadLength >>> 7; length != 0; length >>>= 7)
+		{
+			prefixLength++;
+		}
+		int frameStart = MAX_LENGTH_PREFIX - prefixLength;
+		int length = payloadLength;
+		for (int i = frameStart; i < MAX_LENGTH_PREFIX - 1; i++, length >>>= 7)
+		{
+			batch[i] = (byte) ((length & 0x7F) | 0x80);
+		}
+		batch[MAX_LENGTH_PREFIX - 1] = (byte) length;
+
+		writeFrame(batch, frameStart, batchLength - frameStart);
+		uncompactedSize += batchLength - frameStart;
+		batchLength = MAX_LENGTH_PREFIX;
+	}
+
+	private void writeFrame(byte[] frame, int offset, int length)
+	{
+		try
+		{
+			if (segmentStream == null)
+			{
+				if (!journalDir.exists() && !journalDir.mkdirs())
+				{
+					log.error("Could not create the heatmap journal directory");
+					return;
+				}
+				segmentStream = new FileOutputStream(segmentFile(journalDir, currentSequence), true);
+			}
+			// Unbuffered, so that the batch reaches the OS right away
+			segmentStream.write(frame, offset, length);
+		}
+		catch (IOException e)
+		{
+			log.error("World Heatmap was not able to append to heatmap journal segment {}", currentSequence, e);
+		}
+	}
+
+	private void closeSegmentStream()
+	{
+		if (segmentStream == null)
+		{
+			return;
+		}
+		try
+		{
+			segmentStream.close();
+		}
+		catch (IOException e)
+		{
+			log.error("Error closing heatmap journal segment {}", currentSequence, e);
+		}
+		segmentStream = null;
+	}
+
+	/**
+	 * Deletes the segments up to and including the given one, after they've been folded into a .heatmaps file.
+	 * They've all been closed by the rotation that returned the sequence number, so this doesn't need the journal's lock.
+	 */
+	public void deleteSegmentsThrough(long sequence)
+	{
+		for (long segmentSequence : listSegments(journalDir))
+		{
+			if (segmentSequence <= sequence && !segmentFile(journalDir, segmentSequence).delete())
+			{
+				log.error("Could not delete folded heatmap journal segment {}", segmentSequence);
+			}
+		}
+	}
+
+	/**
+	 * Appends what's left of the current tick's batch and closes the segment file. Anything appended afterwards is ignored
+	 */
+	public synchronized void close()
+	{
+		commitBatch();
+		closeSegmentStream();
+		isClosed = true;
+	}
+
+	private static File segmentFile(File journalDir, long sequence)
+	{
+		return new File(journalDir, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX);
+	}
+
+	/**
+	 * @return The sequence numbers of the segments in the directory, in ascending order
+	 */
+	private static long[] listSegments(File journalDir)
+	{
+		String[] names = journalDir.list();
+		if (names == null)
+		{
+			return new long[0];
+		}
+		long[] sequences = new long[names.length];
+		int n = 0;
+		for (String name : names)
+		{
+			Matcher matcher = SEGMENT_NAME.matcher(name);
+			if (matcher.matches())
+			{
+				sequences[n++] = Long.parseLong(matcher.group(1));
+			}
+		}
+		sequences = Arrays.copyOf(sequences, n);
+		Arrays.sort(sequences);
+		return sequences;
+	}
+
+	/**
+	 * The increments of the journal segments that haven't been folded into the .heatmaps file yet, grouped by heatmap type,
+	 * so that each heatmap can be caught up as soon as it's been loaded. The increments of the types that aren't loaded are kept
+	 * until they're enabled, or folded into the .heatmaps file on their own.
+	 */
+	static final class PendingIncrements
+	{
+		// Per heatmap type ordinal: x, y, amount triples in journal order
+		private final int[][] increments = new int[HeatmapNew.HeatmapType.values().length][];
+		private final int[] lengths = new int[HeatmapNew.HeatmapType.values().length];
+		// Per heatmap type ordinal: the game ticks that were counted towards the type's game time (since its GAME_TIME record, if it has one)
+		private final int[] numTicks = new int[HeatmapNew.HeatmapType.values().length];
+		// Per heatmap type ordinal: the game time of the type's last GAME_TIME record, or -1 if it has none
+		private final int[] gameTimeTicks = new int[HeatmapNew.HeatmapType.values().length];
+		private long newestSequence;
+
+		private PendingIncrements(long newestSequence)
+		{
+			this.newestSequence = newestSequence;
+			Arrays.fill(gameTimeTicks, -1);
+		}
+
+		private void addTick(int typeMask)
+		{
+			for (int i = 0; i < numTicks.length; i++)
+			{
+				if ((typeMask & 1 << i) != 0)
+				{
+					numTicks[i]++;
+				}
+			}
+		}
+
+		private void setGameTime(int typeOrdinal, int gameTime)
+		{
+			gameTimeTicks[typeOrdinal] = gameTime;
+			numTicks[typeOrdinal] = 0;
+		}
+
+		private void add(int typeOrdinal, int x, int y, int amount)
+		{
+			int[] typeIncrements = increments[typeOrdinal];
+			if (typeIncrements == null)
+			{
+				typeIncrements = increments[typeOrdinal] = new int[48];
+			}
+			else if (lengths[typeOrdinal] + 3 > typeIncrements.length)
+			{
+				typeIncrements = increments[typeOrdinal] = Arrays.copyOf(typeIncrements, typeIncrements.length * 2);
+			}
+			typeIncrements[lengths[typeOrdinal]++] = x;
+			typeIncrements[lengths[typeOrdinal]++] = y;
+			typeIncrements[lengths[typeOrdinal]++] = amount;
+		}
+
+		/**
+		 * Applies the pending increments (and game ticks) of the heatmap's type to it. Safe to call from several threads at once for different heatmaps.
+		 */
+		void applyTo(HeatmapNew heatmap)
+		{
+			int[] typeIncrements = increments[heatmap.getHeatmapType().ordinal()];
+			for (int i = 0; i < lengths[heatmap.getHeatmapType().ordinal()]; i += 3)
+			{
+				heatmap.increment(typeIncrements[i], typeIncrements[i + 1], typeIncrements[i + 2]);
+			}
+			int gameTime = gameTimeTicks[heatmap.getHeatmapType().ordinal()];
+			heatmap.setGameTimeTicks((gameTime >= 0 ? gameTime : heatmap.getGameTimeTicks()) + numTicks[heatmap.getHeatmapType().ordinal()]);
+		}
+
+		/**
+		 * @return Whether there are increments or game ticks of the heatmap type that haven't been discarded yet, e.g. because it wasn't enabled when the heatmaps were loaded
+		 */
+		synchronized boolean hasIncrements(HeatmapNew.HeatmapType type)
+		{
+			return lengths[type.ordinal()] > 0 || numTicks[type.ordinal()] > 0 || gameTimeTicks[type.ordinal()] >= 0;
+		}
+
+		/**
+		 * Drops the increments and game ticks of the heatmap type, once they've been applied to its loaded heatmap or saved to the .heatmaps file
+		 */
+		synchronized void discard(HeatmapNew.HeatmapType type)
+		{
+			increments[type.ordinal()] = null;
+			lengths[type.ordinal()] = 0;
+			numTicks[type.ordinal()] = 0;
+			gameTimeTicks[type.ordinal()] = -1;
+		}
+
+		/**
+		 * @return The sequence number of the newest segment in the journal directory, or the folded sequence number if there are none newer than it
+		 */
+		long getNewestSequence()
+		{
+			return newestSequence;
+		}
+	}
+
+	/**
+	 * Reads the increments of the segments newer than foldedSequence
+	 *
+	 * @param foldedSequence The sequence number of the last segment already contained in the .heatmaps file, or -1 if there is none
+	 */
+	static PendingIncrements readPending(File journalDir, long foldedSequence)
+	{
+		long startTime = System.nanoTime();
+		PendingIncrements pending = new PendingIncrements(foldedSequence);
+		int numRecords = 0;
+		for (long sequence : listSegments(journalDir))
+		{
+			pending.newestSequence = Math.max(pending.newestSequence, sequence);
+			if (sequence <= foldedSequence)
+			{
+				continue;
+			}
+			File segment = segmentFile(journalDir, sequence);
+			try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment))))
+			{
+				numRecords += readSegment(in, pending);
+			}
+			catch (EOFException e)
+			{
+				log.info("Heatmap journal segment {} ends with an incomplete batch, which was skipped", sequence);
+			}
+			catch (IOException e)
+			{
+				log.error("Error replaying heatmap journal segment {}: {}", sequence, e.toString());
+			}
+		}
+		if (numRecords > 0)
+		{
+			log.debug("Read {} heatmap journal records to replay after {} ms", numRecords, (System.nanoTime() - startTime) / 1_000_000);
+		}
+		return pending;
+	}
+
+	private static int readSegment(DataInputStream in, PendingIncrements pending) throws IOException
+	{
+		int numTypes = HeatmapNew.HeatmapType.values().length;
+		int numRecords = 0;
+		byte[] payload = new byte[256];
+		int first;
+		while ((first = in.read()) != -1)
+		{
+			// Read the frame
+			int length = first & 0x7F;
+			for (int shift = 7, b = first; (b & 0x80) != 0; shift += 7)
+			{
+				b = in.readUnsignedByte();
+				length |= (b & 0x7F) << shift;
+			}
+			if (length < 0 || length > MAX_BATCH_LENGTH)
+			{
+				throw new IOException("Batch length " + length + " is out of range");
+			}
+			if (length > payload.length)
+			{
+				payload = new byte[length];
+			}
+			in.readFully(payload, 0, length);
+			CRC32 crc = new CRC32();
+			crc.update(payload, 0, length);
+			if (in.readInt() != (int) crc.getValue())
+			{
+				throw new IOException("Batch checksum mismatch");
+			}
+
+			// Collect its records
+			int[] position = {0};
+			while (position[0] < length)
+			{
+				int tag = payload[position[0]++] & 0xFF;
+				if (tag == TICK)
+				{
+					pending.addTick(readZigZagVarInt(payload, length, position));
+					continue;
+				}
+				if (tag == GAME_TIME)
+				{
+					int typeOrdinal = readZigZagVarInt(payload, length, position);
+					int gameTime = readZigZagVarInt(payload, length, position);
+					if (typeOrdinal >= 0 && typeOrdinal < numTypes)
+					{
+						pending.setGameTime(typeOrdinal, gameTime);
+					}
+					continue;
+				}
+				int x = readZigZagVarInt(payload, length, position);
+				int y = readZigZagVarInt(payload, length, position);
+				int amount = readZigZagVarInt(payload, length, position);
+				if (tag < numTypes)
+				{
+					pending.add(tag, x, y, amount);
+				}
+				numRecords++;
+			}
+		}
+		return numRecords;
+	}
+
+	private void ensureBatchCapacity()
+	{
+		if (batchLength + MAX_RECORD_LENGTH + CRC_LENGTH > batch.length)
+		{
+			batch = Arrays.copyOf(batch, batch.length * 2);
+		}
+	}
+
+	private void writeZigZagVarInt(int value)
+	{
+		int zigZag = (value << 1) ^ (value >> 31);
+		while ((zigZag & ~0x7F) != 0)
+		{
+			batch[batchLength++] = (byte) ((zigZag & 0x7F) | 0x80);
+			zigZag >>>= 7;
+		}
+		batch[batchLength++] = (byte) zigZag;
+	}
+
+	/**
+	 * Reads a zigzag varint from the payload, which ends at length (the buffer may be longer, holding the rest of a previous batch)
+	 */
+	private static int readZigZagVarInt(byte[] buffer, int length, int[] position) throws IOException
+	{
+		int zigZag = 0;
+		for (int shift = 0; shift < 35; shift += 7)
+		{
+			if (position[0] >= length)
+			{
+				throw new IOException("Varint runs past the end of the heatmap journal batch");
+			}
+			int b = buffer[position[0]++];
+			zigZag |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0)
+			{
+				return (zigZag >>> 1) ^ -(zigZag & 1);
+			}
+		}
+		throw new IOException("Malformed varint in heatmap journal");
+	}
+}
@@ -0,0 +1,122 @@
+package com.worldheatmap;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Measures the loaded heatmaps' estimated memory usage, and frees the memory they have left over from removed tiles when they go over
+ * the memory budget.
+ * <p>
+ * The heatmaps are measured and compacted under their locks by the tick routine's thread, which publishes their sizes for other threads
+ * (e.g. the panel's, on the EDT) to read without waiting on those locks while a large heatmap is being compacted.
+ */
+@Slf4j
+class HeatmapMemoryBudget
+{
+	private static final HeatmapNew.HeatmapType[] TYPES = HeatmapNew.HeatmapType.values();
+
+	private final Map<HeatmapNew.HeatmapType, HeatmapNew> heatmaps;
+	private final LongSupplier budget;
+	// Each heatmap type's estimated size as of the last update (or 0 if it wasn't loaded), by the type's ordinal
+	private final AtomicLongArray sizes = new AtomicLongArray(TYPES.length);
+	private volatile long totalSize = 0;
+	private final MetricsRegistry.Gauge[] sizeGauges = new MetricsRegistry.Gauge[TYPES.length];
+	private final MetricsRegistry.Gauge totalSizeGauge = MetricsRegistry.get().gauge("memory.total", MetricsRegistry.Unit.BYTES);
+	// Whether the heatmaps have gone over the budget since they were last under it. Only used by the updating thread
+	private boolean isOverBudget = false;
+
+	/**
+	 * @param heatmaps The loaded heatmaps
+	 * @param budget   The soft limit on the heatmaps' total estimated size, in bytes, or 0 if there isn't one
+	 */
+	HeatmapMemoryBudget(Map<HeatmapNew.HeatmapType, HeatmapNew> heatmaps, LongSupplier budget)
+	{
+		this.heatmaps = heatmaps;
+		this.budget = budget;
+		for (HeatmapNew.HeatmapType type : TYPES)
+		{
+			sizeGauges[type.ordinal()] = MetricsRegistry.get().gauge("memory." + type, MetricsRegistry.Unit.BYTES);
+		}
+	}
+
+	/**
+	 * Measures the heatmaps and checks their total against the budget, compacting them if it's over. Done once each time they go over
+	 * it, rather than every update they stay over it. Must only be called by one thread (the tick routine's)
+	 */
+	void update()
+	{
+		long total = measure(false);
+		long limit = budget.getAsLong();
+		if (limit == 0 || total <= limit)
+		{
+			isOverBudget = false;
+			return;
+		}
+		if (isOverBudget)
+		{
+			return;
+		}
+		isOverBudget = true;
+		long compactedTotal = measure(true);
+		if (compactedTotal > limit)
+		{
+			log.warn("The heatmaps use {}MB, more than the {}MB memory budget, even after freeing {}MB left over from removed tiles. Consider disabling some heatmap types",
+				compactedTotal / 1024 / 1024, limit / 1024 / 1024, (total - compactedTotal) / 1024 / 1024);
+		}
+		else
+		{
+			log.info("Freed {}MB left over from removed tiles, bringing the heatmaps back within the {}MB memory budget", (total - compactedTotal) / 1024 / 1024, limit / 1024 / 1024);
+		}
+	}
+
+	/**
+	 * Measures (and compacts, if asked to) each loaded heatmap under its lock, and publishes the sizes
+	 *
+	 * @return The heatmaps' total estimated size
+	 */
+	private long measure(boolean isCompacting)
+	{
+		long total = 0;
+		for (HeatmapNew.HeatmapType type : TYPES)
+		{
+			HeatmapNew heatmap = heatmaps.get(type);
+			long size = 0;
+			if (heatmap != null)
+			{
+				synchronized (heatmap)
+				{
+					if (isCompacting)
+					{
+						heatmap.compact();
+					}
+					size = HeatmapNew.estimateSize(heatmap);
+				}
+			}
+			sizes.set(type.ordinal(), size);
+			sizeGauges[type.ordinal()].set(size);
+			total += size;
+		}
+		totalSize = total;
+		totalSizeGauge.set(total);
+		return total;
+	}
+
+	/**
+	 * @return The heatmap's estimated size as of the last update, or 0 if it wasn't loaded. Doesn't lock the heatmap
+	 */
+	long getEstimatedSize(HeatmapNew.HeatmapType type)
+	{
+		return sizes.get(type.ordinal());
+	}
+
+	/**
+	 * @return The loaded heatmaps' total estimated size as of the last update. Doesn't lock the heatmaps
+	 */
+	long getEstimatedTotalSize()
+	{
+		return totalSize;
+	}
+}
@@ -1,13 +1,17 @@
 package com.worldheatmap;
 
-import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.*;
-import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.util.*;
-import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import lombok.Getter;
 import lombok.Setter;
@@ -18,17 +22,27 @@ import javax.annotation.Nullable;
 @Slf4j
 public class HeatmapNew
 {
+	// Tile values, grouped by 64x64 map region
+	private final RegionGrid tiles;
 	@Getter
-	private final HashMap<Point, Integer> heatmapHashMap;
-	@Getter
-	private static final int heatmapVersion = 100;
+	private static final int heatmapVersion = 101;
+	// Heatmaps are saved as binary entries (see HeatmapBinaryFormat). Legacy CSV entries, from before version 101, are still read.
+	private static final String CSV_ENTRY_SUFFIX = "_HEATMAP.csv";
+	// Holds the sequence number of the last journal segment folded into the file (see HeatmapJournal)
+	private static final String JOURNAL_SEQUENCE_ENTRY = "JOURNAL_SEQUENCE.txt";
 	@Getter
 	private long totalValue = 0;
 	@Getter
 	private int numTilesVisited = 0;
 	@Getter @Setter
 	private int gameTimeTicks = 0;
-	private int[] maxVal = {1, 0, 0}, minVal = {1, 0, 0}; // {val, x, y}
+	// Keeps the max/min (and any percentile) of the tile values exact without rescanning the tiles
+	private ValueHistogram valueHistogram;
+	// Whether the histogram is shared with a snapshot (or the heatmap this is a snapshot of), and has to be copied before being changed
+	private boolean isHistogramShared = false;
+	// Coordinates of a tile holding the max/min value, looked up again only when they've become unknown
+	private int maxValX, maxValY, minValX, minValY;
+	private boolean maxValCoordsKnown = false, minValCoordsKnown = false;
 	private static final int
 		HEATMAP_WIDTH = 2752,       //never change these
 		HEATMAP_HEIGHT = 1664,      //never change these
@@ -36,6 +50,14 @@ public class HeatmapNew
 		HEATMAP_OFFSET_Y = -2496;   //never change these (for backwards compatibility)
 	@Getter
 	private long userID = -1;
+	// Incremented whenever a tile's value changes, so that saving can skip heatmaps that haven't changed since they were last saved/loaded
+	// Volatile, since it's read by other threads (e.g. to tell whether the heatmap needs saving) without synchronizing on the heatmap
+	@Getter
+	private volatile int modCount = 0;
+	// The modCount as of the last save/load, or -1 if the heatmap has never been saved. Written by the saving thread
+	private volatile int savedModCount = -1;
+	// Whether this is a snapshot (see snapshot()), which can't be modified
+	private final boolean isSnapshot;
 
 	/**
 	 * Loads, converts, and returns .heatmap file of legacy style as a HeatmapNew.
@@ -65,16 +87,63 @@ public class HeatmapNew
 	public HeatmapNew(HeatmapType heatmapType)
 	{
 		this.heatmapType = heatmapType;
-		this.heatmapHashMap = new HashMap<>();
+		this.tiles = new RegionGrid();
+		this.valueHistogram = new ValueHistogram();
+		this.isSnapshot = false;
 	}
 
 	public HeatmapNew(HeatmapType heatmapType, long userID)
 	{
 		this.heatmapType = heatmapType;
-		this.heatmapHashMap = new HashMap<>();
+		this.tiles = new RegionGrid();
+		this.valueHistogram = new ValueHistogram();
+		this.isSnapshot = false;
 		this.userID = userID;
 	}
 
+	private HeatmapNew(HeatmapNew other)
+	{
+		this.heatmapType = other.heatmapType;
+		this.userID = other.userID;
+		this.tiles = other.tiles.snapshot();
+		// Recalculated now rather than lazily, since the snapshot may be read by several threads at once
+		other.valueHistogram.getMax();
+		other.valueHistogram.getMin();
+		this.valueHistogram = other.valueHistogram;
+		this.isHistogramShared = true;
+		other.isHistogramShared = true;
+		this.totalValue = other.totalValue;
+		this.numTilesVisited = other.numTilesVisited;
+		this.gameTimeTicks = other.gameTimeTicks;
+		this.maxValX = other.maxValX;
+		this.maxValY = other.maxValY;
+		this.minValX = other.minValX;
+		this.minValY = other.minValY;
+		this.maxValCoordsKnown = other.maxValCoordsKnown;
+		this.minValCoordsKnown = other.minValCoordsKnown;
+		this.modCount = other.modCount;
+		this.savedModCount = other.savedModCount;
+		this.isSnapshot = true;
+	}
+
+	/**
+	 * Returns an unmodifiable copy of the heatmap as it is now, for saving or rendering it in the background while this heatmap keeps being modified.
+	 * The tiles and the value histogram are shared copy-on-write, so this costs O(1), and only the regions (and the histogram) modified afterwards ever get copied.
+	 * Synchronizes on the heatmap, like the tile event consumer does while modifying it, so the snapshot is always consistent.
+	 */
+	public synchronized HeatmapNew snapshot()
+	{
+		return new HeatmapNew(this);
+	}
+
+	/**
+	 * @return Whether this is an unmodifiable snapshot of another heatmap
+	 */
+	public boolean isSnapshot()
+	{
+		return isSnapshot;
+	}
+
 	public static HeatmapNew convertOldHeatmapToNew(Heatmap oldStyle, long userId)
 	{
 		return convertOldHeatmapToNew(oldStyle, HeatmapType.UNKNOWN, userId);
@@ -97,9 +166,122 @@ public class HeatmapNew
 		return newStyle;
 	}
 
-	protected Set<Entry<Point, Integer>> getEntrySet()
+	/**
+	 * Called for each visited tile of a heatmap
+	 */
+	@FunctionalInterface
+	public interface TileVisitor
+	{
+		void visit(int x, int y, int value);
+	}
+
+	/**
+	 * Calls the visitor for each tile with a non-zero value, in no particular order. Doesn't allocate anything per tile.
+	 * The heatmap mustn't be modified by the visitor.
+	 */
+	public void forEachTile(TileVisitor visitor)
+	{
+		tiles.forEachTile(visitor);
+	}
+
+	/**
+	 * Calls the visitor once for each visited 64x64 map region with the region's tile count, value sum and max value
+	 */
+	public void forEachRegion(RegionGrid.RegionVisitor visitor)
+	{
+		tiles.forEachRegion(visitor);
+	}
+
+	/**
+	 * @return The IDs (in the game's (regionX << 8 | regionY) style) of the map regions in which at least one tile has been visited
+	 */
+	public int[] getVisitedRegionIDs()
+	{
+		int[] regionIDs = new int[tiles.getNumRegions()];
+		int[] n = {0};
+		tiles.forEachRegion((regionX, regionY, numTiles, sum, max) -> regionIDs[n[0]++] = (regionX << 8) | regionY);
+		return regionIDs;
+	}
+
+	/**
+	 * @return The summed value of all tiles in the given 64x64 map region
+	 */
+	public long getRegionTotalValue(int regionID)
+	{
+		return tiles.getRegionSum(regionID >> 8, regionID & 0xFF);
+	}
+
+	/**
+	 * @return The highest tile value in the given 64x64 map region
+	 */
+	public int getRegionMaxValue(int regionID)
+	{
+		return tiles.getRegionMax(regionID >> 8, regionID & 0xFF);
+	}
+
+	/**
+	 * @return The lowest non-zero tile value in the given 64x64 map region
+	 */
+	public int getRegionMinValue(int regionID)
+	{
+		return tiles.getRegionMin(regionID >> 8, regionID & 0xFF);
+	}
+
+	/**
+	 * Calls the visitor for each visited tile within the rectangle of tile coordinates, in no particular order.
+	 * Costs about as much as the tiles within it, rather than all of the heatmap's tiles. See RegionGrid.forEachTileInRect()
+	 */
+	public void forEachTileInRect(Rectangle rect, TileVisitor visitor)
+	{
+		tiles.forEachTileInRect(rect, visitor);
+	}
+
+	/**
+	 * @return The tile count, value sum, max and min of the visited tiles within the rectangle of tile coordinates. See RegionGrid.summarizeRect()
+	 */
+	public RegionGrid.RectSummary summarizeRect(Rectangle rect)
+	{
+		return tiles.summarizeRect(rect);
+	}
+
+	/**
+	 * @return A count of the changes made to the tiles of the given 64x64 map region, or 0 if none of them have been visited. See RegionGrid.getRegionModCount()
+	 */
+	public int getRegionModCount(int regionID)
+	{
+		return tiles.getRegionModCount(regionID >> 8, regionID & 0xFF);
+	}
+
+	/**
+	 * Calls the visitor for each visited tile in the given 64x64 map region
+	 */
+	public void forEachTileInRegion(int regionID, TileVisitor visitor)
+	{
+		tiles.forEachTileInRegion(regionID >> 8, regionID & 0xFF, visitor);
+	}
+
+	/**
+	 * Packs a tile coordinate into a single int, with x in the upper 16 bits and y in the lower 16 bits.
+	 * Both coordinates must be within the range of a short, which every RuneScape coordinate is.
+	 */
+	static int packTile(int x, int y)
+	{
+		return (x << 16) | (y & 0xFFFF);
+	}
+
+	static int unpackX(int packed)
+	{
+		return packed >> 16;
+	}
+
+	static int unpackY(int packed)
 	{
-		return heatmapHashMap.entrySet();
+		return (short) packed;
+	}
+
+	static boolean isPackable(int x, int y)
+	{
+		return x == (short) x && y == (short) y;
 	}
 
 	public void incrementGameTimeTicks()
@@ -139,86 +321,111 @@ public class HeatmapNew
 	 */
 	protected void set(int x, int y, int newValue)
 	{
+		if (isSnapshot)
+		{
+			throw new UnsupportedOperationException("Heatmap snapshots can't be modified");
+		}
 		//We don't keep track of unstepped-on tiles
 		if (newValue < 0)
 		{
 			return;
 		}
+		if (!isPackable(x, y))
+		{
+			log.debug("Ignoring tile ({}, {}) which is outside of the trackable coordinate range", x, y);
+			return;
+		}
 
-		//Set it & retrieve previous value
-		Integer oldValue = heatmapHashMap.put(new Point(x, y), newValue);
+		//Set it & retrieve previous value (putting 0 removes the tile, since we don't keep track of unstepped-on tiles)
+		int oldValue = tiles.put(x, y, newValue);
+		if (oldValue != newValue)
+		{
+			modCount++;
+		}
 
 		//Update numTilesVisited
-		if (oldValue == null && newValue > 0)
+		if (oldValue == 0 && newValue > 0)
 		{
 			numTilesVisited++;
 		}
-		else if (oldValue != null && newValue == 0)
+		else if (oldValue != 0 && newValue == 0)
 		{
 			numTilesVisited--;
 		}
 
 		//Update total value
-		if (oldValue == null)
+		totalValue += (newValue - oldValue);
+
+		//Update min/max vals
+		if (isHistogramShared && oldValue != newValue)
 		{
-			totalValue += newValue;
+			valueHistogram = valueHistogram.copy();
+			isHistogramShared = false;
 		}
-		else
+		valueHistogram.change(oldValue, newValue);
+		if (newValue != 0 && valueHistogram.isKnownMax(newValue))
 		{
-			totalValue += (newValue - oldValue);
+			maxValX = x;
+			maxValY = y;
+			maxValCoordsKnown = true;
 		}
-
-		//Error checking for not keeping track of unstepped-on tiles
-		if (newValue == 0)
+		else if (x == maxValX && y == maxValY)
 		{
-			heatmapHashMap.remove(new Point(x, y));
-			// If the removed tile was the most stepped on, then we have
-			// no choice but to recalculate the new most stepped on tile
-			if (x == maxVal[1] && y == maxVal[2])
-			{
-				int[] newMax = {1, 0, 0};
-				for (Entry<Point, Integer> e : heatmapHashMap.entrySet())
-				{
-					if (newMax[0] >= e.getValue())
-					{
-						newMax[0] = e.getValue();
-						newMax[1] = e.getKey().x;
-						newMax[2] = e.getKey().y;
-					}
-				}
-				maxVal = newMax;
-			}
-			// It's super unlikely that a removed tile will have been the least
-			// stepped on, so I'm just not even gon bother writing error checking for it lul
-			return;
+			// The tile that held the max value doesn't anymore
+			maxValCoordsKnown = false;
 		}
-
-		//Update min/max vals
-		if (newValue > maxVal[0])
+		if (newValue != 0 && valueHistogram.isKnownMin(newValue))
 		{
-			maxVal = new int[]{newValue, x, y};
+			minValX = x;
+			minValY = y;
+			minValCoordsKnown = true;
 		}
-		if (newValue <= minVal[0])
+		else if (x == minValX && y == minValY)
 		{
-			minVal = new int[]{newValue, x, y};
+			minValCoordsKnown = false;
 		}
 	}
 
 	/**
-	 * Returns the estimated total memory usage of the heatmap, in bytes, assuming 64 bit JVM and 8-byte alignment. Relatively expensive to run because it has to iterate through the entire hashmap.
+	 * @return Whether any tile has changed since the heatmap was last saved or loaded (the game time alone doesn't count)
+	 */
+	public boolean isDirty()
+	{
+		return modCount != savedModCount;
+	}
+
+	/**
+	 * Records that the heatmap has been saved (or loaded) as of the given modCount
+	 */
+	void markSaved(int savedModCount)
+	{
+		this.savedModCount = savedModCount;
+	}
+
+	/**
+	 * Returns the total memory usage of the heatmap's tile storage, in bytes, assuming 64 bit JVM and 8-byte alignment.
+	 * Costs O(1), since the tile storage keeps its size up to date as tiles are added and removed.
 	 * @return size in bytes
 	 */
-	public static int estimateSize(HeatmapNew heatmap){
-		int estSize = 0;
-		// Get count of values above and below 128
-		for (Entry<Point, Integer> e : heatmap.getEntrySet())
+	public static long estimateSize(HeatmapNew heatmap){
+		return heatmap.tiles.estimateSize() + heatmap.valueHistogram.estimateSize();
+	}
+
+	/**
+	 * Frees the memory the tile storage has left over from tiles and values that have since been removed. The tiles themselves are unchanged.
+	 */
+	public synchronized void compact()
+	{
+		if (isSnapshot)
 		{
-			int nodeSize = 16 + 8 + 8 + 4 + 4; //16 bytes for Node  object, 8 and 8 for the key and value references, 4 for the hash value, then extra 4 for 8-byte alignment
-			int pointSize = 16 + 4 + 4; //16 bytes for Point object header, then 8 for each of the two int coords
-			int integerSize = (e.getValue() < 128 ? 8 : 16 + 4 + 4); //8 bytes for just header of pooled Integer, or 12 bytes for non-pooled Integer header plus inner int plus 4 bytes for 8-byte alignment
-			estSize += nodeSize + pointSize + integerSize;
+			throw new UnsupportedOperationException("Heatmap snapshots can't be modified");
+		}
+		tiles.compact();
+		// A histogram shared with a snapshot is left as it is, like the tiles shared with it
+		if (!isHistogramShared)
+		{
+			valueHistogram.trimToSize();
 		}
-		return estSize;
 	}
 
 	/**
@@ -229,29 +436,101 @@ public class HeatmapNew
 	 */
 	protected int get(int x, int y)
 	{
-		return heatmapHashMap.getOrDefault(new Point(x, y), 0);
+		if (!isPackable(x, y))
+		{
+			return 0;
+		}
+		return tiles.get(x, y);
+	}
+
+	/**
+	 * Synchronized since looking the coordinates up again modifies the heatmap, which snapshots' readers mustn't race on.
+	 *
+	 * @return int array holding {maxVal, maxX, maxY} where the latter two are the coordinate at which the max value exists, or {0, 0, 0} if the heatmap is empty
+	 */
+	protected synchronized int[] getMaxVal()
+	{
+		int maxVal = valueHistogram.getMax();
+		if (maxVal == 0)
+		{
+			return new int[]{0, 0, 0};
+		}
+		if (!maxValCoordsKnown)
+		{
+			int[] coords = new int[2];
+			tiles.findTileWithValue(maxVal, coords);
+			maxValX = coords[0];
+			maxValY = coords[1];
+			maxValCoordsKnown = true;
+		}
+		return new int[]{maxVal, maxValX, maxValY};
+	}
+
+	/**
+	 * @return int array holding {minVal, minX, minY} where the latter two are the coordinate at which the minimum NON-ZERO value exists, or {0, 0, 0} if the heatmap is empty
+	 */
+	protected synchronized int[] getMinVal()
+	{
+		int minVal = valueHistogram.getMin();
+		if (minVal == 0)
+		{
+			return new int[]{0, 0, 0};
+		}
+		if (!minValCoordsKnown)
+		{
+			int[] coords = new int[2];
+			tiles.findTileWithValue(minVal, coords);
+			minValX = coords[0];
+			minValY = coords[1];
+			minValCoordsKnown = true;
+		}
+		return new int[]{minVal, minValX, minValY};
 	}
 
 	/**
-	 * @return int array holding {maxVal, maxX, maxY} where the latter two are the coordinate at which the max value exists
+	 * @return The highest tile value, or 0 if the heatmap is empty. Unlike getMaxVal(), never has to look for where it is
 	 */
-	protected int[] getMaxVal()
+	int getMaxValue()
 	{
-		return maxVal;
+		return valueHistogram.getMax();
 	}
 
 	/**
-	 * @return int array holding {minVal, minX, minY} where the latter two are the coordinate at which the minimum NON-ZERO value exists
+	 * @return The lowest non-zero tile value, or 0 if the heatmap is empty. Unlike getMinVal(), never has to look for where it is
+	 */
+	int getMinValue()
+	{
+		return valueHistogram.getMin();
+	}
+
+	/**
+	 * Returns the tile value at the given percentile (nearest-rank), without scanning the tiles
+	 *
+	 * @param percentile In the range [0, 100]
+	 * @return The value, or 0 if the heatmap is empty
 	 */
-	protected int[] getMinVal()
+	public int getValueAtPercentile(double percentile)
 	{
-		return minVal;
+		return valueHistogram.getValueAtPercentile(percentile);
 	}
 
 	/**
 	 * Writes the provided heatmap data to the specified .heatmaps file. Unprovided heatmaps are carried over from the file previousHeatmapsFile, if it has them.
 	 */
-	protected static void writeHeatmapsToFile(Collection<HeatmapNew> heatmapsToWrite, File heatmapsFile, @Nullable File previousHeatmapsFile) {
+	protected static boolean writeHeatmapsToFile(Collection<HeatmapNew> heatmapsToWrite, File heatmapsFile, @Nullable File previousHeatmapsFile) {
+		return writeHeatmapsToFile(heatmapsToWrite, heatmapsFile, previousHeatmapsFile, -1);
+	}
+
+	/**
+	 * Writes the provided heatmap data to the specified .heatmaps file. Unprovided heatmaps are carried over from the file previousHeatmapsFile, if it has them
+	 * (or else from the existing heatmapsFile). The file is written in one pass to a temporary file which then replaces heatmapsFile,
+	 * so a crash mid-write can never leave a half-written .heatmaps file behind.
+	 * The heatmaps mustn't be modified while they're written, so pass snapshots (see snapshot()) of any that are still being tracked.
+	 *
+	 * @param journalSequence The sequence number of the last journal segment whose increments the provided heatmaps contain, or -1 to leave it as it is
+	 * @return Whether everything was written
+	 */
+	protected static boolean writeHeatmapsToFile(Collection<HeatmapNew> heatmapsToWrite, File heatmapsFile, @Nullable File previousHeatmapsFile, long journalSequence) {
 		// Preamble
 		log.debug("Saving heatmaps to file '{}'...", heatmapsFile.getName());
 		long startTime = System.nanoTime();
@@ -264,61 +543,179 @@ public class HeatmapNew
 			}
 		}
 
-		// Copy previousHeatmapsFile to heatmapsFile (if it exists)
-		// in order to carry over unprovided heatmaps before updating
-		if (previousHeatmapsFile != null && previousHeatmapsFile.exists()) {
-			try {
-				Files.copy(previousHeatmapsFile.toPath(), heatmapsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
-			} catch (IOException e) {
-				log.error("Error copying latest heatmaps file to new location");
-				return;
-			}
+		// The file to carry over unprovided heatmaps from
+		File carryOverFile = (previousHeatmapsFile != null && previousHeatmapsFile.exists()) ? previousHeatmapsFile : heatmapsFile;
+		if (!carryOverFile.exists()) {
+			carryOverFile = null;
 		}
 
-		// Zip reading params
-		Map<String, String> env = new HashMap<>();
-		env.put("create", "true");
-		URI uri = URI.create("jar:" + heatmapsFile.toURI());
-
-		for (HeatmapNew heatmap : heatmapsToWrite) {
-			// Write the heatmap file
-			try (FileSystem fs = FileSystems.newFileSystem(uri, env)) {
-				Path zipEntryFile = fs.getPath("/" + heatmap.getHeatmapType().toString() + "_HEATMAP.csv");
-				try (OutputStreamWriter osw = new OutputStreamWriter(Files.newOutputStream(zipEntryFile), StandardCharsets.UTF_8)) {
-					// Write them field variables
-					osw.write("userID,heatmapVersion,heatmapType,totalValue,numTilesVisited,maxVal,maxValX,maxValY,minVal,minValX,minValY,gameTimeTicks\n");
-					osw.write(heatmap.getUserID() +
-							"," + getHeatmapVersion() +
-							"," + heatmap.getHeatmapType() +
-							"," + heatmap.getTotalValue() +
-							"," + heatmap.getNumTilesVisited() +
-							"," + heatmap.getMaxVal()[0] +
-							"," + heatmap.getMaxVal()[1] +
-							"," + heatmap.getMaxVal()[2] +
-							"," + heatmap.getMinVal()[0] +
-							"," + heatmap.getMinVal()[1] +
-							"," + heatmap.getMinVal()[2] +
-							"," + heatmap.getGameTimeTicks() + "\n");
-					// Write the tile values
-					for (Entry<Point, Integer> e : heatmap.getEntrySet()) {
-						int x = e.getKey().x;
-						int y = e.getKey().y;
-						int stepVal = e.getValue();
-						osw.write(x + "," + y + "," + stepVal + "\n");
+		File tempFile = null;
+		try {
+			// The prefix keeps a leftover temporary file from being mistaken for a dated .heatmaps file
+			tempFile = File.createTempFile("unsaved-" + heatmapsFile.getName() + "-", ".tmp", heatmapsFile.getParentFile());
+			try (FileOutputStream fos = new FileOutputStream(tempFile);
+				 RandomAccessFile carryOver = carryOverFile == null ? null : new RandomAccessFile(carryOverFile, "r")) {
+				HeatmapsZipWriter zipWriter = new HeatmapsZipWriter(new BufferedOutputStream(fos, 1 << 16));
+				Set<String> writtenEntryNames = new HashSet<>();
+
+				// Write the provided heatmaps
+				for (HeatmapNew heatmap : heatmapsToWrite) {
+					String entryName = HeatmapBinaryFormat.entryName(heatmap.getHeatmapType());
+					try (OutputStream os = new BufferedOutputStream(zipWriter.putNextEntry(entryName), 1 << 16)) {
+						HeatmapBinaryFormat.write(heatmap, os);
+					}
+					writtenEntryNames.add(entryName);
+					// The superseded CSV entry, if any, isn't carried over
+					writtenEntryNames.add(heatmap.getHeatmapType().toString() + CSV_ENTRY_SUFFIX);
+					loggingOutput.append(heatmap.getHeatmapType() + " (" + heatmap.getNumTilesVisited() + " tiles), ");
+				}
+				if (journalSequence >= 0) {
+					try (OutputStream os = zipWriter.putNextEntry(JOURNAL_SEQUENCE_ENTRY)) {
+						os.write(Long.toString(journalSequence).getBytes(StandardCharsets.UTF_8));
 					}
-					osw.flush();
+					writtenEntryNames.add(JOURNAL_SEQUENCE_ENTRY);
 				}
 
-			} catch (IOException e) {
-                log.error("World Heatmap was not able to save heatmap type '{}' to file '{}'", heatmap.getHeatmapType(), heatmapsFile.getName());
-				e.printStackTrace();
-				return;
+				// Carry over the rest of the entries as-is
+				if (carryOver != null) {
+					for (HeatmapsZipWriter.Entry entry : HeatmapsZipWriter.readEntries(carryOver)) {
+						String name = entry.name.startsWith("/") ? entry.name.substring(1) : entry.name;
+						if (!writtenEntryNames.contains(name) && !name.endsWith("/")) {
+							zipWriter.copyEntry(carryOver, entry);
+						}
+					}
+				}
+				zipWriter.close();
+				fos.getFD().sync();
+			}
+
+			// Replace the file in one step
+			try {
+				Files.move(tempFile.toPath(), heatmapsFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile.toPath(), heatmapsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
 			}
-			loggingOutput.append(heatmap.getHeatmapType() + " (" + heatmap.getNumTilesVisited() + " tiles), ");
+		} catch (IOException e) {
+			log.error("World Heatmap was not able to save heatmaps to file '{}'", heatmapsFile.getName(), e);
+			MetricsRegistry.get().counter("save.failures").increment();
+			if (tempFile != null && tempFile.exists() && !tempFile.delete()) {
+				log.error("Could not delete temporary heatmaps file '{}'", tempFile.getName());
+			}
+			return false;
 		}
 
 		log.debug(loggingOutput.toString());
-        log.debug("Finished writing '{}' heatmap file to disk after {} ms", heatmapsFile.getName(), (System.nanoTime() - startTime) / 1_000_000);
+		log.debug("Finished writing '{}' heatmap file to disk after {} ms", heatmapsFile.getName(), (System.nanoTime() - startTime) / 1_000_000);
+		MetricsRegistry.get().histogram("save.duration", MetricsRegistry.Unit.NANOSECONDS).recordSince(startTime);
+		MetricsRegistry.get().histogram("save.bytes", MetricsRegistry.Unit.BYTES).record(heatmapsFile.length());
+		return true;
+	}
+
+	/**
+	 * Reads the sequence number of the last journal segment that the heatmaps in the given .heatmaps file contain the increments of
+	 *
+	 * @return The sequence number, or -1 if the file has none (i.e. it predates the journal, or none has been folded into it yet)
+	 * @throws IOException If the file has a sequence number but it couldn't be read, in which case it can't be told which journal segments the file contains
+	 */
+	static long readJournalSequence(ZipFile zipFile) throws IOException {
+		ZipEntry entry = zipFile.getEntry(JOURNAL_SEQUENCE_ENTRY);
+		if (entry == null) {
+			return -1;
+		}
+		String sequence;
+		try (InputStream is = zipFile.getInputStream(entry)) {
+			sequence = new String(is.readAllBytes(), StandardCharsets.UTF_8).trim();
+		}
+		try {
+			return Long.parseLong(sequence);
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed journal sequence number '" + sequence + "' in heatmaps file '" + zipFile.getName() + "'", e);
+		}
+	}
+
+	/**
+	 * Reads a heatmap from a legacy CSV entry of a .heatmaps file
+	 *
+	 * @return The heatmap, or null if it couldn't be read or its type isn't recognized
+	 */
+	private static HeatmapNew readCSVEntry(ZipFile zipFile, ZipEntry zipEntry) {
+		try (InputStreamReader isr = new InputStreamReader(zipFile.getInputStream(zipEntry), StandardCharsets.UTF_8);
+			 BufferedReader reader = new BufferedReader(isr)) {
+			// Read them field variables
+			String[] fieldNames = reader.readLine().split(",");
+			String[] fieldValues = reader.readLine().split(",");
+			long userID = (fieldValues[0].isEmpty() ? -1 : Long.parseLong(fieldValues[0]));
+			String heatmapTypeString = fieldValues[2];
+			int totalValue = (fieldValues[3].isEmpty() ? -1 : Integer.parseInt(fieldValues[3]));
+			int numTilesVisited = (fieldValues[4].isEmpty() ? -1 : Integer.parseInt(fieldValues[4]));
+			int maxVal = (fieldValues[5].isEmpty() ? -1 : Integer.parseInt(fieldValues[5]));
+			int maxValX = (fieldValues[6].isEmpty() ? -1 : Integer.parseInt(fieldValues[6]));
+			int maxValY = (fieldValues[7].isEmpty() ? -1 : Integer.parseInt(fieldValues[7]));
+			int minVal = (fieldValues[8].isEmpty() ? -1 : Integer.parseInt(fieldValues[8]));
+			int minValX = (fieldValues[9].isEmpty() ? -1 : Integer.parseInt(fieldValues[9]));
+			int minValY = (fieldValues[10].isEmpty() ? -1 : Integer.parseInt(fieldValues[10]));
+			int gameTimeTicks = (fieldValues[11].isEmpty() ? -1 : Integer.parseInt(fieldValues[11]));
+
+			// Get HeatmapType from field value if legit
+			HeatmapType recognizedHeatmapType;
+			if (Arrays.stream(HeatmapType.values()).noneMatch(type -> type.toString().equals(heatmapTypeString))) {
+				log.debug("Heatmap type '{}' from ZipEntry '{}' is not a valid Heatmap type (at least in this program version). Ignoring...", heatmapTypeString, zipEntry.getName());
+				return null;
+			} else {
+				recognizedHeatmapType = HeatmapType.valueOf(heatmapTypeString);
+			}
+
+			// Make ze Heatmap
+			HeatmapNew heatmap = new HeatmapNew(recognizedHeatmapType, userID);
+			// Add le metadata to it
+			heatmap.setGameTimeTicks(gameTimeTicks);
+
+			// Read and load the tile values
+			final int[] errorCount = {0}; // Number of parsing errors occurred during read
+			reader.lines().forEach(s -> {
+				String[] tile = s.split(",");
+				try {
+					heatmap.set(Integer.parseInt(tile[0]), Integer.parseInt(tile[1]), Integer.parseInt(tile[2]));
+				} catch (NumberFormatException e) {
+					errorCount[0]++;
+				}
+			});
+			if (errorCount[0] != 0) {
+				log.error("{} errors occurred during {} heatmap file read.", errorCount[0], recognizedHeatmapType);
+			}
+			return heatmap;
+		} catch (IOException e) {
+			log.error("Error reading heatmap from .heatmaps entry '{}'", zipEntry.getName());
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the heatmap of the given type from the .heatmaps file, preferring its binary entry over its legacy CSV entry.
+	 * ZipFile is thread safe, so several types can be read from the same file at once.
+	 *
+	 * @return The heatmap, or null if the file doesn't have it or it couldn't be read
+	 */
+	private static HeatmapNew readHeatmapEntry(ZipFile zipFile, HeatmapType type) {
+		ZipEntry binaryEntry = zipFile.getEntry(HeatmapBinaryFormat.entryName(type));
+		ZipEntry csvEntry = zipFile.getEntry(type.toString() + CSV_ENTRY_SUFFIX);
+		HeatmapNew heatmap;
+		if (binaryEntry != null) {
+			try (InputStream is = new BufferedInputStream(zipFile.getInputStream(binaryEntry), 1 << 16)) {
+				heatmap = HeatmapBinaryFormat.read(is);
+			} catch (IOException e) {
+				log.error("Error reading {} heatmap from .heatmaps entry '{}'", type, binaryEntry.getName());
+				return null;
+			}
+		} else if (csvEntry != null) {
+			heatmap = readCSVEntry(zipFile, csvEntry);
+		} else {
+			return null;
+		}
+		if (heatmap != null) {
+			heatmap.markSaved(heatmap.getModCount());
+		}
+		return heatmap;
 	}
 
 	/**
@@ -330,76 +727,57 @@ public class HeatmapNew
 	 * @throws FileNotFoundException If the file does not exist
 	 */
 	static HashMap<HeatmapType, HeatmapNew> readHeatmapsFromFile(File heatmapsFile, Collection<HeatmapType> types) throws FileNotFoundException {
-		Map<String, String> env = new HashMap<>();
-		env.put("create", "true");
-		URI uri = URI.create("jar:" + heatmapsFile.toURI());
-		try (FileSystem fs = FileSystems.newFileSystem(uri, env)) {
-			HashMap<HeatmapType, HeatmapNew> heatmapsRead = new HashMap<>();
-			StringBuilder loggingOutput = new StringBuilder();
-			loggingOutput.append("Heatmap types loaded: ");
-
-			for (HeatmapType curType : types) {
-				Path curHeatmapPath = fs.getPath("/" + curType.toString() + "_HEATMAP.csv");
-				if (!Files.exists(curHeatmapPath)) {
-					continue;
-				}
-				try (InputStreamReader isr = new InputStreamReader(Files.newInputStream(curHeatmapPath), StandardCharsets.UTF_8);
-					 BufferedReader reader = new BufferedReader(isr)) {
-					// Read them field variables
-					String[] fieldNames = reader.readLine().split(",");
-					String[] fieldValues = reader.readLine().split(",");
-					long userID = (fieldValues[0].isEmpty() ? -1 : Long.parseLong(fieldValues[0]));
-					String heatmapTypeString = fieldValues[2];
-					int totalValue = (fieldValues[3].isEmpty() ? -1 : Integer.parseInt(fieldValues[3]));
-					int numTilesVisited = (fieldValues[4].isEmpty() ? -1 : Integer.parseInt(fieldValues[4]));
-					int maxVal = (fieldValues[5].isEmpty() ? -1 : Integer.parseInt(fieldValues[5]));
-					int maxValX = (fieldValues[6].isEmpty() ? -1 : Integer.parseInt(fieldValues[6]));
-					int maxValY = (fieldValues[7].isEmpty() ? -1 : Integer.parseInt(fieldValues[7]));
-					int minVal = (fieldValues[8].isEmpty() ? -1 : Integer.parseInt(fieldValues[8]));
-					int minValX = (fieldValues[9].isEmpty() ? -1 : Integer.parseInt(fieldValues[9]));
-					int minValY = (fieldValues[10].isEmpty() ? -1 : Integer.parseInt(fieldValues[10]));
-					int gameTimeTicks = (fieldValues[11].isEmpty() ? -1 : Integer.parseInt(fieldValues[11]));
-
-					// Get HeatmapType from field value if legit
-					HeatmapType recognizedHeatmapType;
-					if (Arrays.stream(HeatmapType.values()).noneMatch(type -> type.toString().equals(heatmapTypeString))) {
-                        log.debug("Heatmap type '{}' from ZipEntry '{}' is not a valid Heatmap type (at least in this program version). Ignoring...", heatmapTypeString, curHeatmapPath);
-						// Stop reading and go to next Heatmap type
-						continue;
-					} else {
-						recognizedHeatmapType = HeatmapType.valueOf(heatmapTypeString);
-					}
-
-					// Make ze Heatmap
-					HeatmapNew heatmap = new HeatmapNew(recognizedHeatmapType, userID);
-					// Add le metadata to it
-					heatmap.setGameTimeTicks(gameTimeTicks);
-
-					// Read and load the tile values
-					final int[] errorCount = {0}; // Number of parsing errors occurred during read
-					reader.lines().forEach(s -> {
-						String[] tile = s.split(",");
-						try {
-							heatmap.set(Integer.parseInt(tile[0]), Integer.parseInt(tile[1]), Integer.parseInt(tile[2]));
-						} catch (NumberFormatException e) {
-							errorCount[0]++;
-						}
-					});
-					if (errorCount[0] != 0) {
-                        log.error("{} errors occurred during {} heatmap file read.", errorCount[0], recognizedHeatmapType);
-					}
-					loggingOutput.append(recognizedHeatmapType + " (" + numTilesVisited + " tiles), ");
-					heatmapsRead.put(recognizedHeatmapType, heatmap);
-				} catch (IOException e) {
-                    log.error("Error reading {} heatmap from .heatmaps entry '{}'", curType, curHeatmapPath);
-				}
-			}
-			log.debug(loggingOutput.toString());
-			return heatmapsRead;
+		if (!heatmapsFile.exists()) {
+			throw new FileNotFoundException(heatmapsFile.toString());
+		}
+		HashMap<HeatmapType, HeatmapNew> heatmapsRead = new HashMap<>();
+		try (ZipFile zipFile = new ZipFile(heatmapsFile)) {
+			readHeatmapsFromFile(zipFile, types, Runnable::run, heatmap -> heatmapsRead.put(heatmap.getHeatmapType(), heatmap));
 		} catch (FileNotFoundException e) {
 			throw e;
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
+		return heatmapsRead;
+	}
+
+	/**
+	 * Loads the specified heatmap types from the given .heatmaps file, decoding each type's entry as a separate task on the given executor.
+	 * Each heatmap is handed to onLoaded (on the thread that decoded it) as soon as it's ready, so the heatmaps can be used before
+	 * the rest have finished loading. Returns once all of them have been handed over.
+	 *
+	 * @param zipFile        The opened .heatmaps file, which the caller closes
+	 * @param types          The heatmap types to load
+	 * @param decodeExecutor Executor to decode the entries on
+	 * @param onLoaded       Called with each heatmap that was loaded. Types that the file doesn't have are skipped.
+	 */
+	static void readHeatmapsFromFile(ZipFile zipFile, Collection<HeatmapType> types, Executor decodeExecutor, Consumer<HeatmapNew> onLoaded) {
+		long startTime = System.nanoTime();
+		// Start with the biggest entries, so that one big heatmap doesn't end up being decoded last on its own
+		List<HeatmapType> typesBySize = new ArrayList<>(types);
+		typesBySize.sort(Comparator.comparingLong((HeatmapType type) -> {
+			ZipEntry entry = zipFile.getEntry(HeatmapBinaryFormat.entryName(type));
+			if (entry == null) {
+				entry = zipFile.getEntry(type.toString() + CSV_ENTRY_SUFFIX);
+			}
+			return entry == null ? 0 : entry.getSize();
+		}).reversed());
+
+		List<CompletableFuture<Void>> tasks = new ArrayList<>();
+		Queue<String> loggingOutput = new ConcurrentLinkedQueue<>();
+		for (HeatmapType type : typesBySize) {
+			tasks.add(CompletableFuture.runAsync(() -> {
+				HeatmapNew heatmap = readHeatmapEntry(zipFile, type);
+				if (heatmap != null) {
+					onLoaded.accept(heatmap);
+					loggingOutput.add(heatmap.getHeatmapType() + " (" + heatmap.getNumTilesVisited() + " tiles)");
+				}
+			}, decodeExecutor));
+		}
+		// The zip file mustn't be closed before all of its entries have been read
+		CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+		log.debug("Heatmap types loaded: {}", String.join(", ", loggingOutput));
+		log.debug("Finished loading '{}' heatmap file after {} ms", new File(zipFile.getName()).getName(), (System.nanoTime() - startTime) / 1_000_000);
+		MetricsRegistry.get().histogram("load.duration", MetricsRegistry.Unit.NANOSECONDS).recordSince(startTime);
 	}
-}
\ No newline at end of file
+}
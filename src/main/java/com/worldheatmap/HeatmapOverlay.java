@@ -0,0 +1,442 @@
+package com.worldheatmap;
+
+import java.awt.AlphaComposite;
+import java.awt.Composite;
+import java.awt.Dimension;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.Shape;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+
+import net.runelite.api.Client;
+import net.runelite.api.Perspective;
+import net.runelite.api.Player;
+import net.runelite.api.Point;
+import net.runelite.api.coords.LocalPoint;
+import net.runelite.api.coords.WorldPoint;
+import net.runelite.api.widgets.ComponentID;
+import net.runelite.api.widgets.Widget;
+import net.runelite.api.worldmap.WorldMap;
+import net.runelite.client.ui.overlay.Overlay;
+import net.runelite.client.ui.overlay.OverlayLayer;
+import net.runelite.client.ui.overlay.OverlayPosition;
+
+/**
+ * Draws one of the heatmaps over the world map and the minimap, straight from the heatmap in memory.
+ * <p>
+ * Each visited 64x64 map region is coloured into its own texture, which is kept until the region's tiles (or the colour scale) change.
+ * So drawing a frame only costs blitting the textures of the regions in view, rather than going through their tiles.
+ * The textures are coloured from a snapshot of the heatmap taken every few ticks on the tick routine's thread (see update()), so they're never
+ * read while the tile event consumer is modifying the heatmap, and the client thread never waits on the heatmap (or for it to be paged in).
+ */
+class HeatmapOverlay extends Overlay
+{
+	private static final int REGION_SIZE = RegionGrid.REGION_SIZE;
+	// How many updates (about one per tick) a snapshot is kept for. Each snapshot makes the tile event consumer copy the blocks it writes to next
+	private static final int SNAPSHOT_INTERVAL_UPDATES = 5;
+	// How many textures may be coloured in a single frame. The rest are drawn with their old colours (or not at all, if they're new) until a
+	// later frame, so that a change of colour scale, which makes every texture out of date, is spread over several frames instead of stalling one
+	private static final int MAX_TEXTURES_COLOURED_PER_FRAME = 8;
+	// How many textures are kept once a frame's drawn. Textures are 16KB each, so this is 8MB, unless a frame draws more than this many
+	// regions (e.g. the world map zoomed right out), in which case all of the textures it drew are kept, so that they aren't coloured again next frame
+	private static final int MAX_TEXTURES = 512;
+	// How many images of evicted textures are kept for new textures to reuse, rather than allocating their own
+	private static final int MAX_POOLED_IMAGES = 64;
+	// How far (in tiles) from the player the minimap shows tiles
+	private static final int MINIMAP_RADIUS = 20;
+	private static final int[] MINIMAP_DRAW_AREAS = {
+		ComponentID.FIXED_VIEWPORT_MINIMAP_DRAW_AREA,
+		ComponentID.RESIZABLE_VIEWPORT_MINIMAP_DRAW_AREA,
+		ComponentID.RESIZABLE_VIEWPORT_BOTTOM_LINE_MINIMAP_DRAW_AREA
+	};
+
+	private final Client client;
+	private final WorldHeatmapPlugin plugin;
+	private final WorldHeatmapConfig config;
+
+	// What the textures are coloured from. Published by update() for the client thread to render, or null if there's nothing to show
+	@Nullable
+	private volatile OverlayState state;
+	// The updates left until the next snapshot is taken. Only used by update()
+	private int updatesUntilSnapshot = 0;
+	// The heatmap the textures were coloured from a snapshot of. Only used by the client thread, like the textures
+	@Nullable
+	private HeatmapNew texturesHeatmap;
+	// By region ID, least recently drawn first. Trimmed after each frame (see evictTextures())
+	private final Map<Integer, RegionTexture> textures = new LinkedHashMap<>(64, 0.75f, true);
+	private final Deque<BufferedImage> imagePool = new ArrayDeque<>();
+	private final int[] texturePixels = new int[REGION_SIZE * REGION_SIZE];
+	private int frame = 0;
+	private int texturesColouredThisFrame;
+	private int texturesDrawnThisFrame;
+
+	/**
+	 * A snapshot of the heatmap being shown and the colour scale to colour it with, replaced as a whole so that the client thread always sees a consistent one
+	 */
+	private static final class OverlayState
+	{
+		// The heatmap being shown, and the snapshot of it that the textures are coloured from
+		final HeatmapNew liveHeatmap;
+		final HeatmapNew heatmap;
+		final HeatmapColourEngine colourEngine;
+		final int colourScaleMin;
+		final int colourScaleMax;
+		final int colourScaleSensitivity;
+		// Incremented whenever the colour scale changes, which makes every texture out of date
+		final int colourScaleVersion;
+
+		OverlayState(HeatmapNew liveHeatmap, HeatmapNew heatmap, HeatmapColourEngine colourEngine, int colourScaleMin, int colourScaleMax, int colourScaleSensitivity, int colourScaleVersion)
+		{
+			this.liveHeatmap = liveHeatmap;
+			this.heatmap = heatmap;
+			this.colourEngine = colourEngine;
+			this.colourScaleMin = colourScaleMin;
+			this.colourScaleMax = colourScaleMax;
+			this.colourScaleSensitivity = colourScaleSensitivity;
+			this.colourScaleVersion = colourScaleVersion;
+		}
+	}
+
+	private static final class RegionTexture
+	{
+		// Row by row from the region's north edge, so that it can be drawn the right way up
+		final BufferedImage image;
+		// What the image was coloured from. A region mod count of 0 means it hasn't been coloured yet
+		int regionModCount = 0;
+		int colourScaleVersion = -1;
+		int lastDrawnFrame;
+
+		RegionTexture(BufferedImage image)
+		{
+			this.image = image;
+		}
+	}
+
+	@Inject
+	HeatmapOverlay(Client client, WorldHeatmapPlugin plugin, WorldHeatmapConfig config)
+	{
+		this.client = client;
+		this.plugin = plugin;
+		this.config = config;
+		setPosition(OverlayPosition.DYNAMIC);
+		setLayer(OverlayLayer.ABOVE_WIDGETS);
+		setPriority(PRIORITY_LOW);
+	}
+
+	/**
+	 * Takes a new snapshot of the heatmap being shown if it's changed since the last one, at most every SNAPSHOT_INTERVAL_UPDATES updates
+	 * (unless a different heatmap is to be shown), and publishes it for the client thread to render. Called on the tick routine's thread each
+	 * tick it runs, so paging the heatmap in doesn't hold up the client, and looking at it keeps it from being paged out while it's shown
+	 */
+	void update()
+	{
+		HeatmapNew live = config.isOverlayOnWorldMapEnabled() || config.isOverlayOnMinimapEnabled() ? getShownHeatmap(config.overlayHeatmapType()) : null;
+		if (live == null)
+		{
+			state = null;
+			return;
+		}
+		OverlayState previous = state;
+		boolean isSameHeatmap = previous != null && previous.liveHeatmap == live;
+		HeatmapNew heatmap = isSameHeatmap ? previous.heatmap : null;
+		if (--updatesUntilSnapshot <= 0 || !isSameHeatmap)
+		{
+			if (heatmap == null || heatmap.getModCount() != live.getModCount())
+			{
+				heatmap = live.snapshot();
+			}
+			updatesUntilSnapshot = SNAPSHOT_INTERVAL_UPDATES;
+		}
+
+		int sensitivity = config.heatmapSensitivity();
+		if (isSameHeatmap && heatmap == previous.heatmap && sensitivity == previous.colourScaleSensitivity)
+		{
+			return;
+		}
+		int colourScaleVersion = previous == null ? 0 : previous.colourScaleVersion;
+		HeatmapColourEngine colourEngine = previous == null ? null : previous.colourEngine;
+		if (colourEngine == null || heatmap.getMinValue() != previous.colourScaleMin || heatmap.getMaxValue() != previous.colourScaleMax || sensitivity != previous.colourScaleSensitivity)
+		{
+			colourEngine = new HeatmapColourEngine(sensitivity, heatmap.getMinValue(), heatmap.getMaxValue(), 0);
+			colourScaleVersion++;
+		}
+		state = new OverlayState(live, heatmap, colourEngine, heatmap.getMinValue(), heatmap.getMaxValue(), sensitivity, colourScaleVersion);
+	}
+
+	@Nullable
+	private HeatmapNew getShownHeatmap(HeatmapNew.HeatmapType type)
+	{
+		HeatmapResidency residency = plugin.residency;
+		HeatmapNew heatmap = residency.getResident(type);
+		if (heatmap == null)
+		{
+			// Paged out (or not loaded). Paging it in here only holds up the tick routine
+			return residency.get(type);
+		}
+		residency.markUsed(type);
+		return heatmap;
+	}
+
+	/**
+	 * Forgets the heatmap and the textures, e.g. when the plugin's shut down
+	 */
+	void clear()
+	{
+		state = null;
+		synchronized (textures)
+		{
+			texturesHeatmap = null;
+			textures.clear();
+			imagePool.clear();
+		}
+	}
+
+	@Override
+	public Dimension render(Graphics2D graphics)
+	{
+		OverlayState state = this.state;
+		synchronized (textures)
+		{
+			if (state == null || state.liveHeatmap != texturesHeatmap)
+			{
+				// Nothing to show, or a different heatmap (or the same one loaded again), whose mod counts have nothing to do with the textures'
+				texturesHeatmap = state == null ? null : state.liveHeatmap;
+				for (RegionTexture texture : textures.values())
+				{
+					recycle(texture);
+				}
+				textures.clear();
+			}
+			if (state == null)
+			{
+				return null;
+			}
+			frame++;
+			texturesDrawnThisFrame = 0;
+			render(graphics, state);
+			evictTextures();
+		}
+		return null;
+	}
+
+	private void render(Graphics2D graphics, OverlayState state)
+	{
+		texturesColouredThisFrame = 0;
+		Shape oldClip = graphics.getClip();
+		Composite oldComposite = graphics.getComposite();
+		graphics.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER, Math.max(0, Math.min(100, config.overlayOpacity())) / 100f));
+
+		Rectangle worldMapBounds = null;
+		if (config.isOverlayOnWorldMapEnabled())
+		{
+			Widget mapView = client.getWidget(ComponentID.WORLD_MAP_MAPVIEW);
+			if (mapView != null && !mapView.isHidden())
+			{
+				worldMapBounds = mapView.getBounds();
+				graphics.clip(worldMapBounds);
+				renderWorldMap(graphics, worldMapBounds, state);
+				graphics.setClip(oldClip);
+			}
+		}
+		if (config.isOverlayOnMinimapEnabled())
+		{
+			Widget drawArea = getMinimapDrawArea();
+			// The world map is drawn over the minimap in some layouts
+			if (drawArea != null && (worldMapBounds == null || !worldMapBounds.intersects(drawArea.getBounds())))
+			{
+				Rectangle bounds = drawArea.getBounds();
+				graphics.clip(new Ellipse2D.Double(bounds.x, bounds.y, bounds.width, bounds.height));
+				renderMinimap(graphics, state);
+				graphics.setClip(oldClip);
+			}
+		}
+
+		graphics.setComposite(oldComposite);
+	}
+
+	private void renderWorldMap(Graphics2D graphics, Rectangle bounds, OverlayState state)
+	{
+		WorldMap worldMap = client.getWorldMap();
+		float pixelsPerTile = worldMap.getWorldMapZoom();
+		Point centre = worldMap.getWorldMapPosition();
+		// The tile in the map view's lower-left corner, worked out the same way as RuneLite's own world map overlays
+		int widthInTiles = (int) Math.ceil(bounds.width / pixelsPerTile);
+		int heightInTiles = (int) Math.ceil(bounds.height / pixelsPerTile);
+		int minX = centre.getX() - widthInTiles / 2;
+		int minY = centre.getY() - heightInTiles / 2;
+
+		for (int regionX = minX >> 6; regionX <= (minX + widthInTiles) >> 6; regionX++)
+		{
+			for (int regionY = minY >> 6; regionY <= (minY + heightInTiles) >> 6; regionY++)
+			{
+				BufferedImage texture = getTexture(state, regionX, regionY);
+				if (texture == null)
+				{
+					continue;
+				}
+				// Rounding the edges (rather than the corner and size) keeps neighbouring regions from overlapping or leaving gaps
+				int left = bounds.x + Math.round((regionX * REGION_SIZE - minX) * pixelsPerTile);
+				int right = bounds.x + Math.round(((regionX + 1) * REGION_SIZE - minX) * pixelsPerTile);
+				int top = bounds.y + bounds.height - Math.round(((regionY + 1) * REGION_SIZE - minY) * pixelsPerTile);
+				int bottom = bounds.y + bounds.height - Math.round((regionY * REGION_SIZE - minY) * pixelsPerTile);
+				graphics.drawImage(texture, left, top, right - left, bottom - top, null);
+			}
+		}
+	}
+
+	private void renderMinimap(Graphics2D graphics, OverlayState state)
+	{
+		Player player = client.getLocalPlayer();
+		if (player == null)
+		{
+			return;
+		}
+		WorldPoint playerTile = player.getWorldLocation();
+		LocalPoint tileCentre = LocalPoint.fromWorld(client, playerTile);
+		if (tileCentre == null)
+		{
+			return;
+		}
+		// The minimap is rotated and zoomed, so find where tiles further east and north end up, rather than working that out.
+		// Far enough away that the points being rounded to whole pixels doesn't skew the rotation, but still within the minimap
+		final int sampleDistance = 16;
+		Point origin = Perspective.localToMinimap(client, tileCentre);
+		Point east = Perspective.localToMinimap(client, tileCentre.dx(sampleDistance * Perspective.LOCAL_TILE_SIZE));
+		Point north = Perspective.localToMinimap(client, tileCentre.dy(sampleDistance * Perspective.LOCAL_TILE_SIZE));
+		if (origin == null || east == null || north == null)
+		{
+			return;
+		}
+		// The screen offsets of one tile east and one tile north
+		double eastX = (east.getX() - origin.getX()) / (double) sampleDistance;
+		double eastY = (east.getY() - origin.getY()) / (double) sampleDistance;
+		double northX = (north.getX() - origin.getX()) / (double) sampleDistance;
+		double northY = (north.getY() - origin.getY()) / (double) sampleDistance;
+
+		int px = playerTile.getX();
+		int py = playerTile.getY();
+		for (int regionX = (px - MINIMAP_RADIUS) >> 6; regionX <= (px + MINIMAP_RADIUS) >> 6; regionX++)
+		{
+			for (int regionY = (py - MINIMAP_RADIUS) >> 6; regionY <= (py + MINIMAP_RADIUS) >> 6; regionY++)
+			{
+				BufferedImage texture = getTexture(state, regionX, regionY);
+				if (texture == null)
+				{
+					continue;
+				}
+				// How many tiles east and north of the player's tile centre the texture's north-west corner is
+				double tilesEast = regionX * REGION_SIZE - px - 0.5;
+				double tilesNorth = (regionY + 1) * REGION_SIZE - py - 0.5;
+				AffineTransform transform = new AffineTransform(eastX, eastY, -northX, -northY,
+					origin.getX() + tilesEast * eastX + tilesNorth * northX,
+					origin.getY() + tilesEast * eastY + tilesNorth * northY);
+				graphics.drawImage(texture, transform, null);
+			}
+		}
+	}
+
+	@Nullable
+	private Widget getMinimapDrawArea()
+	{
+		for (int componentID : MINIMAP_DRAW_AREAS)
+		{
+			Widget widget = client.getWidget(componentID);
+			if (widget != null && !widget.isHidden())
+			{
+				return widget;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The region's texture, coloured from the current snapshot if there's time this frame, or null if the region hasn't been visited
+	 * (or hasn't been coloured yet)
+	 */
+	@Nullable
+	private BufferedImage getTexture(OverlayState state, int regionX, int regionY)
+	{
+		int regionID = regionX << 8 | regionY;
+		int regionModCount = state.heatmap.getRegionModCount(regionID);
+		if (regionModCount == 0)
+		{
+			RegionTexture removed = textures.remove(regionID);
+			if (removed != null)
+			{
+				recycle(removed);
+			}
+			return null;
+		}
+		RegionTexture texture = textures.computeIfAbsent(regionID, id ->
+		{
+			BufferedImage image = imagePool.pollFirst();
+			return new RegionTexture(image != null ? image : new BufferedImage(REGION_SIZE, REGION_SIZE, BufferedImage.TYPE_INT_ARGB_PRE));
+		});
+		if (texture.lastDrawnFrame != frame)
+		{
+			texture.lastDrawnFrame = frame;
+			texturesDrawnThisFrame++;
+		}
+		boolean isOutOfDate = texture.regionModCount != regionModCount || texture.colourScaleVersion != state.colourScaleVersion;
+		if (isOutOfDate && texturesColouredThisFrame < MAX_TEXTURES_COLOURED_PER_FRAME)
+		{
+			colourTexture(texture, state, regionX, regionY);
+			texture.regionModCount = regionModCount;
+			texture.colourScaleVersion = state.colourScaleVersion;
+			texturesColouredThisFrame++;
+		}
+		return texture.regionModCount == 0 ? null : texture.image;
+	}
+
+	/**
+	 * Evicts the least recently drawn textures, other than those drawn this frame, until there are no more than MAX_TEXTURES
+	 * (or the number drawn this frame, if that's more)
+	 */
+	private void evictTextures()
+	{
+		int maxTextures = Math.max(MAX_TEXTURES, texturesDrawnThisFrame);
+		Iterator<RegionTexture> iterator = textures.values().iterator();
+		while (textures.size() > maxTextures && iterator.hasNext())
+		{
+			RegionTexture texture = iterator.next();
+			if (texture.lastDrawnFrame == frame)
+			{
+				// Everything after it was drawn more recently, so this frame too
+				break;
+			}
+			iterator.remove();
+			recycle(texture);
+		}
+	}
+
+	private void recycle(RegionTexture texture)
+	{
+		if (imagePool.size() < MAX_POOLED_IMAGES)
+		{
+			imagePool.addFirst(texture.image);
+		}
+	}
+
+	private void colourTexture(RegionTexture texture, OverlayState state, int regionX, int regionY)
+	{
+		int[] pixels = texturePixels;
+		Arrays.fill(pixels, 0);
+		int baseX = regionX * REGION_SIZE;
+		int topY = (regionY + 1) * REGION_SIZE - 1;
+		HeatmapColourEngine colourEngine = state.colourEngine;
+		state.heatmap.forEachTileInRegion(regionX << 8 | regionY, (x, y, value) ->
+			pixels[(topY - y) * REGION_SIZE + x - baseX] = 0xFF000000 | colourEngine.hueRGB(colourEngine.hueIndex(value)));
+		// Set through the raster rather than written into its array, so that the image can still be cached for drawing
+		texture.image.getRaster().setDataElements(0, 0, REGION_SIZE, REGION_SIZE, pixels);
+	}
+}
@@ -0,0 +1,498 @@
+package com.worldheatmap;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Decides which of the loaded heatmaps are kept in the heap. Heatmaps that haven't been changed or looked at for a while, like DEATHS
+ * or BOB_THE_CAT_SIGHTING most of the time, are paged out: encoded in the binary format (see {@link HeatmapBinaryFormat}), which takes
+ * a few bytes per tile, into a buffer outside of the heap (which RuneLite shares with the client and every other plugin).
+ * <p>
+ * A paged-out heatmap is taken out of the map of heatmaps, so only the resident ones are in it. Increments to it are summed up per tile
+ * rather than paging it back in, until so many tiles have been incremented that it's evidently in use again. It's paged back in
+ * (decoded, with the increments applied) when it's asked for with {@link #get}, e.g. to write its image, or when it has to be saved.
+ * <p>
+ * Only the tile event consumer's thread buffers increments, and only the tick routine's thread pages heatmaps out, but any thread may page them in.
+ * A heatmap is encoded from a snapshot without holding any locks, and then swapped out while holding its monitor (if it hasn't changed meanwhile),
+ * so the consumer can tell whether a heatmap it's about to increment is still resident.
+ */
+@Slf4j
+public class HeatmapResidency
+{
+	private static final HeatmapNew.HeatmapType[] TYPES = HeatmapNew.HeatmapType.values();
+	// How long a heatmap has to go without being changed or looked at to be paged out (10 minutes)
+	static final int COLD_AFTER_TICKS = 1000;
+	// How many tiles of a paged-out heatmap may have buffered increments before it's paged back in: this many, or a quarter of its tiles
+	// if that's more, so that the buffered increments take about as much memory as the encoded heatmap at most
+	private static final int MIN_MAX_BUFFERED_TILES = 1024;
+
+	private final Map<HeatmapNew.HeatmapType, HeatmapNew> heatmaps;
+	// By the type's ordinal. Set before the heatmap is taken out of the map, and cleared after it's put back, so a type is always in at least one of them
+	private final AtomicReferenceArray<PagedHeatmap> pagedOut = new AtomicReferenceArray<>(TYPES.length);
+	// The tick each type of heatmap was last changed or looked at on, by the type's ordinal
+	private final AtomicLongArray lastUsedTicks = new AtomicLongArray(TYPES.length);
+	// Game ticks counted so far. Only written by the tile event consumer's thread
+	private volatile long tick = 0;
+
+	private final MetricsRegistry.Counter pageOuts = MetricsRegistry.get().counter("residency.page_outs");
+	private final MetricsRegistry.Counter pageIns = MetricsRegistry.get().counter("residency.page_ins");
+	private final MetricsRegistry.Counter bufferedIncrements = MetricsRegistry.get().counter("residency.buffered_increments");
+	private final MetricsRegistry.Gauge pagedOutSize = MetricsRegistry.get().gauge("memory.paged_out", MetricsRegistry.Unit.BYTES);
+
+	/**
+	 * A heatmap as it was when it was paged out, plus what's happened to it since. Guarded by the HeatmapResidency
+	 */
+	private static final class PagedHeatmap
+	{
+		// Read-only once written
+		final ByteBuffer encoded;
+		// Whether the heatmap had changes that weren't saved yet when it was paged out
+		final boolean wasDirty;
+		// The highest tile value when it was paged out, which no tile plus its buffered increments may overflow
+		final int maxValue;
+		// The game time it was encoded with
+		final int gameTimeTicks;
+		final int maxBufferedTiles;
+		// Packed tile coordinates -> the increments summed
+		final IntIntOpenHashMap bufferedIncrements = new IntIntOpenHashMap();
+		int bufferedGameTimeTicks = 0;
+
+		PagedHeatmap(ByteBuffer encoded, boolean wasDirty, int maxValue, int gameTimeTicks, int numTiles)
+		{
+			this.encoded = encoded;
+			this.wasDirty = wasDirty;
+			this.maxValue = maxValue;
+			this.gameTimeTicks = gameTimeTicks;
+			this.maxBufferedTiles = Math.max(MIN_MAX_BUFFERED_TILES, numTiles / 4);
+		}
+
+		boolean isDirty()
+		{
+			return wasDirty || !bufferedIncrements.isEmpty();
+		}
+	}
+
+	/**
+	 * @param heatmaps The loaded heatmaps, which are paged out of (and back into) this map
+	 */
+	public HeatmapResidency(Map<HeatmapNew.HeatmapType, HeatmapNew> heatmaps)
+	{
+		this.heatmaps = heatmaps;
+	}
+
+	/**
+	 * @return The heatmap if it's in the heap, or null. Doesn't page it in, or count as using it
+	 */
+	HeatmapNew getResident(HeatmapNew.HeatmapType type)
+	{
+		return heatmaps.get(type);
+	}
+
+	/**
+	 * Returns the heatmap, paging it in first if it's paged out. Counts as using it, so it isn't paged out again for a while
+	 *
+	 * @return The heatmap, or null if it isn't loaded
+	 */
+	public HeatmapNew get(HeatmapNew.HeatmapType type)
+	{
+		HeatmapNew heatmap = heatmaps.get(type);
+		if (heatmap == null && pagedOut.get(type.ordinal()) != null)
+		{
+			synchronized (this)
+			{
+				heatmap = pagedOut.get(type.ordinal()) != null ? pageIn(type) : heatmaps.get(type);
+			}
+		}
+		if (heatmap != null)
+		{
+			markUsed(type);
+		}
+		return heatmap;
+	}
+
+	/**
+	 * @return Whether the heatmap is loaded, whether it's in the heap or paged out
+	 */
+	public boolean isLoaded(HeatmapNew.HeatmapType type)
+	{
+		// Paged-out heatmaps are looked for first, since they're only taken out of the map after being added to pagedOut
+		return pagedOut.get(type.ordinal()) != null || heatmaps.containsKey(type);
+	}
+
+	public boolean isPagedOut(HeatmapNew.HeatmapType type)
+	{
+		return pagedOut.get(type.ordinal()) != null;
+	}
+
+	/**
+	 * Records that the heatmap has just been changed or looked at
+	 */
+	void markUsed(HeatmapNew.HeatmapType type)
+	{
+		lastUsedTicks.lazySet(type.ordinal(), tick);
+	}
+
+	/**
+	 * Buffers an increment to the heatmap if it's paged out. Called by the tile event consumer.
+	 * Increments that could take a tile's value out of range are applied to the heatmap itself (after paging it in) rather than summed,
+	 * since the heatmap ignores each increment that would, and the buffered sum doesn't know which of them those were.
+	 *
+	 * @return Whether the increment was buffered. If not, the heatmap is in the heap (or isn't loaded), and the increment should be applied to it
+	 */
+	synchronized boolean bufferIncrement(HeatmapNew.HeatmapType type, int x, int y, int amount)
+	{
+		PagedHeatmap paged = pagedOut.get(type.ordinal());
+		if (paged == null)
+		{
+			return false;
+		}
+		// Tiles outside of the trackable coordinate range are ignored, as the heatmap itself would
+		if (HeatmapNew.isPackable(x, y))
+		{
+			int tile = HeatmapNew.packTile(x, y);
+			if (amount < 0 || (long) paged.maxValue + paged.bufferedIncrements.get(tile) + amount > Integer.MAX_VALUE)
+			{
+				pageIn(type);
+				return false;
+			}
+			paged.bufferedIncrements.addTo(tile, amount);
+			bufferedIncrements.increment();
+		}
+		if (paged.bufferedIncrements.size() > paged.maxBufferedTiles)
+		{
+			pageIn(type);
+		}
+		return true;
+	}
+
+	/**
+	 * Counts a game tick, adding it to the game time of every loaded heatmap. Called by the tile event consumer.
+	 * Synchronized, so that a heatmap being paged in meanwhile can't miss the tick
+	 *
+	 * @return The types of the heatmaps the tick was added to, as a bit per type ordinal
+	 */
+	synchronized int onTick()
+	{
+		tick++;
+		int typeMask = 0;
+		for (HeatmapNew heatmap : heatmaps.values())
+		{
+			synchronized (heatmap)
+			{
+				heatmap.incrementGameTimeTicks();
+			}
+			typeMask |= 1 << heatmap.getHeatmapType().ordinal();
+		}
+		for (int i = 0; i < TYPES.length; i++)
+		{
+			PagedHeatmap paged = pagedOut.get(i);
+			if (paged != null)
+			{
+				paged.bufferedGameTimeTicks++;
+				typeMask |= 1 << i;
+			}
+		}
+		return typeMask;
+	}
+
+	/**
+	 * @return The game time of the heatmap, whether it's in the heap or paged out, or -1 if it isn't loaded
+	 */
+	synchronized int getGameTimeTicks(HeatmapNew.HeatmapType type)
+	{
+		PagedHeatmap paged = pagedOut.get(type.ordinal());
+		if (paged != null)
+		{
+			return paged.gameTimeTicks + paged.bufferedGameTimeTicks;
+		}
+		HeatmapNew heatmap = heatmaps.get(type);
+		if (heatmap == null)
+		{
+			return -1;
+		}
+		synchronized (heatmap)
+		{
+			return heatmap.getGameTimeTicks();
+		}
+	}
+
+	/**
+	 * Pages out the heatmaps that haven't been changed or looked at for COLD_AFTER_TICKS. Called by the tick routine
+	 */
+	void pageOutColdHeatmaps()
+	{
+		for (HeatmapNew.HeatmapType type : TYPES)
+		{
+			HeatmapNew heatmap = heatmaps.get(type);
+			if (heatmap != null && isCold(type))
+			{
+				pageOut(heatmap);
+			}
+		}
+	}
+
+	private boolean isCold(HeatmapNew.HeatmapType type)
+	{
+		return tick - lastUsedTicks.get(type.ordinal()) >= COLD_AFTER_TICKS;
+	}
+
+	/**
+	 * Encodes a snapshot of the heatmap straight into a direct buffer, without holding any locks, and then swaps it in for the heatmap
+	 * unless the heatmap has been changed, used or unloaded in the meantime
+	 */
+	private void pageOut(HeatmapNew heatmap)
+	{
+		HeatmapNew.HeatmapType type = heatmap.getHeatmapType();
+		HeatmapNew snapshot = heatmap.snapshot();
+		// Most tiles take 2-4 bytes, and the header about 100
+		DirectBufferOutputStream encoder = new DirectBufferOutputStream(128 + 3 * snapshot.getNumTilesVisited());
+		try
+		{
+			HeatmapBinaryFormat.write(snapshot, encoder);
+		}
+		catch (IOException e)
+		{
+			log.error("Couldn't page out the {} heatmap", type, e);
+			return;
+		}
+		ByteBuffer encoded = encoder.toByteBuffer();
+
+		synchronized (this)
+		{
+			synchronized (heatmap)
+			{
+				if (heatmaps.get(type) != heatmap || heatmap.getModCount() != snapshot.getModCount() || !isCold(type))
+				{
+					return;
+				}
+				PagedHeatmap paged = new PagedHeatmap(encoded, heatmap.isDirty(), snapshot.getMaxValue(), snapshot.getGameTimeTicks(), snapshot.getNumTilesVisited());
+				// The ticks counted since the snapshot was taken
+				paged.bufferedGameTimeTicks = heatmap.getGameTimeTicks() - snapshot.getGameTimeTicks();
+				pagedOut.set(type.ordinal(), paged);
+				heatmaps.remove(type, heatmap);
+			}
+			pageOuts.increment();
+			updatePagedOutSize();
+		}
+		log.debug("Paged out the {} heatmap ({} tiles, {} bytes off-heap)", type, snapshot.getNumTilesVisited(), encoded.capacity());
+	}
+
+	private HeatmapNew pageIn(HeatmapNew.HeatmapType type)
+	{
+		PagedHeatmap paged = pagedOut.get(type.ordinal());
+		HeatmapNew heatmap;
+		try
+		{
+			heatmap = HeatmapBinaryFormat.read(new ByteBufferInputStream(paged.encoded.duplicate()));
+		}
+		catch (IOException e)
+		{
+			// It was encoded by pageOut(), so this can't happen short of memory corruption
+			throw new RuntimeException(e);
+		}
+		paged.bufferedIncrements.forEach((tile, amount) -> heatmap.increment(HeatmapNew.unpackX(tile), HeatmapNew.unpackY(tile), amount));
+		heatmap.setGameTimeTicks(heatmap.getGameTimeTicks() + paged.bufferedGameTimeTicks);
+		if (!paged.isDirty())
+		{
+			heatmap.markSaved(heatmap.getModCount());
+		}
+		lastUsedTicks.set(type.ordinal(), tick);
+		heatmaps.put(type, heatmap);
+		pagedOut.set(type.ordinal(), null);
+		pageIns.increment();
+		updatePagedOutSize();
+		log.debug("Paged in the {} heatmap with {} buffered tile increments", type, paged.bufferedIncrements.size());
+		return heatmap;
+	}
+
+	/**
+	 * Pages in the heatmaps that have changes that haven't been saved (or all of them if includeUnchanged), and returns all of the heatmaps
+	 * in the heap. Call this while holding the journal's lock, so that no increments can be buffered between this and taking the snapshots to save.
+	 */
+	synchronized List<HeatmapNew> getHeatmapsToSave(boolean includeUnchanged)
+	{
+		for (HeatmapNew.HeatmapType type : TYPES)
+		{
+			PagedHeatmap paged = pagedOut.get(type.ordinal());
+			if (paged != null && (includeUnchanged || paged.isDirty()))
+			{
+				pageIn(type);
+			}
+		}
+		return new ArrayList<>(heatmaps.values());
+	}
+
+	/**
+	 * Pages all of the paged-out heatmaps back in, e.g. once paging out has been turned off
+	 */
+	synchronized void pageInAll()
+	{
+		for (HeatmapNew.HeatmapType type : TYPES)
+		{
+			if (pagedOut.get(type.ordinal()) != null)
+			{
+				pageIn(type);
+			}
+		}
+	}
+
+	/**
+	 * Replaces the heatmap of its type, whether that's in the heap or paged out
+	 */
+	synchronized void replace(HeatmapNew heatmap)
+	{
+		heatmaps.put(heatmap.getHeatmapType(), heatmap);
+		pagedOut.set(heatmap.getHeatmapType().ordinal(), null);
+		markUsed(heatmap.getHeatmapType());
+		updatePagedOutSize();
+	}
+
+	/**
+	 * Unloads the heatmap, whether it's in the heap or paged out
+	 */
+	synchronized void remove(HeatmapNew.HeatmapType type)
+	{
+		heatmaps.remove(type);
+		pagedOut.set(type.ordinal(), null);
+		updatePagedOutSize();
+	}
+
+	/**
+	 * Unloads all of the heatmaps, e.g. before loading another account's. Those loaded afterwards count as just used
+	 */
+	synchronized void clear()
+	{
+		heatmaps.clear();
+		for (int i = 0; i < TYPES.length; i++)
+		{
+			pagedOut.set(i, null);
+			lastUsedTicks.set(i, tick);
+		}
+		updatePagedOutSize();
+	}
+
+	/**
+	 * @return The off-heap memory the paged-out heatmap takes, in bytes, or 0 if it isn't paged out
+	 */
+	public long getPagedOutSize(HeatmapNew.HeatmapType type)
+	{
+		PagedHeatmap paged = pagedOut.get(type.ordinal());
+		return paged == null ? 0 : paged.encoded.capacity();
+	}
+
+	/**
+	 * @return The off-heap memory all of the paged-out heatmaps take, in bytes
+	 */
+	public long getPagedOutSize()
+	{
+		long size = 0;
+		for (HeatmapNew.HeatmapType type : TYPES)
+		{
+			size += getPagedOutSize(type);
+		}
+		return size;
+	}
+
+	private void updatePagedOutSize()
+	{
+		pagedOutSize.set(getPagedOutSize());
+	}
+
+	/**
+	 * Collects what's written straight into a direct buffer, which grows as needed, so that an encoded heatmap is never copied on the heap
+	 */
+	private static final class DirectBufferOutputStream extends OutputStream
+	{
+		private ByteBuffer buffer;
+
+		DirectBufferOutputStream(int initialCapacity)
+		{
+			buffer = ByteBuffer.allocateDirect(initialCapacity);
+		}
+
+		@Override
+		public void write(int b)
+		{
+			ensureRemaining(1);
+			buffer.put((byte) b);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length)
+		{
+			ensureRemaining(length);
+			buffer.put(bytes, offset, length);
+		}
+
+		private void ensureRemaining(int length)
+		{
+			if (buffer.remaining() < length)
+			{
+				ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2, buffer.position() + length));
+				buffer.flip();
+				grown.put(buffer);
+				buffer = grown;
+			}
+		}
+
+		/**
+		 * @return A read-only buffer of what's been written. Copied (outside of the heap) into one of the exact size if too much of the buffer went unused
+		 */
+		ByteBuffer toByteBuffer()
+		{
+			buffer.flip();
+			ByteBuffer result = buffer;
+			if (buffer.capacity() - buffer.limit() > buffer.limit() / 4)
+			{
+				result = ByteBuffer.allocateDirect(buffer.limit());
+				result.put(buffer);
+				result.flip();
+			}
+			return result.asReadOnlyBuffer();
+		}
+	}
+
+	/**
+	 * Reads a buffer (from its position to its limit) as a stream, so that an encoded heatmap can be decoded without copying it onto the heap
+	 */
+	private static final class ByteBufferInputStream extends InputStream
+	{
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer)
+		{
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read()
+		{
+			return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length)
+		{
+			if (length == 0)
+			{
+				return 0;
+			}
+			if (!buffer.hasRemaining())
+			{
+				return -1;
+			}
+			int n = Math.min(length, buffer.remaining());
+			buffer.get(bytes, offset, n);
+			return n;
+		}
+	}
+}
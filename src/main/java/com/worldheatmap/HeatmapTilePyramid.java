@@ -0,0 +1,448 @@
+package com.worldheatmap;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
+import javax.imageio.ImageIO;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Exports a heatmap image as a pyramid of small PNG tiles, zoom/x/y.png, as used by slippy map viewers (e.g. Leaflet or OpenLayers).
+ * <p>
+ * The highest zoom level is the full resolution heatmap image cut into 256x256 tiles, and each level below it is downsampled from the
+ * four tiles beneath each of its tiles, down to zoom 0 which covers the whole image in one tile. Parts of tiles outside the image are transparent.
+ * <p>
+ * A manifest.properties is written alongside the tiles, describing the pyramid and what it was rendered from, including a hash of
+ * each 64x64 region of the heatmap. Exporting to the same directory again then only redraws the tiles overlapping the regions that have
+ * changed since, unless something affecting every tile has changed (e.g. the heatmap's min/max value, the colour settings or the world map).
+ */
+@Slf4j
+public class HeatmapTilePyramid
+{
+	static final int TILE_SIZE = 256;
+	private static final int FORMAT_VERSION = 1;
+	private static final String MANIFEST_FILE_NAME = "manifest.properties";
+	private static final String REGION_HASH_PREFIX = "region.";
+
+	private final HeatmapImage heatmapImage;
+	private final File outputDir;
+	private final int maxZoom;
+	// The tiles to be redrawn at each zoom level, as (y << 32 | x), or null if all of them are
+	@Nullable
+	private final List<Set<Long>> dirtyTiles;
+	@Nullable
+	private final ProgressListener progressListener;
+	private final int numTilesToDraw;
+	private final AtomicInteger numTilesDrawn = new AtomicInteger();
+
+	/**
+	 * Gets told how an export is going. Called from the threads drawing the tiles
+	 */
+	public interface ProgressListener
+	{
+		void exportStarted();
+
+		void exportProgress(float percentageDone);
+
+		void exportComplete(int numTilesDrawn);
+
+		void exportFailed();
+	}
+
+	private HeatmapTilePyramid(HeatmapImage heatmapImage, File outputDir, @Nullable Set<Long> dirtyBaseTiles, @Nullable ProgressListener progressListener)
+	{
+		this.heatmapImage = heatmapImage;
+		this.outputDir = outputDir;
+		this.progressListener = progressListener;
+		int zoom = 0;
+		while ((long) TILE_SIZE << zoom < Math.max(heatmapImage.getWidth(), heatmapImage.getHeight()))
+		{
+			zoom++;
+		}
+		this.maxZoom = zoom;
+
+		if (dirtyBaseTiles == null)
+		{
+			this.dirtyTiles = null;
+			int numTiles = 0;
+			for (zoom = 0; zoom <= maxZoom; zoom++)
+			{
+				int span = TILE_SIZE << (maxZoom - zoom);
+				numTiles += ((heatmapImage.getWidth() + span - 1) / span) * ((heatmapImage.getHeight() + span - 1) / span);
+			}
+			this.numTilesToDraw = numTiles;
+		}
+		else
+		{
+			// A tile has to be redrawn if any of the tiles beneath it are
+			this.dirtyTiles = new ArrayList<>();
+			for (zoom = 0; zoom <= maxZoom; zoom++)
+			{
+				dirtyTiles.add(new HashSet<>());
+			}
+			int numTiles = 0;
+			for (long baseTile : dirtyBaseTiles)
+			{
+				int x = (int) baseTile;
+				int y = (int) (baseTile >>> 32);
+				for (zoom = maxZoom; zoom >= 0; zoom--, x >>= 1, y >>= 1)
+				{
+					if (dirtyTiles.get(zoom).add(((long) y << 32) | x))
+					{
+						numTiles++;
+					}
+				}
+			}
+			this.numTilesToDraw = numTiles;
+		}
+	}
+
+	/**
+	 * Exports the heatmap as a tile pyramid into the directory, only redrawing the tiles that have changed if it already holds an export.
+	 *
+	 * @param heatmap    Should be a snapshot, see HeatmapNew.snapshot(). One is taken if it isn't
+	 * @param isParallel Whether to draw tiles on all but one of the CPU cores, rather than on one
+	 */
+	protected static void exportTilePyramid(HeatmapNew heatmap, File outputDir, boolean isFullMapImage, double heatmapTransparency, int heatmapSensitivity, boolean isParallel, WorldMapCache worldMapCache, @Nullable ProgressListener progressListener)
+	{
+		log.debug("Exporting {} tile pyramid to {}...", heatmap.getHeatmapType(), outputDir);
+		long startTime = System.nanoTime();
+		heatmapTransparency = Math.max(0, Math.min(1, heatmapTransparency));
+		ForkJoinPool drawPool = null;
+		try
+		{
+			if (!outputDir.exists() && !outputDir.mkdirs())
+			{
+				throw new IOException("Couldn't create tile pyramid directory '" + outputDir + "'");
+			}
+			HeatmapNew snapshot = heatmap.isSnapshot() ? heatmap : heatmap.snapshot();
+			WorldMapImage worldMap = worldMapCache.getWorldMapImage(isFullMapImage);
+			Point offsets = worldMapCache.getOffsets(isFullMapImage);
+			HeatmapImage heatmapImage = new HeatmapImage(snapshot, worldMap, (float) heatmapTransparency, heatmapSensitivity, offsets.x, offsets.y);
+
+			// Work out what's changed since the last export
+			Map<String, String> manifest = new HashMap<>();
+			manifest.put("formatVersion", Integer.toString(FORMAT_VERSION));
+			manifest.put("heatmapType", snapshot.getHeatmapType().toString());
+			manifest.put("tileSize", Integer.toString(TILE_SIZE));
+			manifest.put("imageWidth", Integer.toString(heatmapImage.getWidth()));
+			manifest.put("imageHeight", Integer.toString(heatmapImage.getHeight()));
+			manifest.put("pixelOffsetX", Integer.toString(offsets.x));
+			manifest.put("pixelOffsetY", Integer.toString(offsets.y));
+			manifest.put("worldMapVersion", worldMap.getVersion());
+			manifest.put("minValue", Integer.toString(heatmapImage.getHeatmapMinVal()));
+			manifest.put("maxValue", Integer.toString(heatmapImage.getHeatmapMaxVal()));
+			manifest.put("sensitivity", Integer.toString(heatmapSensitivity));
+			manifest.put("transparency", Double.toString(heatmapTransparency));
+			Map<String, String> regionHashes = hashRegions(snapshot);
+			Map<String, String> previousManifest = readManifest(outputDir);
+			Set<Long> dirtyBaseTiles = null;
+			if (previousManifest != null && manifest.entrySet().stream().allMatch(e -> e.getValue().equals(previousManifest.get(e.getKey()))))
+			{
+				dirtyBaseTiles = new HashSet<>();
+				Set<String> regionKeys = new HashSet<>(regionHashes.keySet());
+				previousManifest.keySet().stream().filter(key -> key.startsWith(REGION_HASH_PREFIX)).forEach(regionKeys::add);
+				for (String regionKey : regionKeys)
+				{
+					if (!Objects.equals(regionHashes.get(regionKey), previousManifest.get(regionKey)))
+					{
+						int regionID = Integer.parseInt(regionKey.substring(REGION_HASH_PREFIX.length()));
+						addTilesOverlapping(heatmapImage.getRegionPixelBounds(regionID >> 8, regionID & 0xFF), heatmapImage, dirtyBaseTiles);
+					}
+				}
+			}
+			HeatmapTilePyramid pyramid = new HeatmapTilePyramid(heatmapImage, outputDir, dirtyBaseTiles, progressListener);
+			manifest.put("minZoom", "0");
+			manifest.put("maxZoom", Integer.toString(pyramid.maxZoom));
+			manifest.putAll(regionHashes);
+
+			if (progressListener != null)
+			{
+				progressListener.exportStarted();
+			}
+			drawPool = new ForkJoinPool(isParallel ? Math.max(1, Runtime.getRuntime().availableProcessors() - 1) : 1);
+			if (pyramid.isDirty(0, 0, 0) || !pyramid.getTileFile(0, 0, 0).isFile())
+			{
+				drawPool.invoke(pyramid.new DrawTileTask(0, 0, 0));
+			}
+			// Written last, so that if the export is cut short, the tiles it didn't get to are redrawn next time
+			writeManifest(outputDir, manifest);
+			if (progressListener != null)
+			{
+				progressListener.exportComplete(pyramid.numTilesDrawn.get());
+			}
+			log.debug("Finished exporting {} tiles of the {} tile pyramid after {} ms", pyramid.numTilesDrawn.get(), snapshot.getHeatmapType(), (System.nanoTime() - startTime) / 1_000_000);
+		}
+		catch (OutOfMemoryError e)
+		{
+			log.error("OutOfMemoryError thrown whilst exporting tile pyramid");
+			if (progressListener != null)
+			{
+				progressListener.exportFailed();
+			}
+		}
+		catch (Exception e)
+		{
+			log.error("Exception thrown whilst exporting tile pyramid", e);
+			if (progressListener != null)
+			{
+				progressListener.exportFailed();
+			}
+		}
+		finally
+		{
+			if (drawPool != null)
+			{
+				drawPool.shutdownNow();
+			}
+		}
+	}
+
+	/**
+	 * Draws a tile, and the tiles beneath it that it's downsampled from, writing the ones that have changed
+	 */
+	private class DrawTileTask extends RecursiveTask<BufferedImage>
+	{
+		private final int zoom;
+		private final int x;
+		private final int y;
+
+		DrawTileTask(int zoom, int x, int y)
+		{
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+		}
+
+		/**
+		 * @return The tile, or null if it's entirely outside the image
+		 */
+		@Override
+		protected BufferedImage compute()
+		{
+			int span = TILE_SIZE << (maxZoom - zoom);
+			if ((long) x * span >= heatmapImage.getWidth() || (long) y * span >= heatmapImage.getHeight())
+			{
+				return null;
+			}
+			try
+			{
+				File tileFile = getTileFile(zoom, x, y);
+				if (!isDirty(zoom, x, y) && tileFile.isFile())
+				{
+					// Unchanged, but its parent has to be redrawn from it
+					return ImageIO.read(tileFile);
+				}
+
+				BufferedImage tile;
+				if (zoom == maxZoom)
+				{
+					tile = renderTile();
+				}
+				else
+				{
+					List<DrawTileTask> children = new ArrayList<>(4);
+					for (int i = 0; i < 4; i++)
+					{
+						children.add(new DrawTileTask(zoom + 1, 2 * x + (i & 1), 2 * y + (i >> 1)));
+					}
+					ForkJoinTask.invokeAll(children);
+					tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+					for (int i = 0; i < 4; i++)
+					{
+						BufferedImage child = children.get(i).join();
+						if (child != null)
+						{
+							downsampleInto(child, tile, (i & 1) * TILE_SIZE / 2, (i >> 1) * TILE_SIZE / 2);
+						}
+					}
+				}
+
+				if (!tileFile.getParentFile().exists() && !tileFile.getParentFile().mkdirs() && !tileFile.getParentFile().exists())
+				{
+					throw new IOException("Couldn't create tile directory '" + tileFile.getParentFile() + "'");
+				}
+				File tempFile = new File(tileFile.getParentFile(), tileFile.getName() + ".tmp");
+				ImageIO.write(tile, "png", tempFile);
+				Files.move(tempFile.toPath(), tileFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				int numDrawn = numTilesDrawn.incrementAndGet();
+				if (progressListener != null)
+				{
+					progressListener.exportProgress(Math.min(100f, 100f * numDrawn / numTilesToDraw));
+				}
+				return tile;
+			}
+			catch (IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		/**
+		 * Renders the tile from the full resolution heatmap image
+		 */
+		private BufferedImage renderTile()
+		{
+			Rectangle tileRect = new Rectangle(x * TILE_SIZE, y * TILE_SIZE, TILE_SIZE, TILE_SIZE).intersection(new Rectangle(heatmapImage.getWidth(), heatmapImage.getHeight()));
+			Raster raster = heatmapImage.renderRegion(tileRect).getRaster();
+			BufferedImage tile = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+			int[] rgbRow = new int[tileRect.width * 3];
+			int[] argbRow = new int[tileRect.width];
+			for (int row = 0; row < tileRect.height; row++)
+			{
+				raster.getPixels(raster.getMinX(), raster.getMinY() + row, tileRect.width, 1, rgbRow);
+				for (int i = 0; i < tileRect.width; i++)
+				{
+					argbRow[i] = 0xFF000000 | rgbRow[i * 3] << 16 | rgbRow[i * 3 + 1] << 8 | rgbRow[i * 3 + 2];
+				}
+				tile.setRGB(0, row, tileRect.width, 1, argbRow, 0, tileRect.width);
+			}
+			return tile;
+		}
+	}
+
+	/**
+	 * Halves the tile and draws it into a quarter of its parent, at (offsetX, offsetY). Each pixel is the average of the 2x2 pixels
+	 * beneath it, weighted by their alpha so that transparent pixels don't darken it.
+	 */
+	private static void downsampleInto(BufferedImage child, BufferedImage parent, int offsetX, int offsetY)
+	{
+		int[] childPixels = child.getRGB(0, 0, TILE_SIZE, TILE_SIZE, null, 0, TILE_SIZE);
+		int half = TILE_SIZE / 2;
+		int[] parentPixels = new int[half * half];
+		for (int y = 0; y < half; y++)
+		{
+			for (int x = 0; x < half; x++)
+			{
+				int topLeft = 2 * y * TILE_SIZE + 2 * x;
+				int[] samples = {childPixels[topLeft], childPixels[topLeft + 1], childPixels[topLeft + TILE_SIZE], childPixels[topLeft + TILE_SIZE + 1]};
+				long alphaSum = 0;
+				long red = 0;
+				long green = 0;
+				long blue = 0;
+				for (int argb : samples)
+				{
+					int alpha = argb >>> 24;
+					alphaSum += alpha;
+					red += ((argb >> 16) & 0xFF) * alpha;
+					green += ((argb >> 8) & 0xFF) * alpha;
+					blue += (argb & 0xFF) * alpha;
+				}
+				if (alphaSum > 0)
+				{
+					parentPixels[y * half + x] = (int) ((alphaSum + 2) / 4) << 24
+						| (int) ((red + alphaSum / 2) / alphaSum) << 16
+						| (int) ((green + alphaSum / 2) / alphaSum) << 8
+						| (int) ((blue + alphaSum / 2) / alphaSum);
+				}
+			}
+		}
+		parent.setRGB(offsetX, offsetY, half, half, parentPixels, 0, half);
+	}
+
+	private boolean isDirty(int zoom, int x, int y)
+	{
+		return dirtyTiles == null || dirtyTiles.get(zoom).contains(((long) y << 32) | x);
+	}
+
+	private File getTileFile(int zoom, int x, int y)
+	{
+		return new File(new File(new File(outputDir, Integer.toString(zoom)), Integer.toString(x)), y + ".png");
+	}
+
+	/**
+	 * Adds the highest zoom level tiles of the image overlapping the pixel rectangles to the set, as (y << 32 | x)
+	 */
+	private static void addTilesOverlapping(List<Rectangle> pixelBounds, HeatmapImage image, Set<Long> tiles)
+	{
+		for (Rectangle bounds : pixelBounds)
+		{
+			int minTileX = Math.max(0, Math.floorDiv(bounds.x, TILE_SIZE));
+			int minTileY = Math.max(0, Math.floorDiv(bounds.y, TILE_SIZE));
+			int maxTileX = Math.min((image.getWidth() - 1) / TILE_SIZE, Math.floorDiv(bounds.x + bounds.width - 1, TILE_SIZE));
+			int maxTileY = Math.min((image.getHeight() - 1) / TILE_SIZE, Math.floorDiv(bounds.y + bounds.height - 1, TILE_SIZE));
+			for (int y = minTileY; y <= maxTileY; y++)
+			{
+				for (int x = minTileX; x <= maxTileX; x++)
+				{
+					tiles.add(((long) y << 32) | x);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return A hash of the tiles of each region of the heatmap, keyed by "region.[regionID]". Independent of the order the tiles are visited in
+	 */
+	private static Map<String, String> hashRegions(HeatmapNew heatmap)
+	{
+		Map<String, String> regionHashes = new HashMap<>();
+		for (int regionID : heatmap.getVisitedRegionIDs())
+		{
+			long[] hash = {0};
+			heatmap.forEachTileInRegion(regionID, (x, y, value) -> hash[0] += HeatmapImage.mix(HeatmapImage.mix(((long) x << 32) | (y & 0xFFFFFFFFL)) + value));
+			regionHashes.put(REGION_HASH_PREFIX + regionID, Long.toHexString(hash[0]));
+		}
+		return regionHashes;
+	}
+
+	@Nullable
+	private static Map<String, String> readManifest(File outputDir)
+	{
+		File manifestFile = new File(outputDir, MANIFEST_FILE_NAME);
+		if (!manifestFile.isFile())
+		{
+			return null;
+		}
+		Properties properties = new Properties();
+		try (InputStream is = new FileInputStream(manifestFile))
+		{
+			properties.load(is);
+		}
+		catch (IOException e)
+		{
+			log.warn("Couldn't read tile pyramid manifest, so every tile will be redrawn: {}", e.toString());
+			return null;
+		}
+		Map<String, String> manifest = new HashMap<>();
+		properties.stringPropertyNames().forEach(key -> manifest.put(key, properties.getProperty(key)));
+		return manifest;
+	}
+
+	private static void writeManifest(File outputDir, Map<String, String> manifest) throws IOException
+	{
+		Properties properties = new Properties();
+		properties.putAll(manifest);
+		File manifestFile = new File(outputDir, MANIFEST_FILE_NAME);
+		File tempFile = new File(outputDir, MANIFEST_FILE_NAME + ".tmp");
+		try (OutputStream os = new FileOutputStream(tempFile))
+		{
+			properties.store(os, "World Heatmap tile pyramid. Tiles are [zoom]/[x]/[y].png");
+		}
+		Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,322 @@
+package com.worldheatmap;
+
+import java.awt.Point;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import net.runelite.api.Constants;
+import net.runelite.api.NpcID;
+import net.runelite.api.Skill;
+
+/**
+ * Turns what happens in the game into heatmap increments, which it publishes into a {@link TileEventBuffer}.
+ * It's given plain coordinates and values rather than the client's objects, so the plugin's event handlers only have to pick those
+ * out of their events, and generated or recorded workloads can be fed through exactly the same logic without a client.
+ * <p>
+ * Must only be used by the thread that publishes into the buffer (the client thread).
+ */
+class HeatmapTracker
+{
+	// How far the player may move in a tick for it to count as running rather than teleporting, in tiles
+	private static final int MAX_RUN_DISTANCE = 3;
+	// How far the player has to move in a tick for it to count as a teleport, in tiles
+	static final int MIN_TELEPORT_DISTANCE = 15;
+
+	// Currently it counts all random event spawns, not just random events meant for the local player
+	private static final Set<Integer> RANDOM_EVENT_NPC_IDS = new HashSet<>(Arrays.asList(NpcID.BEE_KEEPER_6747,
+		NpcID.CAPT_ARNAV,
+		NpcID.DRUNKEN_DWARF,
+		NpcID.FLIPPA_6744,
+		NpcID.GILES,
+		NpcID.GILES_5441,
+		NpcID.MILES,
+		NpcID.MILES_5440,
+		NpcID.NILES,
+		NpcID.NILES_5439,
+		NpcID.PILLORY_GUARD,
+		NpcID.POSTIE_PETE_6738,
+		NpcID.RICK_TURPENTINE,
+		NpcID.RICK_TURPENTINE_376,
+		NpcID.SERGEANT_DAMIEN_6743,
+		NpcID.FREAKY_FORESTER_6748,
+		NpcID.FROG_5429,
+		NpcID.GENIE,
+		NpcID.GENIE_327,
+		NpcID.DR_JEKYLL,
+		NpcID.DR_JEKYLL_314,
+		NpcID.EVIL_BOB,
+		NpcID.EVIL_BOB_6754,
+		NpcID.LEO_6746,
+		NpcID.MYSTERIOUS_OLD_MAN_6751,
+		NpcID.MYSTERIOUS_OLD_MAN_6750,
+		NpcID.MYSTERIOUS_OLD_MAN_6752,
+		NpcID.MYSTERIOUS_OLD_MAN_6753,
+		NpcID.QUIZ_MASTER_6755,
+		NpcID.DUNCE_6749,
+		NpcID.SANDWICH_LADY,
+		NpcID.STRANGE_PLANT));
+
+	private final WorldHeatmapConfig config;
+	private final HeatmapResidency heatmaps;
+	private final TileEventBuffer tileEvents;
+	private int lastX = 0;
+	private int lastY = 0;
+	private final int[] previousXP = new int[Skill.values().length];
+	private final Map<Integer, Instant> timeLastSeenBobTheCatPerWorld = new HashMap<>();
+
+	/**
+	 * @param heatmaps The loaded heatmaps, which some of the event types are only tracked for once they've been loaded
+	 */
+	HeatmapTracker(WorldHeatmapConfig config, HeatmapResidency heatmaps, TileEventBuffer tileEvents)
+	{
+		this.config = config;
+		this.heatmaps = heatmaps;
+		this.tileEvents = tileEvents;
+	}
+
+	/**
+	 * Tracks the player's movement since the last tick, and then marks the end of the tick
+	 *
+	 * @param currentX The player's x-coord on this tick
+	 * @param currentY The player's y-coord on this tick
+	 */
+	void onTick(int currentX, int currentY)
+	{
+		boolean playerMovedSinceLastTick = (currentX != lastX || currentY != lastY);
+
+		/* When running, players cover more than one tile per tick, which creates spotty paths.
+		 * We fix this by drawing a line between the current coordinates and the previous coordinates,
+		 * but we have to be sure that the player indeed ran from point A to point B, differentiating the movement from teleportation.
+		 * Since it's too hard to check if the player is actually running, we'll just check if the distance covered since last tick
+		 * was at most 3 tiles
+		 */
+		int diagDistance = diagonalDistance(lastX, lastY, currentX, currentY);
+		if (diagDistance <= MAX_RUN_DISTANCE)
+		{
+			// TYPE_A
+			if (playerMovedSinceLastTick && config.isHeatmapTypeAEnabled())
+			{
+				incrementLine(HeatmapNew.HeatmapType.TYPE_A, lastX, lastY, currentX, currentY);
+			}
+
+			// TYPE_B
+			if (config.isHeatmapTypeBEnabled())
+			{
+				incrementLine(HeatmapNew.HeatmapType.TYPE_B, lastX, lastY, currentX, currentY);
+			}
+		}
+
+		// We only track teleports between overworld tiles, and don't draw lines between the overworld and caves etc.
+		if (diagDistance > MIN_TELEPORT_DISTANCE && isInOverworld(lastX, lastY) && isInOverworld(currentX, currentY))
+		{
+			// TELEPORT_PATHS
+			if (config.isHeatmapTeleportPathsEnabled())
+			{
+				incrementLine(HeatmapNew.HeatmapType.TELEPORT_PATHS, lastX, lastY, currentX, currentY);
+			}
+
+			// TELEPORTED_TO and TELEPORTED_FROM
+			if (config.isHeatmapTeleportedToEnabled())
+			{
+				increment(HeatmapNew.HeatmapType.TELEPORTED_TO, currentX, currentY);
+			}
+			if (config.isHeatmapTeleportedFromEnabled())
+			{
+				increment(HeatmapNew.HeatmapType.TELEPORTED_FROM, lastX, lastY);
+			}
+		}
+
+		// Mark the end of the tick (which increments the game time ticks of each heatmap)
+		tileEvents.offer(TileEventBuffer.TICK, 0, 0, 0);
+
+		lastX = currentX;
+		lastY = currentY;
+	}
+
+	/**
+	 * Sets a skill's experience without tracking it as gained, e.g. when logging in
+	 */
+	void resetExperience(int skillIndex, int experience)
+	{
+		previousXP[skillIndex] = experience;
+	}
+
+	/**
+	 * Tracks a change of a skill's experience as gained where the player is standing.
+	 * NOTE: this happens 23 times when you log in, at which time the heatmaps haven't been loaded in
+	 */
+	void onStatChanged(int skillIndex, int experience, int playerX, int playerY)
+	{
+		// Get difference between previous and current XP
+		int xpDifference = experience - previousXP[skillIndex];
+		previousXP[skillIndex] = experience;
+
+		// XP_GAINED
+		if (config.isHeatmapXPGainedEnabled() && heatmaps.isLoaded(HeatmapNew.HeatmapType.XP_GAINED))
+		{
+			increment(HeatmapNew.HeatmapType.XP_GAINED, playerX, playerY, xpDifference);
+		}
+	}
+
+	void onPlayerDeath(int x, int y)
+	{
+		// DEATHS
+		if (config.isHeatmapDeathsEnabled())
+		{
+			increment(HeatmapNew.HeatmapType.DEATHS, x, y);
+		}
+	}
+
+	void onNpcDeath(int x, int y)
+	{
+		// NPC_DEATHS
+		if (heatmaps.isLoaded(HeatmapNew.HeatmapType.NPC_DEATHS) && config.isHeatmapNPCDeathsEnabled())
+		{
+			increment(HeatmapNew.HeatmapType.NPC_DEATHS, x, y);
+		}
+	}
+
+	/**
+	 * @param x The coords of the NPC that was hit
+	 */
+	void onDamageGiven(int x, int y, int amount)
+	{
+		// DAMAGE_GIVEN
+		if (config.isHeatmapDamageGivenEnabled())
+		{
+			increment(HeatmapNew.HeatmapType.DAMAGE_GIVEN, x, y, amount);
+		}
+	}
+
+	void onDamageTaken(int x, int y, int amount)
+	{
+		// DAMAGE_TAKEN
+		if (config.isHeatmapDamageTakenEnabled())
+		{
+			increment(HeatmapNew.HeatmapType.DAMAGE_TAKEN, x, y, amount);
+		}
+	}
+
+	void onSpokeAt(int x, int y)
+	{
+		// PLACES_SPOKEN_AT
+		if (config.isHeatmapPlacesSpokenAtEnabled() && heatmaps.isLoaded(HeatmapNew.HeatmapType.PLACES_SPOKEN_AT))
+		{
+			increment(HeatmapNew.HeatmapType.PLACES_SPOKEN_AT, x, y);
+		}
+	}
+
+	/**
+	 * @param world The world the NPC spawned on
+	 * @param now   The current time, which Bob the Cat sightings are counted at most once an hour by
+	 */
+	void onNpcSpawned(int npcId, int x, int y, int world, Instant now)
+	{
+		// RANDOM_EVENT_SPAWNS
+		if (RANDOM_EVENT_NPC_IDS.contains(npcId))
+		{
+			if (config.isHeatmapRandomEventSpawnsEnabled() && heatmaps.isLoaded(HeatmapNew.HeatmapType.RANDOM_EVENT_SPAWNS))
+			{
+				increment(HeatmapNew.HeatmapType.RANDOM_EVENT_SPAWNS, x, y);
+			}
+		}
+
+		// BOB_THE_CAT_SIGHTING
+		if (config.isHeatmapBobTheCatSightingEnabled() && npcId == NpcID.BOB_8034)
+		{
+			// Only count Bob the Cat sightings once per hour at most
+			Instant timeLastSeen = timeLastSeenBobTheCatPerWorld.get(world);
+			if (timeLastSeen == null || now.isAfter(timeLastSeen.plusSeconds(3600)))
+			{
+				if (heatmaps.isLoaded(HeatmapNew.HeatmapType.BOB_THE_CAT_SIGHTING))
+				{
+					increment(HeatmapNew.HeatmapType.BOB_THE_CAT_SIGHTING, x, y);
+					timeLastSeenBobTheCatPerWorld.put(world, now);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @param totalValue The value of a stack of the loot
+	 */
+	void onLootReceived(int x, int y, int totalValue)
+	{
+		// LOOT_VALUE
+		if (config.isHeatmapLootValueEnabled() && heatmaps.isLoaded(HeatmapNew.HeatmapType.LOOT_VALUE))
+		{
+			increment(HeatmapNew.HeatmapType.LOOT_VALUE, x, y, totalValue);
+		}
+	}
+
+	/**
+	 * Publishes an increment of the heatmap of the given type, to be applied (if that heatmap is loaded) and journaled by the tile event consumer
+	 */
+	private void increment(HeatmapNew.HeatmapType type, int x, int y, int amount)
+	{
+		tileEvents.offer(type.ordinal(), x, y, amount);
+	}
+
+	private void increment(HeatmapNew.HeatmapType type, int x, int y)
+	{
+		increment(type, x, y, 1);
+	}
+
+	static boolean isInOverworld(Point point)
+	{
+		return isInOverworld(point.x, point.y);
+	}
+
+	static boolean isInOverworld(int x, int y)
+	{
+		return y < Constants.OVERWORLD_MAX_Y && y > 2500 && x >= 1024 && x < 3960;
+	}
+
+	// Credit to https:// www.redblobgames.com/grids/line-drawing.html for where I figured out how to make the following linear interpolation functions
+
+	/**
+	 * Publishes an increment of each of the discrete coordinates on the path from (x0, y0) to (x1, y1), not including (x0, y0) unless the two are the same.
+	 * Works on the coordinates directly, so that the client thread doesn't allocate anything for it
+	 */
+	private void incrementLine(HeatmapNew.HeatmapType type, int x0, int y0, int x1, int y1)
+	{
+		int N = diagonalDistance(x0, y0, x1, y1);
+		if (N == 0)
+		{
+			increment(type, x1, y1);
+			return;
+		}
+		for (int step = 1; step <= N; step++)
+		{
+			float t = step / (float) N;
+			increment(type, Math.round(lerp(x0, x1, t)), Math.round(lerp(y0, y1, t)));
+		}
+	}
+
+	/**
+	 * Returns the "diagonal distance" (the maximum of the horizontal and vertical distance) between two points
+	 *
+	 * @return The diagonal distance
+	 */
+	static int diagonalDistance(int x0, int y0, int x1, int y1)
+	{
+		return Math.max(Math.abs(x1 - x0), Math.abs(y1 - y0));
+	}
+
+	/**
+	 * Returns the floating point number that is t-percent of the way between p0 and p1.
+	 *
+	 * @param p0 Point A
+	 * @param p1 Point B
+	 * @param t  Percent distance
+	 * @return Point that is t-percent of the way from A to B
+	 */
+	private static float lerp(int p0, int p1, float t)
+	{
+		return p0 + (p1 - p0) * t;
+	}
+}
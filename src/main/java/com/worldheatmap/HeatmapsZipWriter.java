@@ -0,0 +1,385 @@
+package com.worldheatmap;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes a .heatmaps (zip) file in a single pass. New entries are deflated as they're written, and entries carried over
+ * from another zip file are copied as raw compressed bytes, without being inflated and deflated again.
+ * <p>
+ * Only what the .heatmaps files need is supported: no ZIP64 (so entries and archives must be smaller than 4 GB), no encryption,
+ * and no multi-disk archives. The written files can be read by any zip reader, including the zip FileSystem.
+ */
+public class HeatmapsZipWriter implements Closeable
+{
+	private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+	private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+	private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+	private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+	private static final int LOCAL_HEADER_LENGTH = 30;
+	private static final int CENTRAL_HEADER_LENGTH = 46;
+	private static final int END_OF_CENTRAL_DIRECTORY_LENGTH = 22;
+	private static final int VERSION_NEEDED = 20;
+	private static final int FLAG_DATA_DESCRIPTOR = 1 << 3;
+	private static final int FLAG_UTF8 = 1 << 11;
+	private static final int METHOD_DEFLATED = 8;
+	private static final long MAX_32_BIT = 0xFFFFFFFFL;
+
+	/**
+	 * An entry of a zip file, as described by its central directory header
+	 */
+	static final class Entry
+	{
+		final String name;
+		final int flags;
+		final int method;
+		final int dosTime;
+		final long crc;
+		final long compressedSize;
+		final long size;
+		// Offset of the entry's local header in its file
+		final long offset;
+
+		Entry(String name, int flags, int method, int dosTime, long crc, long compressedSize, long size, long offset)
+		{
+			this.name = name;
+			this.flags = flags;
+			this.method = method;
+			this.dosTime = dosTime;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.offset = offset;
+		}
+	}
+
+	private final OutputStream out;
+	private final List<Entry> writtenEntries = new ArrayList<>();
+	private final byte[] header = new byte[CENTRAL_HEADER_LENGTH];
+	private long position = 0;
+	private boolean entryOpen = false;
+
+	public HeatmapsZipWriter(OutputStream out)
+	{
+		this.out = out;
+	}
+
+	/**
+	 * Starts a new deflated entry. The returned stream must be closed before anything else is written, which doesn't close the archive.
+	 */
+	public OutputStream putNextEntry(String name) throws IOException
+	{
+		if (entryOpen)
+		{
+			throw new IOException("The previous entry hasn't been closed");
+		}
+		entryOpen = true;
+		byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+		int flags = FLAG_DATA_DESCRIPTOR | FLAG_UTF8;
+		int dosTime = toDosTime(System.currentTimeMillis());
+		long offset = position;
+		// The CRC and sizes aren't known yet, so they follow the data in a data descriptor
+		writeLocalHeader(nameBytes, flags, METHOD_DEFLATED, dosTime, 0, 0, 0);
+
+		CRC32 crc = new CRC32();
+		long[] size = {0};
+		long dataStart = position;
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		OutputStream uncloseable = new FilterOutputStream(out)
+		{
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				out.write(b, off, len);
+				position += len;
+			}
+
+			@Override
+			public void close()
+			{
+			}
+		};
+		return new DeflaterOutputStream(uncloseable, deflater, 8192)
+		{
+			private boolean closed = false;
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException
+			{
+				super.write(b, off, len);
+				crc.update(b, off, len);
+				size[0] += len;
+			}
+
+			@Override
+			public void close() throws IOException
+			{
+				if (closed)
+				{
+					return;
+				}
+				closed = true;
+				finish();
+				deflater.end();
+				long compressedSize = position - dataStart;
+				checkSize(compressedSize);
+				checkSize(size[0]);
+				writeInt(0, DATA_DESCRIPTOR_SIGNATURE);
+				writeInt(4, (int) crc.getValue());
+				writeInt(8, (int) compressedSize);
+				writeInt(12, (int) size[0]);
+				writeHeader(16);
+				writtenEntries.add(new Entry(name, flags, METHOD_DEFLATED, dosTime, crc.getValue(), compressedSize, size[0], offset));
+				entryOpen = false;
+			}
+		};
+	}
+
+	/**
+	 * Copies an entry of another zip file as-is, without decompressing it
+	 *
+	 * @param source The zip file that the entry was read from with {@link #readEntries(RandomAccessFile)}
+	 */
+	public void copyEntry(RandomAccessFile source, Entry entry) throws IOException
+	{
+		if (entryOpen)
+		{
+			throw new IOException("The previous entry hasn't been closed");
+		}
+		// Skip the source's local header, whose extra field length may differ from its central header's
+		source.seek(entry.offset);
+		byte[] localHeader = new byte[LOCAL_HEADER_LENGTH];
+		source.readFully(localHeader);
+		if (readInt(localHeader, 0) != LOCAL_HEADER_SIGNATURE)
+		{
+			throw new IOException("Bad local header for entry '" + entry.name + "'");
+		}
+		long dataStart = entry.offset + LOCAL_HEADER_LENGTH + readShort(localHeader, 26) + readShort(localHeader, 28);
+
+		// The sizes are known, so the copy doesn't need a data descriptor
+		int flags = entry.flags & ~FLAG_DATA_DESCRIPTOR;
+		long offset = position;
+		byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+		writeLocalHeader(nameBytes, flags, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size);
+
+		source.seek(dataStart);
+		byte[] buffer = new byte[8192];
+		long remaining = entry.compressedSize;
+		while (remaining > 0)
+		{
+			int n = source.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (n == -1)
+			{
+				throw new IOException("Entry '" + entry.name + "' is truncated");
+			}
+			out.write(buffer, 0, n);
+			position += n;
+			remaining -= n;
+		}
+		writtenEntries.add(new Entry(entry.name, flags, entry.method, entry.dosTime, entry.crc, entry.compressedSize, entry.size, offset));
+	}
+
+	/**
+	 * Writes the central directory. Doesn't close the underlying stream.
+	 */
+	@Override
+	public void close() throws IOException
+	{
+		if (entryOpen)
+		{
+			throw new IOException("The last entry hasn't been closed");
+		}
+		long centralDirectoryOffset = position;
+		for (Entry entry : writtenEntries)
+		{
+			byte[] nameBytes = entry.name.getBytes(StandardCharsets.UTF_8);
+			writeInt(0, CENTRAL_HEADER_SIGNATURE);
+			writeShort(4, VERSION_NEEDED);
+			writeShort(6, VERSION_NEEDED);
+			writeShort(8, entry.flags);
+			writeShort(10, entry.method);
+			writeInt(12, entry.dosTime);
+			writeInt(16, (int) entry.crc);
+			writeInt(20, (int) entry.compressedSize);
+			writeInt(24, (int) entry.size);
+			writeShort(28, nameBytes.length);
+			writeShort(30, 0); // extra field length
+			writeShort(32, 0); // comment length
+			writeShort(34, 0); // disk number
+			writeShort(36, 0); // internal attributes
+			writeInt(38, 0); // external attributes
+			writeInt(42, (int) entry.offset);
+			writeHeader(CENTRAL_HEADER_LENGTH);
+			out.write(nameBytes);
+			position += nameBytes.length;
+		}
+		long centralDirectorySize = position - centralDirectoryOffset;
+		checkSize(centralDirectoryOffset);
+		if (writtenEntries.size() > 0xFFFF)
+		{
+			throw new IOException("Too many zip entries");
+		}
+		writeInt(0, END_OF_CENTRAL_DIRECTORY_SIGNATURE);
+		writeShort(4, 0); // disk number
+		writeShort(6, 0); // disk with the central directory
+		writeShort(8, writtenEntries.size());
+		writeShort(10, writtenEntries.size());
+		writeInt(12, (int) centralDirectorySize);
+		writeInt(16, (int) centralDirectoryOffset);
+		writeShort(20, 0); // comment length
+		writeHeader(END_OF_CENTRAL_DIRECTORY_LENGTH);
+		out.flush();
+	}
+
+	/**
+	 * Reads the entries of a zip file from its central directory
+	 */
+	static List<Entry> readEntries(RandomAccessFile file) throws IOException
+	{
+		// Find the end of central directory record, which is followed by a comment of up to 64 KB
+		long fileLength = file.length();
+		int tailLength = (int) Math.min(fileLength, END_OF_CENTRAL_DIRECTORY_LENGTH + 0xFFFF);
+		byte[] tail = new byte[tailLength];
+		file.seek(fileLength - tailLength);
+		file.readFully(tail);
+		int eocd = -1;
+		for (int i = tailLength - END_OF_CENTRAL_DIRECTORY_LENGTH; i >= 0; i--)
+		{
+			if (readInt(tail, i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE)
+			{
+				eocd = i;
+				break;
+			}
+		}
+		if (eocd == -1)
+		{
+			throw new IOException("Not a zip file");
+		}
+		int numEntries = readShort(tail, eocd + 10);
+		long centralDirectorySize = readInt(tail, eocd + 12) & MAX_32_BIT;
+		long centralDirectoryOffset = readInt(tail, eocd + 16) & MAX_32_BIT;
+		if (numEntries == 0xFFFF || centralDirectorySize == MAX_32_BIT || centralDirectoryOffset == MAX_32_BIT)
+		{
+			throw new IOException("ZIP64 files aren't supported");
+		}
+
+		byte[] centralDirectory = new byte[(int) centralDirectorySize];
+		file.seek(centralDirectoryOffset);
+		file.readFully(centralDirectory);
+		List<Entry> entries = new ArrayList<>(numEntries);
+		int p = 0;
+		for (int i = 0; i < numEntries; i++)
+		{
+			if (p + CENTRAL_HEADER_LENGTH > centralDirectory.length || readInt(centralDirectory, p) != CENTRAL_HEADER_SIGNATURE)
+			{
+				throw new IOException("Bad central directory header");
+			}
+			int nameLength = readShort(centralDirectory, p + 28);
+			int extraLength = readShort(centralDirectory, p + 30);
+			int commentLength = readShort(centralDirectory, p + 32);
+			String name = new String(centralDirectory, p + CENTRAL_HEADER_LENGTH, nameLength, StandardCharsets.UTF_8);
+			long compressedSize = readInt(centralDirectory, p + 20) & MAX_32_BIT;
+			long size = readInt(centralDirectory, p + 24) & MAX_32_BIT;
+			long offset = readInt(centralDirectory, p + 42) & MAX_32_BIT;
+			if (compressedSize == MAX_32_BIT || size == MAX_32_BIT || offset == MAX_32_BIT)
+			{
+				throw new IOException("ZIP64 entries aren't supported");
+			}
+			entries.add(new Entry(name,
+				readShort(centralDirectory, p + 8),
+				readShort(centralDirectory, p + 10),
+				readInt(centralDirectory, p + 12),
+				readInt(centralDirectory, p + 16) & MAX_32_BIT,
+				compressedSize,
+				size,
+				offset));
+			p += CENTRAL_HEADER_LENGTH + nameLength + extraLength + commentLength;
+		}
+		return entries;
+	}
+
+	private void writeLocalHeader(byte[] nameBytes, int flags, int method, int dosTime, long crc, long compressedSize, long size) throws IOException
+	{
+		writeInt(0, LOCAL_HEADER_SIGNATURE);
+		writeShort(4, VERSION_NEEDED);
+		writeShort(6, flags);
+		writeShort(8, method);
+		writeInt(10, dosTime);
+		writeInt(14, (int) crc);
+		writeInt(18, (int) compressedSize);
+		writeInt(22, (int) size);
+		writeShort(26, nameBytes.length);
+		writeShort(28, 0); // extra field length
+		writeHeader(LOCAL_HEADER_LENGTH);
+		out.write(nameBytes);
+		position += nameBytes.length;
+	}
+
+	private void writeHeader(int length) throws IOException
+	{
+		out.write(header, 0, length);
+		position += length;
+	}
+
+	private void writeShort(int offset, int value)
+	{
+		header[offset] = (byte) value;
+		header[offset + 1] = (byte) (value >>> 8);
+	}
+
+	private void writeInt(int offset, int value)
+	{
+		header[offset] = (byte) value;
+		header[offset + 1] = (byte) (value >>> 8);
+		header[offset + 2] = (byte) (value >>> 16);
+		header[offset + 3] = (byte) (value >>> 24);
+	}
+
+	private static int readShort(byte[] b, int offset)
+	{
+		return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8;
+	}
+
+	private static int readInt(byte[] b, int offset)
+	{
+		return (b[offset] & 0xFF) | (b[offset + 1] & 0xFF) << 8 | (b[offset + 2] & 0xFF) << 16 | (b[offset + 3] & 0xFF) << 24;
+	}
+
+	private static void checkSize(long size) throws IOException
+	{
+		if (size >= MAX_32_BIT)
+		{
+			throw new IOException("Zip entries and archives of 4 GB or more aren't supported");
+		}
+	}
+
+	/**
+	 * Converts a time to the MS-DOS date/time format used by zip files (local time, with 2 second precision)
+	 */
+	private static int toDosTime(long millis)
+	{
+		Calendar calendar = Calendar.getInstance();
+		calendar.setTimeInMillis(millis);
+		int year = calendar.get(Calendar.YEAR);
+		if (year < 1980)
+		{
+			return (1 << 21) | (1 << 16);
+		}
+		return (year - 1980) << 25
+			| (calendar.get(Calendar.MONTH) + 1) << 21
+			| calendar.get(Calendar.DAY_OF_MONTH) << 16
+			| calendar.get(Calendar.HOUR_OF_DAY) << 11
+			| calendar.get(Calendar.MINUTE) << 5
+			| calendar.get(Calendar.SECOND) >> 1;
+	}
+}
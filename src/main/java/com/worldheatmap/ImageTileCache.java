@@ -0,0 +1,120 @@
+package com.worldheatmap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import javax.annotation.Nullable;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Sidecar of an incrementally written heatmap image (see HeatmapImage.writeHeatmapImageIncrementally()). For each tile of the image it records
+ * a hash of the heatmap tiles drawn in it, and where its compressed bytes are in the TIFF, so that the next image can copy the tiles that haven't changed.
+ * <p>
+ * It also records the settings that every tile's colours depend on (e.g. the heatmap's min/max values), since if any of those change, every tile has to be redrawn.
+ */
+@Slf4j
+class ImageTileCache
+{
+	private static final int MAGIC = 0x57484954; // "WHIT"
+	private static final int FORMAT_VERSION = 1;
+
+	final String renderSettings;
+	final File imageFile;
+	final long imageFileLength;
+	final long[] tileHashes;
+	final long[] tileOffsets;
+	final int[] tileByteCounts;
+
+	ImageTileCache(String renderSettings, File imageFile, long imageFileLength, long[] tileHashes, long[] tileOffsets, int[] tileByteCounts)
+	{
+		this.renderSettings = renderSettings;
+		this.imageFile = imageFile;
+		this.imageFileLength = imageFileLength;
+		this.tileHashes = tileHashes;
+		this.tileOffsets = tileOffsets;
+		this.tileByteCounts = tileByteCounts;
+	}
+
+	/**
+	 * @return Whether the tiles of the image it describes can be copied into an image rendered with the settings, i.e. whether the image is
+	 * still there as it was written and its tiles were coloured the same way
+	 */
+	boolean isReusableFor(String renderSettings, int numTiles)
+	{
+		return this.renderSettings.equals(renderSettings)
+			&& tileHashes.length == numTiles
+			&& imageFile.isFile()
+			&& imageFile.length() == imageFileLength;
+	}
+
+	/**
+	 * @return The cache, or null if there isn't one or it can't be read
+	 */
+	@Nullable
+	static ImageTileCache read(File cacheFile)
+	{
+		if (!cacheFile.isFile())
+		{
+			return null;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile))))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+			{
+				return null;
+			}
+			String renderSettings = in.readUTF();
+			File imageFile = new File(in.readUTF());
+			long imageFileLength = in.readLong();
+			int numTiles = in.readInt();
+			long[] tileHashes = new long[numTiles];
+			long[] tileOffsets = new long[numTiles];
+			int[] tileByteCounts = new int[numTiles];
+			for (int i = 0; i < numTiles; i++)
+			{
+				tileHashes[i] = in.readLong();
+				tileOffsets[i] = in.readLong();
+				tileByteCounts[i] = in.readInt();
+			}
+			return new ImageTileCache(renderSettings, imageFile, imageFileLength, tileHashes, tileOffsets, tileByteCounts);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			log.warn("Couldn't read image tile cache '{}', so the whole image will be redrawn: {}", cacheFile, e.toString());
+			return null;
+		}
+	}
+
+	void write(File cacheFile) throws IOException
+	{
+		if (!cacheFile.getParentFile().exists() && !cacheFile.getParentFile().mkdirs())
+		{
+			throw new IOException("Couldn't create directory for image tile cache '" + cacheFile + "'");
+		}
+		File tempFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile))))
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(renderSettings);
+			out.writeUTF(imageFile.getAbsolutePath());
+			out.writeLong(imageFileLength);
+			out.writeInt(tileHashes.length);
+			for (int i = 0; i < tileHashes.length; i++)
+			{
+				out.writeLong(tileHashes[i]);
+				out.writeLong(tileOffsets[i]);
+				out.writeInt(tileByteCounts[i]);
+			}
+		}
+		Files.move(tempFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+}
@@ -0,0 +1,291 @@
+package com.worldheatmap;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing (linear probing) hash map from primitive int keys to primitive int values.
+ * A value of 0 marks an empty slot, so 0 can never be stored: putting 0 removes the key instead.
+ * This suits heatmaps perfectly, since tiles that haven't been stepped on aren't kept track of anyway.
+ * Nothing is allocated by get/put/addTo/remove/forEach (except when the table has to grow).
+ */
+public class IntIntOpenHashMap
+{
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final float MAX_LOAD_FACTOR = 2 / 3f;
+
+	private int[] keys;
+	private int[] values;
+	private int size = 0;
+	private int mask;
+	private int resizeThreshold;
+
+	/**
+	 * Called for each key/value pair in the map
+	 */
+	@FunctionalInterface
+	public interface IntIntVisitor
+	{
+		void visit(int key, int value);
+	}
+
+	public IntIntOpenHashMap()
+	{
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param expectedSize Number of entries the map should be able to hold without resizing
+	 */
+	public IntIntOpenHashMap(int expectedSize)
+	{
+		allocate(tableSizeFor(expectedSize));
+	}
+
+	private IntIntOpenHashMap(IntIntOpenHashMap other)
+	{
+		this.keys = other.keys.clone();
+		this.values = other.values.clone();
+		this.size = other.size;
+		this.mask = other.mask;
+		this.resizeThreshold = other.resizeThreshold;
+	}
+
+	public IntIntOpenHashMap copy()
+	{
+		return new IntIntOpenHashMap(this);
+	}
+
+	private static int tableSizeFor(int expectedSize)
+	{
+		int capacity = DEFAULT_CAPACITY;
+		while (capacity * MAX_LOAD_FACTOR < expectedSize)
+		{
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new int[capacity];
+		values = new int[capacity];
+		mask = capacity - 1;
+		resizeThreshold = (int) (capacity * MAX_LOAD_FACTOR);
+	}
+
+	private int slotOf(int key)
+	{
+		// Fibonacci hashing spreads neighbouring packed coordinates across the table
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	/**
+	 * @return The value mapped to the key, or 0 if there is none
+	 */
+	public int get(int key)
+	{
+		int slot = slotOf(key);
+		while (values[slot] != 0)
+		{
+			if (keys[slot] == key)
+			{
+				return values[slot];
+			}
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
+	public boolean containsKey(int key)
+	{
+		return get(key) != 0;
+	}
+
+	/**
+	 * Maps the key to the value. Putting a value of 0 removes the key.
+	 *
+	 * @return The previous value, or 0 if there was none
+	 */
+	public int put(int key, int value)
+	{
+		if (value == 0)
+		{
+			return remove(key);
+		}
+		int slot = slotOf(key);
+		while (values[slot] != 0)
+		{
+			if (keys[slot] == key)
+			{
+				int oldValue = values[slot];
+				values[slot] = value;
+				return oldValue;
+			}
+			slot = (slot + 1) & mask;
+		}
+		keys[slot] = key;
+		values[slot] = value;
+		if (++size > resizeThreshold)
+		{
+			rehash(keys.length << 1);
+		}
+		return 0;
+	}
+
+	/**
+	 * Adds delta to the value mapped to the key (treating a missing key as 0). If the result is 0 the key is removed.
+	 *
+	 * @return The new value
+	 */
+	public int addTo(int key, int delta)
+	{
+		int newValue = get(key) + delta;
+		put(key, newValue);
+		return newValue;
+	}
+
+	/**
+	 * @return The removed value, or 0 if the key wasn't present
+	 */
+	public int remove(int key)
+	{
+		int slot = slotOf(key);
+		while (values[slot] != 0)
+		{
+			if (keys[slot] == key)
+			{
+				int oldValue = values[slot];
+				shiftBackFrom(slot);
+				size--;
+				return oldValue;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return 0;
+	}
+
+	/**
+	 * Backward-shift deletion, so that linear probing never needs tombstones
+	 */
+	private void shiftBackFrom(int gap)
+	{
+		int slot = gap;
+		while (true)
+		{
+			slot = (slot + 1) & mask;
+			if (values[slot] == 0)
+			{
+				break;
+			}
+			int home = slotOf(keys[slot]);
+			// Move the entry into the gap if its home slot isn't cyclically within (gap, slot]
+			boolean homeBetween = (gap <= slot) ? (gap < home && home <= slot) : (gap < home || home <= slot);
+			if (!homeBetween)
+			{
+				keys[gap] = keys[slot];
+				values[gap] = values[slot];
+				gap = slot;
+			}
+		}
+		keys[gap] = 0;
+		values[gap] = 0;
+	}
+
+	private void rehash(int newCapacity)
+	{
+		int[] oldKeys = keys;
+		int[] oldValues = values;
+		allocate(newCapacity);
+		for (int i = 0; i < oldValues.length; i++)
+		{
+			if (oldValues[i] != 0)
+			{
+				int slot = slotOf(oldKeys[i]);
+				while (values[slot] != 0)
+				{
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	/**
+	 * Shrinks the table to the smallest capacity that holds the current entries, if removals have left it bigger than that
+	 *
+	 * @return Whether the table was shrunk
+	 */
+	public boolean trimToSize()
+	{
+		int capacity = tableSizeFor(size);
+		if (capacity >= keys.length)
+		{
+			return false;
+		}
+		rehash(capacity);
+		return true;
+	}
+
+	/**
+	 * Calls the visitor for each entry, in table order (which is unspecified)
+	 */
+	public void forEach(IntIntVisitor visitor)
+	{
+		int[] keys = this.keys;
+		int[] values = this.values;
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] != 0)
+			{
+				visitor.visit(keys[i], values[i]);
+			}
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public boolean isEmpty()
+	{
+		return size == 0;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(keys, 0);
+		Arrays.fill(values, 0);
+		size = 0;
+	}
+
+	/**
+	 * @return The keys currently in the map, in table order
+	 */
+	public int[] keys()
+	{
+		int[] result = new int[size];
+		int n = 0;
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] != 0)
+			{
+				result[n++] = keys[i];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the memory footprint of the map in bytes, assuming 64 bit JVM with compressed oops and 8-byte alignment
+	 * @return size in bytes
+	 */
+	public long estimateSize()
+	{
+		// 12 byte object header + 2 array references + 3 ints, aligned to 8 bytes = 32 bytes
+		// Each int[] is a 16 byte array header followed by 4 bytes per element
+		return 32 + 2 * (16 + 4L * keys.length);
+	}
+}
@@ -0,0 +1,86 @@
+package com.worldheatmap;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A temporary file of equally sized slots, memory mapped so that image strips can be rendered into it rather than onto the heap.
+ * The operating system pages the slots in and out as needed, so the strips can be far bigger than the client's heap would allow.
+ */
+@Slf4j
+public class MappedStripFile implements Closeable
+{
+	private final File file;
+	private final MappedByteBuffer[] slots;
+
+	private MappedStripFile(File file, MappedByteBuffer[] slots)
+	{
+		this.file = file;
+		this.slots = slots;
+	}
+
+	/**
+	 * Creates the file in the system's temporary directory. It's deleted when closed.
+	 *
+	 * @param numSlots How many strips the file holds at once
+	 * @param slotSize The size of a strip, in bytes
+	 */
+	public static MappedStripFile create(int numSlots, long slotSize) throws IOException
+	{
+		if (slotSize > Integer.MAX_VALUE)
+		{
+			throw new IOException("Image strips of " + slotSize + " bytes are too big to be memory mapped");
+		}
+		File file = File.createTempFile("worldheatmap-strips-", ".tmp");
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+		{
+			raf.setLength(numSlots * slotSize);
+			MappedByteBuffer[] slots = new MappedByteBuffer[numSlots];
+			for (int i = 0; i < numSlots; i++)
+			{
+				// The mappings stay valid after the file is closed
+				slots[i] = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, i * slotSize, slotSize);
+			}
+			return new MappedStripFile(file, slots);
+		}
+		catch (IOException | RuntimeException e)
+		{
+			if (!file.delete())
+			{
+				file.deleteOnExit();
+			}
+			throw e;
+		}
+	}
+
+	public int getNumSlots()
+	{
+		return slots.length;
+	}
+
+	/**
+	 * @return The slot's bytes, as a buffer with its own position and limit
+	 */
+	public ByteBuffer getSlot(int slot)
+	{
+		return slots[slot].duplicate();
+	}
+
+	@Override
+	public void close()
+	{
+		// The file can't be deleted while it's still mapped on some platforms, and mappings are only released once they're garbage collected
+		if (!file.delete())
+		{
+			log.debug("Couldn't delete image strip file '{}' yet, so it'll be deleted on exit", file);
+			file.deleteOnExit();
+		}
+	}
+}
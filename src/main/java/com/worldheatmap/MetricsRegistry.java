@@ -0,0 +1,401 @@
+package com.worldheatmap;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Counters, histograms and gauges of how the plugin's hot paths are doing, e.g. how long each game tick's handler takes and how big
+ * each save is. They're shown in the panel's diagnostics section, and can be exported as JSON or CSV.
+ * <p>
+ * Metrics are created on first use, by name, and can be recorded to from any thread. Recording doesn't allocate, so it can be done
+ * on the client thread every tick.
+ */
+public class MetricsRegistry
+{
+	private static final MetricsRegistry INSTANCE = new MetricsRegistry();
+
+	// Sorted, so the metrics are listed with related ones together
+	private final Map<String, Metric> metrics = new ConcurrentSkipListMap<>();
+
+	/**
+	 * @return The registry that the plugin records to
+	 */
+	static MetricsRegistry get()
+	{
+		return INSTANCE;
+	}
+
+	public Counter counter(String name)
+	{
+		return getOrCreate(name, Counter.class, Counter::new);
+	}
+
+	public Gauge gauge(String name, Unit unit)
+	{
+		return getOrCreate(name, Gauge.class, n -> new Gauge(n, unit));
+	}
+
+	public Histogram histogram(String name, Unit unit)
+	{
+		return getOrCreate(name, Histogram.class, n -> new Histogram(n, unit));
+	}
+
+	private <T extends Metric> T getOrCreate(String name, Class<T> kind, Function<String, T> factory)
+	{
+		Metric metric = metrics.computeIfAbsent(name, factory::apply);
+		if (!kind.isInstance(metric))
+		{
+			throw new IllegalArgumentException("Metric '" + name + "' is a " + metric.getKind() + ", not a " + kind.getSimpleName().toLowerCase());
+		}
+		return kind.cast(metric);
+	}
+
+	/**
+	 * @return One line per metric, for reading in the panel
+	 */
+	public String toText()
+	{
+		StringBuilder text = new StringBuilder();
+		for (Metric metric : metrics.values())
+		{
+			text.append(metric.name).append(": ").append(metric.describe()).append('\n');
+		}
+		return text.toString();
+	}
+
+	public String toJson()
+	{
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"timestamp\": \"").append(Instant.now()).append("\",\n  \"metrics\": [");
+		String separator = "\n";
+		for (Metric metric : metrics.values())
+		{
+			json.append(separator).append("    {\"name\": ").append(quote(metric.name)).append(", \"type\": \"").append(metric.getKind()).append('"');
+			for (Map.Entry<String, Number> field : metric.fields().entrySet())
+			{
+				json.append(", \"").append(field.getKey()).append("\": ").append(field.getValue());
+			}
+			if (metric.unit != Unit.NONE)
+			{
+				json.append(", \"unit\": \"").append(metric.unit.symbol).append('"');
+			}
+			json.append('}');
+			separator = ",\n";
+		}
+		json.append("\n  ]\n}\n");
+		return json.toString();
+	}
+
+	public String toCsv()
+	{
+		String[] columns = {"value", "count", "sum", "min", "mean", "p50", "p90", "p99", "max"};
+		StringBuilder csv = new StringBuilder("name,type,unit");
+		for (String column : columns)
+		{
+			csv.append(',').append(column);
+		}
+		csv.append('\n');
+		for (Metric metric : metrics.values())
+		{
+			csv.append(metric.name).append(',').append(metric.getKind()).append(',').append(metric.unit.symbol);
+			Map<String, Number> fields = metric.fields();
+			for (String column : columns)
+			{
+				csv.append(',');
+				if (fields.containsKey(column))
+				{
+					csv.append(fields.get(column));
+				}
+			}
+			csv.append('\n');
+		}
+		return csv.toString();
+	}
+
+	private static String quote(String s)
+	{
+		return '"' + s.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+	}
+
+	public enum Unit
+	{
+		NONE(""),
+		NANOSECONDS("ns"),
+		BYTES("bytes");
+
+		final String symbol;
+
+		Unit(String symbol)
+		{
+			this.symbol = symbol;
+		}
+
+		String format(double value)
+		{
+			if (this == NANOSECONDS)
+			{
+				return value >= 1e9 ? String.format("%.2fs", value / 1e9)
+					: value >= 1e6 ? String.format("%.2fms", value / 1e6)
+					: String.format("%.1fus", value / 1e3);
+			}
+			if (this == NONE)
+			{
+				return String.format("%.0f", value);
+			}
+			return value >= 1 << 20 ? String.format("%.2fMB", value / (1 << 20))
+				: value >= 1 << 10 ? String.format("%.1fKB", value / (1 << 10))
+				: String.format("%.0fB", value);
+		}
+	}
+
+	public abstract static class Metric
+	{
+		final String name;
+		final Unit unit;
+
+		Metric(String name, Unit unit)
+		{
+			this.name = name;
+			this.unit = unit;
+		}
+
+		abstract String getKind();
+
+		abstract String describe();
+
+		/**
+		 * @return The metric's values by name, in the order they're exported
+		 */
+		abstract Map<String, Number> fields();
+	}
+
+	/**
+	 * A count of things that have happened, e.g. increments applied
+	 */
+	public static class Counter extends Metric
+	{
+		private final LongAdder count = new LongAdder();
+
+		Counter(String name)
+		{
+			super(name, Unit.NONE);
+		}
+
+		public void increment()
+		{
+			count.increment();
+		}
+
+		public void add(long amount)
+		{
+			count.add(amount);
+		}
+
+		public long get()
+		{
+			return count.sum();
+		}
+
+		@Override
+		String getKind()
+		{
+			return "counter";
+		}
+
+		@Override
+		String describe()
+		{
+			return Long.toString(get());
+		}
+
+		@Override
+		Map<String, Number> fields()
+		{
+			return Map.of("value", get());
+		}
+	}
+
+	/**
+	 * The latest value of something, e.g. a heatmap's memory footprint
+	 */
+	public static class Gauge extends Metric
+	{
+		private volatile long value;
+
+		Gauge(String name, Unit unit)
+		{
+			super(name, unit);
+		}
+
+		public void set(long value)
+		{
+			this.value = value;
+		}
+
+		public long get()
+		{
+			return value;
+		}
+
+		@Override
+		String getKind()
+		{
+			return "gauge";
+		}
+
+		@Override
+		String describe()
+		{
+			return unit.format(value);
+		}
+
+		@Override
+		Map<String, Number> fields()
+		{
+			return Map.of("value", value);
+		}
+	}
+
+	/**
+	 * The distribution of the values recorded, e.g. durations. Values are counted in buckets 1/64th of their magnitude wide,
+	 * so percentiles are within about 1.5% of the actual values without keeping every value.
+	 */
+	public static class Histogram extends Metric
+	{
+		private static final int SUB_BUCKET_BITS = 6;
+		private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+		private final long[] counts = new long[(64 - SUB_BUCKET_BITS) * SUB_BUCKETS + SUB_BUCKETS];
+		private long count;
+		private long sum;
+		private long min = Long.MAX_VALUE;
+		private long max;
+
+		Histogram(String name, Unit unit)
+		{
+			super(name, unit);
+		}
+
+		public synchronized void record(long value)
+		{
+			value = Math.max(0, value);
+			counts[bucketOf(value)]++;
+			count++;
+			// Saturates rather than overflowing, so that a huge value doesn't make the mean negative
+			sum = sum > Long.MAX_VALUE - value ? Long.MAX_VALUE : sum + value;
+			min = Math.min(min, value);
+			max = Math.max(max, value);
+		}
+
+		/**
+		 * Records the time since startNanos, as given by System.nanoTime()
+		 */
+		public void recordSince(long startNanos)
+		{
+			record(System.nanoTime() - startNanos);
+		}
+
+		public synchronized void reset()
+		{
+			Arrays.fill(counts, 0);
+			count = 0;
+			sum = 0;
+			min = Long.MAX_VALUE;
+			max = 0;
+		}
+
+		public synchronized long getCount()
+		{
+			return count;
+		}
+
+		public synchronized long getMax()
+		{
+			return max;
+		}
+
+		/**
+		 * @param percentile Between 0 and 1
+		 * @return The upper bound of the bucket the percentile is in, or 0 if nothing has been recorded
+		 */
+		public synchronized long getPercentile(double percentile)
+		{
+			long rank = Math.max(1, (long) Math.ceil(percentile * count));
+			long seen = 0;
+			for (int bucket = 0; bucket < counts.length && seen < count; bucket++)
+			{
+				seen += counts[bucket];
+				if (seen >= rank)
+				{
+					return Math.min(max, upperBoundOf(bucket));
+				}
+			}
+			return max;
+		}
+
+		@Override
+		String getKind()
+		{
+			return "histogram";
+		}
+
+		@Override
+		synchronized String describe()
+		{
+			if (count == 0)
+			{
+				return "none";
+			}
+			return "n=" + count + " mean=" + unit.format((double) sum / count) + " p50=" + unit.format(getPercentile(0.5))
+				+ " p99=" + unit.format(getPercentile(0.99)) + " max=" + unit.format(max);
+		}
+
+		@Override
+		synchronized Map<String, Number> fields()
+		{
+			Map<String, Number> fields = new LinkedHashMap<>();
+			fields.put("count", count);
+			fields.put("sum", sum);
+			fields.put("min", count == 0 ? 0 : min);
+			fields.put("mean", count == 0 ? 0 : sum / count);
+			fields.put("p50", getPercentile(0.5));
+			fields.put("p90", getPercentile(0.9));
+			fields.put("p99", getPercentile(0.99));
+			fields.put("max", max);
+			return fields;
+		}
+
+		/**
+		 * @return The index of the bucket the (non-negative) value is counted in. Values below 128 each have a bucket of their own
+		 */
+		static int bucketOf(long value)
+		{
+			if (value < SUB_BUCKETS)
+			{
+				return (int) value;
+			}
+			// The bucket is picked by the SUB_BUCKET_BITS bits below the highest one
+			int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+			return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+		}
+
+		/**
+		 * @return The highest value counted in the bucket
+		 */
+		static long upperBoundOf(int bucket)
+		{
+			if (bucket < SUB_BUCKETS)
+			{
+				return bucket;
+			}
+			int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+			long subBucket = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+			return ((subBucket + 1) << shift) - 1;
+		}
+	}
+}
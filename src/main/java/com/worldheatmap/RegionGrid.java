@@ -0,0 +1,732 @@
+package com.worldheatmap;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tile storage which groups tiles into the game's 64x64 map regions.
+ * Only visited regions are allocated. A region starts out as a compact sparse block (a small primitive hash map)
+ * and is promoted to a dense int[64*64] block once enough of its tiles have been visited, at which point
+ * reading/writing a tile is a single array index after the region lookup.
+ * Each block also keeps track of its tile count, value sum, max and min value, so per-region queries are cheap.
+ * Queries over a rectangle of tiles use those for the regions inside it, and only look at the tiles of the regions along its edges.
+ * <p>
+ * {@link #snapshot()} shares the blocks between the grid and the snapshot, and whichever of them writes to a shared
+ * block first copies it (copy-on-write). The region index and the array of blocks are shared the same way, and copied
+ * before the first write that adds, removes or replaces a block, so taking a snapshot costs O(1).
+ */
+public class RegionGrid
+{
+	static final int REGION_SHIFT = 6;
+	static final int REGION_SIZE = 1 << REGION_SHIFT;
+	static final int REGION_AREA = REGION_SIZE * REGION_SIZE;
+	private static final int LOCAL_MASK = REGION_SIZE - 1;
+	// A sparse block holding more tiles than this would use about as much memory as a dense block
+	private static final int SPARSE_MAX_TILES = 1024;
+	// Source of the grids' epochs. Unique across all grids, so no two grids ever own the same blocks
+	private static final AtomicInteger nextEpoch = new AtomicInteger();
+
+	// Region key (packed region coordinates) -> index into blocks, plus 1 (since 0 means absent)
+	private IntIntOpenHashMap regionIndex;
+	private Block[] blocks;
+	// Whether regionIndex and blocks are shared with a snapshot (or the grid it's a snapshot of), and have to be copied before being written to
+	private boolean isIndexShared = false;
+	private int numBlocks = 0;
+	// The blocks' estimateSize() summed, kept up to date as they change so that estimateSize() doesn't have to visit them
+	private long blocksSize = 0;
+	// Blocks of any other epoch are shared with a snapshot (or the grid it's a snapshot of), and are copied before being written to
+	private int epoch = nextEpoch.incrementAndGet();
+
+	// Most recently used block, since consecutive accesses are almost always in the same region.
+	// A single reference (rather than a key and a block), so that snapshots can be read by several threads at once
+	private Block lastBlock = null;
+
+	/**
+	 * Called for each visited region
+	 */
+	@FunctionalInterface
+	public interface RegionVisitor
+	{
+		void visit(int regionX, int regionY, int numTiles, long sum, int max);
+	}
+
+	/**
+	 * Summary of the visited tiles within a rectangle, see summarizeRect()
+	 */
+	public static final class RectSummary
+	{
+		public final int numTiles;
+		public final long sum;
+		// Both are 0 if there aren't any visited tiles
+		public final int max;
+		public final int min;
+
+		RectSummary(int numTiles, long sum, int max, int min)
+		{
+			this.numTiles = numTiles;
+			this.sum = sum;
+			this.max = max;
+			this.min = min;
+		}
+
+		/**
+		 * @return The summary of the tiles of both rectangles, which mustn't overlap
+		 */
+		public RectSummary combine(RectSummary other)
+		{
+			if (numTiles == 0 || other.numTiles == 0)
+			{
+				return numTiles == 0 ? other : this;
+			}
+			return new RectSummary(numTiles + other.numTiles, sum + other.sum, Math.max(max, other.max), Math.min(min, other.min));
+		}
+	}
+
+	@FunctionalInterface
+	private interface BlockVisitor
+	{
+		/**
+		 * @param isContained Whether all of the block's region is within the rectangle being visited
+		 */
+		void visit(Block block, boolean isContained);
+	}
+
+	static final class Block
+	{
+		// Marks max/min as needing to be recalculated from the block's tiles when next asked for
+		private static final int UNKNOWN = -1;
+
+		final int regionX;
+		final int regionY;
+		// The epoch of the grid that owns (i.e. may write to) the block
+		final int epoch;
+		// Exactly one of dense/sparse is non-null. Both are indexed by localIndex()
+		int[] dense;
+		IntIntOpenHashMap sparse;
+		int numTiles = 0;
+		long sum = 0;
+		// Each is a single field (rather than a value and a dirty flag) so that a shared block's readers can race to recalculate it harmlessly
+		int max = 0;
+		int min = 0;
+		// Incremented whenever one of the block's tiles changes, and kept by copies of the block, so it only ever goes up while the region is visited
+		int modCount = 0;
+
+		Block(int regionX, int regionY, int epoch)
+		{
+			this.regionX = regionX;
+			this.regionY = regionY;
+			this.epoch = epoch;
+			this.sparse = new IntIntOpenHashMap();
+		}
+
+		/**
+		 * Copies the block into the given epoch
+		 */
+		Block(Block other, int epoch)
+		{
+			this.regionX = other.regionX;
+			this.regionY = other.regionY;
+			this.epoch = epoch;
+			this.dense = other.dense != null ? other.dense.clone() : null;
+			this.sparse = other.sparse != null ? other.sparse.copy() : null;
+			this.numTiles = other.numTiles;
+			this.sum = other.sum;
+			this.max = other.max;
+			this.min = other.min;
+			this.modCount = other.modCount;
+		}
+
+		int get(int localIndex)
+		{
+			return dense != null ? dense[localIndex] : sparse.get(localIndex);
+		}
+
+		/**
+		 * @return The previous value
+		 */
+		int put(int localIndex, int value)
+		{
+			int oldValue;
+			if (dense != null)
+			{
+				oldValue = dense[localIndex];
+				dense[localIndex] = value;
+			}
+			else
+			{
+				oldValue = sparse.put(localIndex, value);
+			}
+
+			if (oldValue == 0 && value != 0)
+			{
+				numTiles++;
+			}
+			else if (oldValue != 0 && value == 0)
+			{
+				numTiles--;
+			}
+			sum += value - oldValue;
+			modCount++;
+			if (value != 0 && max != UNKNOWN && value >= max)
+			{
+				max = value;
+			}
+			else if (oldValue == max)
+			{
+				max = UNKNOWN;
+			}
+			if (value != 0 && (numTiles == 1 || (min != UNKNOWN && value <= min)))
+			{
+				min = value;
+			}
+			else if (oldValue == min)
+			{
+				min = UNKNOWN;
+			}
+
+			if (dense == null && numTiles > SPARSE_MAX_TILES)
+			{
+				promote();
+			}
+			return oldValue;
+		}
+
+		private void promote()
+		{
+			int[] newDense = new int[REGION_AREA];
+			sparse.forEach((localIndex, value) -> newDense[localIndex] = value);
+			dense = newDense;
+			sparse = null;
+		}
+
+		int getMax()
+		{
+			int max = this.max;
+			if (max == UNKNOWN)
+			{
+				int[] newMax = {0};
+				forEach((localIndex, value) -> newMax[0] = Math.max(newMax[0], value));
+				max = newMax[0];
+				this.max = max;
+			}
+			return max;
+		}
+
+		int getMin()
+		{
+			int min = this.min;
+			if (min == UNKNOWN)
+			{
+				int[] newMin = {Integer.MAX_VALUE};
+				forEach((localIndex, value) -> newMin[0] = Math.min(newMin[0], value));
+				min = newMin[0];
+				this.min = min;
+			}
+			return min;
+		}
+
+		/**
+		 * Calls the visitor for each non-zero tile with its local index. Dense blocks are visited in row-major order.
+		 */
+		void forEach(IntIntOpenHashMap.IntIntVisitor visitor)
+		{
+			if (dense != null)
+			{
+				int[] dense = this.dense;
+				for (int i = 0; i < REGION_AREA; i++)
+				{
+					if (dense[i] != 0)
+					{
+						visitor.visit(i, dense[i]);
+					}
+				}
+			}
+			else
+			{
+				sparse.forEach(visitor);
+			}
+		}
+
+		long estimateSize()
+		{
+			// 12 byte header + 2 references + 7 ints + long, aligned to 8 bytes = 56 bytes
+			return 56 + (dense != null ? 16 + 4L * REGION_AREA : sparse.estimateSize());
+		}
+	}
+
+	public RegionGrid()
+	{
+		this.regionIndex = new IntIntOpenHashMap();
+		this.blocks = new Block[16];
+	}
+
+	private RegionGrid(RegionGrid other)
+	{
+		this.regionIndex = other.regionIndex;
+		this.blocks = other.blocks;
+		this.isIndexShared = true;
+		this.numBlocks = other.numBlocks;
+		this.blocksSize = other.blocksSize;
+	}
+
+	/**
+	 * Returns a copy of the grid as it is now. Costs O(1): the region index and the blocks are shared until either grid writes to them.
+	 * Afterwards, the snapshot can be read by several threads at once while this grid keeps being written to.
+	 */
+	public RegionGrid snapshot()
+	{
+		RegionGrid snapshot = new RegionGrid(this);
+		// All of the current blocks, and the index of them, are now shared, so this grid has to copy them before writing to them too
+		isIndexShared = true;
+		epoch = nextEpoch.incrementAndGet();
+		return snapshot;
+	}
+
+	/**
+	 * Copies the region index and the array of blocks if they're shared with a snapshot, before they're written to
+	 */
+	private void ensureIndexOwned()
+	{
+		if (isIndexShared)
+		{
+			regionIndex = regionIndex.copy();
+			blocks = Arrays.copyOf(blocks, Math.max(16, numBlocks));
+			isIndexShared = false;
+		}
+	}
+
+	static int regionKey(int regionX, int regionY)
+	{
+		return HeatmapNew.packTile(regionX, regionY);
+	}
+
+	private static int localIndex(int x, int y)
+	{
+		return ((y & LOCAL_MASK) << REGION_SHIFT) | (x & LOCAL_MASK);
+	}
+
+	private Block findBlock(int x, int y)
+	{
+		int regionX = x >> REGION_SHIFT;
+		int regionY = y >> REGION_SHIFT;
+		Block block = lastBlock;
+		if (block != null && block.regionX == regionX && block.regionY == regionY)
+		{
+			return block;
+		}
+		int index = regionIndex.get(regionKey(regionX, regionY));
+		if (index == 0)
+		{
+			return null;
+		}
+		block = blocks[index - 1];
+		lastBlock = block;
+		return block;
+	}
+
+	/**
+	 * Replaces the block, which is shared with a snapshot, with a copy owned by this grid
+	 */
+	private Block copyBlock(Block block)
+	{
+		ensureIndexOwned();
+		int index = regionIndex.get(regionKey(block.regionX, block.regionY)) - 1;
+		Block copy = new Block(block, epoch);
+		blocks[index] = copy;
+		blocksSize += copy.estimateSize() - block.estimateSize();
+		lastBlock = copy;
+		return copy;
+	}
+
+	private Block createBlock(int x, int y)
+	{
+		int regionX = x >> REGION_SHIFT;
+		int regionY = y >> REGION_SHIFT;
+		Block block = new Block(regionX, regionY, epoch);
+		ensureIndexOwned();
+		if (numBlocks == blocks.length)
+		{
+			Block[] newBlocks = new Block[blocks.length * 2];
+			System.arraycopy(blocks, 0, newBlocks, 0, numBlocks);
+			blocks = newBlocks;
+		}
+		blocks[numBlocks++] = block;
+		blocksSize += block.estimateSize();
+		regionIndex.put(regionKey(regionX, regionY), numBlocks);
+		lastBlock = block;
+		return block;
+	}
+
+	private void removeBlock(Block block)
+	{
+		ensureIndexOwned();
+		int key = regionKey(block.regionX, block.regionY);
+		int index = regionIndex.remove(key) - 1;
+		// Move the last block into the freed slot
+		Block moved = blocks[--numBlocks];
+		blocks[numBlocks] = null;
+		blocksSize -= block.estimateSize();
+		if (moved != block)
+		{
+			blocks[index] = moved;
+			regionIndex.put(regionKey(moved.regionX, moved.regionY), index + 1);
+		}
+		lastBlock = null;
+	}
+
+	/**
+	 * @return The value of the tile, or 0 if it hasn't been visited
+	 */
+	public int get(int x, int y)
+	{
+		Block block = findBlock(x, y);
+		return block == null ? 0 : block.get(localIndex(x, y));
+	}
+
+	/**
+	 * Sets the value of the tile. Setting a value of 0 removes the tile.
+	 *
+	 * @return The previous value of the tile
+	 */
+	public int put(int x, int y, int value)
+	{
+		Block block = findBlock(x, y);
+		if (block == null)
+		{
+			if (value == 0)
+			{
+				return 0;
+			}
+			block = createBlock(x, y);
+		}
+		else if (block.epoch != epoch)
+		{
+			if (block.get(localIndex(x, y)) == value)
+			{
+				return value;
+			}
+			block = copyBlock(block);
+		}
+		// The block's size only changes when its sparse table grows or it's promoted, but checking is cheaper than tracking when that happens
+		long blockSizeBefore = block.estimateSize();
+		int oldValue = block.put(localIndex(x, y), value);
+		blocksSize += block.estimateSize() - blockSizeBefore;
+		if (block.numTiles == 0)
+		{
+			removeBlock(block);
+		}
+		return oldValue;
+	}
+
+	/**
+	 * Calls the visitor for each visited tile, region by region
+	 */
+	public void forEachTile(HeatmapNew.TileVisitor visitor)
+	{
+		for (int i = 0; i < numBlocks; i++)
+		{
+			forEachTile(blocks[i], visitor);
+		}
+	}
+
+	/**
+	 * Calls the visitor for each visited tile in the given region
+	 */
+	public void forEachTileInRegion(int regionX, int regionY, HeatmapNew.TileVisitor visitor)
+	{
+		Block block = getBlock(regionX, regionY);
+		if (block != null)
+		{
+			forEachTile(block, visitor);
+		}
+	}
+
+	private static void forEachTile(Block block, HeatmapNew.TileVisitor visitor)
+	{
+		int baseX = block.regionX << REGION_SHIFT;
+		int baseY = block.regionY << REGION_SHIFT;
+		block.forEach((localIndex, value) -> visitor.visit(baseX + (localIndex & LOCAL_MASK), baseY + (localIndex >> REGION_SHIFT), value));
+	}
+
+	/**
+	 * Calls the visitor for each visited tile within the rectangle (of tile coordinates), region by region.
+	 * Costs about as much as the tiles it visits, plus looking at the tiles of the regions the rectangle's edges cut through.
+	 */
+	public void forEachTileInRect(Rectangle rect, HeatmapNew.TileVisitor visitor)
+	{
+		forEachBlockInRect(rect, (block, isContained) -> {
+			if (isContained)
+			{
+				forEachTile(block, visitor);
+			}
+			else
+			{
+				forEachTileInRect(block, rect, visitor);
+			}
+		});
+	}
+
+	/**
+	 * @return The tile count, value sum, max and min of the visited tiles within the rectangle (of tile coordinates). Uses the summaries kept
+	 * by the regions inside it, so only the tiles of the regions the rectangle's edges cut through are looked at
+	 */
+	public RectSummary summarizeRect(Rectangle rect)
+	{
+		int[] numTiles = {0};
+		long[] sum = {0};
+		int[] max = {0};
+		int[] min = {Integer.MAX_VALUE};
+		forEachBlockInRect(rect, (block, isContained) -> {
+			if (isContained)
+			{
+				numTiles[0] += block.numTiles;
+				sum[0] += block.sum;
+				max[0] = Math.max(max[0], block.getMax());
+				min[0] = Math.min(min[0], block.getMin());
+			}
+			else
+			{
+				forEachTileInRect(block, rect, (x, y, value) -> {
+					numTiles[0]++;
+					sum[0] += value;
+					max[0] = Math.max(max[0], value);
+					min[0] = Math.min(min[0], value);
+				});
+			}
+		});
+		return new RectSummary(numTiles[0], sum[0], max[0], numTiles[0] == 0 ? 0 : min[0]);
+	}
+
+	/**
+	 * Calls the visitor for each visited region overlapping the rectangle. Looks the regions up by their coordinates if the rectangle covers
+	 * fewer regions than have been visited, and otherwise goes through the visited ones, so it costs at most O(min(covered, visited)) regions.
+	 */
+	private void forEachBlockInRect(Rectangle rect, BlockVisitor visitor)
+	{
+		if (rect.isEmpty())
+		{
+			return;
+		}
+		int minX = rect.x;
+		int minY = rect.y;
+		int maxX = rect.x + rect.width - 1;
+		int maxY = rect.y + rect.height - 1;
+		int minRegionX = minX >> REGION_SHIFT;
+		int minRegionY = minY >> REGION_SHIFT;
+		int maxRegionX = maxX >> REGION_SHIFT;
+		int maxRegionY = maxY >> REGION_SHIFT;
+		long numRegionsCovered = (long) (maxRegionX - minRegionX + 1) * (maxRegionY - minRegionY + 1);
+		if (numRegionsCovered <= numBlocks)
+		{
+			for (int regionX = minRegionX; regionX <= maxRegionX; regionX++)
+			{
+				for (int regionY = minRegionY; regionY <= maxRegionY; regionY++)
+				{
+					Block block = getBlock(regionX, regionY);
+					if (block != null)
+					{
+						visitor.visit(block, isBlockInRect(block, minX, minY, maxX, maxY));
+					}
+				}
+			}
+		}
+		else
+		{
+			for (int i = 0; i < numBlocks; i++)
+			{
+				Block block = blocks[i];
+				if (block.regionX >= minRegionX && block.regionX <= maxRegionX && block.regionY >= minRegionY && block.regionY <= maxRegionY)
+				{
+					visitor.visit(block, isBlockInRect(block, minX, minY, maxX, maxY));
+				}
+			}
+		}
+	}
+
+	private static boolean isBlockInRect(Block block, int minX, int minY, int maxX, int maxY)
+	{
+		int baseX = block.regionX << REGION_SHIFT;
+		int baseY = block.regionY << REGION_SHIFT;
+		return baseX >= minX && baseY >= minY && baseX + LOCAL_MASK <= maxX && baseY + LOCAL_MASK <= maxY;
+	}
+
+	/**
+	 * Calls the visitor for each visited tile of the block within the rectangle. Dense blocks only have the rows and columns within it looked at
+	 */
+	private static void forEachTileInRect(Block block, Rectangle rect, HeatmapNew.TileVisitor visitor)
+	{
+		int baseX = block.regionX << REGION_SHIFT;
+		int baseY = block.regionY << REGION_SHIFT;
+		int minLocalX = Math.max(0, rect.x - baseX);
+		int minLocalY = Math.max(0, rect.y - baseY);
+		int maxLocalX = Math.min(LOCAL_MASK, rect.x + rect.width - 1 - baseX);
+		int maxLocalY = Math.min(LOCAL_MASK, rect.y + rect.height - 1 - baseY);
+		if (block.dense != null)
+		{
+			int[] dense = block.dense;
+			for (int localY = minLocalY; localY <= maxLocalY; localY++)
+			{
+				for (int localX = minLocalX; localX <= maxLocalX; localX++)
+				{
+					int value = dense[(localY << REGION_SHIFT) | localX];
+					if (value != 0)
+					{
+						visitor.visit(baseX + localX, baseY + localY, value);
+					}
+				}
+			}
+		}
+		else
+		{
+			block.sparse.forEach((localIndex, value) -> {
+				int localX = localIndex & LOCAL_MASK;
+				int localY = localIndex >> REGION_SHIFT;
+				if (localX >= minLocalX && localX <= maxLocalX && localY >= minLocalY && localY <= maxLocalY)
+				{
+					visitor.visit(baseX + localX, baseY + localY, value);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Finds a tile holding exactly the given value, skipping regions whose max is lower than it.
+	 *
+	 * @param coordsOut Receives the {x, y} of the tile that was found
+	 * @return Whether such a tile was found
+	 */
+	public boolean findTileWithValue(int value, int[] coordsOut)
+	{
+		for (int i = 0; i < numBlocks; i++)
+		{
+			Block block = blocks[i];
+			if (block.getMax() < value || block.getMin() > value)
+			{
+				continue;
+			}
+			for (int localIndex = 0; localIndex < REGION_AREA; localIndex++)
+			{
+				if (block.get(localIndex) == value)
+				{
+					coordsOut[0] = (block.regionX << REGION_SHIFT) + (localIndex & LOCAL_MASK);
+					coordsOut[1] = (block.regionY << REGION_SHIFT) + (localIndex >> REGION_SHIFT);
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Calls the visitor once for each visited region with its summary. Doesn't touch the individual tiles,
+	 * except for regions whose max needs recomputing after their max tile was lowered.
+	 */
+	public void forEachRegion(RegionVisitor visitor)
+	{
+		for (int i = 0; i < numBlocks; i++)
+		{
+			Block block = blocks[i];
+			visitor.visit(block.regionX, block.regionY, block.numTiles, block.sum, block.getMax());
+		}
+	}
+
+	/**
+	 * @return The summed value of the region's tiles, or 0 if it hasn't been visited
+	 */
+	public long getRegionSum(int regionX, int regionY)
+	{
+		Block block = getBlock(regionX, regionY);
+		return block == null ? 0 : block.sum;
+	}
+
+	/**
+	 * @return The highest tile value in the region, or 0 if it hasn't been visited
+	 */
+	public int getRegionMax(int regionX, int regionY)
+	{
+		Block block = getBlock(regionX, regionY);
+		return block == null ? 0 : block.getMax();
+	}
+
+	/**
+	 * @return The lowest non-zero tile value in the region, or 0 if it hasn't been visited
+	 */
+	public int getRegionMin(int regionX, int regionY)
+	{
+		Block block = getBlock(regionX, regionY);
+		return block == null ? 0 : block.getMin();
+	}
+
+	/**
+	 * @return The number of visited tiles in the region
+	 */
+	public int getRegionNumTiles(int regionX, int regionY)
+	{
+		Block block = getBlock(regionX, regionY);
+		return block == null ? 0 : block.numTiles;
+	}
+
+	/**
+	 * @return A count of the changes made to the region's tiles, or 0 if it hasn't been visited. If it's the same in two snapshots of the grid, the region's tiles are the same too
+	 */
+	public int getRegionModCount(int regionX, int regionY)
+	{
+		Block block = getBlock(regionX, regionY);
+		return block == null ? 0 : block.modCount;
+	}
+
+	private Block getBlock(int regionX, int regionY)
+	{
+		int index = regionIndex.get(regionKey(regionX, regionY));
+		return index == 0 ? null : blocks[index - 1];
+	}
+
+	/**
+	 * @return The number of regions with at least one visited tile
+	 */
+	public int getNumRegions()
+	{
+		return numBlocks;
+	}
+
+	/**
+	 * Frees the memory left over after tiles have been removed, by shrinking the sparse blocks' tables and the region index to fit what they hold.
+	 * Blocks shared with a snapshot are left as they are, since shrinking them would mean copying them, and so are the region index
+	 * and the array of blocks.
+	 */
+	public void compact()
+	{
+		for (int i = 0; i < numBlocks; i++)
+		{
+			Block block = blocks[i];
+			if (block.epoch == epoch && block.sparse != null)
+			{
+				long blockSizeBefore = block.estimateSize();
+				if (block.sparse.trimToSize())
+				{
+					blocksSize += block.estimateSize() - blockSizeBefore;
+				}
+			}
+		}
+		if (isIndexShared)
+		{
+			return;
+		}
+		regionIndex.trimToSize();
+		if (blocks.length > Math.max(16, numBlocks * 2))
+		{
+			blocks = Arrays.copyOf(blocks, Math.max(16, numBlocks));
+		}
+	}
+
+	/**
+	 * Returns the memory footprint of the grid in bytes, assuming 64 bit JVM with compressed oops and 8-byte alignment.
+	 * Costs O(1), since the blocks' sizes are summed up as they change.
+	 * @return size in bytes
+	 */
+	public long estimateSize()
+	{
+		return 48 + regionIndex.estimateSize() + 16 + 4L * blocks.length + blocksSize;
+	}
+}
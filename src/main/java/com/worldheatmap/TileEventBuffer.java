@@ -0,0 +1,124 @@
+package com.worldheatmap;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free single-producer single-consumer ring buffer of heatmap increments, stored as primitive (type, x, y, amount) records.
+ * The client thread publishes into it from the event handlers, which costs a handful of array stores per event, and
+ * {@link TileEventConsumer} drains it into the heatmaps on its own thread.
+ * <p>
+ * Nothing is allocated by {@link #offer} or {@link #drain}. When the buffer is full, new events are dropped (and counted) rather than
+ * blocking the client thread.
+ */
+public class TileEventBuffer
+{
+	// The type of the record that marks the end of a game tick
+	static final int TICK = -1;
+
+	/**
+	 * Called for each drained record
+	 */
+	@FunctionalInterface
+	public interface EventVisitor
+	{
+		void visit(int type, int x, int y, int amount);
+	}
+
+	private final int mask;
+	private final byte[] types;
+	private final int[] xs;
+	private final int[] ys;
+	private final int[] amounts;
+
+	// Number of records published. Only written by the producer
+	private final AtomicLong head = new AtomicLong();
+	// Number of records consumed. Only written by the consumer
+	private final AtomicLong tail = new AtomicLong();
+	// The producer's last look at tail, so it doesn't have to read the consumer's cache line on every offer
+	private long cachedTail = 0;
+	private final AtomicLong numDropped = new AtomicLong();
+
+	/**
+	 * @param capacity Maximum number of undrained records. Rounded up to a power of 2.
+	 */
+	public TileEventBuffer(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		this.mask = size - 1;
+		this.types = new byte[size];
+		this.xs = new int[size];
+		this.ys = new int[size];
+		this.amounts = new int[size];
+	}
+
+	/**
+	 * Publishes a record. Must only be called by the producer thread.
+	 *
+	 * @param type The heatmap type's ordinal, or {@link #TICK}
+	 * @return Whether it was published, which it isn't if the buffer is full
+	 */
+	public boolean offer(int type, int x, int y, int amount)
+	{
+		long h = head.get();
+		if (h - cachedTail > mask)
+		{
+			cachedTail = tail.get();
+			if (h - cachedTail > mask)
+			{
+				numDropped.incrementAndGet();
+				return false;
+			}
+		}
+		int slot = (int) h & mask;
+		types[slot] = (byte) type;
+		xs[slot] = x;
+		ys[slot] = y;
+		amounts[slot] = amount;
+		// Ordered store, so the consumer can't see the new head before the record's fields
+		head.lazySet(h + 1);
+		return true;
+	}
+
+	/**
+	 * Hands up to maxRecords of the published records to the visitor, in the order they were published. Must only be called by the consumer thread.
+	 *
+	 * @return The number of records drained
+	 */
+	public int drain(EventVisitor visitor, int maxRecords)
+	{
+		long t = tail.get();
+		int n = (int) Math.min(head.get() - t, maxRecords);
+		for (int i = 0; i < n; i++)
+		{
+			int slot = (int) (t + i) & mask;
+			visitor.visit(types[slot], xs[slot], ys[slot], amounts[slot]);
+		}
+		// Frees the slots for the producer only after they've been read
+		tail.lazySet(t + n);
+		return n;
+	}
+
+	/**
+	 * @return The number of records published so far
+	 */
+	public long getPublishedCount()
+	{
+		return head.get();
+	}
+
+	/**
+	 * @return The number of records drained so far
+	 */
+	public long getConsumedCount()
+	{
+		return tail.get();
+	}
+
+	/**
+	 * @return The number of records that were dropped because the buffer was full
+	 */
+	public long getNumDropped()
+	{
+		return numDropped.get();
+	}
+}
@@ -0,0 +1,333 @@
+package com.worldheatmap;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The thread that drains the {@link TileEventBuffer} into the heatmaps and the journal. It's the only thread that increments
+ * the loaded heatmaps, and holds a heatmap's monitor while doing so (as does anything else that modifies one), so other threads
+ * can read a heatmap consistently by synchronizing on it.
+ * <p>
+ * Each record is applied and journaled while holding the journal's lock, so that a heatmap snapshot taken together with a journal
+ * rotation (also under that lock) contains exactly the records journaled before the rotation.
+ * <p>
+ * The tick routine (paging out, saving, etc.) runs on a thread of its own, so that this thread only ever applies records.
+ * A record that fails to apply is logged and skipped, rather than stopping the tracking of everything after it.
+ */
+@Slf4j
+public class TileEventConsumer extends Thread
+{
+	private static final HeatmapNew.HeatmapType[] TYPES = HeatmapNew.HeatmapType.values();
+	private static final int MAX_BATCH_SIZE = 4096;
+	// How long to sleep when there's nothing to drain, in case a wake-up was missed
+	private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	private final TileEventBuffer buffer;
+	private final HeatmapResidency residency;
+	private final Supplier<HeatmapJournal> journal;
+	private final Runnable onTick;
+	private final TileEventBuffer.EventVisitor applier = this::apply;
+	// The number of increments applied to each type of heatmap, by the type's ordinal
+	private final MetricsRegistry.Counter[] incrementCounters = new MetricsRegistry.Counter[TYPES.length];
+	// Events the buffer was too full to take, counted as they're reported each tick
+	private final MetricsRegistry.Counter droppedEvents = MetricsRegistry.get().counter("events.dropped");
+	private final MetricsRegistry.Counter failedEvents = MetricsRegistry.get().counter("events.failed");
+	// Increments for heatmaps that aren't loaded (e.g. still loading after logging in), which are dropped
+	private final MetricsRegistry.Counter unloadedEvents = MetricsRegistry.get().counter("events.unloaded");
+	// Runs onTick, skipping the ticks that end while it's still running or queued
+	private final ExecutorService tickRoutineExecutor = Executors.newSingleThreadExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "World Heatmap Tick Routine");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final AtomicBoolean isTickRoutineQueued = new AtomicBoolean();
+	// Tasks to run on the tick routine's thread once the records published before them have been applied, in the order they were added
+	private final Queue<AppliedTask> appliedTasks = new ConcurrentLinkedQueue<>();
+	private volatile boolean running = true;
+	private long numDroppedReported = 0;
+	// The records that failed to apply since the last tick
+	private int numFailedThisTick = 0;
+
+	/**
+	 * @param residency The loaded heatmaps. Records of types that aren't loaded are skipped, and those of paged-out types are buffered by it.
+	 * @param journal  Supplies the journal to append the records to, or null if they shouldn't be journaled
+	 * @param onTick   Called on the tick routine's thread after the records of a game tick have been applied. Ticks that end
+	 *                 while it's still running are skipped, so it may not be called for every tick
+	 */
+	public TileEventConsumer(TileEventBuffer buffer, HeatmapResidency residency, Supplier<HeatmapJournal> journal, Runnable onTick)
+	{
+		super("World Heatmap Tracker");
+		setDaemon(true);
+		this.buffer = buffer;
+		this.residency = residency;
+		this.journal = journal;
+		this.onTick = onTick;
+		for (HeatmapNew.HeatmapType type : TYPES)
+		{
+			incrementCounters[type.ordinal()] = MetricsRegistry.get().counter("increments." + type);
+		}
+	}
+
+	private static final class AppliedTask
+	{
+		// The number of records that have to be consumed first
+		final long target;
+		final Runnable task;
+
+		AppliedTask(long target, Runnable task)
+		{
+			this.target = target;
+			this.task = task;
+		}
+	}
+
+	@Override
+	public void run()
+	{
+		while (running || buffer.getConsumedCount() < buffer.getPublishedCount())
+		{
+			int numDrained = buffer.drain(applier, MAX_BATCH_SIZE);
+			runAppliedTasks();
+			if (numDrained == 0)
+			{
+				LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+			}
+		}
+		runAppliedTasks();
+	}
+
+	private void apply(int type, int x, int y, int amount)
+	{
+		// Exceptions mustn't escape a drain, or its records would be applied again
+		try
+		{
+			applyAndJournal(type, x, y, amount);
+		}
+		catch (RuntimeException e)
+		{
+			failedEvents.increment();
+			if (numFailedThisTick++ == 0)
+			{
+				log.error("Error applying a heatmap event", e);
+			}
+		}
+
+		if (type == TileEventBuffer.TICK)
+		{
+			reportDroppedEvents();
+			reportFailedEvents();
+			scheduleTickRoutine();
+		}
+	}
+
+	private void applyAndJournal(int type, int x, int y, int amount)
+	{
+		HeatmapJournal journal = this.journal.get();
+		if (journal == null)
+		{
+			if (type == TileEventBuffer.TICK)
+			{
+				residency.onTick();
+			}
+			else
+			{
+				applyIncrement(type, x, y, amount);
+			}
+		}
+		else
+		{
+			synchronized (journal)
+			{
+				if (type == TileEventBuffer.TICK)
+				{
+					// The tick is only replayed onto the types it was counted towards, so a type that's unloaded meanwhile doesn't gain game time it didn't track
+					journal.appendTick(residency.onTick());
+				}
+				else if (applyIncrement(type, x, y, amount))
+				{
+					journal.append(TYPES[type], x, y, amount);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return Whether the increment was applied, and so should be journaled
+	 */
+	private boolean applyIncrement(int type, int x, int y, int amount)
+	{
+		while (true)
+		{
+			HeatmapNew heatmap = residency.getResident(TYPES[type]);
+			if (heatmap == null)
+			{
+				if (residency.bufferIncrement(TYPES[type], x, y, amount))
+				{
+					incrementCounters[type].increment();
+					return true;
+				}
+				// It may have been paged in since it was looked for, or just now to apply the increment to
+				heatmap = residency.getResident(TYPES[type]);
+				if (heatmap == null)
+				{
+					unloadedEvents.increment();
+					return false;
+				}
+			}
+			synchronized (heatmap)
+			{
+				// It's paged out while holding its monitor, so if it's still resident now, it can't be paged out without this increment
+				if (residency.getResident(TYPES[type]) == heatmap)
+				{
+					heatmap.increment(x, y, amount);
+					break;
+				}
+			}
+		}
+		residency.markUsed(TYPES[type]);
+		incrementCounters[type].increment();
+		return true;
+	}
+
+	private void reportDroppedEvents()
+	{
+		long numDropped = buffer.getNumDropped();
+		if (numDropped != numDroppedReported)
+		{
+			log.warn("{} heatmap events were dropped because the event buffer was full", numDropped - numDroppedReported);
+			droppedEvents.add(numDropped - numDroppedReported);
+			numDroppedReported = numDropped;
+		}
+	}
+
+	private void reportFailedEvents()
+	{
+		if (numFailedThisTick > 1)
+		{
+			log.error("{} more heatmap events failed to apply this tick", numFailedThisTick - 1);
+		}
+		numFailedThisTick = 0;
+	}
+
+	private void scheduleTickRoutine()
+	{
+		if (!isTickRoutineQueued.compareAndSet(false, true))
+		{
+			return;
+		}
+		try
+		{
+			tickRoutineExecutor.execute(() -> {
+				isTickRoutineQueued.set(false);
+				try
+				{
+					onTick.run();
+				}
+				catch (RuntimeException e)
+				{
+					log.error("Error in the heatmap tick routine", e);
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// Shutting down
+		}
+	}
+
+	private void runAppliedTasks()
+	{
+		AppliedTask appliedTask;
+		while ((appliedTask = appliedTasks.peek()) != null && appliedTask.target <= buffer.getConsumedCount())
+		{
+			appliedTasks.poll();
+			Runnable task = appliedTask.task;
+			try
+			{
+				tickRoutineExecutor.execute(() -> {
+					try
+					{
+						task.run();
+					}
+					catch (RuntimeException e)
+					{
+						log.error("Error in a heatmap task", e);
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				log.warn("A heatmap task was skipped since the tracker is shutting down");
+			}
+		}
+	}
+
+	/**
+	 * Runs the task on the tick routine's thread once everything published so far has been applied, e.g. to save the heatmaps
+	 * with it included. Unlike {@link #flush}, it doesn't make the caller wait, so it can be called from the client thread.
+	 * The tasks run in the order they were added, one at a time, between tick routines.
+	 */
+	public void whenApplied(Runnable task)
+	{
+		appliedTasks.add(new AppliedTask(buffer.getPublishedCount(), task));
+		wakeUp();
+	}
+
+	/**
+	 * Wakes the thread up to drain what's been published. Called by the producer once per tick rather than per event.
+	 */
+	public void wakeUp()
+	{
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * Waits until everything published so far has been applied, e.g. before a save that has to include it.
+	 * Mustn't be called from this thread, and shouldn't be called from the client thread, which it would hold up (see {@link #whenApplied}).
+	 *
+	 * @return Whether everything was applied within the timeout
+	 */
+	public boolean flush(long timeoutMillis)
+	{
+		long target = buffer.getPublishedCount();
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		wakeUp();
+		while (buffer.getConsumedCount() < target)
+		{
+			if (System.nanoTime() > deadline || !isAlive())
+			{
+				return false;
+			}
+			LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+		}
+		return true;
+	}
+
+	/**
+	 * Stops the thread once it has applied everything published so far, and then the tick routine's thread once it has run the tasks waiting for that
+	 */
+	public void shutdown(long timeoutMillis)
+	{
+		running = false;
+		wakeUp();
+		try
+		{
+			join(timeoutMillis);
+			tickRoutineExecutor.shutdown();
+			tickRoutineExecutor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+	}
+}
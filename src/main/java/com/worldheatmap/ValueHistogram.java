@@ -0,0 +1,222 @@
+package com.worldheatmap;
+
+import java.util.Arrays;
+
+/**
+ * Counts how many tiles hold each value, so that the max, min and percentiles of a heatmap
+ * can be answered without scanning its tiles.
+ * <p>
+ * The max and min are kept up to date in O(1) as values are added and removed. The only exception is when the last
+ * tile holding the max (or min) is lowered (or raised) without another tile taking its place, in which case the
+ * max (or min) is recalculated from the distinct values the next time it's asked for. The number of distinct
+ * values is tiny compared to the number of tiles, and incrementing a tile never causes this, since the
+ * incremented tile always takes the place of the old max.
+ */
+public class ValueHistogram
+{
+	// Value -> number of tiles with that value
+	private final IntIntOpenHashMap counts;
+	private int numValues = 0;
+	// When dirty, max is an upper bound of the values rather than the actual max (and vice versa for min)
+	private int max = 0;
+	private int min = 0;
+	private boolean maxDirty = false;
+	private boolean minDirty = false;
+
+	public ValueHistogram()
+	{
+		this.counts = new IntIntOpenHashMap();
+	}
+
+	private ValueHistogram(ValueHistogram other)
+	{
+		this.counts = other.counts.copy();
+		this.numValues = other.numValues;
+		this.max = other.max;
+		this.min = other.min;
+		this.maxDirty = other.maxDirty;
+		this.minDirty = other.minDirty;
+	}
+
+	public ValueHistogram copy()
+	{
+		return new ValueHistogram(this);
+	}
+
+	/**
+	 * Records that a tile's value changed from oldValue to newValue, where 0 means the tile isn't (or is no longer) visited
+	 */
+	public void change(int oldValue, int newValue)
+	{
+		if (oldValue == newValue)
+		{
+			return;
+		}
+		if (oldValue != 0)
+		{
+			remove(oldValue);
+		}
+		if (newValue != 0)
+		{
+			add(newValue);
+		}
+	}
+
+	public void add(int value)
+	{
+		counts.addTo(value, 1);
+		if (numValues++ == 0)
+		{
+			max = value;
+			min = value;
+			maxDirty = false;
+			minDirty = false;
+			return;
+		}
+		// Since a dirty max is an upper bound, a value at least as big must be the new max
+		if (value >= max)
+		{
+			max = value;
+			maxDirty = false;
+		}
+		if (value <= min)
+		{
+			min = value;
+			minDirty = false;
+		}
+	}
+
+	public void remove(int value)
+	{
+		int remaining = counts.addTo(value, -1);
+		numValues--;
+		if (remaining == 0)
+		{
+			if (value == max)
+			{
+				maxDirty = true;
+			}
+			if (value == min)
+			{
+				minDirty = true;
+			}
+		}
+	}
+
+	/**
+	 * @return The highest value, or 0 if there are none
+	 */
+	public int getMax()
+	{
+		if (numValues == 0)
+		{
+			return 0;
+		}
+		if (maxDirty)
+		{
+			int[] newMax = {0};
+			counts.forEach((value, count) -> newMax[0] = Math.max(newMax[0], value));
+			max = newMax[0];
+			maxDirty = false;
+		}
+		return max;
+	}
+
+	/**
+	 * @return The lowest value, or 0 if there are none
+	 */
+	public int getMin()
+	{
+		if (numValues == 0)
+		{
+			return 0;
+		}
+		if (minDirty)
+		{
+			int[] newMin = {Integer.MAX_VALUE};
+			counts.forEach((value, count) -> newMin[0] = Math.min(newMin[0], value));
+			min = newMin[0];
+			minDirty = false;
+		}
+		return min;
+	}
+
+	/**
+	 * Like getMax() == value, but never triggers a recalculation
+	 */
+	boolean isKnownMax(int value)
+	{
+		return numValues != 0 && !maxDirty && max == value;
+	}
+
+	/**
+	 * Like getMin() == value, but never triggers a recalculation
+	 */
+	boolean isKnownMin(int value)
+	{
+		return numValues != 0 && !minDirty && min == value;
+	}
+
+	/**
+	 * @return The number of tiles holding the given value
+	 */
+	public int getCount(int value)
+	{
+		return counts.get(value);
+	}
+
+	/**
+	 * @return The number of values (visited tiles) in the histogram
+	 */
+	public int getNumValues()
+	{
+		return numValues;
+	}
+
+	/**
+	 * Returns the value at the given percentile using the nearest-rank method, i.e. the smallest value
+	 * such that at least the given percent of tiles have a value less than or equal to it.
+	 * Costs O(d log d) where d is the number of distinct values.
+	 *
+	 * @param percentile In the range [0, 100]
+	 * @return The value, or 0 if there are none
+	 */
+	public int getValueAtPercentile(double percentile)
+	{
+		if (numValues == 0)
+		{
+			return 0;
+		}
+		percentile = Math.max(0, Math.min(100, percentile));
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * numValues));
+		int[] distinctValues = counts.keys();
+		Arrays.sort(distinctValues);
+		long cumulative = 0;
+		for (int value : distinctValues)
+		{
+			cumulative += counts.get(value);
+			if (cumulative >= rank)
+			{
+				return value;
+			}
+		}
+		return distinctValues[distinctValues.length - 1];
+	}
+
+	/**
+	 * Frees the memory left over by values that tiles no longer hold
+	 */
+	public void trimToSize()
+	{
+		counts.trimToSize();
+	}
+
+	/**
+	 * Returns the memory footprint of the histogram in bytes, assuming 64 bit JVM with compressed oops and 8-byte alignment
+	 * @return size in bytes
+	 */
+	public long estimateSize()
+	{
+		return 32 + counts.estimateSize();
+	}
+}
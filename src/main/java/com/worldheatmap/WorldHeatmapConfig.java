@@ -96,10 +96,32 @@ public interface WorldHeatmapConfig extends Config {
         return 4;
     }
 
+    @ConfigItem(
+            keyName = "parallelImageRendering",
+            name = "Render images in parallel",
+            position = 6,
+            description = "Renders several chunks of the heatmap image at once, using all but one of your CPU cores. The chunks are made smaller to make up for it, so memory usage stays about the same.",
+            section = settings
+    )
+    default boolean isParallelImageRenderingEnabled() {
+        return true;
+    }
+
+    @ConfigItem(
+            keyName = "offHeapImageRendering",
+            name = "Render images off-heap",
+            position = 7,
+            description = "Renders the heatmap image in a temporary file instead of in RuneLite's memory, so that higher speed-memory tradeoff settings can be used without running out of memory. Uses up to a few GB of temporary disk space while an image is being written.",
+            section = settings
+    )
+    default boolean isOffHeapImageRenderingEnabled() {
+        return false;
+    }
+
     @ConfigItem(
             keyName = "writeFullMapImage",
             name = "Write full world map image (SLOW)",
-            position = 7,
+            position = 8,
             description = "Warning: This takes much longer than writing just the overworld image. If checked, this will write the full world map image (including underground/non-overworld areas). Does not apply to image autosaves.",
             section = settings
     )
@@ -107,6 +129,42 @@ public interface WorldHeatmapConfig extends Config {
         return false;
     }
 
+    @ConfigItem(
+            keyName = "worldMapOverrideDirectory",
+            name = "World map override folder",
+            position = 9,
+            description = "A folder containing your own osrs_world_map.png, osrs_world_map_full.png and/or offsets.csv to use instead of downloading them. Leave blank to download them (they're cached, and only downloaded again when they change).",
+            section = settings
+    )
+    default String worldMapOverrideDirectory() {
+        return "";
+    }
+
+    @Range(
+            min = 0
+    )
+    @ConfigItem(
+            keyName = "memoryBudgetMB",
+            name = "Memory budget (MB)",
+            position = 10,
+            description = "How much memory the heatmaps should use at most, in MB. Once they use more, the memory they have left over from removed tiles is freed, and the memory usage in the panel turns red if that wasn't enough. 0 for no budget.",
+            section = settings
+    )
+    default int memoryBudgetMB() {
+        return 256;
+    }
+
+    @ConfigItem(
+            keyName = "pageOutColdHeatmaps",
+            name = "Page out unused heatmaps",
+            position = 11,
+            description = "Moves heatmaps that haven't changed or been looked at for 10 minutes (like Deaths or Bob the Cat sightings, most of the time) out of RuneLite's memory, in a compact form that takes a fraction of the space, until they're needed again.",
+            section = settings
+    )
+    default boolean isColdHeatmapPagingEnabled() {
+        return true;
+    }
+
     @ConfigSection(
             name = "Per-Heatmap On/Off",
             description = "Enabling/disabling individual heatmaps",
@@ -268,4 +326,59 @@ public interface WorldHeatmapConfig extends Config {
         return true;
     }
 
+    @ConfigSection(
+            name = "Overlay",
+            description = "Showing a heatmap in the client, over the world map and minimap",
+            position = 2
+    )
+    String overlay = "overlay";
+
+    @ConfigItem(
+            keyName = "overlayOnWorldMap",
+            name = "Show on world map",
+            position = 0,
+            description = "Colours the tiles of the chosen heatmap over the world map while it's open",
+            section = overlay
+    )
+    default boolean isOverlayOnWorldMapEnabled() {
+        return false;
+    }
+
+    @ConfigItem(
+            keyName = "overlayOnMinimap",
+            name = "Show on minimap",
+            position = 1,
+            description = "Colours the tiles of the chosen heatmap over the minimap",
+            section = overlay
+    )
+    default boolean isOverlayOnMinimapEnabled() {
+        return false;
+    }
+
+    @ConfigItem(
+            keyName = "overlayHeatmapType",
+            name = "Heatmap",
+            position = 2,
+            description = "Which heatmap to show. It has to be enabled to be shown",
+            section = overlay
+    )
+    default HeatmapNew.HeatmapType overlayHeatmapType() {
+        return HeatmapNew.HeatmapType.TYPE_A;
+    }
+
+    @Range(
+            max = 100
+    )
+    @Units(Units.PERCENT)
+    @ConfigItem(
+            keyName = "overlayOpacity",
+            name = "Opacity",
+            position = 3,
+            description = "The opacity of the heatmap colours drawn over the world map and minimap",
+            section = overlay
+    )
+    default int overlayOpacity() {
+        return 50;
+    }
+
 }
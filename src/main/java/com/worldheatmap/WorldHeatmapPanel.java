@@ -4,6 +4,8 @@ import java.awt.*;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import lombok.extern.slf4j.Slf4j;
 import net.runelite.client.ui.PluginPanel;
@@ -13,6 +15,8 @@ import javax.swing.*;
 import javax.swing.border.EmptyBorder;
 import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 
 @Slf4j
 public class WorldHeatmapPanel extends PluginPanel {
@@ -21,11 +25,13 @@ public class WorldHeatmapPanel extends PluginPanel {
     private JLabel playerIDLabel;
 
     private JLabel memoryUsageLabel;
+    private JTextArea diagnosticsText;
 
     Map<HeatmapNew.HeatmapType, JPanel> heatmapPanels = new HashMap<>();
     Map<HeatmapNew.HeatmapType, JLabel> heatmapTotalValueLabels = new HashMap<>();
     Map<HeatmapNew.HeatmapType, JLabel> heatmapPanelLabels = new HashMap<>();
     Map<HeatmapNew.HeatmapType, JButton> writeHeatmapImageButtons = new HashMap<>();
+    Map<HeatmapNew.HeatmapType, JButton> exportTilesButtons = new HashMap<>();
     Map<HeatmapNew.HeatmapType, JButton> clearHeatmapButtons = new HashMap<>();
     protected long mostRecentLocalUserID;
 
@@ -57,11 +63,7 @@ public class WorldHeatmapPanel extends PluginPanel {
         mainPanel.add(playerIDLabel);
 
         // Total Memory Usage estimate label
-        int estimatedMemoryUsage = 0;
-        for (HeatmapNew heatmap : plugin.heatmaps.values()) {
-            estimatedMemoryUsage += HeatmapNew.estimateSize(heatmap);
-        }
-        memoryUsageLabel = new JLabel("Estimated Memory Usage: " + String.format("%.2f", estimatedMemoryUsage / 1024. / 1024) +  "MB");
+        memoryUsageLabel = new JLabel();
         memoryUsageLabel.setHorizontalAlignment(SwingConstants.CENTER);
         mainPanel.add(memoryUsageLabel);
 
@@ -96,13 +98,7 @@ public class WorldHeatmapPanel extends PluginPanel {
             heatmapLabel.setFont(sectionLabelFont);
             heatmapLabel.setForeground(Color.WHITE);
             heatmapLabel.setHorizontalAlignment(SwingConstants.CENTER);
-            if (plugin.heatmaps.get(heatmapType) != null){
-                heatmapLabel.setToolTipText("Estimated memory usage: " + String.format("%.2f", HeatmapNew.estimateSize(plugin.heatmaps.get(heatmapType)) / 1024. / 1024) + "MB");
-            }
-            else {
-                heatmapLabel.setToolTipText("Estimated memory usage: 0MB");
-            }
-
+            heatmapLabel.setToolTipText("Estimated memory usage: 0MB");
             heatmapPanel.add(heatmapLabel);
 
             //'Write Heatmap Image' button
@@ -112,6 +108,14 @@ public class WorldHeatmapPanel extends PluginPanel {
             writeHeatmapImageButtons.put(heatmapType, writeHeatmapImageButton);
             heatmapPanel.add(writeHeatmapImageButton);
 
+            //'Export Map Tiles' button
+            JButton exportTilesButton = new JButton("Export Map Tiles");
+            exportTilesButton.setFont(buttonFont);
+            exportTilesButton.setToolTipText("Exports the heatmap as zoomable map tiles, for map viewers like Leaflet. Only the tiles that changed since the last export are redrawn.");
+            exportTilesButton.addActionListener(e -> exportTilePyramid(heatmapType, plugin.config.isWriteFullImageEnabled()));
+            exportTilesButtons.put(heatmapType, exportTilesButton);
+            heatmapPanel.add(exportTilesButton);
+
             //'Restart Heatmap' button
             JButton clearHeatmapButton = new JButton("Restart Heatmap");
             clearHeatmapButton.setFont(buttonFont);
@@ -136,6 +140,35 @@ public class WorldHeatmapPanel extends PluginPanel {
 
             add(heatmapPanel);
         }
+
+        // Diagnostics section, showing the metrics of how the plugin is performing
+        JPanel diagnosticsPanel = new JPanel(new BorderLayout(hGap, vGap));
+        diagnosticsPanel.setBorder(new EmptyBorder(vGap, hGap, vGap, hGap));
+        diagnosticsPanel.setBackground(ColorScheme.DARKER_GRAY_COLOR);
+        JLabel diagnosticsLabel = new JLabel("Diagnostics");
+        diagnosticsLabel.setFont(sectionLabelFont);
+        diagnosticsLabel.setForeground(Color.WHITE);
+        diagnosticsLabel.setHorizontalAlignment(SwingConstants.CENTER);
+        diagnosticsPanel.add(diagnosticsLabel, BorderLayout.NORTH);
+
+        diagnosticsText = new JTextArea(MetricsRegistry.get().toText());
+        diagnosticsText.setEditable(false);
+        diagnosticsText.setLineWrap(true);
+        diagnosticsText.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 10));
+        diagnosticsText.setBackground(ColorScheme.DARKER_GRAY_COLOR);
+        diagnosticsPanel.add(diagnosticsText, BorderLayout.CENTER);
+
+        JPanel exportButtons = new JPanel(new GridLayout(1, 0, hGap, vGap));
+        exportButtons.setBackground(ColorScheme.DARKER_GRAY_COLOR);
+        JButton exportJsonButton = new JButton("Export JSON");
+        exportJsonButton.addActionListener(e -> exportMetrics("json"));
+        exportButtons.add(exportJsonButton);
+        JButton exportCsvButton = new JButton("Export CSV");
+        exportCsvButton.addActionListener(e -> exportMetrics("csv"));
+        exportButtons.add(exportCsvButton);
+        diagnosticsPanel.add(exportButtons, BorderLayout.SOUTH);
+        add(diagnosticsPanel);
+        updateMemoryUsages();
     }
 
     protected void updatePlayerID() {
@@ -149,45 +182,104 @@ public class WorldHeatmapPanel extends PluginPanel {
     }
 
     protected void updateCounts() {
-        for (HeatmapNew.HeatmapType heatmapType : plugin.heatmaps.keySet()) {
-            if (heatmapTotalValueLabels.get(heatmapType) != null) {
-                heatmapTotalValueLabels.get(heatmapType).setText("Total value: " + plugin.heatmaps.get(heatmapType).getTotalValue());
+        // Paged-out heatmaps aren't in the map, and keep showing the total they had, which their buffered increments aren't counted in yet
+        for (HeatmapNew heatmap : plugin.heatmaps.values()) {
+            if (heatmapTotalValueLabels.get(heatmap.getHeatmapType()) != null) {
+                heatmapTotalValueLabels.get(heatmap.getHeatmapType()).setText("Total value: " + heatmap.getTotalValue());
             }
         }
         updateUI();
     }
 
+    /**
+     * Updates the total memory usage label and each heatmap's memory usage tooltip, from the sizes the tick routine last measured.
+     * Doesn't lock the heatmaps, so it isn't held up while they're being compacted
+     */
     protected void updateMemoryUsages() {
-        int estimatedTotalMemoryUsage = 0;
-        for (HeatmapNew heatmap : plugin.heatmaps.values()) {
-            estimatedTotalMemoryUsage += HeatmapNew.estimateSize(heatmap);
-            memoryUsageLabel.setText("Estimated Memory Usage: " + String.format("%.2f", estimatedTotalMemoryUsage / 1024. / 1024) +  "MB");
-            if (heatmapPanelLabels.get(heatmap.getHeatmapType()) != null) {
-                heatmapPanelLabels.get(heatmap.getHeatmapType()).setToolTipText("Estimated memory usage: " + String.format("%.2f", HeatmapNew.estimateSize(heatmap) / 1024. / 1024) + "MB");
+        long estimatedTotalMemoryUsage = plugin.heatmapMemory.getEstimatedTotalSize();
+        for (Map.Entry<HeatmapNew.HeatmapType, JLabel> heatmapLabel : heatmapPanelLabels.entrySet()) {
+            long pagedOutSize = plugin.residency.getPagedOutSize(heatmapLabel.getKey());
+            if (plugin.heatmaps.containsKey(heatmapLabel.getKey())) {
+                long heatmapMemoryUsage = plugin.heatmapMemory.getEstimatedSize(heatmapLabel.getKey());
+                heatmapLabel.getValue().setToolTipText("Estimated memory usage: " + String.format("%.2f", heatmapMemoryUsage / 1024. / 1024) + "MB");
+            } else if (pagedOutSize > 0) {
+                heatmapLabel.getValue().setToolTipText("Paged out until it's needed, taking " + String.format("%.2f", pagedOutSize / 1024. / 1024) + "MB outside of RuneLite's memory");
             }
         }
+
+        // The total across all heatmap types, against the memory budget if there is one
+        long memoryBudget = plugin.getMemoryBudget();
+        String memoryUsageText = "Estimated Memory Usage: " + String.format("%.2f", estimatedTotalMemoryUsage / 1024. / 1024);
+        if (memoryBudget == 0) {
+            memoryUsageLabel.setText(memoryUsageText + "MB");
+            memoryUsageLabel.setToolTipText(null);
+        } else {
+            memoryUsageLabel.setText(memoryUsageText + "/" + memoryBudget / 1024 / 1024 + "MB");
+            memoryUsageLabel.setToolTipText(estimatedTotalMemoryUsage > memoryBudget ? "Over the memory budget. Consider disabling some heatmap types, or raising the budget in the plugin's settings" : "Within the memory budget");
+        }
+        memoryUsageLabel.setForeground(memoryBudget != 0 && estimatedTotalMemoryUsage > memoryBudget ? Color.RED : ColorScheme.LIGHT_GRAY_COLOR);
+        diagnosticsText.setText(MetricsRegistry.get().toText());
         updateUI();
     }
 
+    /**
+     * Writes the metrics to a new file in the diagnostics folder, as JSON or CSV
+     */
+    private void exportMetrics(String format) {
+        MetricsRegistry metrics = MetricsRegistry.get();
+        String contents = format.equals("json") ? metrics.toJson() : metrics.toCsv();
+        File exportFile = HeatmapFile.getMetricsExportFile(format);
+        plugin.worldHeatmapPluginExecutor.execute(() -> {
+            try {
+                Files.createDirectories(exportFile.getParentFile().toPath());
+                Files.write(exportFile.toPath(), contents.getBytes(StandardCharsets.UTF_8));
+                log.info("Exported World Heatmap metrics to '{}'", exportFile);
+            } catch (IOException e) {
+                log.error("Couldn't export World Heatmap metrics to '{}'", exportFile, e);
+            }
+        });
+    }
+
     private void writeHeatmapImage(HeatmapNew.HeatmapType heatmapType, boolean isFullMapImage) {
-        // Save all heatmap data
-        File heatmapFile = HeatmapFile.getLatestHeatmapFile(mostRecentLocalUserID);
         File imageFile = HeatmapFile.getCurrentImageFile(mostRecentLocalUserID, heatmapType);
-        plugin.worldHeatmapPluginExecutor.execute(() -> HeatmapNew.writeHeatmapsToFile(plugin.getEnabledHeatmaps(), heatmapFile, null));
-        // Write the specified heatmap image
-        HeatmapNew heatmap = plugin.heatmaps.get(heatmapType);
-        plugin.worldHeatmapPluginExecutor.execute(() -> HeatmapImage.writeHeatmapImage(heatmap, imageFile, isFullMapImage, plugin.config.heatmapAlpha(), plugin.config.heatmapSensitivity(), plugin.config.speedMemoryTradeoff(), new WorldHeatmapPlugin.HeatmapProgressListener(plugin, heatmapType)));
+        WorldMapCache worldMapCache = plugin.getWorldMapCache();
+        // Done on the executor rather than the EDT, since a paged-out heatmap is read back from disk to be saved and drawn
+        plugin.worldHeatmapPluginExecutor.execute(() -> {
+            // Save all heatmap data
+            plugin.saveCurrentHeatmapsFile();
+            // Write the specified heatmap image, as it is now
+            HeatmapNew heatmap = plugin.getHeatmap(heatmapType);
+            if (heatmap == null) {
+                log.warn("Couldn't write the {} heatmap image, since the heatmap hasn't been loaded yet", heatmapType);
+                return;
+            }
+            HeatmapImage.writeHeatmapImage(heatmap.snapshot(), imageFile, isFullMapImage, plugin.config.heatmapAlpha(), plugin.config.heatmapSensitivity(), plugin.config.speedMemoryTradeoff(), plugin.config.isParallelImageRenderingEnabled(), plugin.config.isOffHeapImageRenderingEnabled(), worldMapCache, new WorldHeatmapPlugin.HeatmapProgressListener(plugin, heatmapType));
+        });
+    }
+
+    private void exportTilePyramid(HeatmapNew.HeatmapType heatmapType, boolean isFullMap) {
+        File pyramidDir = HeatmapFile.getTilePyramidDir(mostRecentLocalUserID, heatmapType, isFullMap);
+        WorldMapCache worldMapCache = plugin.getWorldMapCache();
+        TilePyramidProgressListener progressListener = new TilePyramidProgressListener(heatmapType);
+        // Done on the executor rather than the EDT, since a paged-out heatmap is read back from disk to be exported
+        plugin.worldHeatmapPluginExecutor.execute(() -> {
+            // Export the heatmap as it is now
+            HeatmapNew heatmap = plugin.getHeatmap(heatmapType);
+            if (heatmap == null) {
+                log.warn("Couldn't export the {} heatmap's map tiles, since the heatmap hasn't been loaded yet", heatmapType);
+                return;
+            }
+            HeatmapTilePyramid.exportTilePyramid(heatmap.snapshot(), pyramidDir, isFullMap, plugin.config.heatmapAlpha(), plugin.config.heatmapSensitivity(), plugin.config.isParallelImageRenderingEnabled(), worldMapCache, progressListener);
+        });
     }
 
     private void clearHeatmap(HeatmapNew.HeatmapType heatmapType) {
-        // Replace the heatmap with a new one
-        plugin.heatmaps.put(heatmapType, new HeatmapNew(heatmapType, plugin.mostRecentLocalUserID));
-        List<HeatmapNew> heatmap = List.of(plugin.heatmaps.get(heatmapType));
-
-        // Write new .heatmaps data file, so the current (now old) one can be kept as a backup
-        File latestHeatmapFile = HeatmapFile.getLatestHeatmapFile(mostRecentLocalUserID);
-        File newHeatmapFile = HeatmapFile.getCurrentHeatmapFile(mostRecentLocalUserID);
-        plugin.worldHeatmapPluginExecutor.execute(() -> HeatmapNew.writeHeatmapsToFile(heatmap, newHeatmapFile, latestHeatmapFile));
+        // Replace the heatmap with a new one, whether or not it's paged out
+        plugin.residency.replace(new HeatmapNew(heatmapType, plugin.mostRecentLocalUserID));
+
+        // Write new .heatmaps data file, so the current (now old) one can be kept as a backup.
+        // This also folds the journal, so the cleared heatmap's journaled increments won't be replayed onto it
+        plugin.saveNewHeatmapsFile();
     }
 
     private void openHeatmapsFolder() throws IOException {
@@ -204,10 +296,71 @@ public class WorldHeatmapPanel extends PluginPanel {
         for (JButton writeButton : writeHeatmapImageButtons.values()) {
             writeButton.setEnabled(onOff);
         }
+        // Disable export tiles buttons
+        for (JButton exportButton : exportTilesButtons.values()) {
+            exportButton.setEnabled(onOff);
+        }
         // Disable clear heatmap buttons
         for (JButton clearButton : clearHeatmapButtons.values()) {
             clearButton.setEnabled(onOff);
         }
     }
 
+    /**
+     * Shows an export's progress on its button. It's told about the progress by the threads drawing the tiles, several at once,
+     * so the button is only ever updated on the EDT
+     */
+    private class TilePyramidProgressListener implements HeatmapTilePyramid.ProgressListener {
+        private final HeatmapNew.HeatmapType heatmapType;
+        private final Color originalColor;
+        // The most progress reported so far, in hundredths of a percent, since the drawing threads' reports can arrive out of order
+        private final AtomicInteger progress = new AtomicInteger();
+
+        TilePyramidProgressListener(HeatmapNew.HeatmapType heatmapType) {
+            this.heatmapType = heatmapType;
+            this.originalColor = exportTilesButtons.get(heatmapType).getForeground();
+        }
+
+        @Override
+        public void exportStarted() {
+            progress.set(0);
+            SwingUtilities.invokeLater(() -> {
+                JButton button = exportTilesButtons.get(heatmapType);
+                setEnabledHeatmapButtons(false);
+                button.setForeground(Color.GREEN);
+                button.setText("Exporting... 0%");
+            });
+        }
+
+        @Override
+        public void exportProgress(float percentageDone) {
+            int hundredths = (int) (percentageDone * 100);
+            if (progress.getAndAccumulate(hundredths, Math::max) < hundredths) {
+                SwingUtilities.invokeLater(() -> exportTilesButtons.get(heatmapType).setText(String.format("Exporting... %.2f%%", progress.get() / 100f)));
+            }
+        }
+
+        @Override
+        public void exportComplete(int numTilesDrawn) {
+            SwingUtilities.invokeLater(() -> exportTilesButtons.get(heatmapType).setText(numTilesDrawn == 0 ? "Up to date" : "Done"));
+            resetButtonsLater();
+        }
+
+        @Override
+        public void exportFailed() {
+            SwingUtilities.invokeLater(() -> exportTilesButtons.get(heatmapType).setText("Failed"));
+            resetButtonsLater();
+        }
+
+        private void resetButtonsLater() {
+            plugin.worldHeatmapPluginExecutor.schedule(() -> SwingUtilities.invokeLater(() -> {
+                JButton button = exportTilesButtons.get(heatmapType);
+                button.setText("Export Map Tiles");
+                button.setForeground(originalColor);
+                button.revalidate();
+                button.repaint();
+                setEnabledHeatmapButtons(true);
+            }), 2L, TimeUnit.SECONDS);
+        }
+    }
 }
@@ -9,8 +9,11 @@ import java.nio.file.*;
 import java.time.Instant;
 import java.util.*;
 import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.zip.ZipFile;
 import javax.imageio.ImageWriter;
 import javax.imageio.event.IIOWriteProgressListener;
 import javax.inject.Inject;
@@ -29,6 +32,7 @@ import net.runelite.client.game.ItemStack;
 import net.runelite.client.plugins.Plugin;
 import net.runelite.client.plugins.PluginDescriptor;
 import net.runelite.client.ui.NavigationButton;
+import net.runelite.client.ui.overlay.OverlayManager;
 import net.runelite.client.util.ImageUtil;
 import net.runelite.client.ui.ClientToolbar;
 
@@ -44,54 +48,40 @@ import static net.runelite.client.RuneLite.RUNELITE_DIR;
         name = "World Heatmap"
 )
 public class WorldHeatmapPlugin extends Plugin {
-    private static final int HEATMAP_AUTOSAVE_FREQUENCY = 3000; // How often to autosave the .heatmap file (in ticks)
-    private int lastX = 0;
-    private int lastY = 0;
-    protected long mostRecentLocalUserID;
-    private boolean shouldLoadHeatmaps;
+    private static final int HEATMAP_AUTOSAVE_FREQUENCY = 3000; // How often to check whether the journal should be folded into the .heatmaps file (in ticks)
+    private static final long JOURNAL_COMPACTION_SIZE = 1024 * 1024; // How big the journal may grow before it's folded into the .heatmaps file (in bytes)
+    protected volatile long mostRecentLocalUserID;
+    // Set by the task that unloads the previous heatmaps once they're done with, so also written by the tick routine's thread
+    private volatile boolean shouldLoadHeatmaps;
     protected final File WORLD_HEATMAP_DIR = new File(RUNELITE_DIR.toString(), "worldheatmap");
     protected final File HEATMAP_FILES_DIR = Paths.get(WORLD_HEATMAP_DIR.toString(), "Heatmap Files").toFile();
-    protected Map<HeatmapNew.HeatmapType, HeatmapNew> heatmaps = new HashMap<>();
+    // Concurrent, since heatmaps are added to it by the loader threads while the client thread is tracking the already loaded ones
+    protected Map<HeatmapNew.HeatmapType, HeatmapNew> heatmaps = new ConcurrentHashMap<>();
+    // Pages the heatmaps that aren't being used out of the heatmaps map, and back in when they're needed
+    protected final HeatmapResidency residency = new HeatmapResidency(heatmaps);
     private NavigationButton toolbarButton;
     protected WorldHeatmapPanel panel;
-    private final ArrayList<Integer> randomEventNPCIDs = new ArrayList<>(Arrays.asList(NpcID.BEE_KEEPER_6747,
-            NpcID.CAPT_ARNAV,
-            NpcID.DRUNKEN_DWARF,
-            NpcID.FLIPPA_6744,
-            NpcID.GILES,
-            NpcID.GILES_5441,
-            NpcID.MILES,
-            NpcID.MILES_5440,
-            NpcID.NILES,
-            NpcID.NILES_5439,
-            NpcID.PILLORY_GUARD,
-            NpcID.POSTIE_PETE_6738,
-            NpcID.RICK_TURPENTINE,
-            NpcID.RICK_TURPENTINE_376,
-            NpcID.SERGEANT_DAMIEN_6743,
-            NpcID.FREAKY_FORESTER_6748,
-            NpcID.FROG_5429,
-            NpcID.GENIE,
-            NpcID.GENIE_327,
-            NpcID.DR_JEKYLL,
-            NpcID.DR_JEKYLL_314,
-            NpcID.EVIL_BOB,
-            NpcID.EVIL_BOB_6754,
-            NpcID.LEO_6746,
-            NpcID.MYSTERIOUS_OLD_MAN_6751,
-            NpcID.MYSTERIOUS_OLD_MAN_6750,
-            NpcID.MYSTERIOUS_OLD_MAN_6752,
-            NpcID.MYSTERIOUS_OLD_MAN_6753,
-            NpcID.QUIZ_MASTER_6755,
-            NpcID.DUNCE_6749,
-            NpcID.SANDWICH_LADY,
-            NpcID.STRANGE_PLANT));
-    Map<Integer, Instant> timeLastSeenBobTheCatPerWorld = new HashMap<>();
     @Inject
     ItemManager itemManager;
-    private final int[] previousXP = new int[Skill.values().length];
     protected String mostRecentLocalUserName;
-    private Future<?> loadHeatmapsFuture;
+    private volatile Future<?> loadHeatmapsFuture;
+    private volatile HeatmapJournal journal;
+    // The journaled increments that were replayed when the heatmaps were loaded, of the types that haven't been loaded (or saved) since
+    private volatile HeatmapJournal.PendingIncrements pendingIncrements;
+    // Decodes heatmap types in parallel while loading
+    private ExecutorService heatmapLoaderPool;
+    // The event handlers publish increments into tileEvents, which tileEventConsumer applies to the heatmaps on its own thread
+    private static final int TILE_EVENT_BUFFER_CAPACITY = 1 << 16;
+    private TileEventBuffer tileEvents;
+    private TileEventConsumer tileEventConsumer;
+    // Turns the events into the increments published into tileEvents
+    private HeatmapTracker tracker;
+    private final MetricsRegistry.Histogram tickHandlerTime = MetricsRegistry.get().histogram("tick.handler", MetricsRegistry.Unit.NANOSECONDS);
+    // Measures the heatmaps' memory usage on the tick routine's thread, for the panel to read without locking them
+    protected final HeatmapMemoryBudget heatmapMemory = new HeatmapMemoryBudget(heatmaps, this::getMemoryBudget);
+    // The highest game time of the heatmaps when the backup/autosave routines last ran, or -1 if they haven't since the heatmaps were loaded.
+    // Only used by the tick routine's thread
+    private int routineGameTimeTicks = -1;
 
     @Inject
     private Client client;
@@ -105,6 +95,12 @@ public class WorldHeatmapPlugin extends Plugin {
     @Inject
     private ClientToolbar clientToolbar;
 
+    @Inject
+    private OverlayManager overlayManager;
+
+    @Inject
+    private HeatmapOverlay heatmapOverlay;
+
     @Provides
     WorldHeatmapConfig provideConfig(ConfigManager configManager) {
         return configManager.getConfig(WorldHeatmapConfig.class);
@@ -115,14 +111,49 @@ public class WorldHeatmapPlugin extends Plugin {
         log.debug("Loading most recent heatmaps under user ID {}...", mostRecentLocalUserID);
         File latestHeatmapsFile = HeatmapFile.getLatestHeatmapFile(mostRecentLocalUserID);
 
-        // Load all heatmaps from the file
-        if (latestHeatmapsFile != null && latestHeatmapsFile.exists()) {
-            heatmaps = HeatmapNew.readHeatmapsFromFile(latestHeatmapsFile, getEnabledHeatmapTypes());
+        residency.clear();
+        Consumer<HeatmapNew> publishHeatmap;
+        // The journal sequence number and the heatmaps are read through the same opened file
+        try (ZipFile heatmapsZip = (latestHeatmapsFile != null && latestHeatmapsFile.exists()) ? new ZipFile(latestHeatmapsFile) : null) {
+            long journalSequence = -1;
+            if (heatmapsZip != null) {
+                try {
+                    journalSequence = HeatmapNew.readJournalSequence(heatmapsZip);
+                } catch (IOException e) {
+                    // Without it, there's no telling which journal segments the file already contains, and replaying them would count them twice
+                    log.error("Could not read which journal segments heatmaps file '{}' contains, so the heatmaps aren't loaded", latestHeatmapsFile.getName(), e);
+                    throw e;
+                }
+            }
+
+            // Read the increments that were journaled since the file was last saved, and continue journaling in a new segment
+            File journalDir = HeatmapFile.getJournalDir(mostRecentLocalUserID);
+            HeatmapJournal.PendingIncrements pending = HeatmapJournal.readPending(journalDir, journalSequence);
+            pendingIncrements = pending;
+            journal = new HeatmapJournal(journalDir, pending.getNewestSequence() + 1);
+
+            // Each heatmap is caught up with the journal and starts being tracked as soon as it's loaded, rather than once they've all loaded.
+            // The increments of the types that aren't enabled are kept until they are, or until they're saved
+            publishHeatmap = heatmap -> {
+                pending.applyTo(heatmap);
+                pending.discard(heatmap.getHeatmapType());
+                heatmaps.put(heatmap.getHeatmapType(), heatmap);
+            };
+
+            // Load all heatmaps from the file
+            if (heatmapsZip != null) {
+                HeatmapNew.readHeatmapsFromFile(heatmapsZip, getEnabledHeatmapTypes(), heatmapLoaderPool, publishHeatmap);
+            }
         }
 
         handleLegacyV1HeatmapFiles();
 
-        initializeMissingHeatmaps(heatmaps, mostRecentLocalUserID);
+        // Initialize the enabled heatmaps that weren't in the file
+        for (HeatmapNew.HeatmapType type : getEnabledHeatmapTypes()) {
+            if (!heatmaps.containsKey(type)) {
+                publishHeatmap.accept(new HeatmapNew(type, mostRecentLocalUserID));
+            }
+        }
         panel.setEnabledHeatmapButtons(true);
     }
 
@@ -177,6 +208,19 @@ public class WorldHeatmapPlugin extends Plugin {
     protected void startUp() {
         shouldLoadHeatmaps = true;
         loadHeatmapsFuture = null;
+        int numLoaderThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+        ThreadPoolExecutor loaderPool = new ThreadPoolExecutor(numLoaderThreads, numLoaderThreads, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "World Heatmap Loader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Let the threads die between loads
+        loaderPool.allowCoreThreadTimeOut(true);
+        heatmapLoaderPool = loaderPool;
+        tileEvents = new TileEventBuffer(TILE_EVENT_BUFFER_CAPACITY);
+        tileEventConsumer = new TileEventConsumer(tileEvents, residency, () -> journal, this::onTrackedTick);
+        tracker = new HeatmapTracker(config, residency, tileEvents);
+        tileEventConsumer.start();
         panel = new WorldHeatmapPanel(this);
         panel.rebuild();
         final BufferedImage icon = ImageUtil.loadImageResource(getClass(), "/WorldHeatmap.png");
@@ -188,27 +232,47 @@ public class WorldHeatmapPlugin extends Plugin {
                 .build();
         clientToolbar.addNavigation(toolbarButton);
         panel.setEnabledHeatmapButtons(false);
+        overlayManager.add(heatmapOverlay);
     }
 
     @Override
     protected void shutDown() {
+        // Apply the remaining events (and run the saves waiting for them) before saving
+        tileEventConsumer.shutdown(1000);
         if (loadHeatmapsFuture != null && loadHeatmapsFuture.isDone()) {
-            saveCurrentHeatmapsFile();
+            saveCurrentHeatmapsFile(true);
+            closeJournal();
         }
         clientToolbar.removeNavigation(toolbarButton);
+        overlayManager.remove(heatmapOverlay);
+        heatmapOverlay.clear();
+        heatmapLoaderPool.shutdownNow();
     }
 
     @Subscribe
     public void onGameStateChanged(GameStateChanged gameStateChanged) {
         if (gameStateChanged.getGameState() == GameState.LOGGING_IN) {
-            shouldLoadHeatmaps = true;
+            // Nothing is tracked until the heatmaps start loading, which they do once the previous ones have been unloaded,
+            // after the events published for them have been applied (and journaled)
+            shouldLoadHeatmaps = false;
             loadHeatmapsFuture = null;
+            HeatmapJournal previousJournal = journal;
+            tileEventConsumer.whenApplied(() -> {
+                closeJournal(previousJournal);
+                residency.clear();
+                shouldLoadHeatmaps = true;
+            });
         }
 
         // If you're at the login screen and heatmaps have already been loaded (implying that you were previously logged in, but now you're logged out)
         if (gameStateChanged.getGameState() == GameState.LOGIN_SCREEN && loadHeatmapsFuture != null && loadHeatmapsFuture.isDone()) {
-            saveCurrentHeatmapsFile();
             loadHeatmapsFuture = null;
+            // Save once the remaining events have been applied, without holding up the client thread
+            HeatmapJournal previousJournal = journal;
+            tileEventConsumer.whenApplied(() -> {
+                saveCurrentHeatmapsFile(true);
+                closeJournal(previousJournal);
+            });
         }
         if (gameStateChanged.getGameState() != GameState.LOGGED_IN) {
             // Disable write heatmap image buttons
@@ -225,6 +289,7 @@ public class WorldHeatmapPlugin extends Plugin {
         if (client.getAccountHash() == -1) {
             return;
         }
+        long startTime = System.nanoTime();
         // If the player has changed, update the player ID
         if (mostRecentLocalUserID != client.getAccountHash()) {
             mostRecentLocalUserName = client.getLocalPlayer().getName();
@@ -236,76 +301,23 @@ public class WorldHeatmapPlugin extends Plugin {
 
         // Load the heatmaps from disk if needed
         if (shouldLoadHeatmaps && client.getGameState().equals(GameState.LOGGED_IN)) {
-            // Populate previousXP array with current XP values
+            // Count the XP gained from the current XP values
             for (Skill skill : Skill.values()) {
-                previousXP[skill.ordinal()] = client.getSkillExperience(skill);
+                tracker.resetExperience(skill.ordinal(), client.getSkillExperience(skill));
             }
 
             // Schedule the loading of the heatmap files
             shouldLoadHeatmaps = false;
             loadHeatmapsFuture = worldHeatmapPluginExecutor.submit(this::loadHeatmaps);
         }
-        // The following code requires the heatmap files to have been loaded
-        if (loadHeatmapsFuture != null && !loadHeatmapsFuture.isDone()) {
-            return;
-        }
-
-        // Increment game time ticks of each heatmap
-        for (HeatmapNew.HeatmapType type : heatmaps.keySet()) {
-            heatmaps.get(type).incrementGameTimeTicks();
-        }
-
-        WorldPoint currentCoords = client.getLocalPlayer().getWorldLocation();
-        int currentX = currentCoords.getX();
-        int currentY = currentCoords.getY();
-        boolean playerMovedSinceLastTick = (currentX != lastX || currentY != lastY);
-
-        /* When running, players cover more than one tile per tick, which creates spotty paths.
-         * We fix this by drawing a line between the current coordinates and the previous coordinates,
-         * but we have to be sure that the player indeed ran from point A to point B, differentiating the movement from teleportation.
-         * Since it's too hard to check if the player is actually running, we'll just check if the distance covered since last tick
-         * was less than 5 tiles
-         */
-        int diagDistance = diagonalDistance(new Point(lastX, lastY), new Point(currentX, currentY));
-        if (diagDistance <= 3) {
-            // Gets all the tiles between last position and new position
-            for (Point tile : getPointsBetween(new Point(lastX, lastY), new Point(currentX, currentY))) {
-                // TYPE_A
-                if (playerMovedSinceLastTick && config.isHeatmapTypeAEnabled()) {
-                    heatmaps.get(HeatmapNew.HeatmapType.TYPE_A).increment(tile.x, tile.y);
-                }
 
-                // TYPE_B
-                if (config.isHeatmapTypeBEnabled()) {
-                    heatmaps.get(HeatmapNew.HeatmapType.TYPE_B).increment(tile.x, tile.y);
-                }
-            }
+        // Heatmaps are tracked as soon as they've been loaded, even while others are still loading
+        if (isTracking()) {
+            WorldPoint currentCoords = client.getLocalPlayer().getWorldLocation();
+            // Track the movement since last tick, and have this tick's events applied
+            tracker.onTick(currentCoords.getX(), currentCoords.getY());
         }
-
-        // TELEPORT_PATHS
-        if (config.isHeatmapTeleportPathsEnabled() && diagDistance > 15 && isInOverworld(new Point(lastX, lastY)) && isInOverworld(new Point(currentX, currentY))) //we don't draw lines between the overworld and caves etc.
-        {
-            if (config.isHeatmapTeleportPathsEnabled()) {
-                for (Point tile : getPointsBetween(new Point(lastX, lastY), new Point(currentX, currentY))) {
-                    heatmaps.get(HeatmapNew.HeatmapType.TELEPORT_PATHS).increment(tile.x, tile.y);
-                }
-            }
-        }
-
-        // TELEPORTED_TO and TELEPORTED_FROM
-        if (diagDistance > 15 && isInOverworld(new Point(lastX, lastY)) && isInOverworld(new Point(currentX, currentY))) //we only track teleports between overworld tiles
-        {
-            if (config.isHeatmapTeleportedToEnabled()) {
-                heatmaps.get(HeatmapNew.HeatmapType.TELEPORTED_TO).increment(currentX, currentY);
-            }
-            if (config.isHeatmapTeleportedFromEnabled()) {
-                heatmaps.get(HeatmapNew.HeatmapType.TELEPORTED_FROM).increment(lastX, lastY);
-            }
-        }
-
-        // Backup/autosave routines
-        backupRoutine();
-        autosaveRoutine();
+        tileEventConsumer.wakeUp();
 
         // Update panel step counter
         SwingUtilities.invokeLater(panel::updateCounts);
@@ -314,141 +326,157 @@ public class WorldHeatmapPlugin extends Plugin {
         if (client.getTickCount() % 10 == 0) {
             SwingUtilities.invokeLater(panel::updateMemoryUsages);
         }
+        tickHandlerTime.recordSince(startTime);
+    }
 
-        // Update last coords
-        lastX = currentX;
-        lastY = currentY;
+    /**
+     * @return Whether the heatmaps have started loading, and the events are to be tracked. Until then, the ones from the previous login may still be loaded
+     */
+    private boolean isTracking() {
+        return loadHeatmapsFuture != null;
     }
 
     @Subscribe
     public void onActorDeath(ActorDeath actorDeath) {
+        if (!isTracking()) {
+            return;
+        }
+        WorldPoint location = actorDeath.getActor().getWorldLocation();
         if (actorDeath.getActor() instanceof Player) {
             Player actor = (Player) actorDeath.getActor();
             if (actor.getId() == client.getLocalPlayer().getId()) {
-                // DEATHS
-                if (config.isHeatmapDeathsEnabled()) {
-                    heatmaps.get(HeatmapNew.HeatmapType.DEATHS).increment(actor.getWorldLocation().getX(), actor.getWorldLocation().getY());
-                }
+                tracker.onPlayerDeath(location.getX(), location.getY());
             }
         } else if (actorDeath.getActor() instanceof NPC) {
-            if (heatmaps.get(HeatmapNew.HeatmapType.NPC_DEATHS) != null && config.isHeatmapNPCDeathsEnabled()) {
-                // NPC_DEATHS
-                heatmaps.get(HeatmapNew.HeatmapType.NPC_DEATHS).increment(actorDeath.getActor().getWorldLocation().getX(), actorDeath.getActor().getWorldLocation().getY());
-            }
+            tracker.onNpcDeath(location.getX(), location.getY());
         }
     }
 
     @Subscribe
     public void onHitsplatApplied(HitsplatApplied hitsplatApplied) {
-        if (hitsplatApplied.getHitsplat().getAmount() == 0) {
+        if (!isTracking()) {
             return;
         }
-        // DAMAGE_GIVEN
-        if (hitsplatApplied.getHitsplat().getHitsplatType() == net.runelite.api.HitsplatID.DAMAGE_ME && hitsplatApplied.getActor() instanceof NPC) {
-            NPC actor = (NPC) hitsplatApplied.getActor();
-            if (config.isHeatmapDamageGivenEnabled()) {
-                heatmaps.get(HeatmapNew.HeatmapType.DAMAGE_GIVEN).increment(actor.getWorldLocation().getX(), actor.getWorldLocation().getY(), hitsplatApplied.getHitsplat().getAmount());
-            }
+        int amount = hitsplatApplied.getHitsplat().getAmount();
+        if (amount == 0) {
+            return;
         }
-
-        // DAMAGE_TAKEN
-        if (hitsplatApplied.getHitsplat().getHitsplatType() == HitsplatID.DAMAGE_ME && hitsplatApplied.getActor() instanceof Player) {
-            Player actor = (Player) hitsplatApplied.getActor();
-            if (actor.getId() == client.getLocalPlayer().getId()) {
-                if (config.isHeatmapDamageTakenEnabled()) {
-                    heatmaps.get(HeatmapNew.HeatmapType.DAMAGE_TAKEN).increment(actor.getWorldLocation().getX(), actor.getWorldLocation().getY(), hitsplatApplied.getHitsplat().getAmount());
-                }
-            }
+        if (hitsplatApplied.getHitsplat().getHitsplatType() != HitsplatID.DAMAGE_ME) {
+            return;
+        }
+        WorldPoint location = hitsplatApplied.getActor().getWorldLocation();
+        if (hitsplatApplied.getActor() instanceof NPC) {
+            tracker.onDamageGiven(location.getX(), location.getY(), amount);
+        } else if (hitsplatApplied.getActor() instanceof Player && ((Player) hitsplatApplied.getActor()).getId() == client.getLocalPlayer().getId()) {
+            tracker.onDamageTaken(location.getX(), location.getY(), amount);
         }
     }
 
     @Subscribe
     public void onChatMessage(ChatMessage chatMessage) {
-        if (client.getLocalPlayer() == null || client.getLocalPlayer().getName() == null) {
+        if (!isTracking() || client.getLocalPlayer() == null || client.getLocalPlayer().getName() == null) {
             return;
         }
         if (chatMessage.getType() == ChatMessageType.PUBLICCHAT && chatMessage.getName().contains(client.getLocalPlayer().getName())) {
-            // PLACES_SPOKEN_AT
-            if (config.isHeatmapPlacesSpokenAtEnabled() && heatmaps.get(HeatmapNew.HeatmapType.PLACES_SPOKEN_AT) != null) {
-                heatmaps.get(HeatmapNew.HeatmapType.PLACES_SPOKEN_AT).increment(client.getLocalPlayer().getWorldLocation().getX(), client.getLocalPlayer().getWorldLocation().getY());
-            }
+            WorldPoint location = client.getLocalPlayer().getWorldLocation();
+            tracker.onSpokeAt(location.getX(), location.getY());
         }
     }
 
     @Subscribe
     public void onStatChanged(StatChanged statChanged) {
-        // NOTE: this happens 23 times when you log in, and at such time, the heatmaps haven't been loaded in, so you can't call .get() on them
-        // Get difference between previous and current XP
-        int skillIndex = statChanged.getSkill().ordinal();
-        int xpDifference = client.getSkillExperience(statChanged.getSkill()) - previousXP[skillIndex];
-
-        // Update previous XP
-        previousXP[skillIndex] = client.getSkillExperience(statChanged.getSkill());
-
-        // XP_GAINED
-        if (config.isHeatmapXPGainedEnabled() && heatmaps.get(HeatmapNew.HeatmapType.XP_GAINED) != null) {
-            heatmaps.get(HeatmapNew.HeatmapType.XP_GAINED).increment(client.getLocalPlayer().getWorldLocation().getX(), client.getLocalPlayer().getWorldLocation().getY(), xpDifference);
+        if (!isTracking()) {
+            return;
         }
+        WorldPoint location = client.getLocalPlayer().getWorldLocation();
+        tracker.onStatChanged(statChanged.getSkill().ordinal(), client.getSkillExperience(statChanged.getSkill()), location.getX(), location.getY());
     }
 
     @Subscribe
     public void onNpcSpawned(final NpcSpawned npcSpawned) {
-        // Currently it counts all random event spawns, not just random events meant for the local player
-        if (randomEventNPCIDs.contains(npcSpawned.getNpc().getId())) {
-            // RANDOM_EVENT_SPAWNS
-            if (config.isHeatmapRandomEventSpawnsEnabled() && heatmaps.get(HeatmapNew.HeatmapType.RANDOM_EVENT_SPAWNS) != null) {
-                heatmaps.get(HeatmapNew.HeatmapType.RANDOM_EVENT_SPAWNS).increment(npcSpawned.getNpc().getWorldLocation().getX(), npcSpawned.getNpc().getWorldLocation().getY());
-            }
-        }
-
-        // BOB_THE_CAT_SIGHTING
-        if (config.isHeatmapBobTheCatSightingEnabled() && npcSpawned.getNpc().getId() == NpcID.BOB_8034) {
-            // Only count Bob the Cat sightings once per hour at most
-            if (timeLastSeenBobTheCatPerWorld.get(client.getWorld()) == null || Instant.now().isAfter(timeLastSeenBobTheCatPerWorld.get(client.getWorld()).plusSeconds(3600))) {
-                if (heatmaps.get(HeatmapNew.HeatmapType.BOB_THE_CAT_SIGHTING) != null) {
-                    heatmaps.get(HeatmapNew.HeatmapType.BOB_THE_CAT_SIGHTING).increment(npcSpawned.getNpc().getWorldLocation().getX(), npcSpawned.getNpc().getWorldLocation().getY());
-                    timeLastSeenBobTheCatPerWorld.put(client.getWorld(), Instant.now());
-                }
-            }
+        if (!isTracking()) {
+            return;
         }
+        WorldPoint location = npcSpawned.getNpc().getWorldLocation();
+        tracker.onNpcSpawned(npcSpawned.getNpc().getId(), location.getX(), location.getY(), client.getWorld(), Instant.now());
     }
 
     @Subscribe
     public void onNpcLootReceived(final NpcLootReceived npcLootReceived) {
-        // LOOT_VALUE
-        if (config.isHeatmapLootValueEnabled()) {
-            for (ItemStack itemStack : npcLootReceived.getItems()) {
-                WorldPoint location = npcLootReceived.getNpc().getWorldLocation();
-                int x = location.getX();
-                int y = location.getY();
-
-                int totalValue = itemStack.getQuantity() * itemManager.getItemPrice(itemStack.getId());
-                if (heatmaps.get(HeatmapNew.HeatmapType.LOOT_VALUE) != null) {
-                    heatmaps.get(HeatmapNew.HeatmapType.LOOT_VALUE).increment(x, y, totalValue);
-                }
-            }
+        if (!isTracking() || !config.isHeatmapLootValueEnabled()) {
+            return;
+        }
+        WorldPoint location = npcLootReceived.getNpc().getWorldLocation();
+        for (ItemStack itemStack : npcLootReceived.getItems()) {
+            tracker.onLootReceived(location.getX(), location.getY(), itemStack.getQuantity() * itemManager.getItemPrice(itemStack.getId()));
         }
     }
 
     /**
-     * Autosave the heatmap file and/or write the 'TYPE_A' and 'TYPE_B' heatmap images if it is the correct time to so
+     * Called on the tick routine's thread once a tick's events have been applied to the heatmaps.
+     * Ticks that end while it's still running are skipped, so the routines are due when a multiple of their frequency has been passed, rather than reached
      */
-    private void autosaveRoutine() {
-        // Determine if autosave should happen
-        if (heatmaps.keySet().isEmpty()){
+    private void onTrackedTick() {
+        if (config.isColdHeatmapPagingEnabled()) {
+            residency.pageOutColdHeatmaps();
+        }
+        heatmapMemory.update();
+        // Have the overlay pick up the changes applied to its heatmap
+        heatmapOverlay.update();
+
+        // Backup/autosave routines, which require all heatmaps to have been loaded
+        if (loadHeatmapsFuture == null || !loadHeatmapsFuture.isDone()) {
+            routineGameTimeTicks = -1;
             return;
         }
+        int highestGameTimeTicks = getHighestGameTimeTicks();
+        if (routineGameTimeTicks >= 0) {
+            backupRoutine(routineGameTimeTicks, highestGameTimeTicks);
+            autosaveRoutine(routineGameTimeTicks, highestGameTimeTicks);
+        }
+        routineGameTimeTicks = highestGameTimeTicks;
+    }
+
+    /**
+     * @return The highest game time of the loaded heatmaps, including those that are paged out
+     */
+    private int getHighestGameTimeTicks() {
         int highestGameTimeTicks = 0;
-        for (HeatmapNew.HeatmapType type : heatmaps.keySet()) {
-            if (heatmaps.get(type).getGameTimeTicks() > highestGameTimeTicks) {
-                highestGameTimeTicks = heatmaps.get(type).getGameTimeTicks();
-            }
+        for (HeatmapNew.HeatmapType type : HeatmapNew.HeatmapType.values()) {
+            highestGameTimeTicks = Math.max(highestGameTimeTicks, residency.getGameTimeTicks(type));
+        }
+        return highestGameTimeTicks;
+    }
+
+    /**
+     * @return Whether a multiple of the frequency lies in (fromTicks, toTicks]
+     */
+    private static boolean isDue(int fromTicks, int toTicks, int frequency) {
+        return frequency > 0 && toTicks / frequency > fromTicks / frequency;
+    }
+
+    /**
+     * @return The soft limit on the heatmaps' total estimated memory usage, in bytes, or 0 if there isn't one
+     */
+    long getMemoryBudget() {
+        return config.memoryBudgetMB() * 1024L * 1024;
+    }
+
+    /**
+     * Autosave the heatmap file and/or write the 'TYPE_A' and 'TYPE_B' heatmap images if it is the correct time to so,
+     * i.e. if the game time has passed a multiple of their frequencies since the routine last ran
+     */
+    private void autosaveRoutine(int previousGameTimeTicks, int highestGameTimeTicks) {
+        // Determine if autosave should happen
+        if (heatmaps.keySet().isEmpty()){
+            return;
         }
-        boolean shouldAutosaveFiles = highestGameTimeTicks % WorldHeatmapPlugin.HEATMAP_AUTOSAVE_FREQUENCY == 0;
-        boolean shouldWriteImages = config.typeABImageAutosave() && highestGameTimeTicks % config.typeABImageAutosaveFrequency() == 0;
+        boolean shouldAutosaveFiles = isDue(previousGameTimeTicks, highestGameTimeTicks, WorldHeatmapPlugin.HEATMAP_AUTOSAVE_FREQUENCY);
+        boolean shouldWriteImages = config.typeABImageAutosave() && isDue(previousGameTimeTicks, highestGameTimeTicks, config.typeABImageAutosaveFrequency());
 
-        // Autosave the heatmap file if it is the correct time to do so, or if image is about to be written
-        if (shouldAutosaveFiles || shouldWriteImages) {
+        // Since every increment is journaled, the heatmap file only needs rewriting once the journal has grown big, or if image is about to be written
+        boolean journalNeedsCompaction = journal != null && journal.getUncompactedSize() > JOURNAL_COMPACTION_SIZE;
+        if ((shouldAutosaveFiles && journalNeedsCompaction) || shouldWriteImages) {
             saveCurrentHeatmapsFile();
         }
 
@@ -457,131 +485,205 @@ public class WorldHeatmapPlugin extends Plugin {
             File typeAImageFile = HeatmapFile.getCurrentImageFile(mostRecentLocalUserID, HeatmapNew.HeatmapType.TYPE_A);
             File typeBImageFile = HeatmapFile.getCurrentImageFile(mostRecentLocalUserID, HeatmapNew.HeatmapType.TYPE_B);
 
-            // Write the image files
-            if (config.isHeatmapTypeAEnabled()) {
-                worldHeatmapPluginExecutor.execute(() -> HeatmapImage.writeHeatmapImage(heatmaps.get(HeatmapNew.HeatmapType.TYPE_A), typeAImageFile, false, config.heatmapAlpha(), config.heatmapSensitivity(), config.speedMemoryTradeoff(), new HeatmapProgressListener(this, HeatmapNew.HeatmapType.TYPE_A)));
+            // Write the image files, from snapshots taken on this tick. Only the parts of them that changed since the last autosave are redrawn
+            WorldMapCache worldMapCache = getWorldMapCache();
+            HeatmapNew typeAHeatmap = getHeatmap(HeatmapNew.HeatmapType.TYPE_A);
+            if (config.isHeatmapTypeAEnabled() && typeAHeatmap != null) {
+                HeatmapNew typeASnapshot = typeAHeatmap.snapshot();
+                worldHeatmapPluginExecutor.execute(() -> HeatmapImage.writeHeatmapImageIncrementally(typeASnapshot, typeAImageFile, HeatmapFile.getImageTileCacheFile(mostRecentLocalUserID, HeatmapNew.HeatmapType.TYPE_A), config.heatmapAlpha(), config.heatmapSensitivity(), config.isParallelImageRenderingEnabled(), worldMapCache, new HeatmapProgressListener(this, HeatmapNew.HeatmapType.TYPE_A)));
             }
-            if (config.isHeatmapTypeBEnabled()) {
-                worldHeatmapPluginExecutor.execute(() -> HeatmapImage.writeHeatmapImage(heatmaps.get(HeatmapNew.HeatmapType.TYPE_B), typeBImageFile, false, config.heatmapAlpha(), config.heatmapSensitivity(), config.speedMemoryTradeoff(), new HeatmapProgressListener(this, HeatmapNew.HeatmapType.TYPE_B)));
+            HeatmapNew typeBHeatmap = getHeatmap(HeatmapNew.HeatmapType.TYPE_B);
+            if (config.isHeatmapTypeBEnabled() && typeBHeatmap != null) {
+                HeatmapNew typeBSnapshot = typeBHeatmap.snapshot();
+                worldHeatmapPluginExecutor.execute(() -> HeatmapImage.writeHeatmapImageIncrementally(typeBSnapshot, typeBImageFile, HeatmapFile.getImageTileCacheFile(mostRecentLocalUserID, HeatmapNew.HeatmapType.TYPE_B), config.heatmapAlpha(), config.heatmapSensitivity(), config.isParallelImageRenderingEnabled(), worldMapCache, new HeatmapProgressListener(this, HeatmapNew.HeatmapType.TYPE_B)));
             }
         }
     }
 
     /**
-     * Backs up the heatmap file if it is the correct time to do so according to the backup frequency
+     * Backs up the heatmap file if it is the correct time to do so according to the backup frequency,
+     * i.e. if the game time has passed a multiple of it since the routine last ran
      */
-    private void backupRoutine() {
+    private void backupRoutine(int previousGameTimeTicks, int highestGameTimeTicks) {
         // Determine if a backup should be made
         if (heatmaps.keySet().isEmpty()){
             return;
         }
-        int highestGameTimeTicks = 0;
-        for (HeatmapNew.HeatmapType type : heatmaps.keySet()) {
-            if (heatmaps.get(type).getGameTimeTicks() > highestGameTimeTicks) {
-                highestGameTimeTicks = heatmaps.get(type).getGameTimeTicks();
-            }
-        }
 
         // Make backup
-        if (highestGameTimeTicks % config.heatmapBackupFrequency() == 0) {
+        if (isDue(previousGameTimeTicks, highestGameTimeTicks, config.heatmapBackupFrequency())) {
             saveNewHeatmapsFile();
         }
     }
 
+    /**
+     * Updates the most recent heatmap file with the heatmaps that have changed since they were last saved. If the most recent file does not exist, it will create a new file.
+     */
+    void saveCurrentHeatmapsFile() {
+        saveCurrentHeatmapsFile(false);
+    }
+
     /**
      * Updates the most recent heatmap file with the latest data. If the most recent file does not exist, it will create a new file.
+     * @param includeUnchanged Whether to also rewrite the heatmaps whose tiles haven't changed since they were last saved, e.g. to store their game time
      */
-    private void saveCurrentHeatmapsFile() {
+    private void saveCurrentHeatmapsFile(boolean includeUnchanged) {
         File heatmapsFile = HeatmapFile.getLatestHeatmapFile(mostRecentLocalUserID);
         if (heatmapsFile == null) {
             heatmapsFile = HeatmapFile.getCurrentHeatmapFile(mostRecentLocalUserID);
         }
-        File finalHeatmapsFile = heatmapsFile;
-        worldHeatmapPluginExecutor.execute(() -> HeatmapNew.writeHeatmapsToFile(getEnabledHeatmaps(), finalHeatmapsFile, null));
+        saveHeatmapsFile(heatmap -> isHeatmapEnabled(heatmap.getHeatmapType()), heatmapsFile, null, includeUnchanged);
     }
 
     /**
      * Saves the heatmaps to a new dated file, carrying over disabled/unprovided heatmaps from the most recently dated heatmaps file
      */
-    private void saveNewHeatmapsFile() {
+    void saveNewHeatmapsFile() {
         // Write heatmaps to new file, carrying over disabled/unprovided heatmaps from previous heatmaps file
         File latestHeatmapsFile = HeatmapFile.getLatestHeatmapFile(mostRecentLocalUserID);
         File newHeatmapsFile = HeatmapFile.getCurrentHeatmapFile(mostRecentLocalUserID);
         log.debug("Backing up heatmaps to file: {}", latestHeatmapsFile);
-        worldHeatmapPluginExecutor.execute(() -> HeatmapNew.writeHeatmapsToFile(getEnabledHeatmaps(), newHeatmapsFile, latestHeatmapsFile));
+        saveHeatmapsFile(heatmap -> isHeatmapEnabled(heatmap.getHeatmapType()), newHeatmapsFile, latestHeatmapsFile, false);
     }
 
-    // Credit to https:// www.redblobgames.com/grids/line-drawing.html for where I figured out how to make the following linear interpolation functions
+    /**
+     * Writes the heatmaps to the file on the executor, folding the journal into it. Once the file has been written,
+     * the journal segments whose increments it now contains are deleted.
+     * Heatmaps that haven't changed since they were last saved are skipped (unless includeUnchanged), since their
+     * entries are carried over as-is from the file being updated (or from previousHeatmapsFile).
+     * The heatmaps are written from snapshots taken together with the journal rotation, so tracking carries on during the write,
+     * and every increment ends up in exactly one of the file and the journal segments after it.
+     * @param shouldSave Which of the loaded heatmaps to save
+     */
+    private void saveHeatmapsFile(Predicate<HeatmapNew> shouldSave, File heatmapsFile, File previousHeatmapsFile, boolean includeUnchanged) {
+        // If there's no file to carry the unchanged heatmaps over from, they have to be written too
+        boolean hasFileToCarryOver = (previousHeatmapsFile != null ? previousHeatmapsFile : heatmapsFile).exists();
+        boolean writeUnchanged = includeUnchanged || !hasFileToCarryOver;
+        List<HeatmapNew> heatmapsToWrite = new ArrayList<>();
+        List<HeatmapNew> snapshots = new ArrayList<>();
+        HeatmapJournal journal = this.journal;
+        long journalSequence;
+        List<HeatmapNew> heatmapsToSave;
+        if (journal == null) {
+            journalSequence = -1;
+            heatmapsToSave = getHeatmapsToSave(shouldSave, writeUnchanged);
+            takeSnapshots(heatmapsToSave, writeUnchanged, heatmapsToWrite, snapshots);
+        } else {
+            // The tile event consumer holds the journal's lock while applying and journaling each record, so none can fall in between the rotation and the snapshots.
+            // That includes the increments it buffers for paged-out heatmaps, so those are paged in under the lock too
+            synchronized (journal) {
+                journalSequence = journal.rotate();
+                heatmapsToSave = getHeatmapsToSave(shouldSave, writeUnchanged);
+                takeSnapshots(heatmapsToSave, writeUnchanged, heatmapsToWrite, snapshots);
+                journalUnwrittenGameTimes(journal, heatmapsToWrite);
+            }
+        }
+        log.debug("Saving {} of {} heatmaps ({} unchanged)", heatmapsToWrite.size(), heatmapsToSave.size(), heatmapsToSave.size() - heatmapsToWrite.size());
+
+        HeatmapJournal.PendingIncrements pending = pendingIncrements;
+        worldHeatmapPluginExecutor.execute(() -> {
+            // The journaled increments of the types that aren't loaded are in the segments about to be deleted, so they're folded into the file too
+            List<HeatmapNew> unloadedHeatmaps;
+            try {
+                unloadedHeatmaps = readUnloadedHeatmapsWithIncrements(pending, snapshots, previousHeatmapsFile != null ? previousHeatmapsFile : heatmapsFile);
+            } catch (FileNotFoundException e) {
+                log.error("Couldn't read the unloaded heatmaps with journaled increments from heatmaps file '{}', so the heatmaps weren't saved", e.getMessage());
+                return;
+            }
+            List<HeatmapNew> heatmapsToFile = new ArrayList<>(snapshots);
+            heatmapsToFile.addAll(unloadedHeatmaps);
+            if (HeatmapNew.writeHeatmapsToFile(heatmapsToFile, heatmapsFile, previousHeatmapsFile, journalSequence)) {
+                for (int i = 0; i < heatmapsToWrite.size(); i++) {
+                    heatmapsToWrite.get(i).markSaved(snapshots.get(i).getModCount());
+                }
+                for (HeatmapNew heatmap : unloadedHeatmaps) {
+                    pending.discard(heatmap.getHeatmapType());
+                }
+                if (journal != null) {
+                    journal.deleteSegmentsThrough(journalSequence);
+                }
+            }
+        });
+    }
 
     /**
-     * Returns the list of discrete coordinates on the path between p0 and p1, as an array of Points
-     *
-     * @param p0 Point A
-     * @param p1 Point B
-     * @return Array of coordinates
+     * Reads the heatmaps of the types that aren't being saved, but have journaled increments left over from when the heatmaps were loaded
+     * (because they weren't enabled then), from the file they'd otherwise be carried over from, and applies the increments to them
      */
-    private Point[] getPointsBetween(Point p0, Point p1) {
-        if (p0.equals(p1)) {
-            return new Point[]{p1};
+    private List<HeatmapNew> readUnloadedHeatmapsWithIncrements(HeatmapJournal.PendingIncrements pending, List<HeatmapNew> snapshots, File carryOverFile) throws FileNotFoundException {
+        List<HeatmapNew> unloadedHeatmaps = new ArrayList<>();
+        if (pending == null) {
+            return unloadedHeatmaps;
         }
-        int N = diagonalDistance(p0, p1);
-        Point[] points = new Point[N];
-        for (int step = 1; step <= N; step++) {
-            float t = step / (float) N;
-            points[step - 1] = roundPoint(lerp_point(p0, p1, t));
+        Set<HeatmapNew.HeatmapType> savedTypes = snapshots.stream().map(HeatmapNew::getHeatmapType).collect(Collectors.toSet());
+        for (HeatmapNew.HeatmapType type : HeatmapNew.HeatmapType.values()) {
+            if (savedTypes.contains(type) || !pending.hasIncrements(type)) {
+                continue;
+            }
+            HeatmapNew heatmap = carryOverFile.exists() ? HeatmapNew.readHeatmapsFromFile(carryOverFile, Collections.singletonList(type)).get(type) : null;
+            if (heatmap == null) {
+                heatmap = new HeatmapNew(type, mostRecentLocalUserID);
+            }
+            pending.applyTo(heatmap);
+            unloadedHeatmaps.add(heatmap);
         }
-        return points;
+        return unloadedHeatmaps;
     }
 
     /**
-     * Returns the "diagonal distance" (the maximum of the horizontal and vertical distance) between two points
-     *
-     * @param p0 Point A
-     * @param p1 Point B
-     * @return The diagonal distance
+     * @return The loaded heatmaps that shouldSave accepts, having paged in those with changes that haven't been saved (or all of them if includeUnchanged)
      */
-    private int diagonalDistance(Point p0, Point p1) {
-        int dx = Math.abs(p1.x - p0.x);
-        int dy = Math.abs(p1.y - p0.y);
-        return Math.max(dx, dy);
+    private List<HeatmapNew> getHeatmapsToSave(Predicate<HeatmapNew> shouldSave, boolean includeUnchanged) {
+        return residency.getHeatmapsToSave(includeUnchanged).stream().filter(shouldSave).collect(Collectors.toList());
     }
 
     /**
-     * Rounds a floating point coordinate to its nearest integer coordinate.
-     *
-     * @param point The point to round
-     * @return Coordinates
+     * Adds the heatmaps that need writing to heatmapsToWrite, and a snapshot of each of them to snapshots
      */
-    private Point roundPoint(float[] point) {
-        return new Point(Math.round(point[0]), Math.round(point[1]));
+    private static void takeSnapshots(Collection<HeatmapNew> heatmaps, boolean includeUnchanged, List<HeatmapNew> heatmapsToWrite, List<HeatmapNew> snapshots) {
+        for (HeatmapNew heatmap : heatmaps) {
+            if (includeUnchanged || heatmap.isDirty()) {
+                heatmapsToWrite.add(heatmap);
+                snapshots.add(heatmap.snapshot());
+            }
+        }
     }
 
     /**
-     * Returns the floating point 2D coordinate that is t-percent of the way between p0 and p1
-     *
-     * @param p0 Point A
-     * @param p1 Point B
-     * @param t  Percent distance
-     * @return Coordinate that is t% of the way from A to B
+     * Journals the game time of the loaded heatmaps that aren't about to be written, in the segment started by the rotation.
+     * Their entries are carried over with the game time they were last saved with, and the ticks counted towards them since
+     * are in the segments that are deleted once the file has been written, so they'd be lost otherwise.
      */
-    private float[] lerp_point(Point p0, Point p1, float t) {
-        return new float[]{lerp(p0.x, p1.x, t), lerp(p0.y, p1.y, t)};
+    private void journalUnwrittenGameTimes(HeatmapJournal journal, List<HeatmapNew> heatmapsToWrite) {
+        Set<HeatmapNew.HeatmapType> writtenTypes = heatmapsToWrite.stream().map(HeatmapNew::getHeatmapType).collect(Collectors.toSet());
+        for (HeatmapNew.HeatmapType type : HeatmapNew.HeatmapType.values()) {
+            int gameTimeTicks = residency.getGameTimeTicks(type);
+            if (gameTimeTicks >= 0 && !writtenTypes.contains(type)) {
+                journal.appendGameTime(type, gameTimeTicks);
+            }
+        }
+    }
+
+    private void closeJournal() {
+        closeJournal(journal);
     }
 
     /**
-     * Returns the floating point number that is t-percent of the way between p0 and p1.
-     *
-     * @param p0 Point A
-     * @param p1 Point B
-     * @param t  Percent distance
-     * @return Point that is t-percent of the way from A to B
+     * Closes the given journal, and forgets it (and the increments replayed from it) unless another has been opened since
      */
-    private float lerp(int p0, int p1, float t) {
-        return p0 + (p1 - p0) * t;
+    private void closeJournal(HeatmapJournal journalToClose) {
+        if (journalToClose == null) {
+            return;
+        }
+        journalToClose.close();
+        if (journal == journalToClose) {
+            journal = null;
+            pendingIncrements = null;
+        }
     }
 
     public boolean isInOverworld(Point point) {
-        return point.y < Constants.OVERWORLD_MAX_Y && point.y > 2500 && point.x >= 1024 && point.x < 3960;
+        return HeatmapTracker.isInOverworld(point);
     }
 
     /**
@@ -595,7 +697,7 @@ public class WorldHeatmapPlugin extends Plugin {
         // Get the heatmaps that are enabled but were not loaded
         ArrayList<HeatmapNew.HeatmapType> missingTypes = new ArrayList<>();
         for (HeatmapNew.HeatmapType type : HeatmapNew.HeatmapType.values()) {
-            if (isHeatmapEnabled(type) && (!heatmaps.containsKey(type) || heatmaps.get(type) == null)) {
+            if (isHeatmapEnabled(type) && (!heatmaps.containsKey(type) || heatmaps.get(type) == null) && !residency.isPagedOut(type)) {
                 missingTypes.add(type);
             }
         }
@@ -612,8 +714,11 @@ public class WorldHeatmapPlugin extends Plugin {
         }
     }
 
-    Collection<HeatmapNew> getEnabledHeatmaps() {
-        return heatmaps.values().stream().filter(heatmap -> isHeatmapEnabled(heatmap.getHeatmapType())).collect(Collectors.toList());
+    /**
+     * @return The heatmap of the given type, paging it in if it's been paged out, or null if it isn't loaded
+     */
+    HeatmapNew getHeatmap(HeatmapNew.HeatmapType type) {
+        return residency.get(type);
     }
 
     Collection<HeatmapNew.HeatmapType> getEnabledHeatmapTypes() {
@@ -626,6 +731,14 @@ public class WorldHeatmapPlugin extends Plugin {
         return enabledTypes;
     }
 
+    /**
+     * @return The cache of the world map images and offsets that heatmap images are written with, using the override folder from the config if one is set
+     */
+    WorldMapCache getWorldMapCache() {
+        String overrideDirectory = config.worldMapOverrideDirectory().trim();
+        return new WorldMapCache(HeatmapFile.WORLD_MAP_CACHE_DIR, overrideDirectory.isEmpty() ? null : new File(overrideDirectory));
+    }
+
     boolean isHeatmapEnabled(HeatmapNew.HeatmapType type) {
         Map<HeatmapNew.HeatmapType, Supplier> heatmapTypeSupplierMap = new HashMap<>();
         heatmapTypeSupplierMap.put(HeatmapNew.HeatmapType.TYPE_A, config::isHeatmapTypeAEnabled);
@@ -666,6 +779,11 @@ public class WorldHeatmapPlugin extends Plugin {
         configNameToHeatmapType.put("isHeatmapDamageTakenEnabled", HeatmapNew.HeatmapType.DAMAGE_TAKEN);
         configNameToHeatmapType.put("isHeatmapDamageGivenEnabled", HeatmapNew.HeatmapType.DAMAGE_GIVEN);
 
+        // Bring the paged-out heatmaps back into memory once paging out is turned off
+        if (event.getKey().equals("pageOutColdHeatmaps") && !config.isColdHeatmapPagingEnabled()) {
+            residency.pageInAll();
+        }
+
         HeatmapNew.HeatmapType toggledHeatmapType = configNameToHeatmapType.get(event.getKey());
         if (toggledHeatmapType != null) {
             boolean isEnabled = event.getNewValue() != null && event.getNewValue().equals("true");
@@ -674,37 +792,73 @@ public class WorldHeatmapPlugin extends Plugin {
     }
 
     /**
-     * Saves heatmap to file when enabled, and reads heatmap from file when enabled.
+     * Saves heatmap to file when disabled, and reads heatmap from file when enabled.
      * @param isHeatmapEnabled Whether the heatmap is enabled
      * @param heatmapType The type of heatmap
      */
     private void handleHeatmapConfigChanged(boolean isHeatmapEnabled, HeatmapNew.HeatmapType heatmapType){
-        File heatmapsFile = HeatmapFile.getLatestHeatmapFile(mostRecentLocalUserID);
-
         if (isHeatmapEnabled) {
             log.debug("Enabling {} heatmap...", heatmapType);
-            HeatmapNew heatmap = null;
-            // Load the heatmap from the file if it exists
-            if (heatmapsFile != null && heatmapsFile.exists()) {
-                try {
-                    heatmap = HeatmapNew.readHeatmapsFromFile(heatmapsFile, Collections.singletonList(heatmapType)).get(heatmapType);
-                } catch (FileNotFoundException e) {
-                    throw new RuntimeException(e);
-                }
-            }
-            if (heatmap != null) {
-                heatmaps.put(heatmapType, heatmap);
-            }
-        } else {
-            log.debug("Disabling {} heatmap...", heatmapType);
+            // Read on the executor, after any save that's still being written, so that the file has everything that's been saved of the heatmap
+            worldHeatmapPluginExecutor.execute(() -> loadEnabledHeatmap(heatmapType));
+            return;
+        }
+
+        log.debug("Disabling {} heatmap...", heatmapType);
+        // Save once the events published so far have been applied, so they're included, without holding up the thread that changed the config
+        tileEventConsumer.whenApplied(() -> {
+            File heatmapsFile = HeatmapFile.getLatestHeatmapFile(mostRecentLocalUserID);
             if (heatmapsFile == null){
                 heatmapsFile = HeatmapFile.getCurrentHeatmapFile(mostRecentLocalUserID);
             }
-            HeatmapNew.writeHeatmapsToFile(List.of(heatmaps.get(heatmapType)), heatmapsFile, null);
-            heatmaps.remove(heatmapType);
+            HeatmapJournal journal = this.journal;
+            if (journal == null) {
+                saveAndRemoveHeatmap(heatmapType, heatmapsFile);
+            } else {
+                // Under the journal's lock, so that no increment of the heatmap can be journaled between saving and removing it
+                synchronized (journal) {
+                    saveAndRemoveHeatmap(heatmapType, heatmapsFile);
+                }
+            }
+            initializeMissingHeatmaps(heatmaps, mostRecentLocalUserID);
+            SwingUtilities.invokeLater(panel::rebuild);
+        });
+    }
+
+    private void saveAndRemoveHeatmap(HeatmapNew.HeatmapType heatmapType, File heatmapsFile) {
+        // Fold the journal while the disabled heatmap is still included, so its journaled increments can't be replayed twice once it's re-enabled.
+        // The disabled heatmap is written even if its tiles haven't changed, so that its game time is stored
+        saveHeatmapsFile(heatmap -> heatmap.isDirty() || heatmap.getHeatmapType() == heatmapType, heatmapsFile, null, true);
+        residency.remove(heatmapType);
+    }
+
+    /**
+     * Loads the newly enabled heatmap from the file (or starts a new one if it isn't in it), catching it up with the increments
+     * that were journaled before it was disabled, which weren't saved to the file yet. Runs on the executor
+     */
+    private void loadEnabledHeatmap(HeatmapNew.HeatmapType heatmapType) {
+        if (residency.isLoaded(heatmapType)) {
+            return;
         }
-        initializeMissingHeatmaps(heatmaps, mostRecentLocalUserID);
-        panel.rebuild();
+        HeatmapNew heatmap = null;
+        File heatmapsFile = HeatmapFile.getLatestHeatmapFile(mostRecentLocalUserID);
+        if (heatmapsFile != null && heatmapsFile.exists()) {
+            try {
+                heatmap = HeatmapNew.readHeatmapsFromFile(heatmapsFile, Collections.singletonList(heatmapType)).get(heatmapType);
+            } catch (FileNotFoundException e) {
+                log.error("Couldn't read the {} heatmap from heatmaps file '{}'", heatmapType, heatmapsFile.getName());
+            }
+        }
+        if (heatmap == null) {
+            heatmap = new HeatmapNew(heatmapType, mostRecentLocalUserID);
+        }
+        HeatmapJournal.PendingIncrements pending = pendingIncrements;
+        if (pending != null && pending.hasIncrements(heatmapType)) {
+            pending.applyTo(heatmap);
+            pending.discard(heatmapType);
+        }
+        residency.replace(heatmap);
+        SwingUtilities.invokeLater(panel::rebuild);
     }
 
     static class HeatmapProgressListener implements IIOWriteProgressListener {
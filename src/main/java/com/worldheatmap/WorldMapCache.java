@@ -0,0 +1,722 @@
+package com.worldheatmap;
+
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Local cache of the world map images and their offsets, which are otherwise downloaded for every heatmap image.
+ * <p>
+ * The downloaded files are kept, and only downloaded again when they've changed upstream (checked with a conditional request,
+ * and skipped when offline). Each map image is also decoded once into a raw RGB file:
+ * <pre>
+ * int     magic ("WHMC")
+ * int     format version
+ * int     width
+ * int     height
+ * long    length of the PNG it was decoded from
+ * long    last modified time of the PNG it was decoded from
+ * bytes   width * height RGB pixels, row by row
+ * </pre>
+ * which is memory mapped, so reading a region of the map is a bulk copy out of the page cache rather than a PNG inflate from the top of the image.
+ * <p>
+ * The pixels are kept row by row rather than in tiles, and regions are copied out rather than handed out as slices of the mapping. Every
+ * reader draws the heatmap over the region it reads, so it needs a writable copy of it anyway, and the copy is cheap next to what's done
+ * with it: a 256x256 tile (for the incremental image and the tile pyramid) copies in about 50us against about 800us to compress it, and
+ * a full width strip of an 8192 pixel wide map copies in under 1ms against about 35ms to compress it. Tiles would make tile reads contiguous,
+ * but would split the full image's strips, which are a single contiguous copy row by row. The time spent copying is recorded in worldmap.read.
+ * <p>
+ * Files placed in the override directory (osrs_world_map.png, osrs_world_map_full.png, offsets.csv) are used instead of the downloaded ones,
+ * which also makes writing images possible without a network connection.
+ */
+@Slf4j
+public class WorldMapCache
+{
+	private static final String DOWNLOAD_URL = "https://raw.githubusercontent.com/GrandTheftWalrus/gtw-runelite-stuff/main/";
+	private static final String OVERWORLD_MAP_NAME = "osrs_world_map";
+	private static final String FULL_MAP_NAME = "osrs_world_map_full";
+	private static final String OFFSETS_FILE_NAME = "offsets.csv";
+	private static final String DECODED_EXTENSION = ".rgb";
+	private static final int MAGIC = 0x57484D43; // "WHMC"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8 + 8;
+	private static final long PNG_SIGNATURE = 0x89504E470D0A1A0AL;
+	private static final int IHDR = 0x49484452;
+	private static final int PLTE = 0x504C5445;
+	private static final int IDAT = 0x49444154;
+	private static final int TIMEOUT_MILLIS = 10_000;
+	// Guards the cache's files, which may be shared by several caches writing images at once
+	private static final Object FILES_LOCK = new Object();
+	private static final ColorModel RGB_COLOR_MODEL = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB), false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+	private static final MetricsRegistry.Histogram READ_TIME = MetricsRegistry.get().histogram("worldmap.read", MetricsRegistry.Unit.NANOSECONDS);
+
+	private final File cacheDir;
+	@Nullable
+	private final File overrideDir;
+
+	/**
+	 * @param cacheDir    Where to keep the downloaded and decoded files
+	 * @param overrideDir Directory of files to use instead of downloading them, or null
+	 */
+	public WorldMapCache(File cacheDir, @Nullable File overrideDir)
+	{
+		this.cacheDir = cacheDir;
+		this.overrideDir = overrideDir;
+	}
+
+	/**
+	 * Returns the world map image, downloading and/or decoding it first if the cached one is missing or out of date
+	 *
+	 * @param isFullMap Whether to get the full world map (including underground/non-overworld areas) rather than the overworld map
+	 */
+	public WorldMapImage getWorldMapImage(boolean isFullMap) throws IOException
+	{
+		synchronized (FILES_LOCK)
+		{
+			return getWorldMapImageLocked(isFullMap);
+		}
+	}
+
+	private WorldMapImage getWorldMapImageLocked(boolean isFullMap) throws IOException
+	{
+		String name = isFullMap ? FULL_MAP_NAME : OVERWORLD_MAP_NAME;
+		File png = getSourceFile(name + ".png");
+
+		// Use the decoded file if it was decoded from this very PNG, else decode it again
+		File[] decodedFiles = cacheDir.listFiles((dir, fileName) -> fileName.startsWith(name + "-") && fileName.endsWith(DECODED_EXTENSION));
+		File decoded = null;
+		if (decodedFiles != null)
+		{
+			for (File file : decodedFiles)
+			{
+				if (decoded == null && isDecodedFrom(file, png))
+				{
+					decoded = file;
+				}
+				else if (!file.delete())
+				{
+					// Probably still mapped by an earlier image write. It'll be deleted next time
+					log.debug("Couldn't delete out of date world map cache file '{}'", file.getName());
+				}
+			}
+		}
+		if (decoded == null)
+		{
+			createCacheDir();
+			// A fresh name each time, since a file that's still mapped can't be replaced on every platform
+			decoded = new File(cacheDir, name + "-" + System.currentTimeMillis() + DECODED_EXTENSION);
+			decode(png, decoded);
+		}
+		return MappedWorldMapImage.open(decoded);
+	}
+
+	/**
+	 * @return The pixel offsets of the game's coordinates on the full map (if isFullMap) or the overworld map
+	 */
+	public Point getOffsets(boolean isFullMap) throws IOException
+	{
+		File offsetsFile;
+		synchronized (FILES_LOCK)
+		{
+			offsetsFile = getSourceFile(OFFSETS_FILE_NAME);
+		}
+		// The first line holds the headers, and the next holds the full map's x and y offsets followed by the overworld map's
+		List<String> lines = Files.readAllLines(offsetsFile.toPath(), StandardCharsets.UTF_8).stream()
+			.filter(line -> !line.trim().isEmpty())
+			.collect(Collectors.toList());
+		if (lines.size() < 2)
+		{
+			throw new IOException("Offsets file '" + offsetsFile + "' is missing its values");
+		}
+		String[] values = lines.get(1).split(",");
+		try
+		{
+			int index = isFullMap ? 0 : 2;
+			return new Point(Integer.parseInt(values[index].trim()), Integer.parseInt(values[index + 1].trim()));
+		}
+		catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+		{
+			throw new IOException("Offsets file '" + offsetsFile + "' is malformed", e);
+		}
+	}
+
+	/**
+	 * Returns the file from the override directory if it's there, or else the cached download, which is first updated if it's changed upstream
+	 */
+	private File getSourceFile(String fileName) throws IOException
+	{
+		if (overrideDir != null)
+		{
+			File overrideFile = new File(overrideDir, fileName);
+			if (overrideFile.isFile())
+			{
+				return overrideFile;
+			}
+		}
+
+		createCacheDir();
+		File cachedFile = new File(cacheDir, fileName);
+		File metadataFile = new File(cacheDir, fileName + ".properties");
+		Properties metadata = new Properties();
+		if (cachedFile.isFile() && metadataFile.isFile())
+		{
+			try (InputStream is = new FileInputStream(metadataFile))
+			{
+				metadata.load(is);
+			}
+		}
+
+		try
+		{
+			HttpURLConnection connection = (HttpURLConnection) new URL(DOWNLOAD_URL + fileName).openConnection();
+			connection.setConnectTimeout(TIMEOUT_MILLIS);
+			connection.setReadTimeout(TIMEOUT_MILLIS);
+			String eTag = metadata.getProperty("ETag");
+			String lastModified = metadata.getProperty("Last-Modified");
+			if (eTag != null)
+			{
+				connection.setRequestProperty("If-None-Match", eTag);
+			}
+			if (lastModified != null)
+			{
+				connection.setRequestProperty("If-Modified-Since", lastModified);
+			}
+			try
+			{
+				int responseCode = connection.getResponseCode();
+				if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && cachedFile.isFile())
+				{
+					return cachedFile;
+				}
+				if (responseCode != HttpURLConnection.HTTP_OK)
+				{
+					throw new IOException("Downloading '" + fileName + "' failed with HTTP " + responseCode);
+				}
+
+				File tempFile = File.createTempFile("download-" + fileName + "-", ".tmp", cacheDir);
+				try
+				{
+					try (InputStream is = connection.getInputStream())
+					{
+						Files.copy(is, tempFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+					}
+					replace(tempFile, cachedFile);
+				}
+				finally
+				{
+					Files.deleteIfExists(tempFile.toPath());
+				}
+				log.debug("Downloaded '{}' to the world map cache", fileName);
+
+				Properties newMetadata = new Properties();
+				if (connection.getHeaderField("ETag") != null)
+				{
+					newMetadata.setProperty("ETag", connection.getHeaderField("ETag"));
+				}
+				if (connection.getHeaderField("Last-Modified") != null)
+				{
+					newMetadata.setProperty("Last-Modified", connection.getHeaderField("Last-Modified"));
+				}
+				try (OutputStream os = new FileOutputStream(metadataFile))
+				{
+					newMetadata.store(os, "Version of the cached " + fileName);
+				}
+				return cachedFile;
+			}
+			finally
+			{
+				connection.disconnect();
+			}
+		}
+		catch (IOException e)
+		{
+			if (cachedFile.isFile())
+			{
+				log.debug("Couldn't check '{}' for updates, so using the cached one: {}", fileName, e.toString());
+				return cachedFile;
+			}
+			throw e;
+		}
+	}
+
+	private void createCacheDir() throws IOException
+	{
+		if (!cacheDir.exists() && !cacheDir.mkdirs())
+		{
+			throw new IOException("Couldn't create the world map cache directory '" + cacheDir + "'");
+		}
+	}
+
+	private static void replace(File source, File target) throws IOException
+	{
+		try
+		{
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e)
+		{
+			Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private static boolean isDecodedFrom(File decoded, File png)
+	{
+		try (DataInputStream in = new DataInputStream(new FileInputStream(decoded)))
+		{
+			if (in.readInt() != MAGIC || in.readInt() != FORMAT_VERSION)
+			{
+				return false;
+			}
+			long width = in.readInt();
+			long height = in.readInt();
+			return in.readLong() == png.length()
+				&& in.readLong() == png.lastModified()
+				&& decoded.length() == HEADER_SIZE + width * height * 3;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+
+	/**
+	 * Decodes the PNG into a raw RGB cache file, in a single pass over it
+	 */
+	private static void decode(File png, File decoded) throws IOException
+	{
+		long startTime = System.nanoTime();
+		File tempFile = File.createTempFile("decoding-" + decoded.getName() + "-", ".tmp", decoded.getParentFile());
+		try
+		{
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16)))
+			{
+				if (!decodePng(png, out))
+				{
+					// Unusual formats (e.g. interlaced or 16 bit) are left to ImageIO, which is much slower at decoding row by row
+					out.flush();
+					try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw"))
+					{
+						raf.setLength(0);
+					}
+					try (DataOutputStream fallbackOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile), 1 << 16)))
+					{
+						decodeWithImageIO(png, fallbackOut);
+					}
+				}
+			}
+			replace(tempFile, decoded);
+		}
+		finally
+		{
+			Files.deleteIfExists(tempFile.toPath());
+		}
+		log.debug("Decoded world map '{}' into the cache after {} ms", png.getName(), (System.nanoTime() - startTime) / 1_000_000);
+	}
+
+	private static void writeHeader(DataOutputStream out, int width, int height, File png) throws IOException
+	{
+		if ((long) width * height * 3 > Integer.MAX_VALUE)
+		{
+			throw new IOException("World map image is too big to be cached (" + width + "x" + height + ")");
+		}
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeLong(png.length());
+		out.writeLong(png.lastModified());
+	}
+
+	/**
+	 * Decodes a non-interlaced 8 bit PNG row by row
+	 *
+	 * @return Whether the PNG could be decoded, which it can't if it's of another kind. Nothing is written if it can't.
+	 */
+	private static boolean decodePng(File png, DataOutputStream out) throws IOException
+	{
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(png), 1 << 16)))
+		{
+			if (in.readLong() != PNG_SIGNATURE || in.readInt() != 13 || in.readInt() != IHDR)
+			{
+				throw new IOException("'" + png + "' isn't a PNG file");
+			}
+			int width = in.readInt();
+			int height = in.readInt();
+			int bitDepth = in.readUnsignedByte();
+			int colorType = in.readUnsignedByte();
+			in.readUnsignedByte(); // Compression method
+			in.readUnsignedByte(); // Filter method
+			int interlaceMethod = in.readUnsignedByte();
+			in.readInt(); // CRC
+			int bytesPerPixel;
+			switch (colorType)
+			{
+				case 0: // Greyscale
+				case 3: // Palette
+					bytesPerPixel = 1;
+					break;
+				case 2: // RGB
+					bytesPerPixel = 3;
+					break;
+				case 4: // Greyscale and alpha
+					bytesPerPixel = 2;
+					break;
+				case 6: // RGB and alpha
+					bytesPerPixel = 4;
+					break;
+				default:
+					return false;
+			}
+			if (bitDepth != 8 || interlaceMethod != 0)
+			{
+				return false;
+			}
+
+			// Skip to the first image data chunk, keeping the palette on the way
+			byte[] palette = null;
+			while (true)
+			{
+				int chunkLength = in.readInt();
+				int chunkType = in.readInt();
+				if (chunkType == IDAT)
+				{
+					writeHeader(out, width, height, png);
+					decodeImageData(new IdatInputStream(in, chunkLength), width, height, colorType, bytesPerPixel, palette, out);
+					return true;
+				}
+				if (chunkType == PLTE)
+				{
+					palette = new byte[chunkLength];
+					in.readFully(palette);
+				}
+				else
+				{
+					in.skipBytes(chunkLength);
+				}
+				in.readInt(); // CRC
+			}
+		}
+	}
+
+	private static void decodeImageData(InputStream imageData, int width, int height, int colorType, int bytesPerPixel, @Nullable byte[] palette, DataOutputStream out) throws IOException
+	{
+		if (colorType == 3 && palette == null)
+		{
+			throw new IOException("PNG palette is missing");
+		}
+		int stride = width * bytesPerPixel;
+		byte[] row = new byte[stride];
+		byte[] previousRow = new byte[stride];
+		byte[] rgbRow = new byte[width * 3];
+		try (DataInputStream rows = new DataInputStream(new InflaterInputStream(imageData, new Inflater(), 1 << 16)))
+		{
+			for (int y = 0; y < height; y++)
+			{
+				int filterType = rows.readUnsignedByte();
+				rows.readFully(row);
+				unfilter(filterType, row, previousRow, bytesPerPixel);
+				for (int x = 0, i = 0; x < width; x++, i += bytesPerPixel)
+				{
+					int o = x * 3;
+					switch (colorType)
+					{
+						case 0:
+						case 4:
+							rgbRow[o] = rgbRow[o + 1] = rgbRow[o + 2] = row[i];
+							break;
+						case 3:
+							int paletteIndex = (row[i] & 0xFF) * 3;
+							rgbRow[o] = palette[paletteIndex];
+							rgbRow[o + 1] = palette[paletteIndex + 1];
+							rgbRow[o + 2] = palette[paletteIndex + 2];
+							break;
+						default:
+							rgbRow[o] = row[i];
+							rgbRow[o + 1] = row[i + 1];
+							rgbRow[o + 2] = row[i + 2];
+							break;
+					}
+				}
+				out.write(rgbRow);
+				byte[] swap = previousRow;
+				previousRow = row;
+				row = swap;
+			}
+		}
+	}
+
+	/**
+	 * Reverses a PNG scanline filter in place
+	 */
+	private static void unfilter(int filterType, byte[] row, byte[] previousRow, int bytesPerPixel) throws IOException
+	{
+		switch (filterType)
+		{
+			case 0: // None
+				break;
+			case 1: // Sub
+				for (int i = bytesPerPixel; i < row.length; i++)
+				{
+					row[i] += row[i - bytesPerPixel];
+				}
+				break;
+			case 2: // Up
+				for (int i = 0; i < row.length; i++)
+				{
+					row[i] += previousRow[i];
+				}
+				break;
+			case 3: // Average
+				for (int i = 0; i < row.length; i++)
+				{
+					int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+					row[i] += (left + (previousRow[i] & 0xFF)) >> 1;
+				}
+				break;
+			case 4: // Paeth
+				for (int i = 0; i < row.length; i++)
+				{
+					int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+					int up = previousRow[i] & 0xFF;
+					int upLeft = i >= bytesPerPixel ? previousRow[i - bytesPerPixel] & 0xFF : 0;
+					int p = left + up - upLeft;
+					int distanceLeft = Math.abs(p - left);
+					int distanceUp = Math.abs(p - up);
+					int distanceUpLeft = Math.abs(p - upLeft);
+					if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft)
+					{
+						row[i] += left;
+					}
+					else if (distanceUp <= distanceUpLeft)
+					{
+						row[i] += up;
+					}
+					else
+					{
+						row[i] += upLeft;
+					}
+				}
+				break;
+			default:
+				throw new IOException("Unknown PNG filter type " + filterType);
+		}
+	}
+
+	private static void decodeWithImageIO(File png, DataOutputStream out) throws IOException
+	{
+		try (ImageInputStream iis = ImageIO.createImageInputStream(png))
+		{
+			ImageReader reader = ImageIO.getImageReaders(iis).next();
+			try
+			{
+				reader.setInput(iis, true);
+				int width = reader.getWidth(0);
+				int height = reader.getHeight(0);
+				writeHeader(out, width, height, png);
+				int[] rgbs = new int[width];
+				byte[] rgbRow = new byte[width * 3];
+				int stripHeight = 256;
+				for (int stripY = 0; stripY < height; stripY += stripHeight)
+				{
+					ImageReadParam readParam = reader.getDefaultReadParam();
+					readParam.setSourceRegion(new Rectangle(0, stripY, width, Math.min(stripHeight, height - stripY)));
+					BufferedImage strip = reader.read(0, readParam);
+					for (int y = 0; y < strip.getHeight(); y++)
+					{
+						strip.getRGB(0, y, width, 1, rgbs, 0, width);
+						for (int x = 0; x < width; x++)
+						{
+							rgbRow[x * 3] = (byte) (rgbs[x] >> 16);
+							rgbRow[x * 3 + 1] = (byte) (rgbs[x] >> 8);
+							rgbRow[x * 3 + 2] = (byte) rgbs[x];
+						}
+						out.write(rgbRow);
+					}
+				}
+			}
+			finally
+			{
+				reader.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Reads the data of consecutive IDAT chunks as one stream
+	 */
+	private static class IdatInputStream extends InputStream
+	{
+		private final DataInputStream in;
+		private int remainingInChunk;
+		private boolean isDone = false;
+
+		IdatInputStream(DataInputStream in, int firstChunkLength)
+		{
+			this.in = in;
+			this.remainingInChunk = firstChunkLength;
+		}
+
+		@Override
+		public int read() throws IOException
+		{
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException
+		{
+			while (remainingInChunk == 0)
+			{
+				if (isDone)
+				{
+					return -1;
+				}
+				in.readInt(); // CRC of the previous chunk
+				remainingInChunk = in.readInt();
+				if (in.readInt() != IDAT)
+				{
+					isDone = true;
+					remainingInChunk = 0;
+					return -1;
+				}
+			}
+			int n = in.read(b, off, Math.min(len, remainingInChunk));
+			if (n < 0)
+			{
+				throw new EOFException("PNG image data ended early");
+			}
+			remainingInChunk -= n;
+			return n;
+		}
+	}
+
+	/**
+	 * A decoded world map, read straight out of its memory mapped cache file
+	 */
+	private static class MappedWorldMapImage implements WorldMapImage
+	{
+		private final MappedByteBuffer pixels;
+		private final int width;
+		private final int height;
+		// The length and last modified time of the PNG it was decoded from
+		private final String version;
+
+		private MappedWorldMapImage(MappedByteBuffer pixels, int width, int height, String version)
+		{
+			this.pixels = pixels;
+			this.width = width;
+			this.height = height;
+			this.version = version;
+		}
+
+		static MappedWorldMapImage open(File decoded) throws IOException
+		{
+			try (RandomAccessFile raf = new RandomAccessFile(decoded, "r"))
+			{
+				raf.seek(8);
+				int width = raf.readInt();
+				int height = raf.readInt();
+				String version = raf.readLong() + "-" + raf.readLong();
+				// The mapping stays valid after the file is closed
+				MappedByteBuffer pixels = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, (long) width * height * 3);
+				return new MappedWorldMapImage(pixels, width, height, version);
+			}
+		}
+
+		@Override
+		public int getWidth()
+		{
+			return width;
+		}
+
+		@Override
+		public int getHeight()
+		{
+			return height;
+		}
+
+		@Override
+		public String getVersion()
+		{
+			return version;
+		}
+
+		@Override
+		public BufferedImage read(Rectangle region)
+		{
+			byte[] data = new byte[region.width * region.height * 3];
+			read(region, ByteBuffer.wrap(data));
+			WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(data, data.length), region.width, region.height, region.width * 3, 3, new int[]{0, 1, 2}, null);
+			return new BufferedImage(RGB_COLOR_MODEL, raster, false, null);
+		}
+
+		@Override
+		public void read(Rectangle region, ByteBuffer destination)
+		{
+			long startTime = System.nanoTime();
+			// Duplicates have their own positions and limits, so regions can be read by several threads at once
+			ByteBuffer source = pixels.duplicate();
+			ByteBuffer target = destination.duplicate();
+			target.position(0);
+			if (region.x == 0 && region.width == width)
+			{
+				// The region's rows are contiguous
+				source.position(region.y * width * 3);
+				source.limit(source.position() + region.height * width * 3);
+				target.put(source);
+			}
+			else
+			{
+				for (int y = 0; y < region.height; y++)
+				{
+					source.limit(((region.y + y) * width + region.x + region.width) * 3);
+					source.position(((region.y + y) * width + region.x) * 3);
+					target.put(source);
+				}
+			}
+			READ_TIME.recordSince(startTime);
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.worldheatmap;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+
+/**
+ * The world map image that heatmap images are drawn over
+ */
+public interface WorldMapImage
+{
+	int getWidth();
+
+	int getHeight();
+
+	/**
+	 * @return Identifies the map's pixels, which differ if the map is replaced by another one (e.g. a newly downloaded one), even of the same size
+	 */
+	String getVersion();
+
+	/**
+	 * Reads a region of the map into a new opaque RGB image, which the caller is free to draw on.
+	 * Must be safe to call from several threads at once.
+	 *
+	 * @param region Must be within the map's bounds
+	 */
+	BufferedImage read(Rectangle region);
+
+	/**
+	 * Copies a region of the map into the buffer as RGB bytes, row by row from the buffer's start. Must be safe to call from several threads at once.
+	 *
+	 * @param region Must be within the map's bounds
+	 */
+	void read(Rectangle region, ByteBuffer destination);
+}
@@ -0,0 +1,240 @@
+package com.worldheatmap;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes TIFFs of random pixels and reads them back with ImageIO
+ */
+public class DeflateTiffWriterTest
+{
+	private static final int WIDTH = 70;
+	private static final int HEIGHT = 45;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * The strip height doesn't divide the image height, so the last strip only has the image's last few rows
+	 */
+	@Test
+	public void stripedImage() throws IOException
+	{
+		int[] pixels = randomPixels(0);
+		File file = folder.newFile("striped.tif");
+		int stripHeight = 10;
+		try (DeflateTiffWriter writer = new DeflateTiffWriter(file, WIDTH, HEIGHT, WIDTH, stripHeight))
+		{
+			assertEquals(1, writer.getNumTilesX());
+			assertEquals(5, writer.getNumTilesY());
+			for (int strip = 0; strip < writer.getNumTilesY(); strip++)
+			{
+				int y0 = strip * stripHeight;
+				writer.writeTile(DeflateTiffWriter.compress(rgbBytes(pixels, 0, y0, WIDTH, Math.min(stripHeight, HEIGHT - y0))));
+			}
+			writer.finish();
+		}
+		assertPixelsEqual(pixels, ImageIO.read(file));
+	}
+
+	@Test
+	public void singleStripImage() throws IOException
+	{
+		int[] pixels = randomPixels(1);
+		File file = folder.newFile("single.tif");
+		try (DeflateTiffWriter writer = new DeflateTiffWriter(file, WIDTH, HEIGHT, WIDTH, 64))
+		{
+			writer.writeTile(DeflateTiffWriter.compress(rgbBytes(pixels, 0, 0, WIDTH, HEIGHT)));
+			writer.finish();
+		}
+		assertPixelsEqual(pixels, ImageIO.read(file));
+	}
+
+	/**
+	 * The tiles on the right and bottom reach past the image's edges, and are padded out
+	 */
+	@Test
+	public void tiledImage() throws IOException
+	{
+		int[] pixels = randomPixels(2);
+		File file = folder.newFile("tiled.tif");
+		writeTiled(pixels, file);
+		assertPixelsEqual(pixels, ImageIO.read(file));
+	}
+
+	@Test
+	public void copiedTiles() throws IOException
+	{
+		int[] pixels = randomPixels(3);
+		int[] otherPixels = randomPixels(4);
+		File source = folder.newFile("source.tif");
+		File copy = folder.newFile("copy.tif");
+		DeflateTiffWriter sourceWriter = writeTiled(pixels, source);
+
+		// Every other tile copied from the source, and the rest drawn from the other pixels
+		int[] expected = otherPixels.clone();
+		try (DeflateTiffWriter writer = new DeflateTiffWriter(copy, WIDTH, HEIGHT, 32, 16);
+			 FileChannel sourceChannel = FileChannel.open(source.toPath(), StandardOpenOption.READ))
+		{
+			int numTiles = writer.getNumTilesX() * writer.getNumTilesY();
+			for (int i = 0; i < numTiles; i++)
+			{
+				int x0 = i % writer.getNumTilesX() * 32;
+				int y0 = i / writer.getNumTilesX() * 16;
+				if (i % 2 == 0)
+				{
+					writer.copyTile(sourceChannel, sourceWriter.getTileOffset(i), sourceWriter.getTileByteCount(i));
+					for (int y = y0; y < Math.min(HEIGHT, y0 + 16); y++)
+					{
+						for (int x = x0; x < Math.min(WIDTH, x0 + 32); x++)
+						{
+							expected[y * WIDTH + x] = pixels[y * WIDTH + x];
+						}
+					}
+				}
+				else
+				{
+					writer.writeTile(DeflateTiffWriter.compress(rgbBytes(otherPixels, x0, y0, 32, 16)));
+				}
+			}
+			writer.finish();
+		}
+		assertPixelsEqual(expected, ImageIO.read(copy));
+	}
+
+	/**
+	 * Compressing pixels that aren't in an array, like a strip rendered into a memory mapped file
+	 */
+	@Test
+	public void directBufferPixels() throws IOException
+	{
+		int[] pixels = randomPixels(5);
+		ByteBuffer heapBytes = rgbBytes(pixels, 0, 0, WIDTH, HEIGHT);
+		ByteBuffer directBytes = ByteBuffer.allocateDirect(heapBytes.remaining());
+		directBytes.put(heapBytes.duplicate()).flip();
+		File file = folder.newFile("direct.tif");
+		try (DeflateTiffWriter writer = new DeflateTiffWriter(file, WIDTH, HEIGHT, WIDTH, HEIGHT))
+		{
+			writer.writeTile(DeflateTiffWriter.compress(directBytes));
+			writer.finish();
+		}
+		assertPixelsEqual(pixels, ImageIO.read(file));
+	}
+
+	/**
+	 * Pixels that don't compress, so that both they and their compressed bytes take several chunks
+	 */
+	@Test
+	public void compressesOverSeveralChunks() throws DataFormatException
+	{
+		byte[] pixels = new byte[300_000];
+		new Random(6).nextBytes(pixels);
+		for (ByteBuffer buffer : new ByteBuffer[]{ByteBuffer.wrap(pixels), ByteBuffer.allocateDirect(pixels.length).put(pixels).flip()})
+		{
+			byte[] compressed = DeflateTiffWriter.compress(buffer);
+			assertTrue(compressed.length > 1 << 17);
+			Inflater inflater = new Inflater();
+			inflater.setInput(compressed);
+			byte[] inflated = new byte[pixels.length + 1];
+			assertEquals(pixels.length, inflater.inflate(inflated));
+			assertTrue(inflater.finished());
+			inflater.end();
+			assertArrayEquals(pixels, Arrays.copyOf(inflated, pixels.length));
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void missingTiles() throws IOException
+	{
+		try (DeflateTiffWriter writer = new DeflateTiffWriter(folder.newFile("missing.tif"), WIDTH, HEIGHT, WIDTH, 10))
+		{
+			writer.writeTile(DeflateTiffWriter.compress(ByteBuffer.allocate(WIDTH * 10 * 3)));
+			writer.finish();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tileSizeNotMultipleOf16() throws IOException
+	{
+		new DeflateTiffWriter(folder.newFile("bad.tif"), WIDTH, HEIGHT, 24, 16).close();
+	}
+
+	/**
+	 * Writes the pixels as 32x16 tiles, 3 across and 3 down
+	 */
+	private static DeflateTiffWriter writeTiled(int[] pixels, File file) throws IOException
+	{
+		try (DeflateTiffWriter writer = new DeflateTiffWriter(file, WIDTH, HEIGHT, 32, 16))
+		{
+			assertEquals(3, writer.getNumTilesX());
+			assertEquals(3, writer.getNumTilesY());
+			for (int tileY = 0; tileY < writer.getNumTilesY(); tileY++)
+			{
+				for (int tileX = 0; tileX < writer.getNumTilesX(); tileX++)
+				{
+					writer.writeTile(DeflateTiffWriter.compress(rgbBytes(pixels, tileX * 32, tileY * 16, 32, 16)));
+				}
+			}
+			writer.finish();
+			return writer;
+		}
+	}
+
+	private static int[] randomPixels(long seed)
+	{
+		Random random = new Random(seed);
+		int[] pixels = new int[WIDTH * HEIGHT];
+		for (int i = 0; i < pixels.length; i++)
+		{
+			// Runs of the same colour, so that the pixels compress somewhat
+			pixels[i] = i % 7 == 0 ? random.nextInt() & 0xFFFFFF : pixels[i - 1];
+		}
+		return pixels;
+	}
+
+	/**
+	 * @return The RGB bytes of the rectangle of pixels, row by row, padded with black past the image's edges
+	 */
+	private static ByteBuffer rgbBytes(int[] pixels, int x0, int y0, int width, int height)
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(width * height * 3);
+		for (int y = y0; y < y0 + height; y++)
+		{
+			for (int x = x0; x < x0 + width; x++)
+			{
+				int rgb = x < WIDTH && y < HEIGHT ? pixels[y * WIDTH + x] : 0;
+				bytes.put((byte) (rgb >> 16)).put((byte) (rgb >> 8)).put((byte) rgb);
+			}
+		}
+		bytes.flip();
+		return bytes;
+	}
+
+	private static void assertPixelsEqual(int[] expected, BufferedImage actual)
+	{
+		assertEquals(WIDTH, actual.getWidth());
+		assertEquals(HEIGHT, actual.getHeight());
+		for (int y = 0; y < HEIGHT; y++)
+		{
+			for (int x = 0; x < WIDTH; x++)
+			{
+				assertEquals("pixel " + x + "," + y, expected[y * WIDTH + x], actual.getRGB(x, y) & 0xFFFFFF);
+			}
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package com.worldheatmap;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeatmapBinaryFormatTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void binaryRoundTrip() throws IOException
+	{
+		HeatmapNew heatmap = TestHeatmaps.randomHeatmap(HeatmapNew.HeatmapType.TYPE_A, 0);
+		// Values taking up every varint length, and coordinates at the ends of the packable range
+		heatmap.set(Short.MIN_VALUE, Short.MIN_VALUE, 1);
+		heatmap.set(Short.MAX_VALUE, Short.MAX_VALUE, Integer.MAX_VALUE);
+		heatmap.set(0, 0, 1 << 14);
+		heatmap.set(0, 1, 1 << 21);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		HeatmapBinaryFormat.write(heatmap, bytes);
+		HeatmapNew read = HeatmapBinaryFormat.read(new ByteArrayInputStream(bytes.toByteArray()));
+		assertHeatmapsEqual(heatmap, read);
+	}
+
+	@Test
+	public void emptyHeatmapRoundTrip() throws IOException
+	{
+		HeatmapNew heatmap = new HeatmapNew(HeatmapNew.HeatmapType.DEATHS, 1);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		HeatmapBinaryFormat.write(heatmap, bytes);
+		HeatmapNew read = HeatmapBinaryFormat.read(new ByteArrayInputStream(bytes.toByteArray()));
+		assertHeatmapsEqual(heatmap, read);
+	}
+
+	@Test(expected = EOFException.class)
+	public void truncatedEntryFails() throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		HeatmapBinaryFormat.write(TestHeatmaps.randomHeatmap(HeatmapNew.HeatmapType.TYPE_B, 1), bytes);
+		byte[] truncated = Arrays.copyOf(bytes.toByteArray(), bytes.size() - 1);
+		HeatmapBinaryFormat.read(new ByteArrayInputStream(truncated));
+	}
+
+	@Test(expected = IOException.class)
+	public void otherDataFails() throws IOException
+	{
+		HeatmapBinaryFormat.read(new ByteArrayInputStream(new byte[64]));
+	}
+
+	@Test
+	public void legacyCSVEntryIsRead() throws IOException
+	{
+		HeatmapNew heatmap = TestHeatmaps.randomHeatmap(HeatmapNew.HeatmapType.XP_GAINED, 2);
+		File heatmapsFile = new File(folder.getRoot(), "legacy.heatmaps");
+		try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(heatmapsFile)))
+		{
+			zip.putNextEntry(new ZipEntry(HeatmapNew.HeatmapType.XP_GAINED + "_HEATMAP.csv"));
+			writeLegacyCSVEntry(heatmap, zip);
+			zip.closeEntry();
+		}
+
+		Map<HeatmapNew.HeatmapType, HeatmapNew> read = HeatmapNew.readHeatmapsFromFile(heatmapsFile, Collections.singletonList(HeatmapNew.HeatmapType.XP_GAINED));
+		assertHeatmapsEqual(heatmap, read.get(HeatmapNew.HeatmapType.XP_GAINED));
+	}
+
+	@Test
+	public void heatmapsFileRoundTripCarriesOverUnprovidedTypes() throws IOException
+	{
+		File heatmapsFile = new File(folder.getRoot(), "test.heatmaps");
+		HeatmapNew typeA = TestHeatmaps.randomHeatmap(HeatmapNew.HeatmapType.TYPE_A, 3);
+		HeatmapNew typeB = TestHeatmaps.randomHeatmap(HeatmapNew.HeatmapType.TYPE_B, 4);
+		assertTrue(HeatmapNew.writeHeatmapsToFile(Arrays.asList(typeA, typeB), heatmapsFile, null));
+
+		// Only TYPE_A is rewritten, so TYPE_B has to be carried over from the file being replaced
+		typeA.increment(3200, 3200, 5);
+		assertTrue(HeatmapNew.writeHeatmapsToFile(Collections.singletonList(typeA), heatmapsFile, null, 7));
+
+		Map<HeatmapNew.HeatmapType, HeatmapNew> read = HeatmapNew.readHeatmapsFromFile(heatmapsFile, Arrays.asList(HeatmapNew.HeatmapType.TYPE_A, HeatmapNew.HeatmapType.TYPE_B, HeatmapNew.HeatmapType.DEATHS));
+		assertEquals(2, read.size());
+		assertHeatmapsEqual(typeA, read.get(HeatmapNew.HeatmapType.TYPE_A));
+		assertHeatmapsEqual(typeB, read.get(HeatmapNew.HeatmapType.TYPE_B));
+		assertFalse(read.get(HeatmapNew.HeatmapType.TYPE_A).isDirty());
+		try (ZipFile zipFile = new ZipFile(heatmapsFile))
+		{
+			assertEquals(7, HeatmapNew.readJournalSequence(zipFile));
+		}
+	}
+
+	@Test
+	public void heatmapsFileWithoutJournalSequence() throws IOException
+	{
+		File heatmapsFile = new File(folder.getRoot(), "test.heatmaps");
+		assertTrue(HeatmapNew.writeHeatmapsToFile(Collections.singletonList(TestHeatmaps.randomHeatmap(HeatmapNew.HeatmapType.TYPE_A, 3)), heatmapsFile, null));
+		try (ZipFile zipFile = new ZipFile(heatmapsFile))
+		{
+			assertEquals(-1, HeatmapNew.readJournalSequence(zipFile));
+		}
+	}
+
+	/**
+	 * A sequence number that can't be read mustn't be mistaken for there being none, or the whole journal would be replayed again
+	 */
+	@Test(expected = IOException.class)
+	public void malformedJournalSequence() throws IOException
+	{
+		File heatmapsFile = new File(folder.getRoot(), "test.heatmaps");
+		try (ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(heatmapsFile)))
+		{
+			zos.putNextEntry(new ZipEntry("JOURNAL_SEQUENCE.txt"));
+			zos.write("7x".getBytes(StandardCharsets.UTF_8));
+			zos.closeEntry();
+		}
+		try (ZipFile zipFile = new ZipFile(heatmapsFile))
+		{
+			HeatmapNew.readJournalSequence(zipFile);
+		}
+	}
+
+	/**
+	 * Writes the heatmap as a CSV entry, the format .heatmaps files used before heatmap version 101
+	 */
+	private static void writeLegacyCSVEntry(HeatmapNew heatmap, OutputStream outputStream) throws IOException
+	{
+		StringBuilder csv = new StringBuilder("userID,heatmapVersion,heatmapType,totalValue,numTilesVisited,maxVal,maxValX,maxValY,minVal,minValX,minValY,gameTimeTicks\n");
+		int[] maxVal = heatmap.getMaxVal();
+		int[] minVal = heatmap.getMinVal();
+		csv.append(heatmap.getUserID()).append(",100,").append(heatmap.getHeatmapType())
+			.append(',').append(heatmap.getTotalValue())
+			.append(',').append(heatmap.getNumTilesVisited())
+			.append(',').append(maxVal[0]).append(',').append(maxVal[1]).append(',').append(maxVal[2])
+			.append(',').append(minVal[0]).append(',').append(minVal[1]).append(',').append(minVal[2])
+			.append(',').append(heatmap.getGameTimeTicks()).append('\n');
+		heatmap.forEachTile((x, y, value) -> csv.append(x).append(',').append(y).append(',').append(value).append('\n'));
+		outputStream.write(csv.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	static void assertHeatmapsEqual(HeatmapNew expected, HeatmapNew actual)
+	{
+		assertNotNull(actual);
+		assertEquals(expected.getHeatmapType(), actual.getHeatmapType());
+		assertEquals(expected.getUserID(), actual.getUserID());
+		assertEquals(expected.getGameTimeTicks(), actual.getGameTimeTicks());
+		assertEquals(expected.getNumTilesVisited(), actual.getNumTilesVisited());
+		assertEquals(expected.getTotalValue(), actual.getTotalValue());
+		assertEquals(expected.getMaxVal()[0], actual.getMaxVal()[0]);
+		assertEquals(expected.getMinVal()[0], actual.getMinVal()[0]);
+		Map<Integer, Integer> tiles = new HashMap<>();
+		expected.forEachTile((x, y, value) -> tiles.put(HeatmapNew.packTile(x, y), value));
+		actual.forEachTile((x, y, value) -> assertEquals(tiles.get(HeatmapNew.packTile(x, y)), Integer.valueOf(value)));
+	}
+}
@@ -0,0 +1,160 @@
+package com.worldheatmap;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Checks the colour tables against the per-pixel HSB colouring they replaced, which they should match to within one level per channel
+ */
+public class HeatmapColourEngineTest
+{
+	private static final int[][] VALUE_RANGES = {{1, 1}, {1, 2}, {1, 50}, {3, 400}, {1, 100_000}, {250, 4_000_000}};
+
+	@Test
+	public void matchesHsbColouringOfRgbBytes()
+	{
+		for (int sensitivity = 0; sensitivity <= 6; sensitivity++)
+		{
+			for (int[] range : VALUE_RANGES)
+			{
+				assertMatchesHsbColouring(new BufferedImage(64, 64, BufferedImage.TYPE_3BYTE_BGR), sensitivity, range[0], range[1], 0.5f);
+			}
+		}
+	}
+
+	/**
+	 * Images that aren't stored as bytes are coloured through getRGB()/setRGB()
+	 */
+	@Test
+	public void matchesHsbColouringOfIntPixels()
+	{
+		for (float transparency : new float[]{0, 0.3f, 1})
+		{
+			assertMatchesHsbColouring(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB), 4, 1, 5000, transparency);
+		}
+	}
+
+	@Test
+	public void matchesHsbColouringOfBuffer()
+	{
+		Random random = new Random(0);
+		HeatmapColourEngine engine = new HeatmapColourEngine(4, 2, 9000, 0.25f);
+		ByteBuffer pixels = ByteBuffer.allocate(10 * 7 * 3);
+		for (int i = 0; i < 1000; i++)
+		{
+			int value = 2 + random.nextInt(8999);
+			int[] mapRGB = new int[pixels.capacity() / 3];
+			for (int p = 0; p < mapRGB.length; p++)
+			{
+				mapRGB[p] = random.nextInt() & 0xFFFFFF;
+				pixels.put(p * 3, (byte) (mapRGB[p] >> 16)).put(p * 3 + 1, (byte) (mapRGB[p] >> 8)).put(p * 3 + 2, (byte) mapRGB[p]);
+			}
+			// All but a border of the 10x7 pixels
+			engine.canvas(pixels, 10).fill(1, 2, 9, 6, engine.hueIndex(value));
+			for (int p = 0; p < mapRGB.length; p++)
+			{
+				int x = p % 10;
+				int y = p / 10;
+				boolean isFilled = x >= 1 && x < 9 && y >= 2 && y < 6;
+				int expected = isFilled ? hsbColour(value, 4, 2, 9000, 0.25f, mapRGB[p]) : mapRGB[p];
+				int actual = (pixels.get(p * 3) & 0xFF) << 16 | (pixels.get(p * 3 + 1) & 0xFF) << 8 | pixels.get(p * 3 + 2) & 0xFF;
+				assertWithinOneLevel("value " + value + ", pixel " + x + "," + y, expected, actual);
+			}
+		}
+	}
+
+	/**
+	 * The colours of tiles drawn without the map underneath are the hues at full brightness
+	 */
+	@Test
+	public void hueRGBIsFullBrightness()
+	{
+		HeatmapColourEngine engine = new HeatmapColourEngine(2, 1, 777, 0.5f);
+		for (int value = 1; value <= 777; value++)
+		{
+			int expected = Color.HSBtoRGB((float) hsbHue(value, 2, 1, 777), 1, 1) & 0xFFFFFF;
+			assertWithinOneLevel("value " + value, expected, engine.hueRGB(engine.hueIndex(value)));
+		}
+	}
+
+	/**
+	 * The lowest value gets the coolest colour (green) and the highest gets the hottest (red)
+	 */
+	@Test
+	public void hueRangeEnds()
+	{
+		HeatmapColourEngine engine = new HeatmapColourEngine(4, 1, 1000, 0);
+		assertEquals(0x00FF00, engine.hueRGB(engine.hueIndex(1)));
+		assertEquals(0xFF0000, engine.hueRGB(engine.hueIndex(1000)));
+		// Values outside the range are clamped to it
+		assertEquals(engine.hueIndex(1), engine.hueIndex(0));
+		assertEquals(engine.hueIndex(1000), engine.hueIndex(5000));
+	}
+
+	/**
+	 * Colours every value in the range (or a sample of them, for wide ranges) over pixels of every luminance, and compares each pixel
+	 * with the HSB colouring of it
+	 */
+	private static void assertMatchesHsbColouring(BufferedImage image, int sensitivity, int minVal, int maxVal, float transparency)
+	{
+		HeatmapColourEngine engine = new HeatmapColourEngine(sensitivity, minVal, maxVal, transparency);
+		Random random = new Random(sensitivity * 31L + maxVal);
+		int numValues = Math.min(2000, maxVal - minVal + 1);
+		for (int i = 0; i < numValues; i++)
+		{
+			int value = numValues == maxVal - minVal + 1 ? minVal + i : i == 0 ? minVal : i == 1 ? maxVal : minVal + random.nextInt(maxVal - minVal + 1);
+			int x0 = (i % 16) * 4;
+			int y0 = (i / 16 % 16) * 4;
+			// A grey of each luminance, and colours of random hues
+			int[] mapRGB = new int[16];
+			for (int p = 0; p < 16; p++)
+			{
+				mapRGB[p] = p == 0 ? (i % 256) * 0x010101 : random.nextInt() & 0xFFFFFF;
+				image.setRGB(x0 + p % 4, y0 + p / 4, mapRGB[p]);
+			}
+			engine.canvas(image).fill(x0, y0, x0 + 4, y0 + 4, engine.hueIndex(value));
+			for (int p = 0; p < 16; p++)
+			{
+				int expected = hsbColour(value, sensitivity, minVal, maxVal, transparency, mapRGB[p]);
+				assertWithinOneLevel("sensitivity " + sensitivity + ", range " + minVal + "-" + maxVal + ", value " + value + ", map colour "
+					+ Integer.toHexString(mapRGB[p]), expected, image.getRGB(x0 + p % 4, y0 + p / 4) & 0xFFFFFF);
+			}
+		}
+	}
+
+	/**
+	 * How tiles were coloured before the tables: the value's hue at full saturation, with the map pixel's brightness washed out by the transparency
+	 */
+	private static int hsbColour(int value, int sensitivity, int minVal, int maxVal, float transparency, int mapRGB)
+	{
+		float brightness = Color.RGBtoHSB((mapRGB >> 16) & 0xFF, (mapRGB >> 8) & 0xFF, mapRGB & 0xFF, null)[2] * (1 - transparency) + transparency;
+		return Color.HSBtoRGB((float) hsbHue(value, sensitivity, minVal, maxVal), 1, brightness) & 0xFFFFFF;
+	}
+
+	private static double hsbHue(int value, int sensitivity, int minVal, int maxVal)
+	{
+		double nthRoot = 1 + (sensitivity - 1.0) / 2;
+		int logBase = 4;
+		double minHue = 1 / 3.0;
+		double maxHue = 0.0;
+		double hue = (float) ((Math.log(value) / Math.log(logBase)) / (Math.log(maxVal + 1 - minVal) / Math.log(logBase)));
+		// Every value is the hottest when they're all the same
+		hue = maxVal == minVal ? 1 : hue;
+		hue = Math.pow(hue, 1.0 / nthRoot);
+		return (float) (minHue + (hue * (maxHue - minHue)));
+	}
+
+	private static void assertWithinOneLevel(String message, int expectedRGB, int actualRGB)
+	{
+		for (int shift = 0; shift <= 16; shift += 8)
+		{
+			int difference = Math.abs(((expectedRGB >> shift) & 0xFF) - ((actualRGB >> shift) & 0xFF));
+			assertTrue(message + ": expected " + Integer.toHexString(expectedRGB) + " but was " + Integer.toHexString(actualRGB), difference <= 1);
+		}
+	}
+}
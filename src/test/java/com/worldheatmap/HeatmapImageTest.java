@@ -0,0 +1,294 @@
+package com.worldheatmap;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Renders a random heatmap over a generated world map, and compares it with a reference render that colours every tile's 4x4 pixel
+ * square straight onto the map, without HeatmapImage's sorted tile index
+ */
+public class HeatmapImageTest
+{
+	private static final int WIDTH = 301;
+	private static final int HEIGHT = 240;
+	// Game tile (2360, 3260) is drawn at pixel (3, 2). The squares of the tiles at x = 2434 and y = 3201 are cut off by the image's
+	// right and bottom edges, and tiles left of or above those two are left out
+	private static final int OFFSET_X = -9437;
+	private static final int OFFSET_Y = 12802;
+	private static final Rectangle PRIFDDINAS = new Rectangle(3391, 5952, 255, 255);
+	private static final float TRANSPARENCY = 0.4f;
+	private static final int SENSITIVITY = 4;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File mapFile;
+	private WorldMapCache worldMapCache;
+	private HeatmapNew heatmap;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		File overrideDir = folder.newFolder("override");
+		Random random = new Random(0);
+		BufferedImage map = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < HEIGHT; y++)
+		{
+			for (int x = 0; x < WIDTH; x++)
+			{
+				map.setRGB(x, y, random.nextInt());
+			}
+		}
+		mapFile = new File(overrideDir, "osrs_world_map.png");
+		ImageIO.write(map, "png", mapFile);
+		Files.write(new File(overrideDir, "offsets.csv").toPath(), ("fullX,fullY,overworldX,overworldY\n0,0," + OFFSET_X + "," + OFFSET_Y + "\n").getBytes(StandardCharsets.UTF_8));
+		worldMapCache = new WorldMapCache(folder.newFolder("cache"), overrideDir);
+		heatmap = randomHeatmap(1);
+	}
+
+	@Test
+	public void wholeImageMatchesReference() throws IOException
+	{
+		HeatmapImage image = newHeatmapImage(heatmap);
+		Reference reference = new Reference(heatmap);
+		assertEquals(reference.minVal, image.getHeatmapMinVal());
+		assertEquals(reference.maxVal, image.getHeatmapMaxVal());
+		assertPixelsEqual(reference.image, new Rectangle(WIDTH, HEIGHT), image.renderRegion(new Rectangle(WIDTH, HEIGHT)));
+	}
+
+	/**
+	 * Regions whose edges cut through tiles' squares, so each region has to find the tiles that start above and left of it
+	 */
+	@Test
+	public void regionsMatchReference() throws IOException
+	{
+		HeatmapImage image = newHeatmapImage(heatmap);
+		Reference reference = new Reference(heatmap);
+		for (int y = 0; y < HEIGHT; y += 23)
+		{
+			for (int x = 0; x < WIDTH; x += 37)
+			{
+				Rectangle region = new Rectangle(x, y, 37, 23).intersection(new Rectangle(WIDTH, HEIGHT));
+				assertPixelsEqual(reference.image, region, image.renderRegion(region));
+			}
+		}
+		// Single pixels, and single rows and columns
+		for (Rectangle region : new Rectangle[]{new Rectangle(0, 0, 1, 1), new Rectangle(WIDTH - 1, HEIGHT - 1, 1, 1), new Rectangle(0, 101, WIDTH, 1), new Rectangle(150, 0, 1, HEIGHT)})
+		{
+			assertPixelsEqual(reference.image, region, image.renderRegion(region));
+		}
+	}
+
+	/**
+	 * Tiles just outside the image aren't drawn, and don't count towards the min and max values that the colours are scaled to
+	 */
+	@Test
+	public void tilesOutsideImageAreLeftOut() throws IOException
+	{
+		HeatmapNew outside = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		outside.set(2359, 3230, 1_000_000);
+		outside.set(2400, 3200, 1_000_000);
+		outside.set(2400, 3261, 1_000_000);
+		outside.set(2400, 3230, 7);
+		HeatmapImage image = newHeatmapImage(outside);
+		assertEquals(7, image.getHeatmapMinVal());
+		assertEquals(7, image.getHeatmapMaxVal());
+
+		HeatmapNew empty = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		assertPixelsEqual(mapPixels(), new Rectangle(WIDTH, HEIGHT), newHeatmapImage(empty).renderRegion(new Rectangle(WIDTH, HEIGHT)));
+	}
+
+	/**
+	 * The whole image written as strips (the last of which is cut short by the image's bottom edge), rendered on this thread or ahead
+	 * of it on others, onto the heap or off it
+	 */
+	@Test
+	public void writtenImageMatchesReference() throws IOException
+	{
+		BufferedImage reference = new Reference(heatmap).image;
+		for (boolean isParallel : new boolean[]{false, true})
+		{
+			for (boolean isOffHeap : new boolean[]{false, true})
+			{
+				File imageFile = new File(folder.getRoot(), "heatmap-" + isParallel + "-" + isOffHeap + ".tif");
+				HeatmapImage.writeHeatmapImage(heatmap, imageFile, false, TRANSPARENCY, SENSITIVITY, 0, isParallel, isOffHeap, worldMapCache, null);
+				assertPixelsEqual(reference, new Rectangle(WIDTH, HEIGHT), ImageIO.read(imageFile));
+			}
+		}
+	}
+
+	/**
+	 * Strips rendered several at a time have to be written in order, whichever of them finish first
+	 */
+	@Test
+	public void stripsRenderedAheadAreWrittenInOrder() throws IOException
+	{
+		HeatmapImage image = newHeatmapImage(heatmap);
+		BufferedImage reference = new Reference(heatmap).image;
+		int stripHeight = 7;
+		ForkJoinPool renderPool = new ForkJoinPool(4);
+		try
+		{
+			for (boolean isOffHeap : new boolean[]{false, true})
+			{
+				File imageFile = new File(folder.getRoot(), "strips-" + isOffHeap + ".tif");
+				try (MappedStripFile stripFile = isOffHeap ? MappedStripFile.create(6, (long) WIDTH * stripHeight * 3) : null;
+					 DeflateTiffWriter writer = new DeflateTiffWriter(imageFile, WIDTH, HEIGHT, WIDTH, stripHeight))
+				{
+					image.writeStrips(writer, stripHeight, renderPool, 6, stripFile, null);
+					writer.finish();
+				}
+				assertPixelsEqual(reference, new Rectangle(WIDTH, HEIGHT), ImageIO.read(imageFile));
+			}
+		}
+		finally
+		{
+			renderPool.shutdownNow();
+		}
+	}
+
+	/**
+	 * The image is two 256x256 tiles across and one down. Changing a tile of the heatmap drawn in the left one only redraws that one,
+	 * copying the right one from the last image
+	 */
+	@Test
+	public void incrementallyWrittenImageMatchesFullImage() throws IOException
+	{
+		File imageFile = new File(folder.getRoot(), "incremental.tif");
+		File tileCacheFile = new File(folder.getRoot(), "incremental.tiles");
+		MetricsRegistry.Counter tilesRedrawn = MetricsRegistry.get().counter("image.incremental.tiles_redrawn");
+		MetricsRegistry.Counter tilesCopied = MetricsRegistry.get().counter("image.incremental.tiles_copied");
+
+		long redrawnBefore = tilesRedrawn.get();
+		HeatmapImage.writeHeatmapImageIncrementally(heatmap, imageFile, tileCacheFile, TRANSPARENCY, SENSITIVITY, true, worldMapCache, null);
+		assertEquals(2, tilesRedrawn.get() - redrawnBefore);
+		assertImageFilesEqual(writeFullImage(), imageFile);
+
+		// Drawn at pixel (83, 202), and neither the heatmap's min or max value before or after
+		int value = heatmap.get(2380, 3210);
+		heatmap.set(2380, 3210, value == 2500 ? 2501 : 2500);
+		redrawnBefore = tilesRedrawn.get();
+		long copiedBefore = tilesCopied.get();
+		HeatmapImage.writeHeatmapImageIncrementally(heatmap, imageFile, tileCacheFile, TRANSPARENCY, SENSITIVITY, true, worldMapCache, null);
+		assertEquals(1, tilesRedrawn.get() - redrawnBefore);
+		assertEquals(1, tilesCopied.get() - copiedBefore);
+		assertImageFilesEqual(writeFullImage(), imageFile);
+
+		// Nothing's changed since
+		redrawnBefore = tilesRedrawn.get();
+		HeatmapImage.writeHeatmapImageIncrementally(heatmap, imageFile, tileCacheFile, TRANSPARENCY, SENSITIVITY, false, worldMapCache, null);
+		assertEquals(0, tilesRedrawn.get() - redrawnBefore);
+		assertImageFilesEqual(writeFullImage(), imageFile);
+	}
+
+	private File writeFullImage()
+	{
+		File imageFile = new File(folder.getRoot(), "full.tif");
+		HeatmapImage.writeHeatmapImage(heatmap, imageFile, false, TRANSPARENCY, SENSITIVITY, 0, false, false, worldMapCache, null);
+		return imageFile;
+	}
+
+	private HeatmapImage newHeatmapImage(HeatmapNew heatmap) throws IOException
+	{
+		return new HeatmapImage(heatmap, worldMapCache.getWorldMapImage(false), TRANSPARENCY, SENSITIVITY, OFFSET_X, OFFSET_Y);
+	}
+
+	/**
+	 * Tiles all over and around the bottom half of the image, and in the part of Prifddinas that's drawn in the top half, so that no
+	 * two tiles are drawn over each other
+	 */
+	private static HeatmapNew randomHeatmap(long seed)
+	{
+		Random random = new Random(seed);
+		HeatmapNew heatmap = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		TestHeatmaps.setRandomTiles(heatmap, random, new Rectangle(2350, 3190, 95, 40), 2000, 5000);
+		// Drawn at y = 3230 to 3269
+		TestHeatmaps.setRandomTiles(heatmap, random, new Rectangle(PRIFDDINAS.x, 5982, 90, 40), 1500, 5000);
+		return heatmap;
+	}
+
+	private BufferedImage mapPixels() throws IOException
+	{
+		BufferedImage map = ImageIO.read(mapFile);
+		BufferedImage pixels = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_3BYTE_BGR);
+		for (int y = 0; y < HEIGHT; y++)
+		{
+			for (int x = 0; x < WIDTH; x++)
+			{
+				pixels.setRGB(x, y, map.getRGB(x, y));
+			}
+		}
+		return pixels;
+	}
+
+	/**
+	 * The heatmap drawn by colouring each tile's square one by one
+	 */
+	private class Reference
+	{
+		final BufferedImage image;
+		final int minVal;
+		final int maxVal;
+
+		Reference(HeatmapNew heatmap) throws IOException
+		{
+			// The tiles whose squares start within the image, as (pixelX, pixelY, value)
+			List<int[]> drawnTiles = new ArrayList<>();
+			heatmap.forEachTile((x, y, value) -> {
+				if (PRIFDDINAS.contains(x, y))
+				{
+					x -= 1024;
+					y -= 2752;
+				}
+				int pixelX = 4 * x + OFFSET_X;
+				int pixelY = HEIGHT - 4 * y + OFFSET_Y;
+				if (pixelX >= 0 && pixelX < WIDTH && pixelY >= 0 && pixelY < HEIGHT)
+				{
+					drawnTiles.add(new int[]{pixelX, pixelY, value});
+				}
+			});
+			minVal = drawnTiles.stream().mapToInt(tile -> tile[2]).min().orElse(0);
+			maxVal = drawnTiles.stream().mapToInt(tile -> tile[2]).max().orElse(0);
+
+			image = mapPixels();
+			HeatmapColourEngine colourEngine = new HeatmapColourEngine(SENSITIVITY, minVal, maxVal, TRANSPARENCY);
+			HeatmapColourEngine.Canvas canvas = colourEngine.canvas(image);
+			for (int[] tile : drawnTiles)
+			{
+				canvas.fill(tile[0], tile[1], Math.min(WIDTH, tile[0] + 4), Math.min(HEIGHT, tile[1] + 4), colourEngine.hueIndex(tile[2]));
+			}
+		}
+	}
+
+	private static void assertImageFilesEqual(File expected, File actual) throws IOException
+	{
+		assertPixelsEqual(ImageIO.read(expected), new Rectangle(WIDTH, HEIGHT), ImageIO.read(actual));
+	}
+
+	private static void assertPixelsEqual(BufferedImage expected, Rectangle region, BufferedImage actual)
+	{
+		assertEquals(region.width, actual.getWidth());
+		assertEquals(region.height, actual.getHeight());
+		for (int y = 0; y < region.height; y++)
+		{
+			for (int x = 0; x < region.width; x++)
+			{
+				assertEquals("pixel " + (region.x + x) + "," + (region.y + y), expected.getRGB(region.x + x, region.y + y) & 0xFFFFFF, actual.getRGB(x, y) & 0xFFFFFF);
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+package com.worldheatmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeatmapJournalTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static final int ALL_TYPES = (1 << HeatmapNew.HeatmapType.values().length) - 1;
+
+	private File journalDir;
+
+	@Before
+	public void setUp()
+	{
+		journalDir = new File(folder.getRoot(), "journal");
+	}
+
+	@Test
+	public void replaysAppendedTicks()
+	{
+		HeatmapJournal journal = new HeatmapJournal(journalDir, 0);
+		HeatmapNew expected = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		int loadedTypes = 1 << HeatmapNew.HeatmapType.TYPE_A.ordinal() | 1 << HeatmapNew.HeatmapType.DEATHS.ordinal();
+		for (int tick = 0; tick < 50; tick++)
+		{
+			for (int i = 0; i < 20; i++)
+			{
+				// Negative and multi-byte amounts too, to cover the zigzag varints
+				int amount = i % 5 == 0 ? -1 : i * 1000;
+				journal.append(HeatmapNew.HeatmapType.TYPE_A, 3200 + tick, 3200 + i, amount);
+				expected.increment(3200 + tick, 3200 + i, amount);
+			}
+			journal.append(HeatmapNew.HeatmapType.DEATHS, 100, 100, 1);
+			journal.appendTick(loadedTypes);
+			expected.incrementGameTimeTicks();
+		}
+		journal.close();
+
+		HeatmapJournal.PendingIncrements pending = HeatmapJournal.readPending(journalDir, -1);
+		assertEquals(0, pending.getNewestSequence());
+		HeatmapNew replayed = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		pending.applyTo(replayed);
+		HeatmapBinaryFormatTest.assertHeatmapsEqual(expected, replayed);
+
+		HeatmapNew deaths = new HeatmapNew(HeatmapNew.HeatmapType.DEATHS);
+		pending.applyTo(deaths);
+		assertEquals(50, deaths.get(100, 100));
+		assertTrue(pending.hasIncrements(HeatmapNew.HeatmapType.DEATHS));
+		pending.discard(HeatmapNew.HeatmapType.DEATHS);
+		assertFalse(pending.hasIncrements(HeatmapNew.HeatmapType.DEATHS));
+		assertFalse(pending.hasIncrements(HeatmapNew.HeatmapType.TYPE_B));
+	}
+
+	@Test
+	public void ticksOnlyCountTowardsTheirTypes()
+	{
+		HeatmapJournal journal = new HeatmapJournal(journalDir, 0);
+		journal.appendTick(1 << HeatmapNew.HeatmapType.TYPE_A.ordinal());
+		journal.appendTick(1 << HeatmapNew.HeatmapType.TYPE_A.ordinal() | 1 << HeatmapNew.HeatmapType.DEATHS.ordinal());
+		journal.close();
+
+		HeatmapJournal.PendingIncrements pending = HeatmapJournal.readPending(journalDir, -1);
+		HeatmapNew typeA = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		pending.applyTo(typeA);
+		assertEquals(2, typeA.getGameTimeTicks());
+		HeatmapNew deaths = new HeatmapNew(HeatmapNew.HeatmapType.DEATHS);
+		pending.applyTo(deaths);
+		assertEquals(1, deaths.getGameTimeTicks());
+		// Game ticks alone are worth keeping for a type that isn't loaded
+		assertTrue(pending.hasIncrements(HeatmapNew.HeatmapType.DEATHS));
+		assertFalse(pending.hasIncrements(HeatmapNew.HeatmapType.TYPE_B));
+		pending.discard(HeatmapNew.HeatmapType.DEATHS);
+		deaths = new HeatmapNew(HeatmapNew.HeatmapType.DEATHS);
+		pending.applyTo(deaths);
+		assertEquals(0, deaths.getGameTimeTicks());
+	}
+
+	@Test
+	public void truncatedLastBatchIsSkipped() throws IOException
+	{
+		long lengthBeforeLastBatch = writeThreeTicks();
+		File segment = onlySegment();
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+		{
+			// Torn in the middle of the CRC, as if the client crashed while the batch was being written
+			file.setLength(file.length() - 2);
+			assertTrue(file.length() > lengthBeforeLastBatch);
+		}
+		assertFirstTwoTicksReplayed();
+	}
+
+	@Test
+	public void corruptLastBatchIsSkipped() throws IOException
+	{
+		long lengthBeforeLastBatch = writeThreeTicks();
+		File segment = onlySegment();
+		try (RandomAccessFile file = new RandomAccessFile(segment, "rw"))
+		{
+			// The byte after the length prefix is the first record's tag
+			file.seek(lengthBeforeLastBatch + 1);
+			int tag = file.read();
+			file.seek(lengthBeforeLastBatch + 1);
+			file.write(tag ^ 0x01);
+		}
+		assertFirstTwoTicksReplayed();
+	}
+
+	@Test
+	public void foldedSegmentsAreSkippedAndDeleted()
+	{
+		HeatmapJournal journal = new HeatmapJournal(journalDir, 5);
+		journal.append(HeatmapNew.HeatmapType.TYPE_B, 1, 1, 1);
+		journal.appendTick(ALL_TYPES);
+		assertTrue(journal.getUncompactedSize() > 0);
+		assertEquals(5, journal.rotate());
+		assertEquals(0, journal.getUncompactedSize());
+		journal.append(HeatmapNew.HeatmapType.TYPE_B, 1, 1, 2);
+		journal.appendTick(ALL_TYPES);
+		journal.close();
+
+		// Segment 5 has been folded into the .heatmaps file, so only segment 6 is replayed
+		HeatmapJournal.PendingIncrements pending = HeatmapJournal.readPending(journalDir, 5);
+		assertEquals(6, pending.getNewestSequence());
+		HeatmapNew heatmap = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_B);
+		pending.applyTo(heatmap);
+		assertEquals(2, heatmap.get(1, 1));
+		assertEquals(1, heatmap.getGameTimeTicks());
+
+		journal.deleteSegmentsThrough(5);
+		String[] names = journalDir.list();
+		assertNotNull(names);
+		assertEquals(1, names.length);
+	}
+
+	/**
+	 * The game time journaled for a type that isn't written when segments are folded replaces the ticks before it,
+	 * whether or not the folded segments were deleted (i.e. whether or not the .heatmaps file was written)
+	 */
+	@Test
+	public void gameTimeReplacesEarlierTicks()
+	{
+		HeatmapJournal journal = new HeatmapJournal(journalDir, 0);
+		journal.appendTick(ALL_TYPES);
+		journal.appendTick(ALL_TYPES);
+		assertEquals(0, journal.rotate());
+		journal.appendGameTime(HeatmapNew.HeatmapType.DEATHS, 102);
+		journal.appendTick(ALL_TYPES);
+		journal.close();
+
+		for (long foldedSequence : new long[]{-1, 0})
+		{
+			HeatmapJournal.PendingIncrements pending = HeatmapJournal.readPending(journalDir, foldedSequence);
+			HeatmapNew deaths = new HeatmapNew(HeatmapNew.HeatmapType.DEATHS);
+			deaths.setGameTimeTicks(100);
+			pending.applyTo(deaths);
+			assertEquals(103, deaths.getGameTimeTicks());
+			HeatmapNew typeA = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+			pending.applyTo(typeA);
+			assertEquals(foldedSequence < 0 ? 3 : 1, typeA.getGameTimeTicks());
+		}
+
+		// A game time alone is worth keeping for a type that isn't loaded
+		journal = new HeatmapJournal(journalDir, 2);
+		journal.appendGameTime(HeatmapNew.HeatmapType.TYPE_B, 7);
+		journal.close();
+		HeatmapJournal.PendingIncrements pending = HeatmapJournal.readPending(journalDir, 1);
+		assertTrue(pending.hasIncrements(HeatmapNew.HeatmapType.TYPE_B));
+		pending.discard(HeatmapNew.HeatmapType.TYPE_B);
+		assertFalse(pending.hasIncrements(HeatmapNew.HeatmapType.TYPE_B));
+	}
+
+	@Test
+	public void appendsAfterCloseAreIgnored()
+	{
+		HeatmapJournal journal = new HeatmapJournal(journalDir, 0);
+		journal.append(HeatmapNew.HeatmapType.TYPE_A, 1, 1, 1);
+		journal.close();
+		journal.append(HeatmapNew.HeatmapType.TYPE_A, 1, 1, 1);
+		journal.appendTick(ALL_TYPES);
+
+		HeatmapNew heatmap = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		HeatmapJournal.readPending(journalDir, -1).applyTo(heatmap);
+		assertEquals(1, heatmap.get(1, 1));
+		assertEquals(0, heatmap.getGameTimeTicks());
+	}
+
+	/**
+	 * Journals three ticks of one increment each to tile (tick, 0)
+	 *
+	 * @return The length of the segment before the third tick's batch
+	 */
+	private long writeThreeTicks()
+	{
+		HeatmapJournal journal = new HeatmapJournal(journalDir, 0);
+		long lengthBeforeLastBatch = 0;
+		for (int tick = 0; tick < 3; tick++)
+		{
+			if (tick == 2)
+			{
+				// Batches are written straight to the file when their tick ends
+				lengthBeforeLastBatch = onlySegment().length();
+			}
+			journal.append(HeatmapNew.HeatmapType.TYPE_A, tick, 0, 1);
+			journal.appendTick(ALL_TYPES);
+		}
+		journal.close();
+		return lengthBeforeLastBatch;
+	}
+
+	private void assertFirstTwoTicksReplayed()
+	{
+		HeatmapNew heatmap = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		HeatmapJournal.readPending(journalDir, -1).applyTo(heatmap);
+		assertEquals(1, heatmap.get(0, 0));
+		assertEquals(1, heatmap.get(1, 0));
+		assertEquals(0, heatmap.get(2, 0));
+		assertEquals(2, heatmap.getGameTimeTicks());
+	}
+
+	private File onlySegment()
+	{
+		File[] segments = journalDir.listFiles();
+		assertNotNull(segments);
+		assertEquals(1, segments.length);
+		return segments[0];
+	}
+}
@@ -0,0 +1,132 @@
+package com.worldheatmap;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeatmapMemoryBudgetTest
+{
+	private final Map<HeatmapNew.HeatmapType, HeatmapNew> heatmaps = new ConcurrentHashMap<>();
+	private long budget = 0;
+	private HeatmapMemoryBudget memoryBudget;
+	private HeatmapNew heatmap;
+
+	@Before
+	public void setUp()
+	{
+		memoryBudget = new HeatmapMemoryBudget(heatmaps, () -> budget);
+		heatmap = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		heatmaps.put(HeatmapNew.HeatmapType.TYPE_A, heatmap);
+		heatmaps.put(HeatmapNew.HeatmapType.TYPE_B, TestHeatmaps.randomHeatmap(HeatmapNew.HeatmapType.TYPE_B, 0));
+		// Regions too sparse to be stored densely, with most of their tiles then removed, leaving their tables far bigger than they need be
+		for (int region = 0; region < 40; region++)
+		{
+			int x0 = 2048 + 64 * (region % 8);
+			int y0 = 2752 + 64 * (region / 8);
+			for (int i = 0; i < 1000; i++)
+			{
+				heatmap.set(x0 + i % 64, y0 + i / 64, 1 + i);
+			}
+			for (int i = 10; i < 1000; i++)
+			{
+				heatmap.set(x0 + i % 64, y0 + i / 64, 0);
+			}
+		}
+	}
+
+	@Test
+	public void publishesSizes()
+	{
+		memoryBudget.update();
+		long typeASize = HeatmapNew.estimateSize(heatmap);
+		long typeBSize = HeatmapNew.estimateSize(heatmaps.get(HeatmapNew.HeatmapType.TYPE_B));
+		assertEquals(typeASize, memoryBudget.getEstimatedSize(HeatmapNew.HeatmapType.TYPE_A));
+		assertEquals(typeBSize, memoryBudget.getEstimatedSize(HeatmapNew.HeatmapType.TYPE_B));
+		assertEquals(0, memoryBudget.getEstimatedSize(HeatmapNew.HeatmapType.DEATHS));
+		assertEquals(typeASize + typeBSize, memoryBudget.getEstimatedTotalSize());
+		assertEquals(typeASize, MetricsRegistry.get().gauge("memory.TYPE_A", MetricsRegistry.Unit.BYTES).get());
+		assertEquals(typeASize + typeBSize, MetricsRegistry.get().gauge("memory.total", MetricsRegistry.Unit.BYTES).get());
+
+		// Unloaded heatmaps no longer count
+		heatmaps.remove(HeatmapNew.HeatmapType.TYPE_B);
+		memoryBudget.update();
+		assertEquals(0, memoryBudget.getEstimatedSize(HeatmapNew.HeatmapType.TYPE_B));
+		assertEquals(typeASize, memoryBudget.getEstimatedTotalSize());
+	}
+
+	/**
+	 * Going over the budget compacts the heatmaps, which frees enough of the memory left over from removed tiles to get back under it
+	 */
+	@Test
+	public void compactsBackUnderBudget()
+	{
+		memoryBudget.update();
+		long uncompactedSize = memoryBudget.getEstimatedTotalSize();
+		budget = uncompactedSize / 2;
+		int numTiles = heatmap.getNumTilesVisited();
+
+		memoryBudget.update();
+		assertTrue(memoryBudget.getEstimatedTotalSize() <= budget);
+		assertEquals(HeatmapNew.estimateSize(heatmap) + HeatmapNew.estimateSize(heatmaps.get(HeatmapNew.HeatmapType.TYPE_B)), memoryBudget.getEstimatedTotalSize());
+		assertEquals(numTiles, heatmap.getNumTilesVisited());
+		assertEquals(40 * 10, numTiles);
+	}
+
+	/**
+	 * Heatmaps that still don't fit once compacted stay over the budget, and aren't changed
+	 */
+	@Test
+	public void staysOverBudgetWhenCompactingIsNotEnough()
+	{
+		budget = 1;
+		memoryBudget.update();
+		long compactedSize = memoryBudget.getEstimatedTotalSize();
+		assertTrue(compactedSize > budget);
+		memoryBudget.update();
+		assertEquals(compactedSize, memoryBudget.getEstimatedTotalSize());
+		assertEquals(40 * 10, heatmap.getNumTilesVisited());
+	}
+
+	/**
+	 * The published sizes can be read while the heatmap's lock is held elsewhere, e.g. while it's being compacted or saved
+	 */
+	@Test(timeout = 10_000)
+	public void sizesReadWithoutLockingHeatmaps() throws InterruptedException
+	{
+		memoryBudget.update();
+		long expectedSize = memoryBudget.getEstimatedSize(HeatmapNew.HeatmapType.TYPE_A);
+		CountDownLatch locked = new CountDownLatch(1);
+		CountDownLatch read = new CountDownLatch(1);
+		Thread lockHolder = new Thread(() -> {
+			synchronized (heatmap)
+			{
+				locked.countDown();
+				try
+				{
+					read.await();
+				}
+				catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		lockHolder.start();
+		assertTrue(locked.await(5, TimeUnit.SECONDS));
+		try
+		{
+			assertEquals(expectedSize, memoryBudget.getEstimatedSize(HeatmapNew.HeatmapType.TYPE_A));
+			assertTrue(memoryBudget.getEstimatedTotalSize() >= expectedSize);
+		}
+		finally
+		{
+			read.countDown();
+			lockHolder.join();
+		}
+	}
+}
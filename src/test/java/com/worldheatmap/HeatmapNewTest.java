@@ -0,0 +1,89 @@
+package com.worldheatmap;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class HeatmapNewTest
+{
+	@Test
+	public void tracksTotalsAndMaxMinTiles()
+	{
+		HeatmapNew heatmap = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		heatmap.increment(3200, 3200, 5);
+		heatmap.increment(3201, 3200, 2);
+		heatmap.increment(3202, 3200, 9);
+		assertEquals(3, heatmap.getNumTilesVisited());
+		assertEquals(16, heatmap.getTotalValue());
+		assertArrayEquals(new int[]{9, 3202, 3200}, heatmap.getMaxVal());
+		assertArrayEquals(new int[]{2, 3201, 3200}, heatmap.getMinVal());
+
+		// Lowering the max (and raising the min) hands them over to other tiles
+		heatmap.set(3202, 3200, 1);
+		heatmap.set(3201, 3200, 6);
+		assertArrayEquals(new int[]{6, 3201, 3200}, heatmap.getMaxVal());
+		assertArrayEquals(new int[]{1, 3202, 3200}, heatmap.getMinVal());
+
+		heatmap.set(3200, 3200, 0);
+		heatmap.set(3201, 3200, 0);
+		heatmap.set(3202, 3200, 0);
+		assertEquals(0, heatmap.getNumTilesVisited());
+		assertArrayEquals(new int[]{0, 0, 0}, heatmap.getMaxVal());
+		assertArrayEquals(new int[]{0, 0, 0}, heatmap.getMinVal());
+	}
+
+	@Test
+	public void snapshotIsIsolatedFromChanges()
+	{
+		HeatmapNew heatmap = TestHeatmaps.randomHeatmap(HeatmapNew.HeatmapType.TYPE_A, 0);
+		heatmap.increment(3100, 3100, 1000);
+		HeatmapNew copy = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A, heatmap.getUserID());
+		heatmap.forEachTile(copy::set);
+		copy.setGameTimeTicks(heatmap.getGameTimeTicks());
+		int modCount = heatmap.getModCount();
+
+		HeatmapNew snapshot = heatmap.snapshot();
+		assertTrue(snapshot.isSnapshot());
+		// Lower the max, raise the min, and add and remove tiles, all of which change the histogram shared with the snapshot
+		heatmap.set(3100, 3100, 1);
+		int[] min = heatmap.getMinVal();
+		heatmap.set(min[1], min[2], 50);
+		heatmap.set(3000, 3000, 0);
+		heatmap.increment(4000, 4000, 2000);
+		heatmap.incrementGameTimeTicks();
+		heatmap.compact();
+
+		HeatmapBinaryFormatTest.assertHeatmapsEqual(copy, snapshot);
+		assertEquals(modCount, snapshot.getModCount());
+		assertTrue(heatmap.getModCount() != modCount);
+		assertEquals(2000, heatmap.getMaxVal()[0]);
+		assertEquals(1000, snapshot.getMaxVal()[0]);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void snapshotCantBeModified()
+	{
+		HeatmapNew heatmap = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		heatmap.increment(1, 1);
+		heatmap.snapshot().increment(1, 1);
+	}
+
+	@Test
+	public void dirtyUntilSaved()
+	{
+		// A new heatmap has never been saved
+		HeatmapNew heatmap = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		assertTrue(heatmap.isDirty());
+		heatmap.markSaved(heatmap.getModCount());
+		assertFalse(heatmap.isDirty());
+		heatmap.increment(1, 1);
+		assertTrue(heatmap.isDirty());
+		heatmap.markSaved(heatmap.getModCount());
+		assertFalse(heatmap.isDirty());
+		// Game time alone doesn't count
+		heatmap.incrementGameTimeTicks();
+		assertFalse(heatmap.isDirty());
+	}
+}
@@ -0,0 +1,205 @@
+package com.worldheatmap;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HeatmapResidencyTest
+{
+	private static final HeatmapNew.HeatmapType TYPE = HeatmapNew.HeatmapType.DEATHS;
+
+	private Map<HeatmapNew.HeatmapType, HeatmapNew> heatmaps;
+	private HeatmapResidency residency;
+
+	@Before
+	public void setUp()
+	{
+		heatmaps = new ConcurrentHashMap<>();
+		residency = new HeatmapResidency(heatmaps);
+	}
+
+	@Test
+	public void coldHeatmapIsPagedOutAndBackInUnchanged()
+	{
+		HeatmapNew heatmap = TestHeatmaps.randomHeatmap(TYPE, 0);
+		HeatmapNew expected = heatmap.snapshot();
+		heatmap.markSaved(heatmap.getModCount());
+		residency.replace(heatmap);
+
+		// Not before it's gone unused for long enough
+		tick(HeatmapResidency.COLD_AFTER_TICKS - 1);
+		residency.pageOutColdHeatmaps();
+		assertFalse(residency.isPagedOut(TYPE));
+		tick(1);
+		residency.pageOutColdHeatmaps();
+		assertTrue(residency.isPagedOut(TYPE));
+		assertTrue(residency.isLoaded(TYPE));
+		assertNull(residency.getResident(TYPE));
+		assertFalse(heatmaps.containsKey(TYPE));
+		assertTrue(residency.getPagedOutSize(TYPE) > 0);
+
+		HeatmapNew pagedIn = residency.get(TYPE);
+		assertFalse(residency.isPagedOut(TYPE));
+		assertSame(pagedIn, residency.getResident(TYPE));
+		assertEquals(0, residency.getPagedOutSize());
+		// Including the game time counted while it was resident
+		expected = withGameTimeTicks(expected, expected.getGameTimeTicks() + HeatmapResidency.COLD_AFTER_TICKS);
+		HeatmapBinaryFormatTest.assertHeatmapsEqual(expected, pagedIn);
+		assertFalse(pagedIn.isDirty());
+	}
+
+	@Test
+	public void usedHeatmapIsntPagedOut()
+	{
+		residency.replace(TestHeatmaps.randomHeatmap(TYPE, 1));
+		tick(HeatmapResidency.COLD_AFTER_TICKS - 1);
+		residency.markUsed(TYPE);
+		tick(1);
+		residency.pageOutColdHeatmaps();
+		assertFalse(residency.isPagedOut(TYPE));
+	}
+
+	@Test
+	public void bufferedIncrementsAreAppliedOnPageIn()
+	{
+		HeatmapNew heatmap = TestHeatmaps.randomHeatmap(TYPE, 2);
+		heatmap.markSaved(heatmap.getModCount());
+		HeatmapNew expected = TestHeatmaps.randomHeatmap(TYPE, 2);
+		pageOut(heatmap);
+		expected.setGameTimeTicks(expected.getGameTimeTicks() + HeatmapResidency.COLD_AFTER_TICKS);
+
+		for (int i = 0; i < 100; i++)
+		{
+			// The same few tiles over and over, which are summed up, and a new one
+			assertTrue(residency.bufferIncrement(TYPE, 3000 + i % 10, 3000, 3));
+			expected.increment(3000 + i % 10, 3000, 3);
+			assertTrue(residency.bufferIncrement(TYPE, 2000, 2000 + i, 1));
+			expected.increment(2000, 2000 + i, 1);
+			assertEquals(1 << TYPE.ordinal(), residency.onTick());
+			expected.incrementGameTimeTicks();
+		}
+		assertEquals(expected.getGameTimeTicks(), residency.getGameTimeTicks(TYPE));
+		assertEquals(-1, residency.getGameTimeTicks(HeatmapNew.HeatmapType.TYPE_A));
+		// Ignored, like the heatmap itself would
+		assertTrue(residency.bufferIncrement(TYPE, Short.MAX_VALUE + 1, 0, 1));
+		assertTrue(residency.isPagedOut(TYPE));
+
+		List<HeatmapNew> toSave = residency.getHeatmapsToSave(false);
+		assertEquals(1, toSave.size());
+		HeatmapNew pagedIn = toSave.get(0);
+		HeatmapBinaryFormatTest.assertHeatmapsEqual(expected, pagedIn);
+		assertTrue(pagedIn.isDirty());
+	}
+
+	@Test
+	public void unchangedHeatmapStaysPagedOutWhenSaving()
+	{
+		HeatmapNew heatmap = TestHeatmaps.randomHeatmap(TYPE, 3);
+		heatmap.markSaved(heatmap.getModCount());
+		pageOut(heatmap);
+		assertTrue(residency.getHeatmapsToSave(false).isEmpty());
+		assertTrue(residency.isPagedOut(TYPE));
+		assertEquals(1, residency.getHeatmapsToSave(true).size());
+		assertFalse(residency.isPagedOut(TYPE));
+	}
+
+	@Test
+	public void incrementThatCouldOverflowPagesIn()
+	{
+		HeatmapNew heatmap = new HeatmapNew(TYPE);
+		heatmap.set(10, 10, Integer.MAX_VALUE - 5);
+		heatmap.set(20, 20, 1);
+		pageOut(heatmap);
+
+		// Even on another tile, since only the highest value is known while it's paged out
+		assertTrue(residency.bufferIncrement(TYPE, 20, 20, 5));
+		assertFalse(residency.bufferIncrement(TYPE, 20, 20, 1));
+		assertFalse(residency.isPagedOut(TYPE));
+		HeatmapNew pagedIn = residency.getResident(TYPE);
+		assertEquals(6, pagedIn.get(20, 20));
+		assertEquals(Integer.MAX_VALUE - 5, pagedIn.get(10, 10));
+	}
+
+	@Test
+	public void negativeIncrementPagesIn()
+	{
+		HeatmapNew heatmap = new HeatmapNew(TYPE);
+		heatmap.set(10, 10, 5);
+		pageOut(heatmap);
+		assertFalse(residency.bufferIncrement(TYPE, 10, 10, -1));
+		assertFalse(residency.isPagedOut(TYPE));
+	}
+
+	@Test
+	public void tooManyBufferedTilesPagesIn()
+	{
+		HeatmapNew heatmap = new HeatmapNew(TYPE);
+		heatmap.set(10, 10, 5);
+		pageOut(heatmap);
+		int numTiles = 0;
+		while (residency.isPagedOut(TYPE))
+		{
+			assertTrue(residency.bufferIncrement(TYPE, 1000 + numTiles, 1000, 1));
+			numTiles++;
+		}
+		// The increment that tipped it over is in the paged-in heatmap
+		HeatmapNew pagedIn = residency.getResident(TYPE);
+		assertEquals(numTiles + 1, pagedIn.getNumTilesVisited());
+		assertEquals(1, pagedIn.get(1000 + numTiles - 1, 1000));
+	}
+
+	@Test
+	public void residentHeatmapIsntBuffered()
+	{
+		residency.replace(new HeatmapNew(TYPE));
+		assertFalse(residency.bufferIncrement(TYPE, 1, 1, 1));
+		assertFalse(residency.bufferIncrement(HeatmapNew.HeatmapType.TYPE_A, 1, 1, 1));
+	}
+
+	@Test
+	public void replacingAndRemovingPagedOutHeatmap()
+	{
+		pageOut(TestHeatmaps.randomHeatmap(TYPE, 4));
+		HeatmapNew replacement = new HeatmapNew(TYPE);
+		residency.replace(replacement);
+		assertFalse(residency.isPagedOut(TYPE));
+		assertSame(replacement, residency.get(TYPE));
+
+		pageOut(replacement);
+		residency.remove(TYPE);
+		assertFalse(residency.isLoaded(TYPE));
+		assertNull(residency.get(TYPE));
+		assertEquals(0, residency.getPagedOutSize());
+	}
+
+	private void pageOut(HeatmapNew heatmap)
+	{
+		residency.replace(heatmap);
+		tick(HeatmapResidency.COLD_AFTER_TICKS);
+		residency.pageOutColdHeatmaps();
+		assertTrue(residency.isPagedOut(heatmap.getHeatmapType()));
+	}
+
+	private void tick(int numTicks)
+	{
+		for (int i = 0; i < numTicks; i++)
+		{
+			residency.onTick();
+		}
+	}
+
+	private static HeatmapNew withGameTimeTicks(HeatmapNew heatmap, int gameTimeTicks)
+	{
+		HeatmapNew copy = new HeatmapNew(heatmap.getHeatmapType(), heatmap.getUserID());
+		heatmap.forEachTile(copy::set);
+		copy.setGameTimeTicks(gameTimeTicks);
+		return copy;
+	}
+}
@@ -0,0 +1,354 @@
+package com.worldheatmap;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Exports a random heatmap's tile pyramid, changes it, and checks that exporting it again only redraws the tiles that changed, and
+ * that they come out the same as in a full export
+ */
+public class HeatmapTilePyramidTest
+{
+	// Zoom 2 is 3x3 tiles (the right column and bottom row cut off by the image's edges), zoom 1 is 2x2 and zoom 0 is 1 tile
+	private static final int WIDTH = 700;
+	private static final int HEIGHT = 600;
+	private static final int MAX_ZOOM = 2;
+	private static final int NUM_TILES = 9 + 4 + 1;
+	// Region (36, 50), game tiles (2304, 3200) to (2367, 3263), is drawn at pixels (100, 150) to (355, 405), within the top left 2x2 tiles
+	private static final int OFFSET_X = -9116;
+	private static final int OFFSET_Y = 12602;
+	private static final double TRANSPARENCY = 0.4;
+	private static final int SENSITIVITY = 4;
+	// Long before the exports' tiles were written
+	private static final long OLD_TIME = 1_000_000_000_000L;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File mapFile;
+	private WorldMapCache worldMapCache;
+	private HeatmapNew heatmap;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		File overrideDir = folder.newFolder("override");
+		mapFile = new File(overrideDir, "osrs_world_map.png");
+		writeRandomMap(0);
+		Files.write(new File(overrideDir, "offsets.csv").toPath(), ("fullX,fullY,overworldX,overworldY\n0,0," + OFFSET_X + "," + OFFSET_Y + "\n").getBytes(StandardCharsets.UTF_8));
+		worldMapCache = new WorldMapCache(folder.newFolder("cache"), overrideDir);
+
+		heatmap = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		TestHeatmaps.setRandomTiles(heatmap, new Random(0), new Rectangle(2280, 3152, 170, 149), 5000, 9997);
+		// The min and max values, in regions other than the one that's changed, so that changing it doesn't change the colours of every tile
+		heatmap.set(2440, 3160, 1);
+		heatmap.set(2290, 3290, 10_000);
+	}
+
+	@Test
+	public void fullExport() throws IOException
+	{
+		File outputDir = folder.newFolder("full");
+		assertEquals(NUM_TILES, export(outputDir));
+		assertEquals(allTiles(), tileFiles(outputDir));
+		assertEquals(Integer.toString(MAX_ZOOM), readManifest(outputDir).getProperty("maxZoom"));
+	}
+
+	/**
+	 * Changing one region only redraws the tiles it's drawn in, and the tiles above them that they're downsampled into
+	 */
+	@Test
+	public void reExportOnlyRedrawsChangedTiles() throws IOException
+	{
+		File outputDir = folder.newFolder("incremental");
+		assertEquals(NUM_TILES, export(outputDir));
+		markTilesOld(outputDir);
+
+		heatmap.increment(2330, 3230, 1);
+		assertEquals(6, export(outputDir));
+		assertEquals(new HashSet<>(Arrays.asList("2/0/0.png", "2/1/0.png", "2/0/1.png", "2/1/1.png", "1/0/0.png", "0/0/0.png")), changedTiles(outputDir));
+		assertTilesEqual(fullExport("reference"), outputDir);
+	}
+
+	/**
+	 * The region hashes read back from the manifest match the heatmap's, so nothing is redrawn
+	 */
+	@Test
+	public void reExportOfUnchangedHeatmapRedrawsNothing() throws IOException
+	{
+		File outputDir = folder.newFolder("unchanged");
+		export(outputDir);
+		markTilesOld(outputDir);
+		assertEquals(0, export(outputDir));
+		assertEquals(new HashSet<>(), changedTiles(outputDir));
+
+		// Tiles that have gone missing are redrawn though
+		assertTrue(new File(outputDir, "0/0/0.png").delete());
+		assertEquals(1, export(outputDir));
+		assertTilesEqual(fullExport("reference"), outputDir);
+	}
+
+	/**
+	 * A change to the heatmap's max value changes every tile's colours
+	 */
+	@Test
+	public void reExportAfterMaxValueChangeRedrawsEverything() throws IOException
+	{
+		File outputDir = folder.newFolder("max");
+		export(outputDir);
+		heatmap.set(2330, 3230, 20_000);
+		assertEquals(NUM_TILES, export(outputDir));
+		assertTilesEqual(fullExport("reference"), outputDir);
+	}
+
+	@Test
+	public void reExportAfterWorldMapChangeRedrawsEverything() throws IOException
+	{
+		File outputDir = folder.newFolder("map");
+		export(outputDir);
+		markTilesOld(outputDir);
+		long mapLastModified = mapFile.lastModified();
+		writeRandomMap(1);
+		assertTrue(mapFile.setLastModified(mapLastModified + 2000));
+
+		assertEquals(NUM_TILES, export(outputDir));
+		assertEquals(allTiles(), changedTiles(outputDir));
+		assertTilesEqual(fullExport("reference"), outputDir);
+	}
+
+	/**
+	 * Each tile below the highest zoom level is its four children halved, each pixel the average of the opaque pixels beneath it.
+	 * The parts of tiles past the image's edges are transparent
+	 */
+	@Test
+	public void lowerZoomLevelsAreDownsampled() throws IOException
+	{
+		File outputDir = fullExport("full");
+		for (int zoom = 0; zoom < MAX_ZOOM; zoom++)
+		{
+			int numTiles = 1 << zoom;
+			for (int x = 0; x < numTiles; x++)
+			{
+				for (int y = 0; y < numTiles; y++)
+				{
+					BufferedImage tile = ImageIO.read(tileFile(outputDir, zoom, x, y));
+					for (int i = 0; i < 4; i++)
+					{
+						File childFile = tileFile(outputDir, zoom + 1, 2 * x + (i & 1), 2 * y + (i >> 1));
+						BufferedImage child = childFile.isFile() ? ImageIO.read(childFile) : null;
+						assertDownsampled(zoom + "/" + x + "/" + y + ".png", child, tile, (i & 1) * HeatmapTilePyramid.TILE_SIZE / 2, (i >> 1) * HeatmapTilePyramid.TILE_SIZE / 2);
+					}
+				}
+			}
+		}
+
+		BufferedImage bottomRight = ImageIO.read(tileFile(outputDir, MAX_ZOOM, 2, 2));
+		assertEquals(0xFF, bottomRight.getRGB(WIDTH - 513, HEIGHT - 513) >>> 24);
+		assertEquals(0, bottomRight.getRGB(WIDTH - 512, HEIGHT - 513) >>> 24);
+		assertEquals(0, bottomRight.getRGB(WIDTH - 513, HEIGHT - 512) >>> 24);
+	}
+
+	/**
+	 * @return The number of tiles drawn
+	 */
+	private int export(File outputDir)
+	{
+		int[] numTilesDrawn = {-1};
+		HeatmapTilePyramid.exportTilePyramid(heatmap, outputDir, false, TRANSPARENCY, SENSITIVITY, true, worldMapCache, new HeatmapTilePyramid.ProgressListener()
+		{
+			@Override
+			public void exportStarted()
+			{
+			}
+
+			@Override
+			public void exportProgress(float percentageDone)
+			{
+			}
+
+			@Override
+			public void exportComplete(int numDrawn)
+			{
+				numTilesDrawn[0] = numDrawn;
+			}
+
+			@Override
+			public void exportFailed()
+			{
+				throw new AssertionError("Export failed");
+			}
+		});
+		return numTilesDrawn[0];
+	}
+
+	private File fullExport(String name) throws IOException
+	{
+		File outputDir = folder.newFolder(name);
+		assertEquals(NUM_TILES, export(outputDir));
+		return outputDir;
+	}
+
+	private void writeRandomMap(long seed) throws IOException
+	{
+		Random random = new Random(seed);
+		BufferedImage map = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < HEIGHT; y++)
+		{
+			for (int x = 0; x < WIDTH; x++)
+			{
+				map.setRGB(x, y, random.nextInt());
+			}
+		}
+		ImageIO.write(map, "png", mapFile);
+	}
+
+	private static Set<String> allTiles()
+	{
+		Set<String> tiles = new HashSet<>();
+		for (int zoom = 0; zoom <= MAX_ZOOM; zoom++)
+		{
+			int numTiles = zoom == MAX_ZOOM ? 3 : 1 << zoom;
+			for (int x = 0; x < numTiles; x++)
+			{
+				for (int y = 0; y < numTiles; y++)
+				{
+					tiles.add(zoom + "/" + x + "/" + y + ".png");
+				}
+			}
+		}
+		return tiles;
+	}
+
+	private static File tileFile(File outputDir, int zoom, int x, int y)
+	{
+		return new File(outputDir, zoom + "/" + x + "/" + y + ".png");
+	}
+
+	/**
+	 * @return The tiles in the directory, as "zoom/x/y.png"
+	 */
+	private static Set<String> tileFiles(File outputDir) throws IOException
+	{
+		Set<String> tiles = new HashSet<>();
+		try (Stream<Path> paths = Files.walk(outputDir.toPath()))
+		{
+			paths.filter(Files::isRegularFile)
+				.map(path -> outputDir.toPath().relativize(path).toString().replace(File.separatorChar, '/'))
+				.filter(path -> !path.startsWith("manifest"))
+				.forEach(tiles::add);
+		}
+		return tiles;
+	}
+
+	private static void markTilesOld(File outputDir) throws IOException
+	{
+		for (String tile : tileFiles(outputDir))
+		{
+			assertTrue(new File(outputDir, tile).setLastModified(OLD_TIME));
+		}
+	}
+
+	/**
+	 * @return The tiles written since markTilesOld()
+	 */
+	private static Set<String> changedTiles(File outputDir) throws IOException
+	{
+		Set<String> changed = new HashSet<>();
+		for (String tile : tileFiles(outputDir))
+		{
+			if (new File(outputDir, tile).lastModified() != OLD_TIME)
+			{
+				changed.add(tile);
+			}
+		}
+		return changed;
+	}
+
+	private static Properties readManifest(File outputDir) throws IOException
+	{
+		Properties manifest = new Properties();
+		try (InputStream is = Files.newInputStream(new File(outputDir, "manifest.properties").toPath()))
+		{
+			manifest.load(is);
+		}
+		return manifest;
+	}
+
+	private static void assertTilesEqual(File expectedDir, File actualDir) throws IOException
+	{
+		assertEquals(tileFiles(expectedDir), tileFiles(actualDir));
+		for (String tile : tileFiles(expectedDir))
+		{
+			BufferedImage expected = ImageIO.read(new File(expectedDir, tile));
+			BufferedImage actual = ImageIO.read(new File(actualDir, tile));
+			assertNotNull(tile, actual);
+			for (int y = 0; y < HeatmapTilePyramid.TILE_SIZE; y++)
+			{
+				for (int x = 0; x < HeatmapTilePyramid.TILE_SIZE; x++)
+				{
+					assertEquals(tile + " pixel " + x + "," + y, expected.getRGB(x, y), actual.getRGB(x, y));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks the quarter of the parent at (offsetX, offsetY) against the child, which is transparent if it's null
+	 */
+	private static void assertDownsampled(String parentTile, BufferedImage child, BufferedImage parent, int offsetX, int offsetY)
+	{
+		int half = HeatmapTilePyramid.TILE_SIZE / 2;
+		for (int y = 0; y < half; y++)
+		{
+			for (int x = 0; x < half; x++)
+			{
+				int numOpaque = 0;
+				int[] sums = new int[3];
+				for (int i = 0; child != null && i < 4; i++)
+				{
+					int argb = child.getRGB(2 * x + (i & 1), 2 * y + (i >> 1));
+					// The tiles are either drawn or left transparent, never in between
+					if (argb >>> 24 == 0xFF)
+					{
+						numOpaque++;
+						for (int channel = 0; channel < 3; channel++)
+						{
+							sums[channel] += (argb >> (16 - 8 * channel)) & 0xFF;
+						}
+					}
+				}
+				int expected = 0;
+				if (numOpaque > 0)
+				{
+					expected = (numOpaque * 0xFF + 2) / 4 << 24;
+					for (int channel = 0; channel < 3; channel++)
+					{
+						expected |= (2 * sums[channel] + numOpaque) / (2 * numOpaque) << (16 - 8 * channel);
+					}
+				}
+				int actual = parent.getRGB(offsetX + x, offsetY + y);
+				assertEquals(parentTile + " pixel " + (offsetX + x) + "," + (offsetY + y), numOpaque == 0 ? 0 : expected, numOpaque == 0 ? actual >>> 24 : actual);
+			}
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package com.worldheatmap;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import net.runelite.api.NpcID;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Feeds the tracker movement and NPC spawns, and checks the increments it publishes into the tile event buffer
+ */
+public class HeatmapTrackerTest
+{
+	private static final Instant NOW = Instant.parse("2024-01-01T12:00:00Z");
+
+	private TileEventBuffer tileEvents;
+	private HeatmapResidency heatmaps;
+	private HeatmapTracker tracker;
+
+	@Before
+	public void setUp()
+	{
+		tileEvents = new TileEventBuffer(1 << 12);
+		heatmaps = new HeatmapResidency(new ConcurrentHashMap<>());
+		tracker = new HeatmapTracker(new WorldHeatmapConfig()
+		{
+		}, heatmaps, tileEvents);
+		// Where the player starts, which (being far from (0, 0)) isn't counted as either a run or a teleport
+		tracker.onTick(3200, 3200);
+		assertEquals(Collections.singletonList("TICK"), drainEvents());
+	}
+
+	/**
+	 * Running covers every tile between the last position and the current one, not including the last position
+	 */
+	@Test
+	public void runIncrementsTilesAlongTheWay()
+	{
+		tracker.onTick(3202, 3201);
+		assertEquals(Arrays.asList(
+			"TYPE_A 3201,3201 +1", "TYPE_A 3202,3201 +1",
+			"TYPE_B 3201,3201 +1", "TYPE_B 3202,3201 +1",
+			"TICK"), drainEvents());
+
+		tracker.onTick(3199, 3198);
+		assertEquals(Arrays.asList(
+			"TYPE_A 3201,3200 +1", "TYPE_A 3200,3199 +1", "TYPE_A 3199,3198 +1",
+			"TYPE_B 3201,3200 +1", "TYPE_B 3200,3199 +1", "TYPE_B 3199,3198 +1",
+			"TICK"), drainEvents());
+	}
+
+	/**
+	 * Standing still counts as time spent on the tile, but not as walking over it
+	 */
+	@Test
+	public void standingStillOnlyIncrementsTypeB()
+	{
+		tracker.onTick(3200, 3200);
+		assertEquals(Arrays.asList("TYPE_B 3200,3200 +1", "TICK"), drainEvents());
+	}
+
+	/**
+	 * The lines drawn for random runs in every direction step from tile to tile, and end at the player's current position
+	 */
+	@Test
+	public void runLinesEndAtCurrentPosition()
+	{
+		Random random = new Random(0);
+		int x = 3200;
+		int y = 3200;
+		for (int i = 0; i < 1000; i++)
+		{
+			int lastX = x;
+			int lastY = y;
+			x += random.nextInt(7) - 3;
+			y += random.nextInt(7) - 3;
+			tracker.onTick(x, y);
+			List<int[]> typeA = new ArrayList<>();
+			List<int[]> typeB = new ArrayList<>();
+			tileEvents.drain((type, tileX, tileY, amount) -> {
+				if (type == HeatmapNew.HeatmapType.TYPE_A.ordinal())
+				{
+					typeA.add(new int[]{tileX, tileY});
+				}
+				else if (type == HeatmapNew.HeatmapType.TYPE_B.ordinal())
+				{
+					typeB.add(new int[]{tileX, tileY});
+				}
+			}, Integer.MAX_VALUE);
+
+			int distance = HeatmapTracker.diagonalDistance(lastX, lastY, x, y);
+			assertEquals(distance, typeA.size());
+			assertEquals(Math.max(1, distance), typeB.size());
+			int[] previous = {lastX, lastY};
+			for (int[] tile : typeA)
+			{
+				assertEquals(1, HeatmapTracker.diagonalDistance(previous[0], previous[1], tile[0], tile[1]));
+				previous = tile;
+			}
+			assertTrue(Arrays.equals(new int[]{x, y}, typeB.get(typeB.size() - 1)));
+			for (int j = 0; j < typeA.size(); j++)
+			{
+				assertTrue(Arrays.equals(typeA.get(j), typeB.get(j)));
+			}
+		}
+	}
+
+	@Test
+	public void teleportIncrementsPathAndBothEnds()
+	{
+		tracker.onTick(3220, 3210);
+		List<String> events = drainEvents();
+		// A line of 20 steps, then where the player teleported to and from
+		assertEquals(23, events.size());
+		assertEquals("TELEPORT_PATHS 3201,3201 +1", events.get(0));
+		assertEquals("TELEPORT_PATHS 3220,3210 +1", events.get(19));
+		assertEquals(Arrays.asList("TELEPORTED_TO 3220,3210 +1", "TELEPORTED_FROM 3200,3200 +1", "TICK"), events.subList(20, 23));
+		for (String event : events.subList(0, 20))
+		{
+			assertTrue(event, event.startsWith("TELEPORT_PATHS "));
+		}
+	}
+
+	/**
+	 * Moving further than a run but not as far as a teleport (e.g. being knocked back, or the client skipping a tick) isn't tracked
+	 */
+	@Test
+	public void movesBetweenRunAndTeleportAreIgnored()
+	{
+		for (int distance = 4; distance <= HeatmapTracker.MIN_TELEPORT_DISTANCE; distance++)
+		{
+			tracker.onTick(3200 + (distance % 2 == 0 ? distance : -distance), 3200);
+			assertEquals("distance " + distance, Collections.singletonList("TICK"), drainEvents());
+			tracker.onTick(3200, 3200);
+			assertEquals("distance " + distance, Collections.singletonList("TICK"), drainEvents());
+		}
+	}
+
+	/**
+	 * Teleports into or out of caves, instances etc. aren't drawn
+	 */
+	@Test
+	public void teleportsOutOfOverworldAreIgnored()
+	{
+		tracker.onTick(3200, 9600);
+		assertEquals(Collections.singletonList("TICK"), drainEvents());
+		tracker.onTick(3200, 3200);
+		assertEquals(Collections.singletonList("TICK"), drainEvents());
+	}
+
+	/**
+	 * Bob the Cat is counted at most once an hour on each world, and only once his heatmap's been loaded
+	 */
+	@Test
+	public void bobTheCatCountedOncePerHourPerWorld()
+	{
+		tracker.onNpcSpawned(NpcID.BOB_8034, 3210, 3220, 301, NOW);
+		assertEquals(Collections.emptyList(), drainEvents());
+
+		heatmaps.replace(new HeatmapNew(HeatmapNew.HeatmapType.BOB_THE_CAT_SIGHTING));
+		// Not seen yet, since he wasn't counted while the heatmap wasn't loaded
+		tracker.onNpcSpawned(NpcID.BOB_8034, 3210, 3220, 301, NOW.plusSeconds(60));
+		assertEquals(Collections.singletonList("BOB_THE_CAT_SIGHTING 3210,3220 +1"), drainEvents());
+
+		tracker.onNpcSpawned(NpcID.BOB_8034, 3211, 3220, 301, NOW.plusSeconds(60 + 3600));
+		tracker.onNpcSpawned(NpcID.BOB_8034, 3212, 3220, 302, NOW.plusSeconds(120));
+		tracker.onNpcSpawned(NpcID.BOB_8034, 3213, 3220, 302, NOW.plusSeconds(1200));
+		tracker.onNpcSpawned(NpcID.BOB_8034, 3214, 3220, 301, NOW.plusSeconds(60 + 3601));
+		assertEquals(Arrays.asList("BOB_THE_CAT_SIGHTING 3212,3220 +1", "BOB_THE_CAT_SIGHTING 3214,3220 +1"), drainEvents());
+	}
+
+	/**
+	 * @return The published events, e.g. "TYPE_A 3201,3200 +1", or "TICK" for the end of a tick
+	 */
+	private List<String> drainEvents()
+	{
+		List<String> events = new ArrayList<>();
+		tileEvents.drain((type, x, y, amount) -> events.add(type == TileEventBuffer.TICK ? "TICK"
+			: HeatmapNew.HeatmapType.values()[type] + " " + x + "," + y + " +" + amount), Integer.MAX_VALUE);
+		return events;
+	}
+}
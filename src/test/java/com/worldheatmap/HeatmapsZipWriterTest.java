@@ -0,0 +1,139 @@
+package com.worldheatmap;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HeatmapsZipWriterTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void copiedAndNewEntriesAreReadable() throws IOException
+	{
+		Map<String, byte[]> expected = new LinkedHashMap<>();
+		expected.put("TYPE_A_HEATMAP.bin", randomBytes(0, 100_000));
+		expected.put("TYPE_B_HEATMAP.csv", "userID,heatmapVersion\n1,100\n".getBytes(StandardCharsets.UTF_8));
+		expected.put("STORED.bin", randomBytes(1, 1000));
+		expected.put("EMPTY.bin", new byte[0]);
+
+		// Written by java.util.zip, with both a deflated entry (which has a data descriptor) and a stored one
+		File source = folder.newFile("source.heatmaps");
+		try (ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(source)))
+		{
+			for (Map.Entry<String, byte[]> entry : expected.entrySet())
+			{
+				ZipEntry zipEntry = new ZipEntry(entry.getKey());
+				if (entry.getKey().equals("STORED.bin"))
+				{
+					CRC32 crc = new CRC32();
+					crc.update(entry.getValue());
+					zipEntry.setMethod(ZipEntry.STORED);
+					zipEntry.setSize(entry.getValue().length);
+					zipEntry.setCrc(crc.getValue());
+				}
+				zip.putNextEntry(zipEntry);
+				zip.write(entry.getValue());
+				zip.closeEntry();
+			}
+		}
+
+		File copy = folder.newFile("copy.heatmaps");
+		byte[] newEntry = randomBytes(2, 50_000);
+		try (RandomAccessFile sourceFile = new RandomAccessFile(source, "r");
+			 OutputStream out = new FileOutputStream(copy))
+		{
+			HeatmapsZipWriter writer = new HeatmapsZipWriter(out);
+			try (OutputStream entryStream = writer.putNextEntry("NEW_HEATMAP.bin"))
+			{
+				entryStream.write(newEntry);
+			}
+			List<HeatmapsZipWriter.Entry> entries = HeatmapsZipWriter.readEntries(sourceFile);
+			assertEquals(expected.size(), entries.size());
+			for (HeatmapsZipWriter.Entry entry : entries)
+			{
+				writer.copyEntry(sourceFile, entry);
+			}
+			writer.close();
+		}
+		expected.put("NEW_HEATMAP.bin", newEntry);
+
+		// By the central directory
+		try (ZipFile zipFile = new ZipFile(copy))
+		{
+			assertEquals(expected.size(), zipFile.size());
+			for (Map.Entry<String, byte[]> entry : expected.entrySet())
+			{
+				ZipEntry zipEntry = zipFile.getEntry(entry.getKey());
+				assertNotNull(entry.getKey(), zipEntry);
+				try (InputStream in = zipFile.getInputStream(zipEntry))
+				{
+					assertArrayEquals(entry.getValue(), readAll(in));
+				}
+			}
+		}
+
+		// By the local headers and data descriptors
+		Map<String, byte[]> streamed = new HashMap<>();
+		try (ZipInputStream zip = new ZipInputStream(new FileInputStream(copy)))
+		{
+			ZipEntry zipEntry;
+			while ((zipEntry = zip.getNextEntry()) != null)
+			{
+				streamed.put(zipEntry.getName(), readAll(zip));
+			}
+		}
+		assertEquals(expected.size(), streamed.size());
+		for (Map.Entry<String, byte[]> entry : expected.entrySet())
+		{
+			assertArrayEquals(entry.getValue(), streamed.get(entry.getKey()));
+		}
+	}
+
+	private static byte[] randomBytes(long seed, int length)
+	{
+		// Only a few distinct values, so that they compress
+		Random random = new Random(seed);
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+		{
+			bytes[i] = (byte) random.nextInt(4);
+		}
+		return bytes;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int n;
+		while ((n = in.read(buffer)) != -1)
+		{
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+}
@@ -0,0 +1,144 @@
+package com.worldheatmap;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class IntIntOpenHashMapTest
+{
+	@Test
+	public void putGetAndRemove()
+	{
+		IntIntOpenHashMap map = new IntIntOpenHashMap();
+		assertEquals(0, map.put(7, 3));
+		assertEquals(3, map.put(7, 5));
+		assertEquals(5, map.get(7));
+		assertEquals(0, map.get(8));
+		assertEquals(1, map.size());
+
+		assertEquals(5, map.remove(7));
+		assertEquals(0, map.remove(7));
+		assertFalse(map.containsKey(7));
+		assertTrue(map.isEmpty());
+	}
+
+	@Test
+	public void zeroValuesRemoveTheKey()
+	{
+		IntIntOpenHashMap map = new IntIntOpenHashMap();
+		map.put(1, 4);
+		map.put(1, 0);
+		assertFalse(map.containsKey(1));
+
+		map.addTo(2, 3);
+		assertEquals(0, map.addTo(2, -3));
+		assertFalse(map.containsKey(2));
+		assertEquals(0, map.size());
+	}
+
+	/**
+	 * Removing from the middle of a run of colliding keys has to shift the rest of the run back, or they can't be found any more
+	 */
+	@Test
+	public void removeFromCollidingRun()
+	{
+		IntIntOpenHashMap map = new IntIntOpenHashMap();
+		// Far more keys than slots in the initial table, so they're rehashed several times and collide in every table size
+		int[] keys = new int[200];
+		for (int i = 0; i < keys.length; i++)
+		{
+			keys[i] = i << 16 | i;
+			map.put(keys[i], i + 1);
+		}
+		for (int i = 0; i < keys.length; i += 2)
+		{
+			assertEquals(i + 1, map.remove(keys[i]));
+		}
+		for (int i = 0; i < keys.length; i++)
+		{
+			assertEquals("key " + i, i % 2 == 0 ? 0 : i + 1, map.get(keys[i]));
+		}
+		assertEquals(keys.length / 2, map.size());
+	}
+
+	@Test
+	public void matchesHashMapUnderRandomOperations()
+	{
+		Random random = new Random(0);
+		IntIntOpenHashMap map = new IntIntOpenHashMap();
+		Map<Integer, Integer> expected = new HashMap<>();
+		for (int i = 0; i < 100_000; i++)
+		{
+			// A small key range, so keys are often removed and added back
+			int key = random.nextInt(2000) - 1000;
+			switch (random.nextInt(4))
+			{
+				case 0:
+					assertEquals(expected.getOrDefault(key, 0).intValue(), map.remove(key));
+					expected.remove(key);
+					break;
+				case 1:
+					int newValue = map.addTo(key, random.nextInt(5) - 2);
+					if (newValue == 0)
+					{
+						expected.remove(key);
+					}
+					else
+					{
+						expected.put(key, newValue);
+					}
+					break;
+				default:
+					int value = random.nextInt(10) + 1;
+					assertEquals(expected.getOrDefault(key, 0).intValue(), map.put(key, value));
+					expected.put(key, value);
+					break;
+			}
+		}
+		assertEquals(expected.size(), map.size());
+		for (int key = -1000; key < 1000; key++)
+		{
+			assertEquals(expected.getOrDefault(key, 0).intValue(), map.get(key));
+		}
+	}
+
+	@Test
+	public void trimToSizeKeepsEntries()
+	{
+		IntIntOpenHashMap map = new IntIntOpenHashMap();
+		for (int i = 0; i < 1000; i++)
+		{
+			map.put(i, i + 1);
+		}
+		long sizeBefore = map.estimateSize();
+		for (int i = 10; i < 1000; i++)
+		{
+			map.remove(i);
+		}
+		assertTrue(map.trimToSize());
+		assertTrue(map.estimateSize() < sizeBefore);
+		assertFalse(map.trimToSize());
+		for (int i = 0; i < 10; i++)
+		{
+			assertEquals(i + 1, map.get(i));
+		}
+		assertEquals(10, map.size());
+	}
+
+	@Test
+	public void copyIsIndependent()
+	{
+		IntIntOpenHashMap map = new IntIntOpenHashMap();
+		map.put(1, 1);
+		IntIntOpenHashMap copy = map.copy();
+		map.put(1, 2);
+		map.put(2, 2);
+		assertEquals(1, copy.get(1));
+		assertArrayEquals(new int[]{1}, copy.keys());
+	}
+}
@@ -0,0 +1,148 @@
+package com.worldheatmap;
+
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class MetricsRegistryTest
+{
+	private static final int LAST_BUCKET = MetricsRegistry.Histogram.bucketOf(Long.MAX_VALUE);
+
+	/**
+	 * Values below 128 are counted exactly, and the buckets above them are 1/64th of their magnitude wide, with no gaps between them
+	 */
+	@Test
+	public void bucketBoundaries()
+	{
+		for (int value = 0; value < 128; value++)
+		{
+			assertEquals(value, MetricsRegistry.Histogram.bucketOf(value));
+			assertEquals(value, MetricsRegistry.Histogram.upperBoundOf(value));
+		}
+		assertEquals(128, MetricsRegistry.Histogram.bucketOf(128));
+		assertEquals(128, MetricsRegistry.Histogram.bucketOf(129));
+		assertEquals(129, MetricsRegistry.Histogram.upperBoundOf(128));
+		assertEquals(129, MetricsRegistry.Histogram.bucketOf(130));
+
+		for (int bucket = 0; bucket < LAST_BUCKET; bucket++)
+		{
+			long upperBound = MetricsRegistry.Histogram.upperBoundOf(bucket);
+			assertEquals("bucket " + bucket, bucket, MetricsRegistry.Histogram.bucketOf(upperBound));
+			assertEquals("bucket " + bucket, bucket + 1, MetricsRegistry.Histogram.bucketOf(upperBound + 1));
+			if (bucket >= 128)
+			{
+				long width = upperBound - MetricsRegistry.Histogram.upperBoundOf(bucket - 1);
+				assertTrue("bucket " + bucket, width <= upperBound / 64);
+			}
+		}
+		assertEquals(Long.MAX_VALUE, MetricsRegistry.Histogram.upperBoundOf(LAST_BUCKET));
+	}
+
+	/**
+	 * Percentiles of 1 to 10000 are the upper bounds of the buckets the actual values are in (capped at the max), and so within 1/64th of them
+	 */
+	@Test
+	public void percentilesOfUniformDistribution()
+	{
+		MetricsRegistry.Histogram histogram = new MetricsRegistry.Histogram("test", MetricsRegistry.Unit.NONE);
+		for (int value = 10_000; value >= 1; value--)
+		{
+			histogram.record(value);
+		}
+		assertEquals(10_000, histogram.getCount());
+		assertEquals(10_000, histogram.getMax());
+		for (double percentile : new double[]{0.01, 0.25, 0.5, 0.9, 0.99, 0.999})
+		{
+			long actual = (long) Math.ceil(percentile * 10_000);
+			long expected = Math.min(10_000, MetricsRegistry.Histogram.upperBoundOf(MetricsRegistry.Histogram.bucketOf(actual)));
+			assertEquals("p" + percentile * 100, expected, histogram.getPercentile(percentile));
+			assertTrue("p" + percentile * 100, histogram.getPercentile(percentile) - actual <= actual / 64);
+		}
+		// The lowest and highest values, which the percentiles are capped at
+		assertEquals(1, histogram.getPercentile(0));
+		assertEquals(10_000, histogram.getPercentile(1));
+
+		Map<String, Number> fields = histogram.fields();
+		assertEquals(50_005_000L, fields.get("sum"));
+		assertEquals(1L, fields.get("min"));
+		assertEquals(5000L, fields.get("mean"));
+	}
+
+	@Test
+	public void percentilesOfSkewedDistribution()
+	{
+		MetricsRegistry.Histogram histogram = new MetricsRegistry.Histogram("test", MetricsRegistry.Unit.NANOSECONDS);
+		// 98 fast ticks, and 2 slow ones
+		for (int i = 0; i < 98; i++)
+		{
+			histogram.record(50);
+		}
+		histogram.record(1_000_000);
+		histogram.record(3_000_000);
+		assertEquals(50, histogram.getPercentile(0.5));
+		assertEquals(50, histogram.getPercentile(0.98));
+		long p99 = histogram.getPercentile(0.99);
+		assertTrue(p99 >= 1_000_000 && p99 <= 1_000_000 + 1_000_000 / 64);
+		assertEquals(3_000_000, histogram.getPercentile(1));
+	}
+
+	@Test
+	public void emptyAndReset()
+	{
+		MetricsRegistry.Histogram histogram = new MetricsRegistry.Histogram("test", MetricsRegistry.Unit.NONE);
+		assertEquals(0, histogram.getPercentile(0.5));
+		assertEquals("none", histogram.describe());
+		assertEquals(0L, histogram.fields().get("min"));
+
+		histogram.record(12345);
+		histogram.reset();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(0.99));
+	}
+
+	/**
+	 * Negative values (e.g. from a clock going backwards) count as 0, and huge ones land in the last bucket without the sum overflowing
+	 */
+	@Test
+	public void negativeAndHugeValues()
+	{
+		MetricsRegistry.Histogram histogram = new MetricsRegistry.Histogram("test", MetricsRegistry.Unit.NONE);
+		histogram.record(-5);
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getPercentile(1));
+
+		histogram.record(Long.MAX_VALUE);
+		histogram.record(Long.MAX_VALUE - 1);
+		histogram.record(1L << 62);
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+		assertEquals(Long.MAX_VALUE, histogram.getPercentile(1));
+		long p50 = histogram.getPercentile(0.5);
+		assertTrue(p50 >= 1L << 62 && p50 - (1L << 62) <= (1L << 62) / 64);
+
+		Map<String, Number> fields = histogram.fields();
+		assertEquals(Long.MAX_VALUE, fields.get("sum"));
+		assertTrue(fields.get("mean").longValue() > 0);
+	}
+
+	@Test
+	public void metricsAreCreatedOnceByName()
+	{
+		MetricsRegistry registry = MetricsRegistry.get();
+		MetricsRegistry.Counter counter = registry.counter("test.counter");
+		assertSame(counter, registry.counter("test.counter"));
+		counter.add(3);
+		counter.increment();
+		assertEquals(4, registry.counter("test.counter").get());
+		assertTrue(registry.toCsv().contains("\ntest.counter,counter,,4,"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void metricNamesHaveOneKind()
+	{
+		MetricsRegistry.get().counter("test.kind");
+		MetricsRegistry.get().gauge("test.kind", MetricsRegistry.Unit.BYTES);
+	}
+}
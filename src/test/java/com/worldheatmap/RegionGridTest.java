@@ -0,0 +1,289 @@
+package com.worldheatmap;
+
+import java.awt.Rectangle;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class RegionGridTest
+{
+	private static final int REGION_SIZE = RegionGrid.REGION_SIZE;
+
+	@Test
+	public void putAndGetAcrossRegions()
+	{
+		RegionGrid grid = new RegionGrid();
+		assertEquals(0, grid.put(3200, 3200, 5));
+		assertEquals(0, grid.put(3263, 3263, 7));
+		assertEquals(0, grid.put(3264, 3200, 9));
+		assertEquals(5, grid.put(3200, 3200, 6));
+
+		assertEquals(6, grid.get(3200, 3200));
+		assertEquals(7, grid.get(3263, 3263));
+		assertEquals(9, grid.get(3264, 3200));
+		assertEquals(0, grid.get(3201, 3200));
+		assertEquals(2, grid.getNumRegions());
+		assertEquals(2, grid.getRegionNumTiles(3200 / REGION_SIZE, 3200 / REGION_SIZE));
+		assertEquals(13, grid.getRegionSum(3200 / REGION_SIZE, 3200 / REGION_SIZE));
+		assertEquals(7, grid.getRegionMax(3200 / REGION_SIZE, 3200 / REGION_SIZE));
+		assertEquals(6, grid.getRegionMin(3200 / REGION_SIZE, 3200 / REGION_SIZE));
+	}
+
+	@Test
+	public void removingEveryTileRemovesTheRegion()
+	{
+		RegionGrid grid = new RegionGrid();
+		grid.put(100, 100, 1);
+		grid.put(101, 100, 2);
+		grid.put(100, 100, 0);
+		assertEquals(1, grid.getNumRegions());
+		grid.put(101, 100, 0);
+		assertEquals(0, grid.getNumRegions());
+		assertEquals(0, grid.getRegionNumTiles(1, 1));
+	}
+
+	/**
+	 * Filling a region past the sparse block's limit promotes it to a dense block, which has to keep every tile and the region's stats
+	 */
+	@Test
+	public void promotionToDenseKeepsTiles()
+	{
+		RegionGrid grid = new RegionGrid();
+		int baseX = 50 * REGION_SIZE;
+		int baseY = 50 * REGION_SIZE;
+		long promotedSize = 0;
+		long expectedSum = 0;
+		for (int i = 0; i < RegionGrid.REGION_AREA; i++)
+		{
+			grid.put(baseX + i % REGION_SIZE, baseY + i / REGION_SIZE, i + 1);
+			expectedSum += i + 1;
+			if (i == RegionGrid.REGION_AREA / 2)
+			{
+				promotedSize = grid.estimateSize();
+			}
+		}
+		// A dense block already has an int for every tile of the region, whereas a sparse one would have grown its table again
+		assertEquals(promotedSize, grid.estimateSize());
+		assertTrue(grid.estimateSize() < 2 * 4L * RegionGrid.REGION_AREA);
+
+		for (int i = 0; i < RegionGrid.REGION_AREA; i++)
+		{
+			assertEquals(i + 1, grid.get(baseX + i % REGION_SIZE, baseY + i / REGION_SIZE));
+		}
+		assertEquals(RegionGrid.REGION_AREA, grid.getRegionNumTiles(50, 50));
+		assertEquals(expectedSum, grid.getRegionSum(50, 50));
+		assertEquals(RegionGrid.REGION_AREA, grid.getRegionMax(50, 50));
+		assertEquals(1, grid.getRegionMin(50, 50));
+
+		// Still a dense block after most of its tiles are removed, and the stats follow the removals
+		for (int i = 0; i < RegionGrid.REGION_AREA - 1; i++)
+		{
+			grid.put(baseX + i % REGION_SIZE, baseY + i / REGION_SIZE, 0);
+		}
+		assertEquals(1, grid.getRegionNumTiles(50, 50));
+		assertEquals(RegionGrid.REGION_AREA, grid.getRegionMin(50, 50));
+		assertEquals(RegionGrid.REGION_AREA, grid.get(baseX + REGION_SIZE - 1, baseY + REGION_SIZE - 1));
+	}
+
+	@Test
+	public void matchesMapUnderRandomWrites()
+	{
+		Random random = new Random(0);
+		RegionGrid grid = new RegionGrid();
+		Map<Long, Integer> expected = new HashMap<>();
+		for (int i = 0; i < 200_000; i++)
+		{
+			// Mostly one region, so that it's promoted, and a few others that stay sparse
+			int x = random.nextInt(4) == 0 ? random.nextInt(4 * REGION_SIZE) : 2 * REGION_SIZE + random.nextInt(REGION_SIZE);
+			int y = REGION_SIZE + random.nextInt(REGION_SIZE);
+			int value = random.nextInt(3) == 0 ? 0 : random.nextInt(100) + 1;
+			assertEquals(expected.getOrDefault(key(x, y), 0).intValue(), grid.put(x, y, value));
+			if (value == 0)
+			{
+				expected.remove(key(x, y));
+			}
+			else
+			{
+				expected.put(key(x, y), value);
+			}
+		}
+		int[] numTiles = {0};
+		grid.forEachTile((x, y, value) ->
+		{
+			assertEquals(expected.get(key(x, y)).intValue(), value);
+			numTiles[0]++;
+		});
+		assertEquals(expected.size(), numTiles[0]);
+	}
+
+	@Test
+	public void snapshotIsIsolatedFromWrites()
+	{
+		RegionGrid grid = new RegionGrid();
+		Map<Long, Integer> before = new HashMap<>();
+		Random random = new Random(1);
+		for (int i = 0; i < 10_000; i++)
+		{
+			int x = random.nextInt(8 * REGION_SIZE);
+			int y = random.nextInt(2 * REGION_SIZE);
+			int value = random.nextInt(100) + 1;
+			grid.put(x, y, value);
+			before.put(key(x, y), value);
+		}
+		RegionGrid snapshot = grid.snapshot();
+		long sizeBefore = snapshot.estimateSize();
+
+		// Change existing tiles, empty a whole region, and add new regions
+		for (int i = 0; i < 10_000; i++)
+		{
+			grid.put(random.nextInt(8 * REGION_SIZE), random.nextInt(2 * REGION_SIZE), random.nextInt(100));
+		}
+		for (int x = 0; x < REGION_SIZE; x++)
+		{
+			for (int y = 0; y < REGION_SIZE; y++)
+			{
+				grid.put(x, y, 0);
+			}
+		}
+		grid.put(20 * REGION_SIZE, 20 * REGION_SIZE, 1);
+		grid.compact();
+
+		assertTilesEqual(before, snapshot);
+		assertEquals(16, snapshot.getNumRegions());
+		assertEquals(0, snapshot.getRegionModCount(20, 20));
+		assertEquals(sizeBefore, snapshot.estimateSize());
+	}
+
+	@Test
+	public void writesToSnapshotDontReachTheGrid()
+	{
+		RegionGrid grid = new RegionGrid();
+		grid.put(10, 10, 1);
+		grid.put(100, 100, 2);
+		RegionGrid snapshot = grid.snapshot();
+		RegionGrid snapshotOfSnapshot = snapshot.snapshot();
+
+		snapshot.put(10, 10, 5);
+		snapshot.put(100, 100, 0);
+		snapshot.put(1000, 1000, 3);
+
+		assertEquals(1, grid.get(10, 10));
+		assertEquals(2, grid.get(100, 100));
+		assertEquals(0, grid.get(1000, 1000));
+		assertEquals(2, grid.getNumRegions());
+		assertEquals(1, snapshotOfSnapshot.get(10, 10));
+		assertEquals(2, snapshotOfSnapshot.getNumRegions());
+		assertEquals(5, snapshot.get(10, 10));
+		assertEquals(2, snapshot.getNumRegions());
+	}
+
+	@Test
+	public void regionModCountsOnlyGoUp()
+	{
+		RegionGrid grid = new RegionGrid();
+		grid.put(10, 10, 1);
+		int modCount = grid.getRegionModCount(0, 0);
+		RegionGrid snapshot = grid.snapshot();
+		grid.put(10, 10, 2);
+		assertTrue(grid.getRegionModCount(0, 0) > modCount);
+		assertEquals(modCount, snapshot.getRegionModCount(0, 0));
+	}
+
+	@Test
+	public void rectQueriesMatchBruteForce()
+	{
+		Random random = new Random(2);
+		RegionGrid grid = new RegionGrid();
+		Map<Long, Integer> tiles = new HashMap<>();
+		// One region full enough to be dense, and tiles scattered over sparse ones
+		for (int i = 0; i < 3000; i++)
+		{
+			int x = 3 * REGION_SIZE + random.nextInt(REGION_SIZE);
+			int y = 3 * REGION_SIZE + random.nextInt(REGION_SIZE);
+			int value = random.nextInt(1000) + 1;
+			grid.put(x, y, value);
+			tiles.put(key(x, y), value);
+		}
+		for (int i = 0; i < 3000; i++)
+		{
+			int x = random.nextInt(10 * REGION_SIZE);
+			int y = random.nextInt(10 * REGION_SIZE);
+			int value = random.nextInt(1000) + 1;
+			grid.put(x, y, value);
+			tiles.put(key(x, y), value);
+		}
+
+		for (int i = 0; i < 500; i++)
+		{
+			// Rectangles from within a region to covering more regions than have been visited, so both ways of finding the regions are used
+			int width = random.nextInt(i % 2 == 0 ? 100 : 12 * REGION_SIZE);
+			int height = random.nextInt(i % 2 == 0 ? 100 : 12 * REGION_SIZE);
+			Rectangle rect = new Rectangle(random.nextInt(11 * REGION_SIZE) - REGION_SIZE, random.nextInt(11 * REGION_SIZE) - REGION_SIZE, width, height);
+
+			Map<Long, Integer> expected = new HashMap<>();
+			long expectedSum = 0;
+			int expectedMax = 0;
+			int expectedMin = Integer.MAX_VALUE;
+			for (Map.Entry<Long, Integer> tile : tiles.entrySet())
+			{
+				int x = (int) (tile.getKey() >> 32);
+				int y = (int) (long) tile.getKey();
+				if (rect.contains(x, y))
+				{
+					expected.put(tile.getKey(), tile.getValue());
+					expectedSum += tile.getValue();
+					expectedMax = Math.max(expectedMax, tile.getValue());
+					expectedMin = Math.min(expectedMin, tile.getValue());
+				}
+			}
+
+			Map<Long, Integer> visited = new HashMap<>();
+			grid.forEachTileInRect(rect, (x, y, value) -> assertEquals(null, visited.put(key(x, y), value)));
+			assertEquals(expected, visited);
+
+			RegionGrid.RectSummary summary = grid.summarizeRect(rect);
+			assertEquals(expected.size(), summary.numTiles);
+			assertEquals(expectedSum, summary.sum);
+			assertEquals(expectedMax, summary.max);
+			assertEquals(expected.isEmpty() ? 0 : expectedMin, summary.min);
+		}
+	}
+
+	@Test
+	public void rectSummariesCombine()
+	{
+		RegionGrid grid = new RegionGrid();
+		grid.put(10, 10, 4);
+		grid.put(100, 10, 9);
+		grid.put(200, 10, 2);
+		RegionGrid.RectSummary left = grid.summarizeRect(new Rectangle(0, 0, 150, 20));
+		RegionGrid.RectSummary right = grid.summarizeRect(new Rectangle(150, 0, 150, 20));
+		RegionGrid.RectSummary empty = grid.summarizeRect(new Rectangle(0, 100, 10, 10));
+		RegionGrid.RectSummary all = left.combine(empty).combine(right);
+		assertEquals(3, all.numTiles);
+		assertEquals(15, all.sum);
+		assertEquals(9, all.max);
+		assertEquals(2, all.min);
+		assertEquals(0, empty.min);
+		assertEquals(0, grid.summarizeRect(new Rectangle(0, 0, 0, 0)).numTiles);
+	}
+
+	private static void assertTilesEqual(Map<Long, Integer> expected, RegionGrid grid)
+	{
+		int[] numTiles = {0};
+		grid.forEachTile((x, y, value) ->
+		{
+			assertEquals(expected.get(key(x, y)).intValue(), value);
+			numTiles[0]++;
+		});
+		assertEquals(expected.size(), numTiles[0]);
+	}
+
+	private static long key(int x, int y)
+	{
+		return (long) x << 32 | y;
+	}
+}
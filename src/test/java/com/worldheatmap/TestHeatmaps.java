@@ -0,0 +1,36 @@
+package com.worldheatmap;
+
+import java.awt.Rectangle;
+import java.util.Random;
+
+/**
+ * Random heatmaps for the tests to save, load and draw
+ */
+class TestHeatmaps
+{
+	/**
+	 * @return A heatmap of 5000 random increments around Lumbridge and Varrock, with a random game time
+	 */
+	static HeatmapNew randomHeatmap(HeatmapNew.HeatmapType type, long seed)
+	{
+		Random random = new Random(seed);
+		HeatmapNew heatmap = new HeatmapNew(type, seed);
+		for (int i = 0; i < 5000; i++)
+		{
+			heatmap.increment(3000 + random.nextInt(500), 3000 + random.nextInt(500), random.nextInt(100) + 1);
+		}
+		heatmap.setGameTimeTicks(random.nextInt(1_000_000));
+		return heatmap;
+	}
+
+	/**
+	 * Sets numTiles random tiles within the area (or fewer, if some are picked twice) to random values from 1 to maxValue
+	 */
+	static void setRandomTiles(HeatmapNew heatmap, Random random, Rectangle area, int numTiles, int maxValue)
+	{
+		for (int i = 0; i < numTiles; i++)
+		{
+			heatmap.set(area.x + random.nextInt(area.width), area.y + random.nextInt(area.height), 1 + random.nextInt(maxValue));
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.worldheatmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class TileEventBufferTest
+{
+	@Test
+	public void recordsWrapAroundInOrder()
+	{
+		TileEventBuffer buffer = new TileEventBuffer(8);
+		List<int[]> drained = new ArrayList<>();
+		int next = 0;
+		// Offsets the records from the slots each round, so they wrap around the end of the arrays at different points
+		for (int round = 0; round < 20; round++)
+		{
+			int first = next;
+			for (int i = 0; i < 5; i++, next++)
+			{
+				assertTrue(buffer.offer(next % 3, next, -next, next * 7));
+			}
+			drained.clear();
+			assertEquals(5, buffer.drain((type, x, y, amount) -> drained.add(new int[]{type, x, y, amount}), 100));
+			for (int i = 0; i < 5; i++)
+			{
+				int expected = first + i;
+				int[] record = drained.get(i);
+				assertEquals(expected % 3, record[0]);
+				assertEquals(expected, record[1]);
+				assertEquals(-expected, record[2]);
+				assertEquals(expected * 7, record[3]);
+			}
+		}
+		assertEquals(100, buffer.getPublishedCount());
+		assertEquals(100, buffer.getConsumedCount());
+		assertEquals(0, buffer.getNumDropped());
+	}
+
+	@Test
+	public void fullBufferDropsAndCounts()
+	{
+		TileEventBuffer buffer = new TileEventBuffer(8);
+		for (int i = 0; i < 8; i++)
+		{
+			assertTrue(buffer.offer(0, i, 0, 1));
+		}
+		assertFalse(buffer.offer(0, 8, 0, 1));
+		assertFalse(buffer.offer(TileEventBuffer.TICK, 0, 0, 0));
+		assertEquals(2, buffer.getNumDropped());
+		assertEquals(8, buffer.getPublishedCount());
+
+		// Draining part of it makes room for that many more
+		int[] xs = new int[3];
+		int[] n = {0};
+		assertEquals(3, buffer.drain((type, x, y, amount) -> xs[n[0]++] = x, 3));
+		assertEquals(0, xs[0]);
+		assertEquals(2, xs[2]);
+		for (int i = 0; i < 3; i++)
+		{
+			assertTrue(buffer.offer(TileEventBuffer.TICK, 0, 0, 0));
+		}
+		assertFalse(buffer.offer(0, 0, 0, 1));
+		assertEquals(3, buffer.getNumDropped());
+
+		// The TICK type survives being stored as a byte
+		int[] numTicks = {0};
+		assertEquals(8, buffer.drain((type, x, y, amount) ->
+		{
+			if (type == TileEventBuffer.TICK)
+			{
+				numTicks[0]++;
+			}
+		}, 100));
+		assertEquals(3, numTicks[0]);
+	}
+
+	@Test
+	public void capacityIsRoundedUpToAPowerOf2()
+	{
+		TileEventBuffer buffer = new TileEventBuffer(5);
+		int published = 0;
+		while (buffer.offer(0, 0, 0, 1))
+		{
+			published++;
+		}
+		assertEquals(8, published);
+	}
+
+	@Test
+	public void concurrentProducerAndConsumer() throws InterruptedException
+	{
+		final int numRecords = 1_000_000;
+		TileEventBuffer buffer = new TileEventBuffer(1024);
+		Thread producer = new Thread(() ->
+		{
+			for (int i = 0; i < numRecords; i++)
+			{
+				while (!buffer.offer(1, i, i + 1, i + 2))
+				{
+					Thread.yield();
+				}
+			}
+		});
+		producer.start();
+
+		int[] expected = {0};
+		boolean[] isInOrder = {true};
+		while (expected[0] < numRecords)
+		{
+			buffer.drain((type, x, y, amount) ->
+			{
+				isInOrder[0] &= type == 1 && x == expected[0] && y == x + 1 && amount == x + 2;
+				expected[0]++;
+			}, 256);
+		}
+		producer.join();
+		assertTrue(isInOrder[0]);
+		assertEquals(numRecords, buffer.getConsumedCount());
+	}
+}
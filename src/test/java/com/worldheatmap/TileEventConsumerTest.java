@@ -0,0 +1,283 @@
+package com.worldheatmap;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Publishes events into a buffer for the consumer to drain, and checks what it applied to the heatmaps and journaled against
+ * heatmaps incremented directly
+ */
+public class TileEventConsumerTest
+{
+	private static final HeatmapNew.HeatmapType[] LOADED_TYPES = {HeatmapNew.HeatmapType.TYPE_A, HeatmapNew.HeatmapType.TYPE_B};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File journalDir;
+	private HeatmapJournal journal;
+	private TileEventBuffer buffer;
+	private HeatmapResidency residency;
+	private final AtomicInteger numTickRoutines = new AtomicInteger();
+	private TileEventConsumer consumer;
+
+	@Before
+	public void setUp()
+	{
+		journalDir = new File(folder.getRoot(), "journal");
+		journal = new HeatmapJournal(journalDir, 0);
+		buffer = new TileEventBuffer(1 << 12);
+		residency = new HeatmapResidency(new ConcurrentHashMap<>());
+		for (HeatmapNew.HeatmapType type : LOADED_TYPES)
+		{
+			residency.replace(new HeatmapNew(type));
+		}
+		consumer = new TileEventConsumer(buffer, residency, () -> journal, numTickRoutines::incrementAndGet);
+		consumer.start();
+	}
+
+	@After
+	public void tearDown()
+	{
+		consumer.shutdown(5000);
+		journal.close();
+	}
+
+	@Test
+	public void appliesAndJournalsEachTick()
+	{
+		long typeAIncrementsBefore = MetricsRegistry.get().counter("increments.TYPE_A").get();
+		HeatmapNew[] expected = publishRandomTicks(new Random(0), 100);
+		assertTrue(consumer.flush(5000));
+		for (HeatmapNew heatmap : expected)
+		{
+			HeatmapBinaryFormatTest.assertHeatmapsEqual(heatmap, residency.getResident(heatmap.getHeatmapType()));
+		}
+		assertEquals(100 * 10, MetricsRegistry.get().counter("increments.TYPE_A").get() - typeAIncrementsBefore);
+
+		// Replaying the journal onto empty heatmaps gives the same heatmaps
+		consumer.shutdown(5000);
+		journal.close();
+		HeatmapJournal.PendingIncrements pending = HeatmapJournal.readPending(journalDir, -1);
+		for (HeatmapNew heatmap : expected)
+		{
+			HeatmapNew replayed = new HeatmapNew(heatmap.getHeatmapType());
+			pending.applyTo(replayed);
+			HeatmapBinaryFormatTest.assertHeatmapsEqual(heatmap, replayed);
+		}
+		assertTrue(numTickRoutines.get() >= 1);
+	}
+
+	/**
+	 * Increments of types that aren't loaded are counted and dropped, rather than journaled. The ticks only count towards the loaded types
+	 */
+	@Test
+	public void unloadedTypesAreSkipped()
+	{
+		long unloadedBefore = MetricsRegistry.get().counter("events.unloaded").get();
+		for (int i = 0; i < 5; i++)
+		{
+			buffer.offer(HeatmapNew.HeatmapType.DEATHS.ordinal(), 3200, 3200 + i, 1);
+		}
+		buffer.offer(HeatmapNew.HeatmapType.TYPE_A.ordinal(), 3200, 3200, 1);
+		buffer.offer(TileEventBuffer.TICK, 0, 0, 0);
+		assertTrue(consumer.flush(5000));
+		assertEquals(5, MetricsRegistry.get().counter("events.unloaded").get() - unloadedBefore);
+		assertNull(residency.get(HeatmapNew.HeatmapType.DEATHS));
+		assertEquals(1, residency.getResident(HeatmapNew.HeatmapType.TYPE_A).get(3200, 3200));
+
+		consumer.shutdown(5000);
+		journal.close();
+		HeatmapJournal.PendingIncrements pending = HeatmapJournal.readPending(journalDir, -1);
+		assertFalse(pending.hasIncrements(HeatmapNew.HeatmapType.DEATHS));
+		HeatmapNew deaths = new HeatmapNew(HeatmapNew.HeatmapType.DEATHS);
+		pending.applyTo(deaths);
+		assertEquals(0, deaths.getGameTimeTicks());
+		HeatmapNew typeA = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		pending.applyTo(typeA);
+		assertEquals(1, typeA.getGameTimeTicks());
+	}
+
+	/**
+	 * Tasks run in the order they were added, on the tick routine's thread, once at least the records published before them have been applied
+	 */
+	@Test
+	public void whenAppliedRunsInOrderAfterItsRecords() throws InterruptedException
+	{
+		HeatmapNew typeA = residency.getResident(HeatmapNew.HeatmapType.TYPE_A);
+		List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+		List<Integer> values = Collections.synchronizedList(new ArrayList<>());
+		List<String> threadNames = Collections.synchronizedList(new ArrayList<>());
+		for (int tick = 0; tick < 50; tick++)
+		{
+			buffer.offer(HeatmapNew.HeatmapType.TYPE_A.ordinal(), 3200, 3200, 1);
+			buffer.offer(TileEventBuffer.TICK, 0, 0, 0);
+			int task = tick;
+			consumer.whenApplied(() -> {
+				synchronized (typeA)
+				{
+					values.add(typeA.get(3200, 3200));
+				}
+				order.add(task);
+				threadNames.add(Thread.currentThread().getName());
+			});
+		}
+		CountDownLatch done = new CountDownLatch(1);
+		consumer.whenApplied(done::countDown);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		assertEquals(50, order.size());
+		for (int task = 0; task < 50; task++)
+		{
+			assertEquals(Integer.valueOf(task), order.get(task));
+			assertTrue(values.get(task) >= task + 1);
+			assertEquals("World Heatmap Tick Routine", threadNames.get(task));
+		}
+	}
+
+	/**
+	 * A heatmap snapshot taken together with a journal rotation, under the journal's lock, holds exactly the records journaled before
+	 * the rotation, so the snapshot plus the segments after it give the heatmap as it ends up
+	 */
+	@Test
+	public void snapshotsAreConsistentWithJournalRotations() throws InterruptedException
+	{
+		HeatmapNew[] snapshot = new HeatmapNew[1];
+		long[] rotatedSequence = new long[1];
+		Random random = new Random(1);
+		HeatmapNew[] expected = publishRandomTicks(random, 25);
+		consumer.whenApplied(() -> {
+			synchronized (journal)
+			{
+				snapshot[0] = residency.getResident(HeatmapNew.HeatmapType.TYPE_A).snapshot();
+				rotatedSequence[0] = journal.rotate();
+			}
+		});
+		HeatmapNew[] expectedAfter = publishRandomTicks(random, 25);
+		CountDownLatch done = new CountDownLatch(1);
+		consumer.whenApplied(done::countDown);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+
+		// Further increments that the snapshot was taken somewhere among
+		for (HeatmapNew heatmap : expectedAfter)
+		{
+			HeatmapNew before = heatmap.getHeatmapType() == expected[0].getHeatmapType() ? expected[0] : expected[1];
+			before.forEachTile((x, y, value) -> heatmap.increment(x, y, value));
+			heatmap.setGameTimeTicks(heatmap.getGameTimeTicks() + before.getGameTimeTicks());
+		}
+		consumer.shutdown(5000);
+		journal.close();
+		HeatmapNew restored = new HeatmapNew(HeatmapNew.HeatmapType.TYPE_A);
+		snapshot[0].forEachTile(restored::set);
+		restored.setGameTimeTicks(snapshot[0].getGameTimeTicks());
+		HeatmapJournal.readPending(journalDir, rotatedSequence[0]).applyTo(restored);
+		HeatmapBinaryFormatTest.assertHeatmapsEqual(expectedAfter[0], restored);
+	}
+
+	/**
+	 * Shutting down applies everything published so far, and runs the tasks waiting for it
+	 */
+	@Test
+	public void shutdownDrainsBuffer()
+	{
+		HeatmapNew[] expected = publishRandomTicks(new Random(2), 30);
+		AtomicInteger numTasksRun = new AtomicInteger();
+		consumer.whenApplied(numTasksRun::incrementAndGet);
+		consumer.shutdown(5000);
+		assertFalse(consumer.isAlive());
+		assertEquals(buffer.getPublishedCount(), buffer.getConsumedCount());
+		assertEquals(1, numTasksRun.get());
+		for (HeatmapNew heatmap : expected)
+		{
+			HeatmapBinaryFormatTest.assertHeatmapsEqual(heatmap, residency.getResident(heatmap.getHeatmapType()));
+		}
+	}
+
+	@Test
+	public void flushFailsWithoutConsumerThread()
+	{
+		TileEventConsumer stopped = new TileEventConsumer(buffer, residency, () -> null, () -> {});
+		buffer.offer(HeatmapNew.HeatmapType.TYPE_A.ordinal(), 3200, 3200, 1);
+		assertFalse(stopped.flush(100));
+		// The running consumer picks it up
+		assertTrue(consumer.flush(5000));
+	}
+
+	/**
+	 * Events the buffer was too full to take are counted when the next tick is applied
+	 */
+	@Test
+	public void droppedEventsAreCounted()
+	{
+		TileEventBuffer smallBuffer = new TileEventBuffer(8);
+		TileEventConsumer smallConsumer = new TileEventConsumer(smallBuffer, residency, () -> null, () -> {});
+		long droppedBefore = MetricsRegistry.get().counter("events.dropped").get();
+		// Not drained until the consumer's started
+		for (int i = 0; i < 12; i++)
+		{
+			smallBuffer.offer(HeatmapNew.HeatmapType.TYPE_B.ordinal(), 3200, 3200, 1);
+		}
+		smallConsumer.start();
+		try
+		{
+			assertTrue(smallConsumer.flush(5000));
+			assertTrue(smallBuffer.offer(TileEventBuffer.TICK, 0, 0, 0));
+			assertTrue(smallConsumer.flush(5000));
+			assertEquals(4, MetricsRegistry.get().counter("events.dropped").get() - droppedBefore);
+			assertEquals(8, residency.getResident(HeatmapNew.HeatmapType.TYPE_B).get(3200, 3200));
+		}
+		finally
+		{
+			smallConsumer.shutdown(5000);
+		}
+	}
+
+	/**
+	 * Publishes ticks of 10 random increments to each loaded type, waking the consumer up after each
+	 *
+	 * @return Heatmaps of the loaded types with the same increments and ticks applied directly
+	 */
+	private HeatmapNew[] publishRandomTicks(Random random, int numTicks)
+	{
+		HeatmapNew[] expected = new HeatmapNew[LOADED_TYPES.length];
+		for (int i = 0; i < LOADED_TYPES.length; i++)
+		{
+			expected[i] = new HeatmapNew(LOADED_TYPES[i]);
+		}
+		for (int tick = 0; tick < numTicks; tick++)
+		{
+			for (int i = 0; i < 10 * LOADED_TYPES.length; i++)
+			{
+				HeatmapNew heatmap = expected[i % LOADED_TYPES.length];
+				int x = 3200 + random.nextInt(50);
+				int y = 3200 + random.nextInt(50);
+				int amount = 1 + random.nextInt(100);
+				assertTrue(buffer.offer(heatmap.getHeatmapType().ordinal(), x, y, amount));
+				heatmap.increment(x, y, amount);
+			}
+			assertTrue(buffer.offer(TileEventBuffer.TICK, 0, 0, 0));
+			for (HeatmapNew heatmap : expected)
+			{
+				heatmap.incrementGameTimeTicks();
+			}
+			consumer.wakeUp();
+		}
+		return expected;
+	}
+}
@@ -0,0 +1,102 @@
+package com.worldheatmap;
+
+import java.util.Random;
+import java.util.TreeMap;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+public class ValueHistogramTest
+{
+	@Test
+	public void emptyHistogram()
+	{
+		ValueHistogram histogram = new ValueHistogram();
+		assertEquals(0, histogram.getMax());
+		assertEquals(0, histogram.getMin());
+		assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+	@Test
+	public void maxAndMinAfterTheirLastTileChanges()
+	{
+		ValueHistogram histogram = new ValueHistogram();
+		histogram.add(3);
+		histogram.add(7);
+		histogram.add(7);
+		histogram.add(10);
+
+		// Lowering the only max leaves it to be recalculated
+		histogram.change(10, 4);
+		assertEquals(7, histogram.getMax());
+		histogram.change(7, 1);
+		assertEquals(7, histogram.getMax());
+		assertEquals(1, histogram.getMin());
+		// Raising the only min
+		histogram.change(1, 8);
+		assertEquals(8, histogram.getMax());
+		assertEquals(3, histogram.getMin());
+		histogram.remove(3);
+		assertEquals(4, histogram.getMin());
+	}
+
+	@Test
+	public void copyIsIndependent()
+	{
+		ValueHistogram histogram = new ValueHistogram();
+		histogram.add(5);
+		histogram.add(9);
+		ValueHistogram copy = histogram.copy();
+		histogram.change(9, 1);
+		assertEquals(9, copy.getMax());
+		assertEquals(5, copy.getMin());
+		assertEquals(5, histogram.getMax());
+		assertEquals(1, histogram.getMin());
+	}
+
+	@Test
+	public void matchesSortedCountsUnderRandomChanges()
+	{
+		Random random = new Random(0);
+		ValueHistogram histogram = new ValueHistogram();
+		// Value -> count of the tiles being simulated
+		int[] tiles = new int[500];
+		TreeMap<Integer, Integer> counts = new TreeMap<>();
+		for (int i = 0; i < 100_000; i++)
+		{
+			int tile = random.nextInt(tiles.length);
+			int newValue = random.nextInt(4) == 0 ? 0 : random.nextInt(1000) + 1;
+			histogram.change(tiles[tile], newValue);
+			if (tiles[tile] != 0)
+			{
+				counts.merge(tiles[tile], -1, (a, b) -> a + b == 0 ? null : a + b);
+			}
+			if (newValue != 0)
+			{
+				counts.merge(newValue, 1, Integer::sum);
+			}
+			tiles[tile] = newValue;
+
+			if (i % 97 == 0)
+			{
+				assertEquals(counts.isEmpty() ? 0 : counts.lastKey().intValue(), histogram.getMax());
+				assertEquals(counts.isEmpty() ? 0 : counts.firstKey().intValue(), histogram.getMin());
+				int numValues = counts.values().stream().mapToInt(Integer::intValue).sum();
+				assertEquals(numValues, histogram.getNumValues());
+			}
+		}
+	}
+
+	@Test
+	public void percentilesUseNearestRank()
+	{
+		ValueHistogram histogram = new ValueHistogram();
+		for (int value = 1; value <= 100; value++)
+		{
+			histogram.add(value);
+		}
+		assertEquals(1, histogram.getValueAtPercentile(0));
+		assertEquals(1, histogram.getValueAtPercentile(1));
+		assertEquals(50, histogram.getValueAtPercentile(50));
+		assertEquals(100, histogram.getValueAtPercentile(100));
+	}
+}
@@ -2,13 +2,23 @@ package com.worldheatmap;
 
 import net.runelite.client.RuneLite;
 import net.runelite.client.externalplugins.ExternalPluginManager;
+import net.runelite.client.plugins.Plugin;
 
 public class WorldHeatmapTest
 {
 	public static void main(String[] args) throws Exception
 	{
-		//noinspection unchecked
-		ExternalPluginManager.loadBuiltin(WorldHeatmapPlugin.class);
+		loadBuiltin(WorldHeatmapPlugin.class);
 		RuneLite.main(args);
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Hands the plugins to ExternalPluginManager as an array that's already been created, so that javac doesn't warn about creating
+	 * a generic array for its varargs parameter
+	 */
+	@SafeVarargs
+	private static void loadBuiltin(Class<? extends Plugin>... plugins)
+	{
+		ExternalPluginManager.loadBuiltin(plugins);
+	}
+}
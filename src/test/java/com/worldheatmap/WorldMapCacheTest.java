@@ -0,0 +1,277 @@
+package com.worldheatmap;
+
+import java.awt.Rectangle;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.ImageIO;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks the world map decoded into the cache against ImageIO's decoding of the same PNG, pixel by pixel.
+ * The PNGs are written here rather than with ImageIO, which doesn't filter the rows of most kinds of PNG, so that every
+ * row filter is used with every pixel size.
+ */
+public class WorldMapCacheTest
+{
+	private static final int WIDTH = 301;
+	private static final int HEIGHT = 240;
+	private static final int GREYSCALE = 0, RGB = 2, PALETTE = 3, GREYSCALE_ALPHA = 4, RGB_ALPHA = 6;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File overrideDir;
+	private WorldMapCache cache;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		overrideDir = folder.newFolder("override");
+		cache = new WorldMapCache(folder.newFolder("cache"), overrideDir);
+	}
+
+	@Test
+	public void decodesRgb() throws IOException
+	{
+		assertDecodedLikeImageIO(RGB, 8);
+	}
+
+	@Test
+	public void decodesRgbWithAlpha() throws IOException
+	{
+		assertDecodedLikeImageIO(RGB_ALPHA, 8);
+	}
+
+	@Test
+	public void decodesGreyscale() throws IOException
+	{
+		assertDecodedLikeImageIO(GREYSCALE, 8);
+	}
+
+	@Test
+	public void decodesGreyscaleWithAlpha() throws IOException
+	{
+		assertDecodedLikeImageIO(GREYSCALE_ALPHA, 8);
+	}
+
+	@Test
+	public void decodesPalette() throws IOException
+	{
+		assertDecodedLikeImageIO(PALETTE, 8);
+	}
+
+	/**
+	 * 16 bit PNGs are left to ImageIO
+	 */
+	@Test
+	public void decodesSixteenBitRgb() throws IOException
+	{
+		assertDecodedLikeImageIO(RGB, 16);
+	}
+
+	@Test
+	public void decodesAgainWhenTheMapChanges() throws IOException
+	{
+		File png = writeMap(RGB, 8, 1);
+		WorldMapImage map = cache.getWorldMapImage(false);
+		assertPixelsEqual(ImageIO.read(png), map);
+		assertEquals(map.getVersion(), cache.getWorldMapImage(false).getVersion());
+		// Another map of the same size, as if a new one had been downloaded
+		png = writeMap(RGB, 8, 2);
+		assertTrue(png.setLastModified(png.lastModified() + 2000));
+		WorldMapImage newMap = cache.getWorldMapImage(false);
+		assertPixelsEqual(ImageIO.read(png), newMap);
+		// So that images drawn over the old map aren't mistaken for being drawn over this one
+		assertNotEquals(map.getVersion(), newMap.getVersion());
+	}
+
+	private void assertDecodedLikeImageIO(int colorType, int bitDepth) throws IOException
+	{
+		File png = writeMap(colorType, bitDepth, 0);
+		assertPixelsEqual(ImageIO.read(png), cache.getWorldMapImage(false));
+		// From the cache this time
+		assertPixelsEqual(ImageIO.read(png), cache.getWorldMapImage(false));
+	}
+
+	/**
+	 * Writes a map of noise, and horizontal, vertical and diagonal gradients, with each row filtered by the next kind of filter.
+	 * The image data is split over several IDAT chunks.
+	 */
+	private File writeMap(int colorType, int bitDepth, long seed) throws IOException
+	{
+		int samplesPerPixel = colorType == RGB ? 3 : colorType == RGB_ALPHA ? 4 : colorType == GREYSCALE_ALPHA ? 2 : 1;
+		int bytesPerPixel = samplesPerPixel * bitDepth / 8;
+		Random random = new Random(seed);
+		byte[] palette = new byte[256 * 3];
+		random.nextBytes(palette);
+
+		ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+		try (DeflaterOutputStream deflater = new DeflaterOutputStream(imageData))
+		{
+			byte[] previousRow = new byte[WIDTH * bytesPerPixel];
+			for (int y = 0; y < HEIGHT; y++)
+			{
+				byte[] row = new byte[WIDTH * bytesPerPixel];
+				for (int x = 0; x < WIDTH; x++)
+				{
+					int argb;
+					switch (y / 60)
+					{
+						case 0:
+							argb = random.nextInt();
+							break;
+						case 1:
+							argb = (x * 0x03010203) ^ (y << 16);
+							break;
+						case 2:
+							argb = (y * 0x01030201) ^ x;
+							break;
+						default:
+							argb = ((x + y) * 0x05020101) + random.nextInt(4);
+							break;
+					}
+					// Red, green, blue and alpha, or grey and alpha, or the palette index
+					int[] samples = {argb >> 16, argb >> 8, argb, argb >> 24};
+					if (colorType == GREYSCALE_ALPHA)
+					{
+						samples[1] = samples[3];
+					}
+					for (int s = 0; s < samplesPerPixel; s++)
+					{
+						for (int b = 0; b < bitDepth / 8; b++)
+						{
+							row[x * bytesPerPixel + s * bitDepth / 8 + b] = (byte) samples[s];
+						}
+					}
+				}
+				deflater.write(filter(y % 5, row, previousRow, bytesPerPixel));
+				previousRow = row;
+			}
+		}
+
+		File png = new File(overrideDir, "osrs_world_map.png");
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(png)))
+		{
+			out.writeLong(0x89504E470D0A1A0AL);
+			ByteBuffer header = ByteBuffer.allocate(13).putInt(WIDTH).putInt(HEIGHT).put((byte) bitDepth).put((byte) colorType);
+			writeChunk(out, "IHDR", header.array());
+			if (colorType == PALETTE)
+			{
+				writeChunk(out, "PLTE", palette);
+			}
+			byte[] data = imageData.toByteArray();
+			for (int offset = 0; offset < data.length; offset += 4096)
+			{
+				writeChunk(out, "IDAT", Arrays.copyOfRange(data, offset, Math.min(data.length, offset + 4096)));
+			}
+			writeChunk(out, "IEND", new byte[0]);
+		}
+		return png;
+	}
+
+	private static byte[] filter(int filterType, byte[] row, byte[] previousRow, int bytesPerPixel)
+	{
+		byte[] filtered = new byte[row.length + 1];
+		filtered[0] = (byte) filterType;
+		for (int i = 0; i < row.length; i++)
+		{
+			int left = i >= bytesPerPixel ? row[i - bytesPerPixel] & 0xFF : 0;
+			int up = previousRow[i] & 0xFF;
+			int upLeft = i >= bytesPerPixel ? previousRow[i - bytesPerPixel] & 0xFF : 0;
+			int predicted;
+			switch (filterType)
+			{
+				case 0:
+					predicted = 0;
+					break;
+				case 1:
+					predicted = left;
+					break;
+				case 2:
+					predicted = up;
+					break;
+				case 3:
+					predicted = (left + up) / 2;
+					break;
+				default:
+					int p = left + up - upLeft;
+					int distanceLeft = Math.abs(p - left);
+					int distanceUp = Math.abs(p - up);
+					int distanceUpLeft = Math.abs(p - upLeft);
+					predicted = distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft ? left : distanceUp <= distanceUpLeft ? up : upLeft;
+					break;
+			}
+			filtered[i + 1] = (byte) (row[i] - predicted);
+		}
+		return filtered;
+	}
+
+	private static void writeChunk(DataOutputStream out, String type, byte[] data) throws IOException
+	{
+		byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+		out.writeInt(data.length);
+		out.write(typeBytes);
+		out.write(data);
+		out.writeInt((int) crc.getValue());
+	}
+
+	private static void assertPixelsEqual(BufferedImage expected, WorldMapImage actual)
+	{
+		assertEquals(expected.getWidth(), actual.getWidth());
+		assertEquals(expected.getHeight(), actual.getHeight());
+
+		// All of it, which takes the path for whole rows
+		BufferedImage whole = actual.read(new Rectangle(0, 0, actual.getWidth(), actual.getHeight()));
+		for (int y = 0; y < expected.getHeight(); y++)
+		{
+			for (int x = 0; x < expected.getWidth(); x++)
+			{
+				assertEquals("pixel " + x + "," + y, expectedRgb(expected, x, y), whole.getRGB(x, y) & 0xFFFFFF);
+			}
+		}
+
+		// And a region in the middle, as raw bytes
+		Rectangle region = new Rectangle(17, 33, 100, 150);
+		ByteBuffer bytes = ByteBuffer.allocate(region.width * region.height * 3);
+		actual.read(region, bytes);
+		for (int y = 0; y < region.height; y++)
+		{
+			for (int x = 0; x < region.width; x++)
+			{
+				int i = (y * region.width + x) * 3;
+				int rgb = (bytes.get(i) & 0xFF) << 16 | (bytes.get(i + 1) & 0xFF) << 8 | bytes.get(i + 2) & 0xFF;
+				assertEquals("pixel " + (region.x + x) + "," + (region.y + y), expectedRgb(expected, region.x + x, region.y + y), rgb);
+			}
+		}
+	}
+
+	private static int expectedRgb(BufferedImage image, int x, int y)
+	{
+		if (image.getColorModel().getColorSpace().getType() == ColorSpace.TYPE_GRAY)
+		{
+			// The grey samples as they are. getRGB() would take them for linear grey, and gamma correct them
+			return image.getRaster().getSample(x, y, 0) * 0x010101;
+		}
+		return image.getRGB(x, y) & 0xFFFFFF;
+	}
+}